@@ -0,0 +1,141 @@
+package net.i2p.i2ptunnel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ *  The local socket's output stream when forwarding through the SharedForwarder.
+ *
+ *  In blocking mode, writes go straight to the channel, as for Socket.getOutputStream().
+ *  In nonblocking mode, whatever the channel won't take right away is buffered,
+ *  and written out later by the forwarder when the channel is writable.
+ *  The buffer is not bounded here, the forwarder stops reading from I2P
+ *  when getPending() is too large.
+ *
+ *  @since 0.9.28
+ */
+class ChannelOutputStream extends OutputStream {
+    private final SocketChannel _chan;
+    /** fill mode, null until needed */
+    private ByteBuffer _pending;
+    private boolean _nonBlocking;
+    private final byte[] _oneByte = new byte[1];
+
+    private static final int MIN_BUFFER = 4*1024;
+
+    /**
+     *  @param chan must be in blocking mode
+     */
+    public ChannelOutputStream(SocketChannel chan) {
+        _chan = chan;
+    }
+
+    /**
+     *  Caller must set the channel to the same mode, after this
+     *  when going to nonblocking mode, or before this when going to blocking mode.
+     */
+    public synchronized void setNonBlocking(boolean nonBlocking) {
+        _nonBlocking = nonBlocking;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        _oneByte[0] = (byte) b;
+        write(_oneByte, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        if (!_nonBlocking) {
+            flush();
+            while (src.hasRemaining()) {
+                _chan.write(src);
+            }
+            return;
+        }
+        if (getPending() <= 0) {
+            while (src.hasRemaining()) {
+                if (_chan.write(src) <= 0)
+                    break;
+            }
+            if (!src.hasRemaining())
+                return;
+        }
+        int len2 = src.remaining();
+        if (_pending == null) {
+            _pending = ByteBuffer.allocate(Math.max(MIN_BUFFER, len2));
+        } else if (_pending.remaining() < len2) {
+            ByteBuffer nb = ByteBuffer.allocate(Math.max(2 * _pending.capacity(), _pending.position() + len2));
+            _pending.flip();
+            nb.put(_pending);
+            _pending = nb;
+        }
+        _pending.put(src);
+    }
+
+    /**
+     *  Write out as much of the buffered data as the channel will take.
+     *
+     *  @return true if buffered data remains
+     */
+    public synchronized boolean writePending() throws IOException {
+        if (getPending() <= 0)
+            return false;
+        _pending.flip();
+        try {
+            while (_pending.hasRemaining()) {
+                if (_chan.write(_pending) <= 0)
+                    break;
+            }
+        } finally {
+            _pending.compact();
+        }
+        return _pending.position() > 0;
+    }
+
+    /**
+     *  @return the number of bytes buffered
+     */
+    public synchronized int getPending() {
+        return _pending != null ? _pending.position() : 0;
+    }
+
+    /**
+     *  In blocking mode, writes out all buffered data.
+     *  In nonblocking mode, writes out what the channel will take.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (getPending() <= 0)
+            return;
+        if (!_nonBlocking) {
+            _pending.flip();
+            try {
+                while (_pending.hasRemaining()) {
+                    _chan.write(_pending);
+                }
+            } finally {
+                _pending.clear();
+            }
+        } else {
+            writePending();
+        }
+    }
+
+    /**
+     *  Closes the channel, after writing out buffered data if in blocking mode.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!_nonBlocking && _chan.isOpen())
+                flush();
+        } finally {
+            _pending = null;
+            _chan.close();
+        }
+    }
+}
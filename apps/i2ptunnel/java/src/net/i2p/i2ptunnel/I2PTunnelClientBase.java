@@ -9,10 +9,12 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -712,6 +714,11 @@ public abstract class I2PTunnelClientBase extends I2PTunnelTask implements Runna
                 SSLServerSocketFactory fact = SSLClientUtil.initializeFactory(opts);
                 ss = fact.createServerSocket(localPort, 0, addr);
                 I2PSSLSocketFactory.setProtocolsAndCiphers((SSLServerSocket) ss);
+            } else if (SharedForwarder.isEnabled(_context)) {
+                // so the accepted sockets have channels for the SharedForwarder
+                ServerSocketChannel ssc = ServerSocketChannel.open();
+                ss = ssc.socket();
+                ss.bind(new InetSocketAddress(addr, localPort), 0);
             } else {
                 ss = new ServerSocket(localPort, 0, addr);
             }
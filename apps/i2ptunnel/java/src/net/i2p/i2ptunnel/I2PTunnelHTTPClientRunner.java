@@ -88,7 +88,8 @@ public class I2PTunnelHTTPClientRunner extends I2PTunnelRunner {
         } catch (IOException ioe) { 
             // ignore
         }
-        t1.join(30*1000);
+        if (t1 != null)
+            t1.join(30*1000);
         // t2 = fromI2P now run inline
         //t2.join(30*1000);
     }
@@ -27,6 +27,8 @@ import net.i2p.util.Log;
 
 /**
  *  A thread that starts two more threads, one to forward traffic in each direction.
+ *  As of 0.9.28, if the SharedForwarder is enabled and the socket is from a SocketChannel,
+ *  the thread hands off to the SharedForwarder after writing the initial data and exits.
  *
  *  Warning - not maintained as a stable API for external use.
  */
@@ -61,6 +63,8 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
     private final FailCallback _onFail;
     private long totalSent;
     private long totalReceived;
+    /** non-null if the SharedForwarder may be used */
+    private ChannelOutputStream _sink;
 
     /**
      *  For use in new constructor
@@ -228,13 +232,28 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
     }
 
     protected InputStream getSocketIn() throws IOException { return s.getInputStream(); }
-    protected OutputStream getSocketOut() throws IOException { return s.getOutputStream(); }
+
+    /**
+     *  As of 0.9.28, if the SharedForwarder is in use, this writes to the socket's channel,
+     *  and the channel will be in nonblocking mode while forwarding.
+     *  Subclasses may wrap it but must not use the socket's streams directly.
+     */
+    protected OutputStream getSocketOut() throws IOException {
+        return _sink != null ? _sink : s.getOutputStream();
+    }
     
     private static final byte[] POST = { 'P', 'O', 'S', 'T', ' ' };
 
     @Override
     public void run() {
+        boolean handedOff = false;
         try {
+            I2PAppContext ctx = I2PAppContext.getGlobalContext();
+            // Only plain TCP sockets, from a SocketChannel, may be shared.
+            // Sockets from a ServerSocket or SSL sockets will have a null channel.
+            if (SharedForwarder.isEnabled(ctx) && s.getChannel() != null &&
+                !(s instanceof InternalSocket))
+                _sink = new ChannelOutputStream(s.getChannel());
             InputStream in = getSocketIn();
             OutputStream out = getSocketOut(); // = new BufferedOutputStream(s.getOutputStream(), NETWORK_BUFFER_SIZE);
             // unimplemented in streaming
@@ -271,6 +290,15 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
                 _log.debug("Initial data " + (initialI2PData != null ? initialI2PData.length : 0) 
                            + " written to I2P, " + (initialSocketData != null ? initialSocketData.length : 0)
                            + " written to the socket, starting forwarders");
+            if (_sink != null) {
+                SharedForwarder sf = SharedForwarder.getInstance(ctx);
+                if (sf.register(this, s.getChannel(), i2ps, in, out, _sink)) {
+                    // sharedForwarderDone() will finish up
+                    handedOff = true;
+                    return;
+                }
+                // else fall back to threads, the sink writes through in blocking mode
+            }
             if (!(s instanceof InternalSocket))
                 in = new BufferedInputStream(in, 2*NETWORK_BUFFER_SIZE);
             StreamForwarder toI2P = new StreamForwarder(in, i2pout, true);
@@ -336,27 +364,86 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Internal error", e);
         } finally {
-            removeRef();
+            if (!handedOff)
+                cleanup();
+        }
+    }
+
+    /**
+     *  The end of run() when the SharedForwarder was used.
+     *  Called from a forwarder pool thread, with the socket back in blocking mode.
+     *  Same as what the forwarders and run() do after forwarding is complete.
+     *
+     *  @param toI2PDone true if the local to I2P direction failed;
+     *                   otherwise the I2P to local direction is complete or failed
+     *  @param failure may be null
+     *  @since 0.9.28
+     */
+    void sharedForwarderDone(InputStream in, OutputStream out, InputStream i2pin, OutputStream i2pout,
+                             boolean toI2PDone, long sent, long received, Exception failure) {
+        totalSent = sent;
+        totalReceived = received;
+        try {
+            // as in StreamForwarder
+            try {
+                if (toI2PDone)
+                    i2pout.close();
+                else if (!((onTimeout != null || _onFail != null) && totalReceived <= 0))
+                    out.close();
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Error closing after forwarding", ioe);
+            }
+            if (totalReceived <= 0) {
+                if (_onFail != null)
+                    _onFail.onFail(failure);
+                else if (onTimeout != null)
+                    onTimeout.run();
+            }
+            close(out, in, i2pout, i2pin, s, i2ps, null, null);
+        } catch (InterruptedException ex) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Interrupted", ex);
+        } catch (IllegalStateException ise) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("gnu?", ise);
+        } catch (RuntimeException e) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Internal error", e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     *  Final close of both sockets
+     *  @since 0.9.28 pulled out of run()
+     */
+    private void cleanup() {
+        removeRef();
+        try {
+            if (s != null)
+                s.close();
+        } catch (IOException ex) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Could not close java socket", ex);
+        }
+        if (i2ps != null) {
             try {
-                if (s != null)
-                    s.close();
+                i2ps.close();
             } catch (IOException ex) {
                 if (_log.shouldLog(Log.WARN))
-                    _log.warn("Could not close java socket", ex);
-            }
-            if (i2ps != null) {
-                try {
-                    i2ps.close();
-                } catch (IOException ex) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Could not close I2PSocket", ex);
-                }
-                // unimplemented in streaming
-                //i2ps.setSocketErrorListener(null);
+                    _log.warn("Could not close I2PSocket", ex);
             }
+            // unimplemented in streaming
+            //i2ps.setSocketErrorListener(null);
         }
     }
     
+    /**
+     *  @param t1 null as of 0.9.28 if the SharedForwarder was used
+     *  @param t2 unused, fromI2P is run inline
+     */
     protected void close(OutputStream out, InputStream in, OutputStream i2pout, InputStream i2pin,
                          Socket s, I2PSocket i2ps, Thread t1, Thread t2) throws InterruptedException {
         try { 
@@ -391,7 +478,8 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
         } catch (IOException ioe) { 
             // ignore
         }
-        t1.join(30*1000);
+        if (t1 != null)
+            t1.join(30*1000);
         // t2 = fromI2P now run inline
         //t2.join(30*1000);
     }
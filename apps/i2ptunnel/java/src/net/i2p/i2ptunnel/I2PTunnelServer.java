@@ -17,6 +17,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.util.Map;
 import java.util.Properties;
@@ -688,13 +689,38 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
                     System.arraycopy(from.getData(), 0, addr, 1, 15);
                 }
                 InetAddress local = InetAddress.getByAddress(addr);
+                if (SharedForwarder.isEnabled(getTunnel().getContext()))
+                    return openChannelSocket(remoteHost, remotePort, local);
                 // Javadocs say local port of 0 allowed in Java 7.
                 // Not clear if supported in Java 6 or not.
                 return new Socket(remoteHost, remotePort, local, 0);
             } else {
+                if (SharedForwarder.isEnabled(getTunnel().getContext()))
+                    return openChannelSocket(remoteHost, remotePort, null);
                 return new Socket(remoteHost, remotePort);
             }
         }
     }
+
+    /**
+     *  A blocking socket with a channel, for the SharedForwarder
+     *
+     *  @param local may be null
+     *  @since 0.9.28
+     */
+    private static Socket openChannelSocket(InetAddress remoteHost, int remotePort,
+                                            InetAddress local) throws IOException {
+        SocketChannel chan = SocketChannel.open();
+        try {
+            Socket rv = chan.socket();
+            if (local != null)
+                rv.bind(new InetSocketAddress(local, 0));
+            rv.connect(new InetSocketAddress(remoteHost, remotePort));
+            return rv;
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+    }
 }
 
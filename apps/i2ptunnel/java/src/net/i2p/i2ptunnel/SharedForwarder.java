@@ -0,0 +1,424 @@
+package net.i2p.i2ptunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+
+/**
+ *  Forwards data for all I2PTunnelRunners with one selector thread
+ *  and a small pool, instead of two threads per connection for the
+ *  life of the connection.
+ *<p>
+ *  The local side is a SocketChannel in nonblocking mode, watched by the selector.
+ *  The I2P side is an I2PSocket in nonblocking mode, which tells us
+ *  when it's ready through I2PSocket.ReadyListener.
+ *  Each connection has a Pump that runs in the pool whenever either side is ready,
+ *  never in more than one thread at a time.
+ *<p>
+ *  Disabled by default, enable with the router or client context property
+ *  i2ptunnel.sharedForwarder=true.
+ *  SSL and in-JVM connections are always forwarded by threads.
+ *
+ *  @since 0.9.28
+ */
+class SharedForwarder implements Runnable {
+    private final Log _log;
+    private final Selector _selector;
+    private final ThreadPoolExecutor _pool;
+    /** pumps that want their key registered, updated, or cancelled */
+    private final Queue<Pump> _pending = new ConcurrentLinkedQueue<Pump>();
+
+    public static final String PROP_ENABLE = "i2ptunnel.sharedForwarder";
+
+    private static SharedForwarder _instance;
+    private static final AtomicInteger _threadCount = new AtomicInteger();
+
+    /** toward I2P, read from the local socket */
+    private static final int LOCAL_BUFFER_SIZE = 2 * I2PTunnelRunner.NETWORK_BUFFER_SIZE;
+    /** stop reading from I2P if the local socket has this much unwritten */
+    private static final int MAX_LOCAL_PENDING = 64*1024;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 8;
+
+    /**
+     *  @return true if enabled in the context properties
+     */
+    public static boolean isEnabled(I2PAppContext ctx) {
+        return ctx.getBooleanProperty(PROP_ENABLE);
+    }
+
+    /**
+     *  Starts the selector thread the first time.
+     */
+    public static synchronized SharedForwarder getInstance(I2PAppContext ctx) throws IOException {
+        if (_instance == null)
+            _instance = new SharedForwarder(ctx);
+        return _instance;
+    }
+
+    private SharedForwarder(I2PAppContext ctx) throws IOException {
+        _log = ctx.logManager().getLog(SharedForwarder.class);
+        _selector = Selector.open();
+        int threads = Math.max(MIN_THREADS, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        _pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory());
+        _pool.allowCoreThreadTimeOut(true);
+        Thread t = new I2PAppThread(this, "I2PTunnel Forwarder", true);
+        t.start();
+    }
+
+    /**
+     *  Take over forwarding for the runner.
+     *  The runner's initial data must have been written already.
+     *  When done, the forwarder puts the channel back in blocking mode
+     *  and calls runner.sharedForwarderDone() from a pool thread.
+     *
+     *  @param chan must be in blocking mode, and not registered with any selector
+     *  @param in the runner's socket input stream, only to be passed back to the runner
+     *  @param out the runner's socket output stream, which writes to sink, perhaps through a filter
+     *  @param sink in blocking mode
+     *  @return false if the I2PSocket doesn't support nonblocking mode; nothing was changed
+     */
+    public boolean register(I2PTunnelRunner runner, SocketChannel chan, I2PSocket i2ps,
+                            InputStream in, OutputStream out, ChannelOutputStream sink) throws IOException {
+        Pump pump = new Pump(runner, chan, i2ps, in, out, sink);
+        // the pump won't run until the selector thread has registered the key
+        if (!i2ps.setReadyListener(pump))
+            return false;
+        post(pump);
+        return true;
+    }
+
+    /**
+     *  Queue for the selector thread
+     */
+    private void post(Pump pump) {
+        _pending.offer(pump);
+        _selector.wakeup();
+    }
+
+    /**
+     *  The selector thread
+     */
+    public void run() {
+        List<Pump> closing = new ArrayList<Pump>(4);
+        while (true) {
+            try {
+                _selector.select();
+                Pump pump;
+                while ((pump = _pending.poll()) != null) {
+                    processPending(pump, closing);
+                }
+                if (!closing.isEmpty()) {
+                    // flush out the cancelled keys so we can go back to blocking mode
+                    _selector.selectNow();
+                    for (Pump p : closing) {
+                        p.restoreBlocking();
+                    }
+                    closing.clear();
+                }
+                for (Iterator<SelectionKey> iter = _selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Pump p = (Pump) key.attachment();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        // level triggered, don't select it again until the pump asks
+                        key.interestOps(0);
+                    } catch (CancelledKeyException cke) {
+                        continue;
+                    }
+                    p._armed = false;
+                    p.schedule();
+                }
+            } catch (ClosedSelectorException cse) {
+                break;
+            } catch (IOException ioe) {
+                _log.error("Error in the forwarder", ioe);
+            } catch (RuntimeException re) {
+                _log.error("Error in the forwarder", re);
+            }
+        }
+    }
+
+    /**
+     *  Selector thread only
+     */
+    private void processPending(Pump pump, List<Pump> closing) {
+        SelectionKey key = pump._key;
+        if (pump._closing) {
+            if (!pump._closed) {
+                pump._closed = true;
+                if (key != null)
+                    key.cancel();
+                closing.add(pump);
+            }
+        } else if (key == null) {
+            try {
+                pump._chan.configureBlocking(false);
+                pump._sink.setNonBlocking(true);
+                pump._key = pump._chan.register(_selector, 0, pump);
+                // first run decides what it wants
+                pump.schedule();
+            } catch (IOException ioe) {
+                pump._failure = ioe;
+                pump._closing = true;
+                pump._closed = true;
+                closing.add(pump);
+            }
+        } else if (key.isValid()) {
+            try {
+                key.interestOps(pump._wantOps);
+            } catch (CancelledKeyException cke) {}
+        }
+    }
+
+    /**
+     *  Per-connection state. All the data handling is in run(), which the
+     *  pool never runs concurrently for a pump.
+     */
+    private class Pump implements Runnable, I2PSocket.ReadyListener {
+        private final I2PTunnelRunner _runner;
+        private final SocketChannel _chan;
+        private final I2PSocket _i2ps;
+        private final InputStream _in;
+        private final InputStream _i2pin;
+        private final OutputStream _i2pout;
+        private final OutputStream _out;
+        private final ChannelOutputStream _sink;
+        private final ByteBuffer _toI2P;
+        private final byte[] _fromI2P;
+        /** scheduled runs, nonzero while running or queued */
+        private final AtomicInteger _runs = new AtomicInteger();
+        /** set on the selector thread */
+        private volatile SelectionKey _key;
+        /** the key's interest ops if armed */
+        private volatile int _wantOps;
+        /** false when the selector fired and cleared the interest ops */
+        private volatile boolean _armed;
+        /** should I2P readiness schedule a run */
+        private volatile boolean _wantI2PRead = true;
+        private volatile boolean _wantI2PWrite = true;
+        private volatile boolean _closing;
+        /** selector thread only */
+        private boolean _closed;
+        private volatile Exception _failure;
+        private boolean _localEOF;
+        private boolean _i2pEOF;
+        private boolean _unflushed;
+        /** local EOF was passed on to I2P */
+        private boolean _i2pOutClosed;
+        /** which direction ended it */
+        private boolean _toI2PDone;
+        private long _sent;
+        private long _received;
+
+        public Pump(I2PTunnelRunner runner, SocketChannel chan, I2PSocket i2ps,
+                    InputStream in, OutputStream out, ChannelOutputStream sink) throws IOException {
+            _runner = runner;
+            _chan = chan;
+            _i2ps = i2ps;
+            _in = in;
+            _i2pin = i2ps.getInputStream();
+            _i2pout = i2ps.getOutputStream();
+            _out = out;
+            _sink = sink;
+            _toI2P = ByteBuffer.allocate(LOCAL_BUFFER_SIZE);
+            _fromI2P = new byte[I2PTunnelRunner.NETWORK_BUFFER_SIZE];
+        }
+
+        public void readReady(I2PSocket socket) {
+            if (_wantI2PRead)
+                schedule();
+        }
+
+        public void writeReady(I2PSocket socket) {
+            if (_wantI2PWrite)
+                schedule();
+        }
+
+        public void schedule() {
+            if (_runs.getAndIncrement() == 0)
+                _pool.execute(this);
+        }
+
+        public void run() {
+            while (true) {
+                // collapse any schedules so far into this pass
+                _runs.set(1);
+                // if not registered yet, the selector thread will schedule us
+                if (_key != null && !_closing)
+                    pass();
+                if (_runs.compareAndSet(1, 0))
+                    break;
+            }
+        }
+
+        /**
+         *  Move what we can in each direction, then ask for the events we need.
+         */
+        private void pass() {
+            _wantI2PRead = true;
+            _wantI2PWrite = true;
+            boolean toI2P = true;
+            try {
+                // local -> I2P
+                while (!_localEOF && _toI2P.hasRemaining()) {
+                    int read = _chan.read(_toI2P);
+                    if (read < 0)
+                        _localEOF = true;
+                    else if (read == 0)
+                        break;
+                }
+                _toI2P.flip();
+                try {
+                    while (_toI2P.hasRemaining()) {
+                        int writable = _i2ps.getWritableBytes();
+                        if (writable <= 0)
+                            break;
+                        int len = Math.min(writable, _toI2P.remaining());
+                        _i2pout.write(_toI2P.array(), _toI2P.arrayOffset() + _toI2P.position(), len);
+                        _toI2P.position(_toI2P.position() + len);
+                        _sent += len;
+                        _unflushed = true;
+                    }
+                } finally {
+                    _toI2P.compact();
+                }
+                // nothing more from the local side for now, push it out
+                if (_unflushed && _toI2P.position() == 0 && _i2ps.getWritableBytes() > 0) {
+                    _i2pout.flush();
+                    _unflushed = false;
+                }
+                // Local side is done, pass the EOF on as StreamForwarder does,
+                // but keep forwarding from I2P until it's done too, as run() does.
+                // Doesn't block, the I2P output stream is in nonblocking mode.
+                if (_localEOF && !_i2pOutClosed && _toI2P.position() == 0 && _i2ps.getWritableBytes() > 0) {
+                    _i2pout.close();
+                    _i2pOutClosed = true;
+                    _unflushed = false;
+                }
+
+                // I2P -> local
+                toI2P = false;
+                boolean wrote = false;
+                while (!_i2pEOF && _sink.getPending() < MAX_LOCAL_PENDING) {
+                    int read = _i2pin.read(_fromI2P);
+                    if (read < 0) {
+                        _i2pEOF = true;
+                    } else if (read == 0) {
+                        break;
+                    } else {
+                        _out.write(_fromI2P, 0, read);
+                        _received += read;
+                        wrote = true;
+                    }
+                }
+                if (wrote)
+                    _out.flush();
+                boolean pending = _sink.writePending();
+
+                if (_i2pEOF && !pending) {
+                    finish();
+                    return;
+                }
+
+                _wantI2PRead = !_i2pEOF && !pending;
+                _wantI2PWrite = _toI2P.position() > 0 || _unflushed || (_localEOF && !_i2pOutClosed);
+                int ops = 0;
+                if (!_localEOF && _toI2P.hasRemaining())
+                    ops |= SelectionKey.OP_READ;
+                if (pending)
+                    ops |= SelectionKey.OP_WRITE;
+                if (ops != _wantOps || (ops != 0 && !_armed)) {
+                    _wantOps = ops;
+                    _armed = true;
+                    post(this);
+                }
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug((toI2P ? "toI2P" : "fromI2P") + ": Error forwarding", ioe);
+                _failure = ioe;
+                _toI2PDone = toI2P;
+                finish();
+            } catch (RuntimeException re) {
+                _log.error("Error forwarding", re);
+                _failure = re;
+                _toI2PDone = toI2P;
+                finish();
+            }
+        }
+
+        /**
+         *  Hand back to the selector thread to cancel the key
+         */
+        private void finish() {
+            _closing = true;
+            _wantI2PRead = false;
+            _wantI2PWrite = false;
+            post(this);
+        }
+
+        /**
+         *  Selector thread, the key is cancelled and flushed.
+         *  The runner does the rest in the pool, as it may block.
+         */
+        public void restoreBlocking() {
+            try {
+                _chan.configureBlocking(true);
+            } catch (IOException ioe) {
+                if (_failure == null)
+                    _failure = ioe;
+            } catch (RuntimeException re) {
+                // IllegalBlockingModeException if the key wasn't flushed, shouldn't happen
+                if (_failure == null)
+                    _failure = re;
+            }
+            _sink.setNonBlocking(false);
+            _pool.execute(new Runnable() {
+                public void run() {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Done forwarding, sent " + _sent + " received " + _received +
+                                   " for " + _i2ps);
+                    _runner.sharedForwarderDone(_in, _out, _i2pin, _i2pout, _toI2PDone,
+                                                _sent, _received, _failure);
+                }
+            });
+        }
+    }
+
+    /**
+     *  Just to set the name and set Daemon
+     */
+    private static class CustomThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("I2PTunnel Forwarder " + _threadCount.incrementAndGet());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
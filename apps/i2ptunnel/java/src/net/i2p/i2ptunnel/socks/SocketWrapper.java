@@ -116,4 +116,22 @@ class SocketWrapper implements I2PSocket {
     public int getLocalPort() {
         return 0;
     }
+
+    /**
+     *  Unsupported.
+     *  @return false always
+     *  @since 0.9.28
+     */
+    public boolean setReadyListener(I2PSocket.ReadyListener lsnr) {
+        return false;
+    }
+
+    /**
+     *  Unsupported.
+     *  @return 0 always
+     *  @since 0.9.28
+     */
+    public int getWritableBytes() {
+        return 0;
+    }
 }
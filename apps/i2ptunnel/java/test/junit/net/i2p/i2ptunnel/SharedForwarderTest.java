@@ -0,0 +1,207 @@
+package net.i2p.i2ptunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketOptions;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+
+import junit.framework.TestCase;
+
+/**
+ *  Forwarding through the SharedForwarder, with an in-memory I2PSocket
+ *  in nonblocking mode on the I2P side and loopback on the local side.
+ *
+ *  @since 0.9.28
+ */
+public class SharedForwarderTest extends TestCase {
+
+    @Override
+    public void setUp() {
+        // before the global context is created
+        System.setProperty(SharedForwarder.PROP_ENABLE, "true");
+    }
+
+    /**
+     *  The client sends its request and shuts down its output
+     *  before the response starts to arrive.
+     *  The request and the EOF must be passed on to I2P,
+     *  and all of the response delivered afterwards.
+     */
+    public void testHalfCloseBeforeResponse() throws Exception {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(ssc.socket().getLocalSocketAddress());
+        SocketChannel local = ssc.accept();
+        ssc.close();
+        TestI2PSocket i2ps = new TestI2PSocket();
+        final boolean[] failed = new boolean[1];
+        I2PTunnelRunner runner = new I2PTunnelRunner(local.socket(), i2ps, new Object(), null, null, null,
+            new I2PTunnelRunner.FailCallback() {
+                public void onFail(Exception e) {
+                    synchronized (failed) { failed[0] = true; }
+                }
+            });
+        runner.start();
+
+        byte[] request = DataHelper.getASCII("GET / HTTP/1.1\r\nHost: test.i2p\r\n\r\n");
+        client.socket().getOutputStream().write(request);
+        client.socket().shutdownOutput();
+        assertTrue("EOF not passed on", i2ps.waitForOutputClosed(10*1000));
+        assertTrue(Arrays.equals(request, i2ps.getWritten()));
+
+        // a slow server
+        Thread.sleep(500);
+        byte[] response = new byte[100*1024];
+        new Random(42).nextBytes(response);
+        for (int off = 0; off < response.length; off += 4096) {
+            i2ps.receive(response, off, Math.min(4096, response.length - off));
+            if ((off & 0x7fff) == 0)
+                Thread.sleep(50);
+        }
+        i2ps.receiveEOF();
+
+        client.socket().setSoTimeout(10*1000);
+        InputStream in = client.socket().getInputStream();
+        ByteArrayOutputStream got = new ByteArrayOutputStream(response.length);
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            got.write(buf, 0, read);
+        }
+        client.close();
+        assertTrue(Arrays.equals(response, got.toByteArray()));
+        synchronized (failed) {
+            assertFalse("fail callback run", failed[0]);
+        }
+    }
+
+    /**
+     *  Nonblocking only. Incoming data is queued by receive(),
+     *  outgoing data is kept for getWritten().
+     */
+    private static class TestI2PSocket implements I2PSocket {
+        private final ByteArrayOutputStream _written = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream _incoming = new ByteArrayOutputStream();
+        private int _incomingRead;
+        private boolean _eof;
+        private boolean _outClosed;
+        private boolean _closed;
+        private volatile ReadyListener _lsnr;
+
+        private final InputStream _in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int rv = read(b, 0, 1);
+                return rv <= 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (TestI2PSocket.this) {
+                    int avail = _incoming.size() - _incomingRead;
+                    if (avail <= 0)
+                        return _eof || _closed ? -1 : 0;
+                    int rv = Math.min(avail, len);
+                    System.arraycopy(_incoming.toByteArray(), _incomingRead, b, off, rv);
+                    _incomingRead += rv;
+                    return rv;
+                }
+            }
+        };
+
+        private final OutputStream _out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (TestI2PSocket.this) {
+                    if (_outClosed)
+                        throw new IOException("closed");
+                    _written.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (TestI2PSocket.this) {
+                    _outClosed = true;
+                    TestI2PSocket.this.notifyAll();
+                }
+            }
+        };
+
+        public void receive(byte[] data, int off, int len) {
+            synchronized (this) {
+                _incoming.write(data, off, len);
+            }
+            notifyReadReady();
+        }
+
+        public void receiveEOF() {
+            synchronized (this) {
+                _eof = true;
+            }
+            notifyReadReady();
+        }
+
+        private void notifyReadReady() {
+            ReadyListener lsnr = _lsnr;
+            if (lsnr != null)
+                lsnr.readReady(this);
+        }
+
+        public synchronized boolean waitForOutputClosed(long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (!_outClosed) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        public synchronized byte[] getWritten() {
+            return _written.toByteArray();
+        }
+
+        public boolean setReadyListener(ReadyListener lsnr) {
+            _lsnr = lsnr;
+            return true;
+        }
+
+        public synchronized int getWritableBytes() {
+            return _outClosed || _closed ? 0 : 64*1024;
+        }
+
+        public InputStream getInputStream() { return _in; }
+        public OutputStream getOutputStream() { return _out; }
+        public synchronized void close() { _closed = true; }
+        public synchronized boolean isClosed() { return _closed; }
+        public Destination getThisDestination() { return null; }
+        public Destination getPeerDestination() { return null; }
+        public SelectableChannel getChannel() { return null; }
+        public I2PSocketOptions getOptions() { return null; }
+        public void setOptions(I2PSocketOptions options) {}
+        public long getReadTimeout() { return -1; }
+        public void setReadTimeout(long ms) {}
+        public void setSocketErrorListener(SocketErrorListener lsnr) {}
+        public int getPort() { return 0; }
+        public int getLocalPort() { return 0; }
+    }
+}
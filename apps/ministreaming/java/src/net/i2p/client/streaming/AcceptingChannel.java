@@ -2,7 +2,9 @@ package net.i2p.client.streaming;
 
 import net.i2p.I2PException;
 import java.net.ConnectException;
-import java.nio.channels.SelectableChannel;
+import java.net.SocketTimeoutException;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.SelectorProvider;
 
 /**
  *  As this does not (yet) extend ServerSocketChannel it cannot be returned by StandardServerSocket.getChannel(),
@@ -10,17 +12,43 @@ import java.nio.channels.SelectableChannel;
  *
  *  Warning, this interface and implementation is preliminary and subject to change without notice.
  *
- *  Unimplemented, unlikely to ever be implemented.
+ *  As of 0.9.28, implemented by the full streaming lib.
+ *  The only valid operation is OP_ACCEPT.
+ *  To select, put it in nonblocking mode and register it with a Selector from
+ *  provider().openSelector(). The same Selector may be used for the
+ *  channels of the accepted sockets, see I2PSocket.getChannel().
+ *  A Selector from another provider, e.g. the default for TCP, will not work.
  *
  *  @since 0.8.11
  */
-public abstract class AcceptingChannel extends SelectableChannel {
+public abstract class AcceptingChannel extends AbstractSelectableChannel {
 
-    protected abstract I2PSocket accept() throws I2PException, ConnectException;
+    /**
+     *  In blocking mode, same as I2PServerSocket.accept().
+     *  In nonblocking mode, returns immediately.
+     *
+     *  @return the socket, or null in nonblocking mode if no connection is pending
+     *  @throws ConnectException if the channel or the I2PServerSocket is closed, or if interrupted.
+     *  @throws SocketTimeoutException in blocking mode only, if a timeout was set on the I2PServerSocket
+     *  @since public since 0.9.28, was protected
+     */
+    public abstract I2PSocket accept() throws I2PException, ConnectException, SocketTimeoutException;
 
     protected final I2PSocketManager _socketManager;
 
+    /**
+     *  @deprecated no provider, cannot be selected, use the other constructor
+     */
+    @Deprecated
     protected AcceptingChannel(I2PSocketManager manager) {
+        this(null, manager);
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    protected AcceptingChannel(SelectorProvider provider, I2PSocketManager manager) {
+        super(provider);
         this._socketManager = manager;
     }
 }
@@ -36,13 +36,13 @@ public interface I2PServerSocket {
     public I2PSocket accept() throws I2PException, ConnectException, SocketTimeoutException;
 
     /**
-     *  Unimplemented, unlikely to ever be implemented.
+     *  A selectable channel for nonblocking accepts.
+     *  Implemented as of 0.9.28 in the full streaming lib, null before.
+     *  Always returns the same channel.
      *
-     *  @deprecated
-     *  @return null always
+     *  @return may be null if unimplemented
      *  @since 0.8.11
      */
-    @Deprecated
     public AcceptingChannel getChannel();
 
     /**
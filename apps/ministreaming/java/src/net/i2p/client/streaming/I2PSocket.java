@@ -56,13 +56,22 @@ public interface I2PSocket extends Closeable {
     public OutputStream getOutputStream() throws IOException;
 
     /**
-     *  Unimplemented, unlikely to ever be implemented.
+     *  A selectable channel for this socket.
+     *  Implemented as of 0.9.28 in the full streaming lib, null before.
+     *  Always returns the same channel.
+     *<p>
+     *  The channel also implements java.nio.channels.ByteChannel.
+     *  Valid operations are OP_READ and OP_WRITE.
+     *  In nonblocking mode, it uses setReadyListener(), which must not be
+     *  used by the application at the same time.
+     *  Register it with a Selector from provider().openSelector(),
+     *  a Selector from another provider, e.g. the default for TCP, will not work.
+     *  In nonblocking mode, write() only accepts what fits in the outbound window.
+     *  Closing the channel closes the socket.
      *
-     *  @deprecated
-     *  @return null always
+     *  @return may be null if unimplemented
      *  @since 0.8.9
      */
-    @Deprecated
     public SelectableChannel getChannel() throws IOException;
 
     /** 
@@ -113,6 +122,52 @@ public interface I2PSocket extends Closeable {
      */
     public int getLocalPort();
 
+    /**
+     *  Put the socket in non-blocking mode, with readiness notifications,
+     *  so that many sockets may be served by a few threads.
+     *<p>
+     *  While a listener is set, reads from the input stream return 0
+     *  instead of blocking when no data is available (and -1 on EOF),
+     *  and writes and flushes on the output stream never wait for the outbound window.
+     *  Callers should not write more than getWritableBytes() at a time,
+     *  and should not flush unless it is nonzero.
+     *  Set to null to return to blocking mode.
+     *
+     *  @param lsnr may be null
+     *  @return false if unsupported by this implementation
+     *  @since 0.9.28
+     */
+    public boolean setReadyListener(ReadyListener lsnr);
+
+    /**
+     *  How many bytes may be written to the output stream without exceeding
+     *  the outbound window. If nonzero, a flush() is also allowed.
+     *
+     *  @return 0 if the window is full, or if closed or unsupported
+     *  @since 0.9.28
+     */
+    public int getWritableBytes();
+
+    /**
+     *  Readiness notifications for non-blocking mode.
+     *  Called from the streaming lib's threads, which must not be blocked.
+     *  Notifications may be spurious, and may arrive concurrently.
+     *
+     *  @since 0.9.28
+     */
+    public interface ReadyListener {
+        /**
+         *  Data, EOF, or an error is available on the input stream.
+         */
+        public void readReady(I2PSocket socket);
+
+        /**
+         *  The outbound window may have opened, or an error occurred.
+         *  Check getWritableBytes().
+         */
+        public void writeReady(I2PSocket socket);
+    }
+
     /**
      * Deprecated, unimplemented, does nothing. Original description:
      *
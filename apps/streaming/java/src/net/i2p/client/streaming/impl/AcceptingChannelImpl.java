@@ -0,0 +1,86 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+
+import net.i2p.I2PException;
+import net.i2p.client.streaming.AcceptingChannel;
+import net.i2p.client.streaming.I2PSocket;
+
+/**
+ *  The channel returned by I2PServerSocketFull.getChannel().
+ *
+ *  In nonblocking mode, the ConnectionHandler tells us
+ *  when a connection is queued, and we tell our keys.
+ *  Closing the channel closes the I2PServerSocket.
+ *
+ *  @since 0.9.28
+ */
+class AcceptingChannelImpl extends AcceptingChannel implements I2PSelectableChannel {
+    private final I2PSocketManagerFull _mgr;
+    private final I2PServerSocketFull _socket;
+    private final ChannelKeys _keys = new ChannelKeys();
+    private final Runnable _listener = new Listener();
+
+    public AcceptingChannelImpl(I2PSocketManagerFull mgr, I2PServerSocketFull socket) {
+        super(I2PSelectorProvider.getInstance(), mgr);
+        _mgr = mgr;
+        _socket = socket;
+    }
+
+    /**
+     *  @return the socket, or null in nonblocking mode if no connection is pending
+     *  @throws ConnectException if the channel or the I2PServerSocket is closed, or if interrupted.
+     *  @throws SocketTimeoutException in blocking mode only, if a timeout was set on the I2PServerSocket
+     */
+    public I2PSocket accept() throws I2PException, ConnectException, SocketTimeoutException {
+        if (!isOpen())
+            throw new ConnectException("Channel closed");
+        if (isBlocking())
+            return _mgr.receiveSocket();
+        return _mgr.receiveSocketNow();
+    }
+
+    public int validOps() {
+        return SelectionKey.OP_ACCEPT;
+    }
+
+    /**
+     *  A closed server socket is ready, so that the next accept() throws.
+     */
+    public int getReadyOps() {
+        return handler().hasPending() ? SelectionKey.OP_ACCEPT : 0;
+    }
+
+    public void keyRegistered(I2PSelectionKey key) {
+        _keys.add(key);
+    }
+
+    public void keyDeregistered(I2PSelectionKey key) {
+        _keys.remove(key);
+    }
+
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        handler().setAcceptListener(block ? null : _listener);
+    }
+
+    protected void implCloseSelectableChannel() throws IOException {
+        handler().setAcceptListener(null);
+        _socket.close();
+    }
+
+    private ConnectionHandler handler() {
+        return _mgr.getConnectionManager().getConnectionHandler();
+    }
+
+    /**
+     *  Pass the handler's notifications on to the selectors
+     */
+    private class Listener implements Runnable {
+        public void run() {
+            _keys.notifyReady();
+        }
+    }
+}
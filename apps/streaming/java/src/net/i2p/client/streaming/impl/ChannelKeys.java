@@ -0,0 +1,32 @@
+package net.i2p.client.streaming.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *  The selection keys of one channel, one per selector
+ *  it is registered with, almost always just one.
+ *
+ *  @since 0.9.28
+ */
+class ChannelKeys {
+    private final List<I2PSelectionKey> _keys = new CopyOnWriteArrayList<I2PSelectionKey>();
+
+    public void add(I2PSelectionKey key) {
+        _keys.add(key);
+    }
+
+    public void remove(I2PSelectionKey key) {
+        _keys.remove(key);
+    }
+
+    /**
+     *  Tell all the selectors to check the channel again.
+     *  Does not block.
+     */
+    public void notifyReady() {
+        for (I2PSelectionKey key : _keys) {
+            key.notifyReady();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package net.i2p.client.streaming.impl;
+
+/**
+ * Congestion window growth and reduction for a single Connection.
+ * Windows are in messages, as in ConnectionOptions.getWindowSize().
+ *<p>
+ * One instance per Connection. Methods may be called from
+ * the packet handler and the retransmit timer threads at the same time.
+ *<p>
+ * Select with ConnectionOptions.PROP_CONGESTION_CONTROL.
+ *
+ * @since 0.9.28
+ */
+interface CongestionControl {
+
+    /**
+     *  New packets were acked, without a congestion indication
+     *  and without resends among them.
+     *
+     *  @param opts current window size and RTT
+     *  @param acked number of packets acked, greater than zero
+     *  @param lastCongestionSeenAt the window size at the last congestion,
+     *                              from Connection.getLastCongestionSeenAt()
+     *  @param now current time
+     *  @return the new window size
+     */
+    public int packetsAcked(ConnectionOptions opts, int acked, int lastCongestionSeenAt, long now);
+
+    /**
+     *  A packet was retransmitted, either on timeout or after NACKs.
+     *  The Connection calls this at most once per window,
+     *  only for the first resend after new data was acked.
+     *
+     *  @param opts current window size and RTT
+     *  @param now current time
+     *  @return the new window size
+     */
+    public int congestionOccurred(ConnectionOptions opts, long now);
+}
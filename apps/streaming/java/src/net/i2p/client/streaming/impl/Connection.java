@@ -2,6 +2,7 @@ package net.i2p.client.streaming.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +13,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
+import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Destination;
@@ -60,6 +62,8 @@ class Connection {
     private ConnectionOptions _options;
     private final ConnectionDataReceiver _receiver;
     private I2PSocketFull _socket;
+    /** non-null in nonblocking mode */
+    private volatile ReadyNotifier _readyNotifier;
     /** set to an error cause if the connection could not be established */
     private String _connectionError;
     private final AtomicLong _disconnectScheduledOn = new AtomicLong();
@@ -70,6 +74,7 @@ class Connection {
     private long _lastCongestionTime;
     private volatile long _lastCongestionHighestUnacked;
     private final AtomicBoolean _ackSinceCongestion;
+    private final CongestionControl _congestionControl;
     /** Notify this on connection (or connection failure) */
     private final Object _connectLock;
     /** Locking for _nextSendTime */
@@ -154,6 +159,10 @@ class Connection {
         _lastReceivedOn = -1;
         _activityTimer = new ActivityTimer();
         _ackSinceCongestion = new AtomicBoolean(true);
+        if (ConnectionOptions.CONGESTION_CONTROL_CUBIC.equals(_options.getCongestionControl()))
+            _congestionControl = new CubicCongestionControl(_context);
+        else
+            _congestionControl = new RenoCongestionControl(_context);
         _connectLock = new Object();
         _nextSendLock = new Object();
         _connectionEvent = new ConEvent();
@@ -254,6 +263,70 @@ class Connection {
         synchronized (_outboundPackets) {
             _outboundPackets.notifyAll();
         }
+        ReadyNotifier rn = _readyNotifier;
+        if (rn != null)
+            rn.writeReady();
+    }
+
+    /**
+     *  How many bytes may be written to the output stream without exceeding the window.
+     *  Same conditions as packetSendChoke(), but checked before the packet is sent.
+     *
+     *  @return 0 if the window is full, or if disconnected or the output stream is closed
+     *  @since 0.9.28
+     */
+    public int getWritableBytes() {
+        if (!_connected.get() || _outputStream.getClosed())
+            return 0;
+        synchronized (_outboundPackets) {
+            int wsz = _options.getWindowSize();
+            if (_outboundPackets.size() >= wsz ||
+                _activeResends.get() >= (wsz + 1) / 2 ||
+                _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz))
+                return 0;
+        }
+        return _outputStream.getBufferAvailable();
+    }
+
+    /**
+     *  Nonblocking mode, see I2PSocket.setReadyListener()
+     *
+     *  @param socket the socket to pass to the listener
+     *  @param lsnr null to return to blocking mode
+     *  @since 0.9.28
+     */
+    void setReadyListener(I2PSocket socket, I2PSocket.ReadyListener lsnr) {
+        ReadyNotifier rn = lsnr != null ? new ReadyNotifier(socket, lsnr) : null;
+        _readyNotifier = rn;
+        _outputStream.setNonBlocking(rn != null);
+        // this will notify if there's already data
+        _inputStream.setReadyListener(rn);
+        if (rn != null)
+            rn.writeReady();
+    }
+
+    /**
+     *  Passes readiness from the streams to the socket's listener
+     *
+     *  @since 0.9.28
+     */
+    private static class ReadyNotifier implements Runnable {
+        private final I2PSocket _sock;
+        private final I2PSocket.ReadyListener _lsnr;
+
+        public ReadyNotifier(I2PSocket socket, I2PSocket.ReadyListener lsnr) {
+            _sock = socket;
+            _lsnr = lsnr;
+        }
+
+        /** read ready */
+        public void run() {
+            _lsnr.readReady(_sock);
+        }
+
+        public void writeReady() {
+            _lsnr.writeReady(_sock);
+        }
     }
     
     void ackImmediately() {
@@ -461,6 +534,11 @@ class Connection {
             }
         }
         
+        if (nacks != null && nacks.length > 1) {
+            nacks = nacks.clone();
+            Arrays.sort(nacks);
+        }
+        boolean sack = _options.getSelectiveAckLossDetection();
         List<PacketLocal> acked = null;
         synchronized (_outboundPackets) {
             if (!_outboundPackets.isEmpty()) {  // short circuit iterator
@@ -470,15 +548,16 @@ class Connection {
                 if (id <= ackThrough) {
                     boolean nacked = false;
                     if (nacks != null) {
-                        // linear search since its probably really tiny
-                        for (int i = 0; i < nacks.length; i++) {
-                            if (nacks[i] == id) {
-                                nacked = true;
-                                PacketLocal nackedPacket = e.getValue();
-                                // this will do a fast retransmit if appropriate
-                                nackedPacket.incrementNACKs();
-                                break; // NACKed
-                            }
+                        int i = Arrays.binarySearch(nacks, id);
+                        if (i >= 0) {
+                            nacked = true;
+                            PacketLocal nackedPacket = e.getValue();
+                            // The packets between this one and ackThrough
+                            // that are not NACKed were received after it.
+                            // If there are enough, it's lost, RFC 6675
+                            int sackedAfter = sack ? (int) (ackThrough - id) - (nacks.length - 1 - i) : 0;
+                            // this will do a fast retransmit if appropriate
+                            nackedPacket.incrementNACKs(sackedAfter);
                         }
                     }
                     if (!nacked) { // aka ACKed
@@ -739,6 +818,9 @@ class Connection {
                 }
             }
         }
+        ReadyNotifier rn = _readyNotifier;
+        if (rn != null)
+            rn.writeReady();
     }
     
     /**
@@ -1027,14 +1109,27 @@ class Connection {
     
     public int getLastCongestionSeenAt() { return _lastCongestionSeenAt; }
 
-    private void congestionOccurred() {
+    /**
+     *  Chosen at construction from the options; does not change.
+     *  @since 0.9.28
+     */
+    CongestionControl getCongestionControl() { return _congestionControl; }
+
+    /**
+     *  @return true if this is the first congestion since the last ack,
+     *          and the congestion control should reduce the window
+     *  @since 0.9.28 returns boolean, previously void
+     */
+    private boolean congestionOccurred() {
         // if we hit congestion and e.g. 5 packets are resent,
         // dont set the size to (winSize >> 4).  only set the
         if (_ackSinceCongestion.compareAndSet(true,false)) {
             _lastCongestionSeenAt = _options.getWindowSize();
             _lastCongestionTime = _context.clock().now();
             _lastCongestionHighestUnacked = _lastSendId.get();
+            return true;
         }
+        return false;
     }
     
     void packetReceived() {
@@ -1398,12 +1493,11 @@ class Connection {
 
                 if (_ackSinceCongestion.get()) {
                     // only shrink the window once per window
-                    if (_packet.getSequenceNum() > _lastCongestionHighestUnacked) {
-                        congestionOccurred();
+                    // and only once if several resends race
+                    if (_packet.getSequenceNum() > _lastCongestionHighestUnacked &&
+                        congestionOccurred()) {
                         _context.statManager().addRateData("stream.con.windowSizeAtCongestion", newWindowSize, _packet.getLifetime());
-                        newWindowSize /= 2;
-                        if (newWindowSize <= 0)
-                            newWindowSize = 1;
+                        newWindowSize = _congestionControl.congestionOccurred(getOptions(), _context.clock().now());
                         
                         // setRTT has its own ceiling
                         //getOptions().setRTT(getOptions().getRTT() + 10*1000);
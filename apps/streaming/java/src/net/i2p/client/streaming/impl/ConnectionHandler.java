@@ -27,6 +27,7 @@ class ConnectionHandler {
     private final SimpleTimer2 _timer;
     private volatile boolean _active;
     private int _acceptTimeout;
+    private volatile Runnable _acceptListener;
     
     /** max time after receiveNewSyn() and before the matched accept() */
     private static final int DEFAULT_ACCEPT_TIMEOUT = 3*1000;
@@ -62,9 +63,41 @@ class ConnectionHandler {
             // stopping, clear any pending sockets
             _synQueue.clear();
             _synQueue.offer(new PoisonPacket());
+            fireAcceptListener();
         }
     }
 
+    /**
+     *  Called after a packet is queued for accept, and when
+     *  the handler is shut down. Must be fast and not block.
+     *
+     *  @param lsnr null to remove
+     *  @since 0.9.28
+     */
+    public void setAcceptListener(Runnable lsnr) {
+        _acceptListener = lsnr;
+        if (lsnr != null && hasPending())
+            lsnr.run();
+    }
+
+    /** @since 0.9.28 */
+    private void fireAcceptListener() {
+        Runnable lsnr = _acceptListener;
+        if (lsnr != null)
+            lsnr.run();
+    }
+
+    /**
+     *  Will acceptNow() return or throw without blocking?
+     *  May also return true for a queued non-SYN packet,
+     *  in which case acceptNow() may return null.
+     *
+     *  @since 0.9.28
+     */
+    public boolean hasPending() {
+        return !_active || !_synQueue.isEmpty();
+    }
+
     public boolean getActive() { return _active; }
     
     /**
@@ -99,6 +132,7 @@ class ConnectionHandler {
         boolean success = _synQueue.offer(packet); // fail immediately if full
         if (success) {
             _timer.addEvent(new TimeoutSyn(packet), _acceptTimeout);
+            fireAcceptListener();
         } else {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Dropping new SYN request, as the queue is full");
@@ -129,16 +163,8 @@ class ConnectionHandler {
         while (true) {
             if ( (timeoutMs > 0) && (expiration < _context.clock().now()) )
                 throw new SocketTimeoutException("accept() timed out");
-            if (!_active) {
-                // fail all the ones we had queued up
-                while(true) {
-                    Packet packet = _synQueue.poll(); // fails immediately if empty
-                    if (packet == null || packet.getOptionalDelay() == PoisonPacket.POISON_MAX_DELAY_REQUEST)
-                        break;
-                    sendReset(packet);
-                }
-                throw new ConnectException("ServerSocket closed");
-            }
+            if (!_active)
+                failQueued();
             
             Packet syn = null;
             while ( _active && syn == null) {
@@ -174,41 +200,89 @@ class ConnectionHandler {
             }
 
             if (syn != null) {
-                if (syn.getOptionalDelay() == PoisonPacket.POISON_MAX_DELAY_REQUEST)
-                    throw new ConnectException("ServerSocket closed");
+                Connection con = handleQueued(syn);
+                if (con != null)
+                    return con;
+            }
+            // keep looping...
+        }
+    }
+
+    /**
+     *  Nonblocking version of accept().
+     *
+     *  @return connection received, or null if none is pending
+     *  @throws ConnectException if the I2PServerSocket is closed
+     *  @since 0.9.28
+     */
+    public Connection acceptNow() throws ConnectException {
+        while (true) {
+            if (!_active)
+                failQueued();
+            Packet syn = _synQueue.poll();
+            if (syn == null)
+                return null;
+            Connection con = handleQueued(syn);
+            if (con != null)
+                return con;
+        }
+    }
 
-                // deal with forged / invalid syn packets in _manager.receiveConnection()
+    /**
+     *  Fail all the ones we had queued up.
+     *
+     *  @throws ConnectException always
+     *  @since 0.9.28 pulled out of accept()
+     */
+    private void failQueued() throws ConnectException {
+        while(true) {
+            Packet packet = _synQueue.poll(); // fails immediately if empty
+            if (packet == null || packet.getOptionalDelay() == PoisonPacket.POISON_MAX_DELAY_REQUEST)
+                break;
+            sendReset(packet);
+        }
+        throw new ConnectException("ServerSocket closed");
+    }
 
-                // Handle both SYN and non-SYN packets in the queue
-                if (syn.isFlagSet(Packet.FLAG_SYNCHRONIZE)) {
-                    // We are single-threaded here, so this is
-                    // a good place to check for dup SYNs and drop them
-                    Destination from = syn.getOptionalFrom();
-                    if (from == null) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Dropping SYN packet with no FROM: " + syn);
-                        // drop it
-                        continue;
-                    }
-                    Connection oldcon = _manager.getConnectionByOutboundId(syn.getReceiveStreamId());
-                    if (oldcon != null) {
-                        // His ID not guaranteed to be unique to us, but probably is...
-                        // only drop it on a destination match too
-                        if (from.equals(oldcon.getRemotePeer())) {
-                            if (_log.shouldLog(Log.WARN))
-                                _log.warn("Dropping dup SYN: " + syn);
-                            continue;
-                        }
-                    }
-                    Connection con = _manager.receiveConnection(syn);
-                    if (con != null)
-                        return con;
-                } else {
-                    reReceivePacket(syn);
-                    // ... and keep looping
+    /**
+     *  Handle a packet taken off the syn queue.
+     *
+     *  @return the new connection, or null if the packet was dropped or was not a SYN
+     *  @throws ConnectException if it was the poison packet
+     *  @since 0.9.28 pulled out of accept()
+     */
+    private Connection handleQueued(Packet syn) throws ConnectException {
+        if (syn.getOptionalDelay() == PoisonPacket.POISON_MAX_DELAY_REQUEST)
+            throw new ConnectException("ServerSocket closed");
+
+        // deal with forged / invalid syn packets in _manager.receiveConnection()
+
+        // Handle both SYN and non-SYN packets in the queue
+        if (syn.isFlagSet(Packet.FLAG_SYNCHRONIZE)) {
+            // We are single-threaded here, so this is
+            // a good place to check for dup SYNs and drop them
+            Destination from = syn.getOptionalFrom();
+            if (from == null) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Dropping SYN packet with no FROM: " + syn);
+                // drop it
+                return null;
+            }
+            Connection oldcon = _manager.getConnectionByOutboundId(syn.getReceiveStreamId());
+            if (oldcon != null) {
+                // His ID not guaranteed to be unique to us, but probably is...
+                // only drop it on a destination match too
+                if (from.equals(oldcon.getRemotePeer())) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Dropping dup SYN: " + syn);
+                    return null;
                 }
             }
-            // keep looping...
+            return _manager.receiveConnection(syn);
+        } else {
+            reReceivePacket(syn);
+            // ... and keep looping
+            return null;
         }
     }
 
@@ -53,6 +53,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     private int _maxTotalConnsPerDay;
     private int _maxConns;
     private boolean _disableRejectLog;
+    private String _congestionControl;
+    private boolean _sackLossDetection;
     
     /** state of a connection */
     private enum AckInit {
@@ -123,6 +125,21 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     public static final String PROP_MAX_STREAMS = "i2p.streaming.maxConcurrentStreams";
     /** @since 0.9.4  default false */
     public static final String PROP_DISABLE_REJ_LOG = "i2p.streaming.disableRejectLogging";
+    /**
+     *  CONGESTION_CONTROL_RENO (default) or CONGESTION_CONTROL_CUBIC
+     *  @since 0.9.28
+     */
+    public static final String PROP_CONGESTION_CONTROL = "i2p.streaming.congestionControl";
+    /**
+     *  Fast retransmit a NACKed packet as soon as three later packets are acked,
+     *  rather than after three NACKs. Default false.
+     *  @since 0.9.28
+     */
+    public static final String PROP_SACK_LOSS_DETECTION = "i2p.streaming.sackLossDetection";
+    /** @since 0.9.28 */
+    public static final String CONGESTION_CONTROL_RENO = "reno";
+    /** @since 0.9.28 */
+    public static final String CONGESTION_CONTROL_CUBIC = "cubic";
     
     
     private static final int TREND_COUNT = 3;
@@ -341,6 +358,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
             setAnswerPings(opts.getAnswerPings());
             setEnforceProtocol(opts.getEnforceProtocol());
             setDisableRejectLogging(opts.getDisableRejectLogging());
+            setCongestionControl(opts.getCongestionControl());
+            setSelectiveAckLossDetection(opts.getSelectiveAckLossDetection());
             initLists(opts);
             _maxConnsPerMinute = opts.getMaxConnsPerMinute();
             _maxConnsPerHour = opts.getMaxConnsPerHour();
@@ -378,6 +397,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         setAnswerPings(getBool(opts, PROP_ANSWER_PINGS, DEFAULT_ANSWER_PINGS));
         setEnforceProtocol(getBool(opts, PROP_ENFORCE_PROTO, DEFAULT_ENFORCE_PROTO));
         setDisableRejectLogging(getBool(opts, PROP_DISABLE_REJ_LOG, false));
+        setCongestionControl(opts.getProperty(PROP_CONGESTION_CONTROL, CONGESTION_CONTROL_RENO));
+        setSelectiveAckLossDetection(getBool(opts, PROP_SACK_LOSS_DETECTION, false));
         initLists(opts);
         _maxConnsPerMinute = getInt(opts, PROP_MAX_CONNS_MIN, 0);
         _maxConnsPerHour = getInt(opts, PROP_MAX_CONNS_HOUR, 0);
@@ -440,6 +461,10 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
             setEnforceProtocol(getBool(opts, PROP_ENFORCE_PROTO, DEFAULT_ENFORCE_PROTO));
         if (opts.getProperty(PROP_DISABLE_REJ_LOG) != null)
             setDisableRejectLogging(getBool(opts, PROP_DISABLE_REJ_LOG, false));
+        if (opts.getProperty(PROP_CONGESTION_CONTROL) != null)
+            setCongestionControl(opts.getProperty(PROP_CONGESTION_CONTROL));
+        if (opts.getProperty(PROP_SACK_LOSS_DETECTION) != null)
+            setSelectiveAckLossDetection(getBool(opts, PROP_SACK_LOSS_DETECTION, false));
         initLists(opts);
         if (opts.getProperty(PROP_MAX_CONNS_MIN) != null)
             _maxConnsPerMinute = getInt(opts, PROP_MAX_CONNS_MIN, 0);
@@ -755,6 +780,28 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     public int getSlowStartGrowthRateFactor() { return _slowStartGrowthRateFactor; }
     public void setSlowStartGrowthRateFactor(int factor) { _slowStartGrowthRateFactor = factor; }
     
+    /**
+     *  Takes effect for new connections only.
+     *  @return CONGESTION_CONTROL_RENO or CONGESTION_CONTROL_CUBIC
+     *  @since 0.9.28
+     */
+    public String getCongestionControl() { return _congestionControl; }
+
+    /**
+     *  @param algo CONGESTION_CONTROL_RENO or CONGESTION_CONTROL_CUBIC, anything else is Reno
+     *  @since 0.9.28
+     */
+    public void setCongestionControl(String algo) {
+        _congestionControl = CONGESTION_CONTROL_CUBIC.equals(algo) ? CONGESTION_CONTROL_CUBIC
+                                                                   : CONGESTION_CONTROL_RENO;
+    }
+
+    /** @since 0.9.28 */
+    public boolean getSelectiveAckLossDetection() { return _sackLossDetection; }
+
+    /** @since 0.9.28 */
+    public void setSelectiveAckLossDetection(boolean yes) { _sackLossDetection = yes; }
+    
     /** all of these are @since 0.7.14; no public setters */
     public int getMaxConnsPerMinute() { return _maxConnsPerMinute; }
     public int getMaxConnsPerHour() { return _maxConnsPerHour; }
@@ -840,6 +887,9 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         buf.append(" inactivityTimeout=").append(_inactivityTimeout);
         buf.append(" inboundBuffer=").append(_inboundBufferSize);
         buf.append(" maxWindowSize=").append(_maxWindowSize);
+        buf.append(" cc=").append(_congestionControl);
+        if (_sackLossDetection)
+            buf.append(" sack");
         buf.append(" blacklistSize=").append(_blackList.size());
         buf.append(" whitelistSize=").append(_accessList.size());
         buf.append(" maxConns=").append(_maxConnsPerMinute).append('/')
@@ -0,0 +1,102 @@
+package net.i2p.client.streaming.impl;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * CUBIC congestion control, RFC 8312, with the window in messages.
+ *<p>
+ * After a reduction, the window grows as a cubic function of the time since
+ * the congestion event, rather than one message per RTT, so it gets back
+ * to the previous window in a few seconds regardless of the RTT.
+ * This matters on our multi-second RTT tunnels, where Reno's
+ * linear growth takes minutes to recover from a single loss.
+ *<p>
+ * Slow start is the same as Reno's, limited to
+ * ConnectionPacketHandler.MAX_SLOW_START_WINDOW.
+ *
+ * @since 0.9.28
+ */
+class CubicCongestionControl implements CongestionControl {
+    private final Log _log;
+
+    /** scaling constant, windows in messages and time in seconds */
+    private static final double C = 0.4;
+    /** multiplicative decrease */
+    private static final double BETA = 0.7;
+    /** TCP-friendly additive increase to match Reno with BETA, RFC 8312 sec. 4.2 */
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);
+    /** grow at most this much per RTT, RFC 8312 sec. 4.1 */
+    private static final double MAX_GROWTH = 1.5;
+
+    /** LOCKING: this for all */
+    private double _cwnd;
+    /** window just before the last reduction */
+    private double _wMax;
+    /** seconds to get back to _wMax */
+    private double _k;
+    /** start of this congestion avoidance epoch, or -1 */
+    private long _epochStart = -1;
+    /** Reno-equivalent window for the TCP-friendly region */
+    private double _wEst;
+    private int _ssthresh = Integer.MAX_VALUE;
+
+    public CubicCongestionControl(I2PAppContext ctx) {
+        _log = ctx.logManager().getLog(CubicCongestionControl.class);
+    }
+
+    public synchronized int packetsAcked(ConnectionOptions opts, int acked, int lastCongestionSeenAt, long now) {
+        int window = opts.getWindowSize();
+        // the window may have been limited by the max window size or changed elsewhere
+        if ((int) _cwnd != window)
+            _cwnd = window;
+        if (window < _ssthresh) {
+            if (window < ConnectionPacketHandler.MAX_SLOW_START_WINDOW) {
+                int rv = Math.min(ConnectionPacketHandler.MAX_SLOW_START_WINDOW, window + acked);
+                _cwnd = rv;
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("slow start acks = " + acked + " window = " + rv);
+                return rv;
+            }
+            _ssthresh = window;
+        }
+        if (_epochStart < 0) {
+            _epochStart = now;
+            if (_cwnd < _wMax) {
+                _k = Math.cbrt((_wMax - _cwnd) / C);
+            } else {
+                _k = 0;
+                _wMax = _cwnd;
+            }
+            _wEst = _cwnd;
+        }
+        // where we want to be one RTT from now
+        double t = (now + opts.getRTT() - _epochStart) / 1000d;
+        double target = C * Math.pow(t - _k, 3) + _wMax;
+        _wEst += ALPHA * acked / _cwnd;
+        if (_wEst > target)
+            target = _wEst;
+        if (target > _cwnd) {
+            target = Math.min(target, _cwnd * MAX_GROWTH);
+            _cwnd += (target - _cwnd) * acked / _cwnd;
+        }
+        int rv = Math.max(1, (int) _cwnd);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("cubic acks = " + acked + " t = " + t + " K = " + _k +
+                       " wMax = " + _wMax + " window = " + _cwnd);
+        return rv;
+    }
+
+    public synchronized int congestionOccurred(ConnectionOptions opts, long now) {
+        double window = opts.getWindowSize();
+        // fast convergence, RFC 8312 sec. 4.6
+        if (window < _wMax)
+            _wMax = window * (1 + BETA) / 2;
+        else
+            _wMax = window;
+        _cwnd = Math.max(1, window * BETA);
+        _ssthresh = Math.max(1, (int) _cwnd);
+        _epochStart = -1;
+        return (int) _cwnd;
+    }
+}
@@ -0,0 +1,26 @@
+package net.i2p.client.streaming.impl;
+
+/**
+ *  What an I2PSelector needs from a channel.
+ *
+ *  Readiness is edge-notified: the channel must call
+ *  I2PSelectionKey.notifyReady() on all its registered keys
+ *  whenever its ready operations may have changed.
+ *  The selector then calls getReadyOps() to find out.
+ *
+ *  @since 0.9.28
+ */
+interface I2PSelectableChannel {
+
+    /**
+     *  Must be fast, and must not call into the selector.
+     *
+     *  @return the operations that would not block right now,
+     *          a subset of validOps()
+     */
+    public int getReadyOps();
+
+    public void keyRegistered(I2PSelectionKey key);
+
+    public void keyDeregistered(I2PSelectionKey key);
+}
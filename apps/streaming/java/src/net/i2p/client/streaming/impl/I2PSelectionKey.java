@@ -0,0 +1,90 @@
+package net.i2p.client.streaming.impl;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+/**
+ *  A key for an I2PSelectableChannel registered with an I2PSelector.
+ *
+ *  @since 0.9.28
+ */
+class I2PSelectionKey extends AbstractSelectionKey {
+    private final I2PSelector _selector;
+    private final SelectableChannel _channel;
+    private volatile int _interestOps;
+    private volatile int _readyOps;
+
+    public I2PSelectionKey(I2PSelector selector, SelectableChannel channel, int ops) {
+        _selector = selector;
+        _channel = channel;
+        _interestOps = ops;
+    }
+
+    public SelectableChannel channel() {
+        return _channel;
+    }
+
+    public Selector selector() {
+        return _selector;
+    }
+
+    public int interestOps() {
+        ensureValid();
+        return _interestOps;
+    }
+
+    /**
+     *  Unlike for the JDK selectors, this takes effect immediately,
+     *  even during a select in progress.
+     */
+    public I2PSelectionKey interestOps(int ops) {
+        ensureValid();
+        if ((ops & ~_channel.validOps()) != 0)
+            throw new IllegalArgumentException("Invalid ops " + ops);
+        _interestOps = ops;
+        _selector.keyChanged(this);
+        return this;
+    }
+
+    public int readyOps() {
+        ensureValid();
+        return _readyOps;
+    }
+
+    /**
+     *  For the selector, doesn't check validity
+     */
+    int getInterestOps() {
+        return _interestOps;
+    }
+
+    /**
+     *  For the selector, doesn't check validity
+     */
+    int getReadyOps() {
+        return _readyOps;
+    }
+
+    /**
+     *  For the selector
+     */
+    void setReadyOps(int ops) {
+        _readyOps = ops;
+    }
+
+    /**
+     *  For the channel. The channel's readiness may have changed.
+     *  Does not block.
+     */
+    void notifyReady() {
+        if (isValid())
+            _selector.keyChanged(this);
+    }
+
+    private void ensureValid() {
+        if (!isValid())
+            throw new CancelledKeyException();
+    }
+}
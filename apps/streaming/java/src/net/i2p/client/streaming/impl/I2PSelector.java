@@ -0,0 +1,292 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  A Selector for I2PSocket and AcceptingChannel channels,
+ *  get one with channel.provider().openSelector().
+ *
+ *  There's no OS readiness to poll here. The channels notify their keys
+ *  when their state changes, and we keep a set of candidate keys to check.
+ *  Keys that were ready at the last select are checked again at the next one,
+ *  so readiness is level-triggered as for the JDK selectors.
+ *
+ *  Locking order is this, then _selected, then _lock.
+ *  Channel readiness is never checked while holding _lock,
+ *  as the channels take the streaming locks, and they call
+ *  keyChanged() with those locks held.
+ *
+ *  @since 0.9.28
+ */
+class I2PSelector extends AbstractSelector {
+
+    private final Set<SelectionKey> _keys;
+    private final Set<SelectionKey> _publicKeys;
+    private final Set<SelectionKey> _selected;
+    private final Set<SelectionKey> _publicSelected;
+    /** keys to check at the next select, guarded by _lock */
+    private final Set<I2PSelectionKey> _candidates;
+    /** keys that were ready at the last select, guarded by _lock */
+    private final Set<I2PSelectionKey> _stillReady;
+    private final Object _lock = new Object();
+    /** guarded by _lock */
+    private boolean _wakeup;
+
+    public I2PSelector(SelectorProvider provider) {
+        super(provider);
+        _keys = Collections.newSetFromMap(new ConcurrentHashMap<SelectionKey, Boolean>());
+        _publicKeys = Collections.unmodifiableSet(_keys);
+        _selected = new HashSet<SelectionKey>();
+        _publicSelected = new UngrowableSet(_selected);
+        _candidates = new HashSet<I2PSelectionKey>();
+        _stillReady = new HashSet<I2PSelectionKey>();
+    }
+
+    public Set<SelectionKey> keys() {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        return _publicKeys;
+    }
+
+    public Set<SelectionKey> selectedKeys() {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        return _publicSelected;
+    }
+
+    public int selectNow() throws IOException {
+        return doSelect(-1);
+    }
+
+    public int select(long timeout) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout");
+        return doSelect(timeout);
+    }
+
+    public int select() throws IOException {
+        return doSelect(0);
+    }
+
+    public Selector wakeup() {
+        synchronized (_lock) {
+            _wakeup = true;
+            _lock.notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     *  @param timeout -1 for now, 0 for forever, or positive ms
+     *  @return the number of keys whose ready set was updated
+     */
+    private int doSelect(long timeout) throws IOException {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        synchronized (this) {
+            synchronized (_publicSelected) {
+                processCancelledKeys();
+                int count = 0;
+                long end = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+                boolean first = true;
+                List<I2PSelectionKey> toCheck = new ArrayList<I2PSelectionKey>();
+                try {
+                    begin();
+                    while (true) {
+                        synchronized (_lock) {
+                            if (first) {
+                                _candidates.addAll(_stillReady);
+                                _stillReady.clear();
+                                first = false;
+                            }
+                            toCheck.addAll(_candidates);
+                            _candidates.clear();
+                        }
+                        for (I2PSelectionKey key : toCheck) {
+                            if (check(key))
+                                count++;
+                        }
+                        toCheck.clear();
+                        if (count > 0 || timeout < 0 || !isOpen())
+                            break;
+                        synchronized (_lock) {
+                            if (_wakeup)
+                                break;
+                            if (!_candidates.isEmpty())
+                                continue;
+                            long toWait;
+                            if (timeout == 0) {
+                                toWait = 0;
+                            } else {
+                                toWait = end - System.currentTimeMillis();
+                                if (toWait <= 0)
+                                    break;
+                            }
+                            try {
+                                _lock.wait(toWait);
+                            } catch (InterruptedException ie) {
+                                // return with the interrupt status set, as the JDK selectors do
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                    }
+                } finally {
+                    end();
+                    synchronized (_lock) {
+                        _wakeup = false;
+                    }
+                }
+                processCancelledKeys();
+                return count;
+            }
+        }
+    }
+
+    /**
+     *  Caller must sync on this and _publicSelected, but not _lock.
+     *
+     *  @return true if the key was added to the selected set or its ready set was updated
+     */
+    private boolean check(I2PSelectionKey key) {
+        if (!key.isValid())
+            return false;
+        int ready = ((I2PSelectableChannel) key.channel()).getReadyOps() & key.getInterestOps();
+        if (ready == 0)
+            return false;
+        synchronized (_lock) {
+            _stillReady.add(key);
+        }
+        if (_selected.contains(key)) {
+            int old = key.getReadyOps();
+            if ((old | ready) == old)
+                return false;
+            key.setReadyOps(old | ready);
+        } else {
+            key.setReadyOps(ready);
+            _selected.add(key);
+        }
+        return true;
+    }
+
+    /**
+     *  Caller must sync on this and _publicSelected
+     */
+    private void processCancelledKeys() {
+        Set<SelectionKey> cancelled = cancelledKeys();
+        synchronized (cancelled) {
+            if (cancelled.isEmpty())
+                return;
+            for (SelectionKey k : cancelled) {
+                I2PSelectionKey key = (I2PSelectionKey) k;
+                removeKey(key);
+                _selected.remove(key);
+            }
+            cancelled.clear();
+        }
+    }
+
+    /**
+     *  Caller must sync on this
+     */
+    private void removeKey(I2PSelectionKey key) {
+        ((I2PSelectableChannel) key.channel()).keyDeregistered(key);
+        _keys.remove(key);
+        synchronized (_lock) {
+            _candidates.remove(key);
+            _stillReady.remove(key);
+        }
+        deregister(key);
+    }
+
+    /**
+     *  @throws IllegalSelectorException if not one of our channels
+     */
+    protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
+        if (!(ch instanceof I2PSelectableChannel))
+            throw new IllegalSelectorException();
+        I2PSelectionKey key = new I2PSelectionKey(this, ch, ops);
+        key.attach(att);
+        _keys.add(key);
+        ((I2PSelectableChannel) ch).keyRegistered(key);
+        keyChanged(key);
+        return key;
+    }
+
+    protected void implCloseSelector() throws IOException {
+        wakeup();
+        synchronized (this) {
+            synchronized (_publicSelected) {
+                for (SelectionKey k : _keys) {
+                    removeKey((I2PSelectionKey) k);
+                }
+                _selected.clear();
+                Set<SelectionKey> cancelled = cancelledKeys();
+                synchronized (cancelled) {
+                    cancelled.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     *  The key's interest set changed, or the channel may have become ready.
+     *  Does not block.
+     */
+    void keyChanged(I2PSelectionKey key) {
+        synchronized (_lock) {
+            if (_candidates.add(key))
+                _lock.notifyAll();
+        }
+    }
+
+    /**
+     *  Like the selected key set of the JDK selectors,
+     *  supports removal but not addition.
+     */
+    private static class UngrowableSet extends AbstractSet<SelectionKey> {
+        private final Set<SelectionKey> _set;
+
+        public UngrowableSet(Set<SelectionKey> set) {
+            _set = set;
+        }
+
+        public Iterator<SelectionKey> iterator() {
+            return _set.iterator();
+        }
+
+        public int size() {
+            return _set.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return _set.contains(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return _set.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            _set.clear();
+        }
+    }
+}
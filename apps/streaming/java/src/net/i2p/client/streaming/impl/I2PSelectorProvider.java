@@ -0,0 +1,61 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ *  The provider for the channels returned by I2PSocket.getChannel()
+ *  and I2PServerSocket.getChannel().
+ *  Only openSelector() is supported.
+ *
+ *  The JDK selectors only work with the JDK's own channels,
+ *  so I2P channels must be registered with a selector from here,
+ *  and TCP channels cannot be.
+ *
+ *  @since 0.9.28
+ */
+class I2PSelectorProvider extends SelectorProvider {
+
+    private static final I2PSelectorProvider _instance = new I2PSelectorProvider();
+
+    private I2PSelectorProvider() {}
+
+    public static I2PSelectorProvider getInstance() {
+        return _instance;
+    }
+
+    public AbstractSelector openSelector() throws IOException {
+        return new I2PSelector(this);
+    }
+
+    /** @throws UnsupportedOperationException always */
+    public DatagramChannel openDatagramChannel() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException always */
+    public DatagramChannel openDatagramChannel(ProtocolFamily family) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException always */
+    public Pipe openPipe() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException always */
+    public ServerSocketChannel openServerSocketChannel() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** @throws UnsupportedOperationException always */
+    public SocketChannel openSocketChannel() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -15,6 +15,8 @@ import net.i2p.client.streaming.I2PSocketManager;
  */
 class I2PServerSocketFull implements I2PServerSocket {
     private final I2PSocketManagerFull _socketManager;
+    /** @since 0.9.28 */
+    private AcceptingChannel _channel;
     
     public I2PServerSocketFull(I2PSocketManagerFull mgr) {
         _socketManager = mgr;
@@ -39,15 +41,17 @@ class I2PServerSocketFull implements I2PServerSocket {
     }
 
     /**
-     *  Unimplemented, unlikely to ever be implemented.
+     *  As of 0.9.28, a selectable channel for nonblocking accepts.
+     *  Returned null before.
+     *  Closing the channel closes this server socket.
      *
-     *  @deprecated
-     *  @return null always
+     *  @return non-null, always the same channel
      *  @since 0.8.11
      */
-    @Deprecated
     public synchronized AcceptingChannel getChannel() {
-        return null;
+        if (_channel == null)
+            _channel = new AcceptingChannelImpl(_socketManager, this);
+        return _channel;
     }
     
     public long getSoTimeout() {
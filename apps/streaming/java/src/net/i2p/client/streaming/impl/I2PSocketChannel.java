@@ -0,0 +1,151 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+
+import net.i2p.client.streaming.I2PSocket;
+
+/**
+ *  The channel returned by I2PSocketFull.getChannel().
+ *
+ *  In nonblocking mode, we are the socket's ReadyListener,
+ *  and pass the notifications on to our keys.
+ *  Reads return what's ready, and writes only take what fits in the
+ *  outbound window, so the streams never block.
+ *  Each write is flushed.
+ *
+ *  @since 0.9.28
+ */
+class I2PSocketChannel extends AbstractSelectableChannel implements ByteChannel, I2PSelectableChannel {
+    private final I2PSocketFull _socket;
+    private final ChannelKeys _keys = new ChannelKeys();
+    private final Listener _listener = new Listener();
+    private final Object _readLock = new Object();
+    private final Object _writeLock = new Object();
+
+    private static final int MAX_COPY = 16*1024;
+
+    public I2PSocketChannel(I2PSocketFull socket) {
+        super(I2PSelectorProvider.getInstance());
+        _socket = socket;
+    }
+
+    public int validOps() {
+        return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    /**
+     *  A closed socket is ready for everything, so that
+     *  the next read or write finds out.
+     */
+    public int getReadyOps() {
+        Connection con = _socket.getConnection();
+        if (con == null)
+            return validOps();
+        int rv = 0;
+        if (con.getInputStream().isReadReady())
+            rv |= SelectionKey.OP_READ;
+        if (con.getWritableBytes() > 0 || con.getOutputStream().getClosed() || _socket.isClosed())
+            rv |= SelectionKey.OP_WRITE;
+        return rv;
+    }
+
+    public void keyRegistered(I2PSelectionKey key) {
+        _keys.add(key);
+    }
+
+    public void keyDeregistered(I2PSelectionKey key) {
+        _keys.remove(key);
+    }
+
+    /**
+     *  @return bytes read, 0 if none are ready in nonblocking mode, or -1 on EOF
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (_readLock) {
+            if (!isOpen())
+                throw new ClosedChannelException();
+            MessageInputStream in = (MessageInputStream) _socket.getInputStream();
+            boolean completed = false;
+            try {
+                begin();
+                int rv = in.read(dst);
+                completed = true;
+                return rv;
+            } finally {
+                end(completed);
+            }
+        }
+    }
+
+    /**
+     *  In nonblocking mode, writes what fits in the outbound window,
+     *  which may be nothing.
+     *  In blocking mode, writes everything.
+     *
+     *  @return bytes written
+     */
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (_writeLock) {
+            if (!isOpen())
+                throw new ClosedChannelException();
+            OutputStream out = _socket.getOutputStream();
+            int len = src.remaining();
+            if (!isBlocking()) {
+                len = Math.min(len, _socket.getWritableBytes());
+                if (len <= 0 && src.hasRemaining() && _socket.isClosed())
+                    throw new IOException("Socket closed");
+            }
+            if (len <= 0)
+                return 0;
+            boolean completed = false;
+            try {
+                begin();
+                if (src.hasArray()) {
+                    out.write(src.array(), src.arrayOffset() + src.position(), len);
+                    src.position(src.position() + len);
+                } else {
+                    byte[] buf = new byte[Math.min(len, MAX_COPY)];
+                    int remaining = len;
+                    while (remaining > 0) {
+                        int toCopy = Math.min(remaining, buf.length);
+                        src.get(buf, 0, toCopy);
+                        out.write(buf, 0, toCopy);
+                        remaining -= toCopy;
+                    }
+                }
+                out.flush();
+                completed = true;
+                return len;
+            } finally {
+                end(completed);
+            }
+        }
+    }
+
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        _socket.setReadyListener(block ? null : _listener);
+    }
+
+    protected void implCloseSelectableChannel() throws IOException {
+        _socket.close();
+    }
+
+    /**
+     *  Pass the socket's notifications on to the selectors
+     */
+    private class Listener implements I2PSocket.ReadyListener {
+        public void readReady(I2PSocket socket) {
+            _keys.notifyReady();
+        }
+
+        public void writeReady(I2PSocket socket) {
+            _keys.notifyReady();
+        }
+    }
+}
@@ -23,6 +23,8 @@ class I2PSocketFull implements I2PSocket {
     private final Destination _remotePeer;
     private final Destination _localPeer;
     private final AtomicBoolean _closed = new AtomicBoolean();
+    /** @since 0.9.28 */
+    private SelectableChannel _channel;
     
     public I2PSocketFull(Connection con, I2PAppContext context) {
         log = context.logManager().getLog(I2PSocketFull.class);
@@ -90,15 +92,17 @@ class I2PSocketFull implements I2PSocket {
     }
 
     /**
-     *  Unimplemented, unlikely to ever be implemented.
+     *  As of 0.9.28, a selectable ByteChannel for this socket,
+     *  see I2PSocket.getChannel(). Returned null before.
+     *  Closing the channel closes this socket.
      *
-     *  @deprecated
-     *  @return null always
+     *  @return non-null, always the same channel
      *  @since 0.8.9
      */
-    @Deprecated
     public synchronized SelectableChannel getChannel() {
-        return null;
+        if (_channel == null)
+            _channel = new I2PSocketChannel(this);
+        return _channel;
     }
     
     /**
@@ -192,6 +196,29 @@ class I2PSocketFull implements I2PSocket {
         return c == null ? I2PSession.PORT_UNSPECIFIED : c.getLocalPort();
     }
 
+    /**
+     *  Non-blocking mode with readiness notifications.
+     *  @param lsnr may be null
+     *  @return true always, false if closed
+     *  @since 0.9.28
+     */
+    public boolean setReadyListener(I2PSocket.ReadyListener lsnr) {
+        Connection c = _connection;
+        if (c == null)
+            return false;
+        c.setReadyListener(this, lsnr);
+        return true;
+    }
+
+    /**
+     *  @return 0 if the window is full or closed
+     *  @since 0.9.28
+     */
+    public int getWritableBytes() {
+        Connection c = _connection;
+        return c == null ? 0 : c.getWritableBytes();
+    }
+
     @Override
     public String toString() {
         Connection c = _connection;
@@ -356,6 +356,24 @@ public class I2PSocketManagerFull implements I2PSocketManager {
         con.setSocket(sock);
         return sock;
     }
+
+    /**
+     * Nonblocking version of receiveSocket(), for AcceptingChannel.
+     * 
+     * @return connected I2PSocket, or null if none is pending
+     * @throws I2PException if session is closed
+     * @throws ConnectException if the I2PServerSocket is closed
+     * @since 0.9.28
+     */
+    I2PSocket receiveSocketNow() throws I2PException, ConnectException {
+        verifySession();
+        Connection con = _connectionManager.getConnectionHandler().acceptNow();
+        if (con == null)
+            return null;
+        I2PSocketFull sock = new I2PSocketFull(con, _context);
+        con.setSocket(sock);
+        return sock;
+    }
     
     /**
      * Ping the specified peer, returning true if they replied to the ping within 
@@ -3,14 +3,12 @@ package net.i2p.client.streaming.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
-//import net.i2p.util.ByteCache;
+import net.i2p.util.ByteCache;
 import net.i2p.util.Log;
 
 /**
@@ -21,30 +19,51 @@ import net.i2p.util.Log;
  *<p>
  * This buffers unlimited data via messageReceived() -
  * limiting / blocking is done in ConnectionPacketHandler.receivePacket().
+ *<p>
+ * As of 0.9.28, in-order data is copied into a circular buffer as it
+ * becomes ready, so the payloads may be garbage collected right away and
+ * reads are bulk copies. Out-of-order payloads are kept in arrays sorted
+ * by message ID. Readers are only notified if one is waiting.
  *
  */
 class MessageInputStream extends InputStream {
     private final Log _log;
     /** 
-     * List of ByteArray objects of data ready to be read,
-     * with the first ByteArray at index 0, and the next
-     * actual byte to be read at _readyDataBlockIndex of 
-     * that array.
-     *
+     * Circular buffer of data ready to be read, starting at _readyStart,
+     * _readySize bytes long. Null until needed and after close.
+     * @since 0.9.28 replaces List of ByteArray
      */
-    private final List<ByteArray> _readyDataBlocks;
-    /** current byte index into _readyDataBlocks.get(0) */
-    private int _readyDataBlockIndex;
+    private byte[] _ring;
+    /** is _ring from _ringCache */
+    private boolean _ringPooled;
+    /** index of the next byte to be read */
+    private int _readyStart;
+    /** bytes ready to be read */
+    private int _readySize;
+    /**
+     * Circular list of the value of _writeTotal at the end of each
+     * ready block not yet completely read, so we can count the ready blocks.
+     * @since 0.9.28
+     */
+    private long[] _readyBlockEnds;
+    private int _readyBlockStart;
+    private int _readyBlockCount;
+    /** total bytes made ready */
+    private long _writeTotal;
     /** highest message ID used in the readyDataBlocks */
     private long _highestReadyBlockId;
     /** highest overall message ID */
     private long _highestBlockId;
     /** 
-     * Message ID (Long) to ByteArray for blocks received
+     * Message IDs, ascending, of blocks received
      * out of order when there are lower IDs not yet 
-     * received
+     * received. All greater than _highestReadyBlockId + 1.
+     * @since 0.9.28 replaces Map of Long to ByteArray
      */
-    private final Map<Long, ByteArray> _notYetReadyBlocks;
+    private long[] _notYetReadyIds;
+    /** payloads, same index as _notYetReadyIds */
+    private ByteArray[] _notYetReadyBlocks;
+    private int _notYetReadyCount;
     /** 
      * if we have received a flag saying there won't be later messages, EOF
      * after we have cleared what we have received.
@@ -55,31 +74,42 @@ class MessageInputStream extends InputStream {
     private int _readTimeout;
     private IOException _streamError;
     private long _readTotal;
-    //private ByteCache _cache;
+    /** readers in wait(), only notify if nonzero */
+    private int _readersWaiting;
+    /** non-null for nonblocking mode */
+    private volatile Runnable _readyListener;
     private final int _maxMessageSize;
     private final int _maxWindowSize;
     private final int _maxBufferSize;
     private final byte[] _oneByte = new byte[1];
     private final Object _dataLock;
 
-    /** only in _notYetReadyBlocks, never in _readyDataBlocks */
+    /** only in _notYetReadyBlocks, never in the ready data */
     private static final ByteArray DUMMY_BA = new ByteArray(null);
     
     private static final int MIN_READY_BUFFERS = 16;
 
+    /**
+     *  Most connections never need more than this,
+     *  larger buffers are allocated as required.
+     */
+    private static final int RING_SIZE = 16*1024;
+    private static final ByteCache _ringCache = ByteCache.getInstance(32, RING_SIZE);
+    private static final int MIN_BLOCKS = 16;
+
 
     public MessageInputStream(I2PAppContext ctx, int maxMessageSize, int maxWindowSize, int maxBufferSize) {
         _log = ctx.logManager().getLog(MessageInputStream.class);
-        _readyDataBlocks = new ArrayList<ByteArray>(4);
+        _readyBlockEnds = new long[MIN_BLOCKS];
         _highestReadyBlockId = -1;
         _highestBlockId = -1;
         _readTimeout = -1;
-        _notYetReadyBlocks = new HashMap<Long, ByteArray>(4);
+        _notYetReadyIds = new long[MIN_BLOCKS];
+        _notYetReadyBlocks = new ByteArray[MIN_BLOCKS];
         _dataLock = new Object();
         _maxMessageSize = maxMessageSize;
         _maxWindowSize = maxWindowSize;
         _maxBufferSize = maxBufferSize;
-        //_cache = ByteCache.getInstance(128, Packet.MAX_PAYLOAD_SIZE);
     }
     
     /** What is the highest block ID we've completely received through?
@@ -120,18 +150,17 @@ class MessageInputStream extends InputStream {
             // we always allow sequence numbers less than or equal to highest received
             if (messageId <= _highestReadyBlockId)
                 return true;
-            // shortcut test, assuming all ready and not ready blocks are max size,
-            // to avoid iterating through all the ready blocks in getTotalReadySize()
-            if ((_readyDataBlocks.size() + _notYetReadyBlocks.size()) * _maxMessageSize < _maxBufferSize)
+            // shortcut test, assuming all ready and not ready blocks are max size
+            if ((_readyBlockCount + _notYetReadyCount) * _maxMessageSize < _maxBufferSize)
                 return true;
             // not ready dup check
-            if (_notYetReadyBlocks.containsKey(Long.valueOf(messageId)))
+            if (locked_find(messageId) >= 0)
                 return true;
             // less efficient starting here
             // Here, for the purposes of calculating whether the input stream is full,
             // we assume all the not-ready blocks are the max message size.
             // This prevents us from getting DoSed by accepting unlimited out-of-order small messages
-            int available = _maxBufferSize - getTotalReadySize();
+            int available = _maxBufferSize - _readySize;
             if (available <= 0) {
                 if (_log.shouldWarn())
                     _log.warn("Dropping message " + messageId + ", inbound buffer exceeded: available = " +
@@ -147,7 +176,7 @@ class MessageInputStream extends InputStream {
                 return false;
             }
             // This prevents us from getting DoSed by accepting unlimited in-order small messages
-            if (_readyDataBlocks.size() >= 4 * _maxWindowSize) {
+            if (_readyBlockCount >= 4 * _maxWindowSize) {
                 if (_log.shouldWarn())
                     _log.warn("Dropping message " + messageId + ", too many ready blocks");
                 return false;
@@ -169,25 +198,36 @@ class MessageInputStream extends InputStream {
         }
     }
     private long[] locked_getNacks() {
-        List<Long> ids = null;
+        // everything between highest ready and highest that we don't have
+        long count = _highestBlockId - (_highestReadyBlockId + 1);
+        for (int i = 0; i < _notYetReadyCount && _notYetReadyIds[i] < _highestBlockId; i++) {
+            count--;
+        }
+        if (count <= 0)
+            return null;
+        long rv[] = new long[(int) count];
+        int j = 0;
+        int k = 0;
         for (long i = _highestReadyBlockId + 1; i < _highestBlockId; i++) {
-            Long l = Long.valueOf(i);
-            if (_notYetReadyBlocks.containsKey(l)) {
+            if (j < _notYetReadyCount && _notYetReadyIds[j] == i) {
                 // ACK
+                j++;
             } else {
-                if (ids == null)
-                    ids = new ArrayList<Long>(4);
-                ids.add(l);
+                rv[k++] = i;
             }
         }
-        if (ids != null) {
-            long rv[] = new long[ids.size()];
-            for (int i = 0; i < rv.length; i++)
-                rv[i] = ids.get(i).longValue();
-            return rv;
-        } else {
-            return null;
-        }
+        return rv;
+    }
+
+    /**
+     *  Binary search of _notYetReadyIds.
+     *  Caller must lock _dataLock
+     *
+     *  @return index if found, or (-(insertion point) - 1)
+     *  @since 0.9.28
+     */
+    private int locked_find(long messageId) {
+        return Arrays.binarySearch(_notYetReadyIds, 0, _notYetReadyCount, messageId);
     }
     
     /**
@@ -251,6 +291,31 @@ class MessageInputStream extends InputStream {
             _log.debug("Changing read timeout from " + _readTimeout + " to " + timeout);
         _readTimeout = timeout; 
     }
+
+    /**
+     *  Nonblocking mode. While set, reads never block, regardless of the read timeout,
+     *  and the listener is run when data, EOF, or an error becomes available.
+     *  The listener is run without holding any lock, by the thread that
+     *  received the data, and must not block.
+     *
+     *  @param lsnr null to return to blocking mode
+     *  @since 0.9.28
+     */
+    public void setReadyListener(Runnable lsnr) {
+        _readyListener = lsnr;
+        if (lsnr != null)
+            notifyActivity();
+    }
+
+    /**
+     *  Call without holding _dataLock
+     *  @since 0.9.28
+     */
+    private void notifyReadyListener() {
+        Runnable lsnr = _readyListener;
+        if (lsnr != null)
+            lsnr.run();
+    }
     
     /** 
      *  There is no more data coming from the I2P side.
@@ -262,34 +327,43 @@ class MessageInputStream extends InputStream {
             if (_log.shouldLog(Log.DEBUG)) {
                 StringBuilder buf = new StringBuilder(128);
                 buf.append("Close received, ready bytes: ");
-                long available = 0;
-                for (int i = 0; i < _readyDataBlocks.size(); i++) 
-                    available += _readyDataBlocks.get(i).getValid();
-                available -= _readyDataBlockIndex;
-                buf.append(available);
-                buf.append(" blocks: ").append(_readyDataBlocks.size());
-                
-                buf.append(" not ready blocks: ");
-                long notAvailable = 0;
-                for (Long id : _notYetReadyBlocks.keySet()) {
-                    ByteArray ba = _notYetReadyBlocks.get(id);
-                    buf.append(id).append(" ");
-                    
-                    if (ba != null)
-                        notAvailable += ba.getValid();
-                }
-                
-                buf.append("not ready bytes: ").append(notAvailable);
-                buf.append(" highest ready block: ").append(_highestReadyBlockId);
-                
+                locked_appendStatus(buf);
                 _log.debug(buf.toString(), new Exception("closed"));
             }
             _closeReceived = true;
-            _dataLock.notifyAll();
+            if (_readersWaiting > 0)
+                _dataLock.notifyAll();
         }
+        notifyReadyListener();
+    }
+
+    /**
+     *  For debug logging.
+     *  Caller must lock _dataLock
+     *  @since 0.9.28 pulled out of closeReceived() and close()
+     */
+    private void locked_appendStatus(StringBuilder buf) {
+        buf.append(_readySize);
+        buf.append(" blocks: ").append(_readyBlockCount);
+        buf.append(" not ready blocks: ");
+        long notAvailable = 0;
+        for (int i = 0; i < _notYetReadyCount; i++) {
+            buf.append(_notYetReadyIds[i]).append(" ");
+            ByteArray ba = _notYetReadyBlocks[i];
+            if (ba != null)
+                notAvailable += ba.getValid();
+        }
+        buf.append("not ready bytes: ").append(notAvailable);
+        buf.append(" highest ready block: ").append(_highestReadyBlockId);
     }
     
-    public void notifyActivity() { synchronized (_dataLock) { _dataLock.notifyAll(); } }
+    public void notifyActivity() {
+        synchronized (_dataLock) {
+            if (_readersWaiting > 0)
+                _dataLock.notifyAll();
+        }
+        notifyReadyListener();
+    }
     
     /**
      * A new message has arrived - toss it on the appropriate queue (moving 
@@ -304,57 +378,174 @@ class MessageInputStream extends InputStream {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("received msg ID " + messageId + " with " +
                        (payload != null ? payload.getValid() + " bytes" : "no payload"));
+        boolean madeReady = false;
         synchronized (_dataLock) {
             if (messageId <= _highestReadyBlockId) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("ignoring dup message " + messageId);
-                _dataLock.notifyAll();
                 return false; // already received
             }
             if (messageId > _highestBlockId)
                 _highestBlockId = messageId;
             
             if (_highestReadyBlockId + 1 == messageId) {
-                if (!_locallyClosed && payload.getValid() > 0) {
+                if (!_locallyClosed && payload != null && payload.getValid() > 0) {
                     if (_log.shouldLog(Log.DEBUG))
                         _log.debug("accepting bytes as ready: " + payload.getValid());
-                    _readyDataBlocks.add(payload);
+                    locked_addReady(payload);
                 }
                 _highestReadyBlockId = messageId;
-                long cur = _highestReadyBlockId + 1;
                 // now pull in any previously pending blocks
-                ByteArray ba;
-                while ((ba = _notYetReadyBlocks.remove(Long.valueOf(cur))) != null) {
+                int ready = 0;
+                while (ready < _notYetReadyCount && _notYetReadyIds[ready] == _highestReadyBlockId + 1) {
+                    ByteArray ba = _notYetReadyBlocks[ready];
                     if (ba.getData() != null && ba.getValid() > 0) {
-                        _readyDataBlocks.add(ba);
+                        locked_addReady(ba);
                     }
                     
                     if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("making ready the block " + cur);
-                    cur++;
+                        _log.debug("making ready the block " + _notYetReadyIds[ready]);
+                    ready++;
                     _highestReadyBlockId++;
                 }
-                                        // FIXME Javadocs for setReadTimeout() say we will throw
-                                        // an InterruptedIOException.
-                                        // Java throws a SocketTimeoutException.
-                                        // We do neither.
+                if (ready > 0)
+                    locked_removeNotYetReady(ready);
+                madeReady = true;
             } else {
                 // _notYetReadyBlocks size is limited in canAccept()
+                ByteArray ba;
                 if (_locallyClosed) {
                     if (_log.shouldInfo())
                         _log.info("Message received on closed stream: " + messageId);
                     // dont need the payload, just the msgId in order
-                    _notYetReadyBlocks.put(Long.valueOf(messageId), DUMMY_BA);
+                    ba = DUMMY_BA;
                 } else {
                     if (_log.shouldInfo())
                         _log.info("Message is out of order: " + messageId);
-                    _notYetReadyBlocks.put(Long.valueOf(messageId), payload);
+                    ba = payload != null ? payload : DUMMY_BA;
                 }
+                int idx = locked_find(messageId);
+                if (idx >= 0)
+                    _notYetReadyBlocks[idx] = ba;
+                else
+                    locked_insertNotYetReady(-(idx + 1), messageId, ba);
             }
-            _dataLock.notifyAll();
+            if (_readersWaiting > 0)
+                _dataLock.notifyAll();
         }
+        if (madeReady)
+            notifyReadyListener();
         return true;
     }
+
+    /**
+     *  Copy the payload to the end of the ready data.
+     *  Caller must lock _dataLock
+     *
+     *  @param payload non-null with non-null data and valid > 0
+     *  @since 0.9.28
+     */
+    private void locked_addReady(ByteArray payload) {
+        int len = payload.getValid();
+        locked_ensureCapacity(_readySize + len);
+        byte[] ring = _ring;
+        int end = (_readyStart + _readySize) % ring.length;
+        int first = Math.min(len, ring.length - end);
+        System.arraycopy(payload.getData(), payload.getOffset(), ring, end, first);
+        if (first < len)
+            System.arraycopy(payload.getData(), payload.getOffset() + first, ring, 0, len - first);
+        _readySize += len;
+        _writeTotal += len;
+        if (_readyBlockCount >= _readyBlockEnds.length) {
+            long[] ends = new long[_readyBlockEnds.length * 2];
+            for (int i = 0; i < _readyBlockCount; i++) {
+                ends[i] = _readyBlockEnds[(_readyBlockStart + i) % _readyBlockEnds.length];
+            }
+            _readyBlockEnds = ends;
+            _readyBlockStart = 0;
+        }
+        _readyBlockEnds[(_readyBlockStart + _readyBlockCount) % _readyBlockEnds.length] = _writeTotal;
+        _readyBlockCount++;
+    }
+
+    /**
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_ensureCapacity(int size) {
+        byte[] ring = _ring;
+        if (ring != null && ring.length >= size)
+            return;
+        byte[] nring;
+        boolean pooled;
+        if (ring == null && size <= RING_SIZE) {
+            nring = _ringCache.acquire().getData();
+            pooled = true;
+        } else {
+            int cap = ring != null ? ring.length : RING_SIZE;
+            while (cap < size) {
+                cap *= 2;
+            }
+            nring = new byte[cap];
+            pooled = false;
+        }
+        if (ring != null) {
+            int first = Math.min(_readySize, ring.length - _readyStart);
+            System.arraycopy(ring, _readyStart, nring, 0, first);
+            if (first < _readySize)
+                System.arraycopy(ring, 0, nring, first, _readySize - first);
+            locked_releaseRing();
+        }
+        _ring = nring;
+        _ringPooled = pooled;
+        _readyStart = 0;
+    }
+
+    /**
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_releaseRing() {
+        if (_ring != null && _ringPooled)
+            _ringCache.release(new ByteArray(_ring));
+        _ring = null;
+        _ringPooled = false;
+    }
+
+    /**
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_insertNotYetReady(int idx, long messageId, ByteArray ba) {
+        if (_notYetReadyCount >= _notYetReadyIds.length) {
+            int cap = _notYetReadyIds.length * 2;
+            _notYetReadyIds = Arrays.copyOf(_notYetReadyIds, cap);
+            _notYetReadyBlocks = Arrays.copyOf(_notYetReadyBlocks, cap);
+        }
+        int move = _notYetReadyCount - idx;
+        if (move > 0) {
+            System.arraycopy(_notYetReadyIds, idx, _notYetReadyIds, idx + 1, move);
+            System.arraycopy(_notYetReadyBlocks, idx, _notYetReadyBlocks, idx + 1, move);
+        }
+        _notYetReadyIds[idx] = messageId;
+        _notYetReadyBlocks[idx] = ba;
+        _notYetReadyCount++;
+    }
+
+    /**
+     *  Remove the first count entries.
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_removeNotYetReady(int count) {
+        int remaining = _notYetReadyCount - count;
+        if (remaining > 0) {
+            System.arraycopy(_notYetReadyIds, count, _notYetReadyIds, 0, remaining);
+            System.arraycopy(_notYetReadyBlocks, count, _notYetReadyBlocks, 0, remaining);
+        }
+        Arrays.fill(_notYetReadyBlocks, remaining, _notYetReadyCount, null);
+        _notYetReadyCount = remaining;
+    }
     
     /**
      *  On a read timeout, this returns -1
@@ -385,142 +576,161 @@ class MessageInputStream extends InputStream {
      */
     @Override
     public int read(byte target[], int offset, int length) throws IOException {
+        synchronized (_dataLock) {
+            int ready = locked_waitForData(offset, length);
+            if (ready <= 0)
+                return ready;
+            int toRead = Math.min(length, ready);
+            int first = Math.min(toRead, _ring.length - _readyStart);
+            System.arraycopy(_ring, _readyStart, target, offset, first);
+            if (first < toRead)
+                System.arraycopy(_ring, 0, target, offset + first, toRead - first);
+            locked_consumed(toRead);
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("read(byte[]," + offset + ',' + length + ") read " + toRead + "; total read: " +_readTotal);
+            return toRead;
+        }
+    }
+
+    /**
+     *  Bulk read into a buffer, with the same blocking and timeout behavior as
+     *  read(byte[], int, int). Copies directly from the internal buffer.
+     *
+     *  On a read timeout, this returns 0
+     *  (doesn't throw SocketTimeoutException like Socket)
+     *
+     *  @param target reads up to target.remaining() bytes
+     *  @return number of bytes read, 0 on timeout, or -1 on EOF
+     *  @since 0.9.28
+     */
+    public int read(ByteBuffer target) throws IOException {
+        int length = target.remaining();
+        synchronized (_dataLock) {
+            int ready = locked_waitForData(0, length);
+            if (ready <= 0)
+                return ready;
+            int toRead = Math.min(length, ready);
+            int first = Math.min(toRead, _ring.length - _readyStart);
+            target.put(_ring, _readyStart, first);
+            if (first < toRead)
+                target.put(_ring, 0, toRead - first);
+            locked_consumed(toRead);
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("read(ByteBuffer) read " + toRead + "; total read: " +_readTotal);
+            return toRead;
+        }
+    }
+
+    /**
+     *  Block until at least one byte is ready, according to the read timeout.
+     *  Caller must lock _dataLock
+     *
+     *  @param offset, length for logging only; if length is 0, return 0 without waiting
+     *  @return bytes ready, 0 on timeout or nonblocking, or -1 on EOF
+     *  @since 0.9.28 pulled out of read()
+     */
+    private int locked_waitForData(int offset, int length) throws IOException {
+        if (_locallyClosed) throw new IOException("Already locally closed");
+        throwAnyError();
+        if (length <= 0)
+            return 0;
         int readTimeout = _readTimeout;
         long expiration;
         if (readTimeout > 0)
             expiration = readTimeout + System.currentTimeMillis();
         else
             expiration = -1;
-        synchronized (_dataLock) {
-            if (_locallyClosed) throw new IOException("Already locally closed");
+        while (_readySize <= 0) {
+            if (_locallyClosed)
+                throw new IOException("Already closed");
+            if (_notYetReadyCount <= 0 && _closeReceived) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("read(...," + offset + ", " + length + ") got EOF after " + _readTotal + " " + toString());
+                locked_releaseRing();
+                return -1;
+            }
+            if (readTimeout == 0 || _readyListener != null) {
+                // noop, don't block
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("read(...," + offset+", " + length+ ") with nonblocking setup: " + toString());
+                return 0;
+            }
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("read(...," + offset+", " + length+ ") with timeout: " + readTimeout + ": " + toString());
+            _readersWaiting++;
+            try {
+                if (readTimeout < 0)
+                    _dataLock.wait();
+                else
+                    _dataLock.wait(readTimeout);
+            } catch (InterruptedException ie) {
+                IOException ioe2 = new InterruptedIOException("Interrupted read");
+                ioe2.initCause(ie);
+                throw ioe2;
+            } finally {
+                _readersWaiting--;
+            }
             throwAnyError();
-            for (int i = 0; i < length; i++) {
-                if ( (_readyDataBlocks.isEmpty()) && (i == 0) ) {
-                    // ok, we havent found anything, so lets block until we get 
-                    // at least one byte
-                    
-                    while (_readyDataBlocks.isEmpty()) {
-                        if (_locallyClosed)
-                            throw new IOException("Already closed");
-                        
-                        if ( (_notYetReadyBlocks.isEmpty()) && (_closeReceived) ) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("read(...," + offset + ", " + length + ")[" + i 
-                                           + "] got EOF after " + _readTotal + " " + toString());
-                            return -1;
-                        } else {
-                            if (readTimeout < 0) {
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + "] with no timeout: " + toString());
-                                try {
-                                    _dataLock.wait();
-                                } catch (InterruptedException ie) {
-                                    IOException ioe2 = new InterruptedIOException("Interrupted read");
-                                    ioe2.initCause(ie);
-                                    throw ioe2;
-                                }
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + "] with no timeout complete: " + toString());
-                                throwAnyError();
-                            } else if (readTimeout > 0) {
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + "] with timeout: " + readTimeout + ": " + toString());
-                                try {
-                                    _dataLock.wait(readTimeout);
-                                } catch (InterruptedException ie) {
-                                    IOException ioe2 = new InterruptedIOException("Interrupted read");
-                                    ioe2.initCause(ie);
-                                    throw ioe2;
-                                }
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + "] with timeout complete: " + readTimeout + ": " + toString());
-                                throwAnyError();
-                            } else { // readTimeout == 0
-                                // noop, don't block
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + "] with nonblocking setup: " + toString());
-                                return i;
-                            }
-                            if (_readyDataBlocks.isEmpty()) {
-                                if (readTimeout > 0) {
-                                    long remaining = expiration - System.currentTimeMillis();
-                                    if (remaining <= 0) {
-                                        // FIXME Javadocs for setReadTimeout() say we will throw
-                                        // an InterruptedIOException.
-                                        // Java throws a SocketTimeoutException.
-                                        // We do neither.
-                                        if (_log.shouldLog(Log.INFO))
-                                            _log.info("read(...," + offset+", " + length+ ")[" + i 
-                                                       + "] expired: " + toString());
-                                        return i;
-                                    } else {
-                                        readTimeout = (int) remaining;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    // we looped a few times then got data, so this pass doesnt count
-                    i--;
-                } else if (_readyDataBlocks.isEmpty()) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                   + "] no more ready blocks, returning");
-                    return i;
-                } else {
-                    // either was already ready, or we wait()ed and it arrived
-                    ByteArray cur = _readyDataBlocks.get(0);
-                    byte rv = cur.getData()[cur.getOffset()+_readyDataBlockIndex];
-                    _readyDataBlockIndex++;
-                    if (cur.getValid() <= _readyDataBlockIndex) {
-                        _readyDataBlockIndex = 0;
-                        _readyDataBlocks.remove(0);
-                    }
-                    _readTotal++;
-                    target[offset + i] = rv; // rv < 0 ? rv + 256 : rv
-                    if ( (_readyDataBlockIndex <= 3) || (_readyDataBlockIndex >= cur.getValid() - 5) ) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                       + "] after ready data: readyDataBlockIndex=" + _readyDataBlockIndex 
-                                       + " readyBlocks=" + _readyDataBlocks.size()
-                                       + " readTotal=" + _readTotal);
-                    }
-                    //if (removed) 
-                    //    _cache.release(cur);
+            if (_readySize <= 0 && readTimeout > 0) {
+                long remaining = expiration - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // FIXME Javadocs for setReadTimeout() say we will throw
+                    // an InterruptedIOException.
+                    // Java throws a SocketTimeoutException.
+                    // We do neither.
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("read(...," + offset+", " + length+ ") expired: " + toString());
+                    return 0;
                 }
-            } // for (int i = 0; i < length; i++) {
-        }  // synchronized (_dataLock)
-        
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("read(byte[]," + offset + ',' + length + ") read fully; total read: " +_readTotal);
+                readTimeout = (int) remaining;
+            }
+        }
+        return _readySize;
+    }
 
-        return length;
+    /**
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_consumed(int count) {
+        _readySize -= count;
+        _readTotal += count;
+        if (_readySize == 0)
+            _readyStart = 0;
+        else
+            _readyStart = (_readyStart + count) % _ring.length;
+        while (_readyBlockCount > 0 && _readyBlockEnds[_readyBlockStart] <= _readTotal) {
+            _readyBlockStart = (_readyBlockStart + 1) % _readyBlockEnds.length;
+            _readyBlockCount--;
+        }
     }
     
     @Override
     public int available() throws IOException {
-        int numBytes = 0;
+        int numBytes;
         synchronized (_dataLock) {
             if (_locallyClosed) throw new IOException("Already closed");
             throwAnyError();
-            for (int i = 0; i < _readyDataBlocks.size(); i++) {
-                ByteArray cur = _readyDataBlocks.get(i);
-                if (i == 0)
-                    numBytes += cur.getValid() - _readyDataBlockIndex;
-                else
-                    numBytes += cur.getValid();
-            }
+            numBytes = _readySize;
         }
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("available(): " + numBytes);
         
         return numBytes;
     }
+
+    /**
+     *  Will a read return something other than 0 without blocking?
+     *  True if data is ready, or on EOF, error, or local close.
+     *
+     *  @since 0.9.28
+     */
+    public boolean isReadReady() {
+        synchronized (_dataLock) {
+            return _readySize > 0 || _locallyClosed || _streamError != null ||
+                   (_closeReceived && _notYetReadyCount <= 0);
+        }
+    }
     
     /**
      * How many bytes are queued up for reading (or sitting in the out-of-order
@@ -554,14 +764,7 @@ class MessageInputStream extends InputStream {
     public int getTotalReadySize() {
         synchronized (_dataLock) {
             if (_locallyClosed) return 0;
-            int numBytes = 0;
-            for (int i = 0; i < _readyDataBlocks.size(); i++) {
-                ByteArray cur = _readyDataBlocks.get(i);
-                numBytes += cur.getValid();
-                if (i == 0)
-                    numBytes -= _readyDataBlockIndex;
-            }
-            return numBytes;
+            return _readySize;
         }
     }
     
@@ -571,37 +774,30 @@ class MessageInputStream extends InputStream {
             if (_log.shouldLog(Log.DEBUG)) {
                 StringBuilder buf = new StringBuilder(128);
                 buf.append("close(), ready bytes: ");
-                long available = 0;
-                for (int i = 0; i < _readyDataBlocks.size(); i++) 
-                    available += _readyDataBlocks.get(i).getValid();
-                available -= _readyDataBlockIndex;
-                buf.append(available);
-                buf.append(" blocks: ").append(_readyDataBlocks.size());
-                buf.append(" not ready blocks: ");
-                long notAvailable = 0;
-                for (Long id : _notYetReadyBlocks.keySet()) {
-                    ByteArray ba = _notYetReadyBlocks.get(id);
-                    buf.append(id).append(" ");
-                    if (ba != null)
-                        notAvailable += ba.getValid();
-                }
-                buf.append("not ready bytes: ").append(notAvailable);
-                buf.append(" highest ready block: ").append(_highestReadyBlockId);
+                locked_appendStatus(buf);
                 _log.debug(buf.toString());
             }
-            //while (_readyDataBlocks.size() > 0)
-            //    _cache.release((ByteArray)_readyDataBlocks.remove(0));
-            _readyDataBlocks.clear();
-             
-            // we don't need the data, but we do need to keep track of the messageIds
-            // received, so we can ACK accordingly
-            for (ByteArray ba : _notYetReadyBlocks.values()) {
-                ba.setData(null);
-                //_cache.release(ba);
-            }
+            locked_clearData();
             _locallyClosed = true;
-            _dataLock.notifyAll();
+            if (_readersWaiting > 0)
+                _dataLock.notifyAll();
         }
+        notifyReadyListener();
+    }
+
+    /**
+     *  Caller must lock _dataLock
+     *  @since 0.9.28
+     */
+    private void locked_clearData() {
+        locked_releaseRing();
+        _readyStart = 0;
+        _readySize = 0;
+        _readyBlockCount = 0;
+        _readyBlockStart = 0;
+        // we don't need the data, but we do need to keep track of the messageIds
+        // received, so we can ACK accordingly
+        Arrays.fill(_notYetReadyBlocks, 0, _notYetReadyCount, DUMMY_BA);
     }
     
     /**
@@ -612,9 +808,13 @@ class MessageInputStream extends InputStream {
         synchronized (_dataLock) {
             if (_streamError == null)
                 _streamError = ioe;
+            // nobody may read it now
+            locked_clearData();
             _locallyClosed = true;
-            _dataLock.notifyAll();
+            if (_readersWaiting > 0)
+                _dataLock.notifyAll();
         }
+        notifyReadyListener();
     }
     
     /** Caller must lock _dataLock */
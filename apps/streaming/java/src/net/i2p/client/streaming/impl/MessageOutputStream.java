@@ -41,6 +41,8 @@ class MessageOutputStream extends OutputStream {
      * size
      */
     private volatile int _nextBufferSize;
+    /** never wait for accept or completion */
+    private volatile boolean _nonBlocking;
     // rate calc helpers
     //private long _sendPeriodBeginTime;
     //private long _sendPeriodBytes;
@@ -93,6 +95,30 @@ class MessageOutputStream extends OutputStream {
     public int getWriteTimeout() { return _writeTimeout; }
 
     public void setBufferSize(int size) { _nextBufferSize = size; }
+
+    /**
+     *  In nonblocking mode, write(), flush(), and close() never wait
+     *  for the outbound window or for acks. The caller is responsible for
+     *  not writing more than the window allows, see Connection.getWritableBytes().
+     *
+     *  @since 0.9.28
+     */
+    public void setNonBlocking(boolean nonBlocking) { _nonBlocking = nonBlocking; }
+
+    /**
+     *  How much may be written without sending a packet.
+     *  A write of exactly this many bytes will send one packet.
+     *
+     *  @return 0 if closed
+     *  @since 0.9.28
+     */
+    public int getBufferAvailable() {
+        synchronized (_dataLock) {
+            if (_buf == null || _closed.get())
+                return 0;
+            return _buf.length - _valid;
+        }
+    }
     
     @Override
     public void write(byte b[]) throws IOException {
@@ -146,7 +172,7 @@ class MessageOutputStream extends OutputStream {
                     locked_updateBufferSize();
                 }
             }
-            if (ws != null) {
+            if (ws != null && !_nonBlocking) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Waiting " + _writeTimeout + "ms for accept of " + ws);
                 // ok, we've actually added a new packet - lets wait until
@@ -344,7 +370,12 @@ class MessageOutputStream extends OutputStream {
         // Skip all the waitForCompletion() stuff below, which is insanity, as of 0.8.1
         // must do this outside the data lock
         if (wait_for_accept_only) {
-            flushAvailable(_dataReceiver, true);
+            flushAvailable(_dataReceiver, !_nonBlocking);
+            return;
+        }
+
+        if (_nonBlocking) {
+            throwAnyError();
             return;
         }
 
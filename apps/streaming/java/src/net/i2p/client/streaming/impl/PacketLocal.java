@@ -180,7 +180,24 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
      *  but only if it's the lowest unacked (see Connection.ResendPacketEvent)
      */
     public void incrementNACKs() { 
-        final int cnt = _nackCount.incrementAndGet();
+        incrementNACKs(0);
+    }
+
+    /**
+     *  Selective ACK loss detection.
+     *  As incrementNACKs(), but if at least FAST_RETRANSMIT_THRESHOLD packets sent
+     *  after this one have been acked, the packet is lost (RFC 6675 IsLost())
+     *  and we don't wait for the 3rd NACK.
+     *
+     *  @param sackedAfter number of later packets acked, 0 to disable
+     *  @since 0.9.28
+     */
+    public void incrementNACKs(int sackedAfter) { 
+        int cnt = _nackCount.incrementAndGet();
+        if (sackedAfter >= Connection.FAST_RETRANSMIT_THRESHOLD && cnt < Connection.FAST_RETRANSMIT_THRESHOLD) {
+            _nackCount.compareAndSet(cnt, Connection.FAST_RETRANSMIT_THRESHOLD);
+            cnt = _nackCount.get();
+        }
         SimpleTimer2.TimedEvent evt = _resendEvent;
         if (cnt >= Connection.FAST_RETRANSMIT_THRESHOLD && evt != null && (!_retransmitted) &&
             (_numSends.get() == 1 || _lastSend < _context.clock().now() - 4*1000)) {  // Don't fast retx if we recently resent it
@@ -0,0 +1,68 @@
+package net.i2p.client.streaming.impl;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * The original TCP Reno-like congestion control.
+ * Slow start up to ConnectionPacketHandler.MAX_SLOW_START_WINDOW,
+ * then 1/N linear growth, and halve the window on congestion.
+ *<p>
+ * This is the default.
+ *
+ * @since 0.9.28 moved from ConnectionPacketHandler.adjustWindow() and Connection
+ */
+class RenoCongestionControl implements CongestionControl {
+    private final I2PAppContext _context;
+    private final Log _log;
+
+    public RenoCongestionControl(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(RenoCongestionControl.class);
+    }
+
+    public int packetsAcked(ConnectionOptions opts, int acked, int lastCongestionSeenAt, long now) {
+        int newWindowSize = opts.getWindowSize();
+        if (newWindowSize < lastCongestionSeenAt / 2) {
+            // Don't make this <= LastCongestion/2 or we'll jump right back to where we were
+            // slow start - exponential growth
+            // grow acked/N times (where N = the slow start factor)
+            // always grow at least 1
+            int factor = opts.getSlowStartGrowthRateFactor();
+            if (factor <= 1) {
+                // above a certain point, don't grow exponentially
+                // as it often leads to a big packet loss (30-50) all at once that
+                // takes quite a while (a minute or more) to recover from,
+                // especially if crypto tags are lost
+                if (newWindowSize >= ConnectionPacketHandler.MAX_SLOW_START_WINDOW)
+                    newWindowSize++;
+                else
+                    newWindowSize = Math.min(ConnectionPacketHandler.MAX_SLOW_START_WINDOW, newWindowSize + acked);
+            } else if (acked < factor)
+                newWindowSize++;
+            else
+                newWindowSize += acked / factor;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("slow start acks = " + acked + " window = " + newWindowSize);
+        } else {
+            // congestion avoidance
+            // linear growth - increase window 1/N per RTT
+            // we can't use newWindowSize += acked/(oldWindow*N) (where N = the cong. avoid. factor), since we're
+            // integers, so lets use a random distribution instead
+            int shouldIncrement = _context.random().nextInt(opts.getCongestionAvoidanceGrowthRateFactor()*newWindowSize);
+            if (shouldIncrement < acked)
+                newWindowSize++;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("cong. avoid acks = " + acked + " window = " + newWindowSize);
+        }
+        return newWindowSize;
+    }
+
+    public int congestionOccurred(ConnectionOptions opts, long now) {
+        int newWindowSize = opts.getWindowSize();
+        newWindowSize /= 2;
+        if (newWindowSize <= 0)
+            newWindowSize = 1;
+        return newWindowSize;
+    }
+}
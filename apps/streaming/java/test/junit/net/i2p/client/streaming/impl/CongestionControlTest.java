@@ -0,0 +1,156 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PSession;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drive the congestion control algorithms over a simulated
+ * link with a bottleneck, random loss, and a long RTT.
+ *
+ * @since 0.9.28
+ */
+public class CongestionControlTest {
+
+    private I2PAppContext _context;
+
+    /** typical tunnel RTT */
+    private static final int RTT = 3000;
+    /** messages per RTT the link can carry */
+    private static final int CAPACITY = 64;
+    private static final int ROUNDS = 2000;
+
+    @Before
+    public void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+    }
+
+    private ConnectionOptions newOptions() {
+        ConnectionOptions opts = new ConnectionOptions();
+        opts.setMaxWindowSize(Connection.MAX_WINDOW_SIZE);
+        opts.setWindowSize(ConnectionOptions.INITIAL_WINDOW_SIZE);
+        opts.updateRTT(RTT);
+        return opts;
+    }
+
+    /**
+     *  One window per round. Acks come back in pairs, then at most one
+     *  congestion event per round if anything was lost,
+     *  either by the bottleneck or at random.
+     *
+     *  @return total messages delivered
+     */
+    private long simulate(CongestionControl cc, ConnectionOptions opts, int capacity,
+                          double lossRate, long seed) {
+        Random rand = new Random(seed);
+        long now = 1000000;
+        long delivered = 0;
+        // as in Connection
+        int lastCongestionSeenAt = Connection.MAX_WINDOW_SIZE*2;
+        for (int round = 0; round < ROUNDS; round++) {
+            int window = opts.getWindowSize();
+            int acked = 0;
+            boolean lost = false;
+            for (int i = 0; i < window; i++) {
+                if (i >= capacity || rand.nextDouble() < lossRate)
+                    lost = true;
+                else
+                    acked++;
+            }
+            delivered += acked;
+            for (int i = 0; i < acked; i += 2) {
+                long ackTime = now + (RTT * (long) i / Math.max(1, acked));
+                opts.setWindowSize(cc.packetsAcked(opts, Math.min(2, acked - i),
+                                                  lastCongestionSeenAt, ackTime));
+            }
+            now += RTT;
+            if (lost) {
+                lastCongestionSeenAt = opts.getWindowSize();
+                opts.setWindowSize(cc.congestionOccurred(opts, now));
+            }
+            int w = opts.getWindowSize();
+            assertTrue(w >= 1 && w <= Connection.MAX_WINDOW_SIZE);
+        }
+        return delivered;
+    }
+
+    @Test
+    public void testRenoNoLoss() {
+        ConnectionOptions opts = newOptions();
+        simulate(new RenoCongestionControl(_context), opts, Connection.MAX_WINDOW_SIZE, 0, 1);
+        assertEquals(Connection.MAX_WINDOW_SIZE, opts.getWindowSize());
+    }
+
+    @Test
+    public void testCubicNoLoss() {
+        ConnectionOptions opts = newOptions();
+        simulate(new CubicCongestionControl(_context), opts, Connection.MAX_WINDOW_SIZE, 0, 1);
+        assertEquals(Connection.MAX_WINDOW_SIZE, opts.getWindowSize());
+    }
+
+    @Test
+    public void testRenoCongestion() {
+        ConnectionOptions opts = newOptions();
+        opts.setWindowSize(40);
+        CongestionControl cc = new RenoCongestionControl(_context);
+        assertEquals(20, cc.congestionOccurred(opts, 0));
+        opts.setWindowSize(1);
+        assertEquals(1, cc.congestionOccurred(opts, 0));
+    }
+
+    /**
+     *  Slow start up to half the window at the last congestion,
+     *  as passed in from the Connection
+     */
+    @Test
+    public void testRenoSlowStartThreshold() {
+        ConnectionOptions opts = newOptions();
+        opts.setWindowSize(10);
+        opts.setSlowStartGrowthRateFactor(1);
+        CongestionControl cc = new RenoCongestionControl(_context);
+        assertEquals(14, cc.packetsAcked(opts, 4, 100, 0));
+        // congestion avoidance
+        assertTrue(cc.packetsAcked(opts, 4, 20, 0) <= 11);
+    }
+
+    @Test
+    public void testCubicCongestion() {
+        ConnectionOptions opts = newOptions();
+        opts.setWindowSize(40);
+        CongestionControl cc = new CubicCongestionControl(_context);
+        assertEquals(28, cc.congestionOccurred(opts, 0));
+        opts.setWindowSize(1);
+        assertEquals(1, cc.congestionOccurred(opts, 0));
+    }
+
+    /**
+     *  After a loss, Reno gains one message per RTT,
+     *  CUBIC gets back to the previous window in a few seconds.
+     */
+    @Test
+    public void testCubicFasterThanReno() {
+        for (long seed = 1; seed <= 3; seed++) {
+            long reno = simulate(new RenoCongestionControl(_context), newOptions(), CAPACITY, 0.002, seed);
+            long cubic = simulate(new CubicCongestionControl(_context), newOptions(), CAPACITY, 0.002, seed);
+            assertTrue("reno " + reno + " cubic " + cubic, cubic > reno);
+        }
+    }
+
+    @Test
+    public void testSelectiveAckLoss() {
+        PacketLocal p = new PacketLocal(_context, null, (I2PSession) null);
+        p.incrementNACKs(0);
+        assertEquals(1, p.getNACKs());
+        p.incrementNACKs(Connection.FAST_RETRANSMIT_THRESHOLD - 1);
+        assertEquals(2, p.getNACKs());
+        p = new PacketLocal(_context, null, (I2PSession) null);
+        p.incrementNACKs(Connection.FAST_RETRANSMIT_THRESHOLD);
+        assertEquals(Connection.FAST_RETRANSMIT_THRESHOLD, p.getNACKs());
+    }
+}
@@ -0,0 +1,187 @@
+package net.i2p.client.streaming.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class I2PSelectorTest {
+
+    private Selector _selector;
+
+    @Before
+    public void setUp() throws IOException {
+        _selector = I2PSelectorProvider.getInstance().openSelector();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _selector.close();
+    }
+
+    @Test
+    public void testNotReady() throws IOException {
+        TestChannel chan = new TestChannel();
+        chan.register(_selector, SelectionKey.OP_READ);
+        assertEquals(0, _selector.selectNow());
+        assertEquals(0, _selector.select(50));
+        assertTrue(_selector.selectedKeys().isEmpty());
+    }
+
+    @Test
+    public void testReady() throws IOException {
+        TestChannel chan = new TestChannel();
+        chan.setReady(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        SelectionKey key = chan.register(_selector, SelectionKey.OP_READ, "foo");
+        assertEquals(1, _selector.selectNow());
+        assertTrue(_selector.selectedKeys().contains(key));
+        assertEquals(SelectionKey.OP_READ, key.readyOps());
+        assertEquals("foo", key.attachment());
+
+        // level-triggered, still reported after removal
+        _selector.selectedKeys().clear();
+        assertEquals(1, _selector.selectNow());
+
+        // not reported again while still selected with the same ops
+        assertEquals(0, _selector.selectNow());
+
+        // until the interest set grows
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        assertEquals(1, _selector.selectNow());
+        assertEquals(SelectionKey.OP_READ | SelectionKey.OP_WRITE, key.readyOps());
+
+        // and dropped when no longer ready
+        _selector.selectedKeys().clear();
+        chan.setReady(0);
+        assertEquals(0, _selector.selectNow());
+        assertTrue(_selector.selectedKeys().isEmpty());
+    }
+
+    @Test
+    public void testNotifyFromOtherThread() throws Exception {
+        final TestChannel chan = new TestChannel();
+        SelectionKey key = chan.register(_selector, SelectionKey.OP_READ);
+        Thread t = new Thread() {
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                chan.setReady(SelectionKey.OP_READ);
+            }
+        };
+        t.start();
+        long start = System.currentTimeMillis();
+        assertEquals(1, _selector.select(10*1000));
+        assertTrue(System.currentTimeMillis() - start < 5*1000);
+        assertTrue(_selector.selectedKeys().contains(key));
+        t.join();
+    }
+
+    @Test
+    public void testWakeup() throws Exception {
+        TestChannel chan = new TestChannel();
+        chan.register(_selector, SelectionKey.OP_READ);
+        // wakeup before select makes the next select return immediately
+        _selector.wakeup();
+        long start = System.currentTimeMillis();
+        assertEquals(0, _selector.select(10*1000));
+        assertTrue(System.currentTimeMillis() - start < 5*1000);
+
+        Thread t = new Thread() {
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                _selector.wakeup();
+            }
+        };
+        t.start();
+        start = System.currentTimeMillis();
+        assertEquals(0, _selector.select());
+        assertTrue(System.currentTimeMillis() - start < 5*1000);
+        t.join();
+    }
+
+    @Test
+    public void testCancel() throws IOException {
+        TestChannel chan = new TestChannel();
+        chan.setReady(SelectionKey.OP_READ);
+        SelectionKey key = chan.register(_selector, SelectionKey.OP_READ);
+        assertEquals(1, _selector.selectNow());
+        key.cancel();
+        assertFalse(key.isValid());
+        assertEquals(0, _selector.selectNow());
+        assertTrue(_selector.selectedKeys().isEmpty());
+        assertTrue(_selector.keys().isEmpty());
+        assertFalse(chan.isRegistered());
+        assertEquals(0, chan.getKeyCount());
+
+        // register again after cancel
+        key = chan.register(_selector, SelectionKey.OP_READ);
+        assertEquals(1, _selector.selectNow());
+        chan.close();
+        assertFalse(key.isValid());
+        assertEquals(0, _selector.selectNow());
+        assertTrue(_selector.keys().isEmpty());
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        TestChannel chan = new TestChannel();
+        SelectionKey key = chan.register(_selector, SelectionKey.OP_READ);
+        _selector.close();
+        assertFalse(key.isValid());
+        assertFalse(chan.isRegistered());
+        assertTrue(chan.isOpen());
+    }
+
+    /**
+     *  Readiness set by the test
+     */
+    private static class TestChannel extends AbstractSelectableChannel implements I2PSelectableChannel {
+        private final ChannelKeys _keys = new ChannelKeys();
+        private volatile int _ready;
+        private int _keyCount;
+
+        public TestChannel() throws IOException {
+            super(I2PSelectorProvider.getInstance());
+            configureBlocking(false);
+        }
+
+        public void setReady(int ops) {
+            _ready = ops;
+            _keys.notifyReady();
+        }
+
+        public int validOps() {
+            return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        }
+
+        public int getReadyOps() {
+            return _ready;
+        }
+
+        public synchronized void keyRegistered(I2PSelectionKey key) {
+            _keys.add(key);
+            _keyCount++;
+        }
+
+        public synchronized void keyDeregistered(I2PSelectionKey key) {
+            _keys.remove(key);
+            _keyCount--;
+        }
+
+        public synchronized int getKeyCount() {
+            return _keyCount;
+        }
+
+        protected void implConfigureBlocking(boolean block) {}
+
+        protected void implCloseSelectableChannel() {}
+    }
+}
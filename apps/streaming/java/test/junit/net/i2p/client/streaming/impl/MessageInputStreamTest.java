@@ -5,8 +5,10 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -374,4 +376,96 @@ public class MessageInputStreamTest {
 
         _log.info("Passed test: staggered");
     }
+
+    @Test
+    public void testReadByteBuffer() throws IOException {
+        byte orig[] = new byte[256*1024];
+        _context.random().nextBytes(orig);
+
+        ArrayList<Integer> order = new ArrayList<Integer>(32);
+        for (int i = 0; i < orig.length / 1024; i++)
+            order.add(new Integer(i));
+        Collections.shuffle(order);
+        for (int i = 0; i < orig.length / 1024; i++) {
+            byte msg[] = new byte[1024];
+            Integer cur = (Integer)order.get(i);
+            System.arraycopy(orig, cur.intValue()*1024, msg, 0, 1024);
+            in.messageReceived(cur.intValue(), new ByteArray(msg));
+        }
+        in.closeReceived();
+
+        ByteBuffer read = ByteBuffer.allocate(orig.length + 1);
+        int curRead;
+        do {
+            // odd size so the reads don't line up with the messages
+            read.limit(Math.min(read.position() + 999, read.capacity()));
+            curRead = in.read(read);
+        } while (curRead != -1);
+        assertThat(read.position(), is(orig.length));
+        assertTrue(DataHelper.eq(orig, 0, read.array(), 0, orig.length));
+    }
+
+    /**
+     *  Interleave writes and reads so the ready data wraps around the buffer
+     */
+    @Test
+    public void testReadByteBuffer_wrap() throws IOException {
+        byte orig[] = new byte[256*1024];
+        _context.random().nextBytes(orig);
+        ByteBuffer read = ByteBuffer.allocateDirect(orig.length);
+
+        for (int i = 0; i < orig.length / 1024; i++) {
+            byte msg[] = new byte[1024];
+            System.arraycopy(orig, i*1024, msg, 0, 1024);
+            in.messageReceived(i, new ByteArray(msg));
+            if ((i % 3) == 2) {
+                read.limit(read.position() + 2500);
+                assertThat(in.read(read), is(2500));
+            }
+        }
+        read.limit(read.capacity());
+        while (in.available() > 0) {
+            in.read(read);
+        }
+        assertThat(read.position(), is(orig.length));
+        byte rv[] = new byte[orig.length];
+        read.flip();
+        read.get(rv);
+        assertTrue(DataHelper.eq(orig, rv));
+    }
+
+    @Test
+    public void testReadByteBuffer_timeoutAndEOF() throws IOException {
+        ByteBuffer read = ByteBuffer.allocate(16);
+        in.setReadTimeout(0);
+        assertThat(in.read(read), is(0));
+        in.setReadTimeout(10);
+        assertThat(in.read(read), is(0));
+        in.messageReceived(0, new ByteArray(new byte[] { 1, 2, 3 }));
+        assertThat(in.read(read), is(3));
+        in.closeReceived();
+        assertThat(in.read(read), is(-1));
+    }
+
+    @Test
+    public void testReadyListener() throws IOException {
+        final AtomicInteger ready = new AtomicInteger();
+        in.setReadyListener(new Runnable() {
+            public void run() { ready.incrementAndGet(); }
+        });
+        int notified = ready.get();
+        byte[] read = new byte[16];
+        // read timeout is still -1, but we must not block
+        assertThat(in.read(read), is(0));
+        // out of order, nothing ready yet
+        in.messageReceived(1, new ByteArray(new byte[] { 4, 5 }));
+        assertThat(ready.get(), is(notified));
+        in.messageReceived(0, new ByteArray(new byte[] { 1, 2, 3 }));
+        assertThat(ready.get(), is(notified + 1));
+        assertThat(in.read(read), is(5));
+        assertThat(in.read(read), is(0));
+        in.closeReceived();
+        assertThat(ready.get(), is(notified + 2));
+        assertThat(in.read(read), is(-1));
+    }
 }
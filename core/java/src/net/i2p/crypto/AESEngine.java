@@ -165,6 +165,84 @@ public class AESEngine {
         _log.logAlways(Log.WARN, "AES is disabled");
     }
 
+    /**
+     * Apply one layer of tunnel encryption, in place, to each of several
+     * messages using the same keys, as done by a tunnel participant.
+     * For each message, the 16 byte IV is encrypted with ivKey,
+     * the rest of the message is CBC encrypted with layerKey using that IV,
+     * and the IV is encrypted with ivKey again.
+     *
+     * @param data the messages, each with the IV at offsets[i]
+     * @param offsets where each message (i.e. its IV) starts
+     * @param count how many messages to process
+     * @param length length of each message including the IV, must be a multiple of 16
+     * @since 0.9.28
+     */
+    public void encryptTunnel(byte data[][], int offsets[], int count, int length, SessionKey layerKey, SessionKey ivKey) {
+        for (int i = 0; i < count; i++) {
+            encryptTunnel(data[i], offsets[i], length, layerKey, ivKey);
+        }
+    }
+
+    /**
+     * Apply one layer of tunnel encryption, in place, to a single message.
+     * Same as encryptTunnel(byte[][], ...) with a count of 1.
+     *
+     * @param data the message with the IV at offset
+     * @param offset where the message (i.e. its IV) starts
+     * @param length length of the message including the IV, must be a multiple of 16
+     * @since 0.9.28
+     */
+    public void encryptTunnel(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        encryptBlock(data, offset, ivKey, data, offset);
+        int end = offset + length;
+        for (int b = offset + 16; b < end; b += 16) {
+            for (int j = 0; j < 16; j++) {
+                data[b + j] ^= data[(b - 16) + j];
+            }
+            encryptBlock(data, b, layerKey, data, b);
+        }
+        encryptBlock(data, offset, ivKey, data, offset);
+    }
+
+    /**
+     * Remove one layer of tunnel encryption, in place, from each of several
+     * messages using the same keys, as done by an outbound gateway or inbound endpoint.
+     * This is the inverse of encryptTunnel().
+     *
+     * @param data the messages, each with the IV at offsets[i]
+     * @param offsets where each message (i.e. its IV) starts
+     * @param count how many messages to process
+     * @param length length of each message including the IV, must be a multiple of 16
+     * @since 0.9.28
+     */
+    public void decryptTunnel(byte data[][], int offsets[], int count, int length, SessionKey layerKey, SessionKey ivKey) {
+        for (int i = 0; i < count; i++) {
+            decryptTunnel(data[i], offsets[i], length, layerKey, ivKey);
+        }
+    }
+
+    /**
+     * Remove one layer of tunnel encryption, in place, from a single message.
+     * Same as decryptTunnel(byte[][], ...) with a count of 1.
+     *
+     * @param data the message with the IV at offset
+     * @param offset where the message (i.e. its IV) starts
+     * @param length length of the message including the IV, must be a multiple of 16
+     * @since 0.9.28
+     */
+    public void decryptTunnel(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        decryptBlock(data, offset, ivKey, data, offset);
+        // back to front, so the previous ciphertext block is still there to xor with
+        for (int b = offset + length - 16; b > offset; b -= 16) {
+            decryptBlock(data, b, layerKey, data, b);
+            for (int j = 0; j < 16; j++) {
+                data[b + j] ^= data[(b - 16) + j];
+            }
+        }
+        decryptBlock(data, offset, ivKey, data, offset);
+    }
+
     /**
      * This just copies payload to out, see extension for the real thing.
      *   @param sessionKey unused
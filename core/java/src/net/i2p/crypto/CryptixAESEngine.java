@@ -64,6 +64,18 @@ public final class CryptixAESEngine extends AESEngine {
         }
     }
 
+    /**
+     *  Use the JVM's AES for the CBC part of encryptTunnel() and decryptTunnel()?
+     *  "true", "false", or "auto" (default) to decide by a short benchmark
+     *  the first time it's needed.
+     *  @since 0.9.28
+     */
+    public static final String PROP_SYSTEM_TUNNEL_AES = "crypto.aes.systemTunnel";
+    /** 1 KB tunnel messages per benchmark round */
+    private static final int BENCH_RUNS = 250;
+    /** null until decided */
+    private volatile Boolean _systemTunnelAES;
+
     /** */
     public CryptixAESEngine(I2PAppContext context) {
         super(context);
@@ -248,6 +260,131 @@ public final class CryptixAESEngine extends AESEngine {
         CryptixRijndael_Algorithm.blockDecrypt(payload, rv, inIndex, outIndex, sessionKey.getPreparedKey());
     }
     
+    /**
+     *  Same as AESEngine, but uses the JVM's AES for the CBC part if it's faster.
+     *  The batch versions in AESEngine call this for each message.
+     *
+     *  @since 0.9.28
+     */
+    @Override
+    public void encryptTunnel(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        if (!useSystemTunnelAES() || !systemTunnel(true, data, offset, length, layerKey, ivKey))
+            super.encryptTunnel(data, offset, length, layerKey, ivKey);
+    }
+
+    /**
+     *  Same as AESEngine, but uses the JVM's AES for the CBC part if it's faster.
+     *  The batch versions in AESEngine call this for each message.
+     *
+     *  @since 0.9.28
+     */
+    @Override
+    public void decryptTunnel(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        if (!useSystemTunnelAES() || !systemTunnel(false, data, offset, length, layerKey, ivKey))
+            super.decryptTunnel(data, offset, length, layerKey, ivKey);
+    }
+
+    /**
+     *  The IV layers with Cryptix, the CBC layer with the JVM's AES.
+     *  The message is either completely processed or untouched.
+     *
+     *  On failure, disables the JVM's AES for tunnels.
+     *
+     *  @return success
+     *  @since 0.9.28
+     */
+    private boolean systemTunnel(boolean encrypt, byte d[], int off, int length,
+                                 SessionKey layerKey, SessionKey ivKey) {
+        int mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        byte[] iv = SimpleByteCache.acquire(16);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            SecretKeySpec key = new SecretKeySpec(layerKey.getData(), "AES");
+            if (encrypt)
+                encryptBlock(d, off, ivKey, iv, 0);
+            else
+                decryptBlock(d, off, ivKey, iv, 0);
+            cipher.init(mode, key, new IvParameterSpec(iv));
+            cipher.doFinal(d, off + 16, length - 16, d, off + 16);
+            if (encrypt)
+                encryptBlock(iv, 0, ivKey, d, off);
+            else
+                decryptBlock(iv, 0, ivKey, d, off);
+            return true;
+        } catch (GeneralSecurityException gse) {
+            _systemTunnelAES = Boolean.FALSE;
+            _log.logAlways(Log.WARN, "System AES failed, using Cryptix for tunnels: " + gse);
+            return false;
+        } finally {
+            SimpleByteCache.release(iv);
+        }
+    }
+
+    /**
+     *  Decide once whether the JVM's AES is faster than Cryptix
+     *  for 1 KB tunnel messages. AES-NI is not required, we just measure it.
+     *
+     *  @since 0.9.28
+     */
+    private boolean useSystemTunnelAES() {
+        Boolean rv = _systemTunnelAES;
+        if (rv == null) {
+            synchronized (this) {
+                rv = _systemTunnelAES;
+                if (rv == null) {
+                    rv = Boolean.valueOf(chooseSystemTunnelAES());
+                    _systemTunnelAES = rv;
+                }
+            }
+        }
+        return rv.booleanValue();
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private boolean chooseSystemTunnelAES() {
+        String prop = _context.getProperty(PROP_SYSTEM_TUNNEL_AES, "auto");
+        if (prop.equals("false"))
+            return false;
+        // tunnel keys are AES-256; see test results below for Apache and GNU
+        if (!CryptoCheck.isUnlimited() || SystemVersion.isApache() || SystemVersion.isGNU())
+            return false;
+        if (prop.equals("true"))
+            return true;
+        byte[] kd = new byte[SessionKey.KEYSIZE_BYTES];
+        _context.random().nextBytes(kd);
+        SessionKey layerKey = new SessionKey(kd);
+        kd = new byte[SessionKey.KEYSIZE_BYTES];
+        _context.random().nextBytes(kd);
+        SessionKey ivKey = new SessionKey(kd);
+        byte[] data = new byte[1024];
+        long cryptix = 0;
+        long system = 0;
+        // first round is warmup
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCH_RUNS; i++) {
+                super.encryptTunnel(data, 0, 1024, layerKey, ivKey);
+            }
+            long mid = System.nanoTime();
+            for (int i = 0; i < BENCH_RUNS; i++) {
+                if (!systemTunnel(true, data, 0, 1024, layerKey, ivKey))
+                    return false;
+            }
+            if (round > 0) {
+                cryptix += mid - start;
+                system += System.nanoTime() - mid;
+            }
+        }
+        // some margin, Cryptix is the known quantity
+        boolean rv = system < cryptix * 9 / 10;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Tunnel AES benchmark: Cryptix " + (cryptix / 1000) + "us, System " + (system / 1000) +
+                      "us, using " + (rv ? "System" : "Cryptix"));
+        return rv;
+    }
+
 /******
     private static final int MATCH_RUNS = 11000;
     private static final int TIMING_RUNS = 100000;
@@ -83,6 +83,37 @@ public final class ElGamalAESEngine {
      * @return decrypted data or null on failure
      */
     public byte[] decrypt(byte data[], PrivateKey targetPrivateKey, SessionKeyManager keyManager) throws DataFormatException {
+        SessionKey key = consumeTag(data, keyManager);
+        return decrypt(data, targetPrivateKey, keyManager, key);
+    }
+
+    /**
+     * Look up and consume the session tag at the start of the data.
+     * This is cheap, so that the caller may decide where to run
+     * decrypt(data, key, keyManager, rv), which is expensive if rv is null.
+     *
+     * @return the session key for the tag, or null if the tag is not known
+     *         (or the data is too short) and the message must be decrypted as a new session
+     * @since 0.9.28
+     */
+    public SessionKey consumeTag(byte data[], SessionKeyManager keyManager) {
+        if (data == null || data.length < MIN_ENCRYPTED_SIZE)
+            return null;
+        byte tag[] = new byte[32];
+        System.arraycopy(data, 0, tag, 0, 32);
+        return keyManager.consumeTag(new SessionTag(tag));
+    }
+
+    /**
+     * Decrypt the message with a session key already returned by consumeTag(),
+     * or as a new session with ElGamal if the key is null.
+     *
+     * @param key from consumeTag(), may be null
+     * @return decrypted data or null on failure
+     * @since 0.9.28
+     */
+    public byte[] decrypt(byte data[], PrivateKey targetPrivateKey, SessionKeyManager keyManager,
+                          SessionKey key) throws DataFormatException {
         if (data == null) {
             if (_log.shouldLog(Log.ERROR)) _log.error("Null data being decrypted?");
             return null;
@@ -95,7 +126,6 @@ public final class ElGamalAESEngine {
         byte tag[] = new byte[32];
         System.arraycopy(data, 0, tag, 0, 32);
         SessionTag st = new SessionTag(tag);
-        SessionKey key = keyManager.consumeTag(st);
         SessionKey foundKey = new SessionKey();
         SessionKey usedKey = new SessionKey();
         Set<SessionTag> foundTags = new HashSet<SessionTag>();
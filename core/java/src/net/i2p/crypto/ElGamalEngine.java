@@ -99,6 +99,16 @@ public final class ElGamalEngine {
         return _ykgen.getNextYK();
     }
 
+    /**
+     *  The precalculated (g**k mod p, k) values, also used for DH by the router.
+     *  For internal use only.
+     *
+     *  @since 0.9.28
+     */
+    public YKGenerator getYKGenerator() {
+        return _ykgen;
+    }
+
     /** encrypt the data to the public key
      * @return encrypted data, will be exactly 514 bytes long
      *         Contains the two-part encrypted data starting at bytes 0 and 257.
@@ -11,6 +11,8 @@ package net.i2p.crypto;
 
 import java.math.BigInteger;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
 import net.i2p.util.I2PThread;
@@ -20,40 +22,69 @@ import net.i2p.util.SystemVersion;
 /**
  * Precalculate the Y and K for ElGamal encryption operations.
  *
- * This class precalcs a set of values on its own thread, using those transparently
- * when a new instance is created.  By default, the minimum threshold for creating 
- * new values for the pool is 20, and the max pool size is 50.  Whenever the pool has
- * less than the minimum, it fills it up again to the max.  There is a delay after 
- * each precalculation so that the CPU isn't hosed during startup.
- * These three parameters are controlled by java environmental variables and 
+ * This class precalcs a set of values on its own threads, using those transparently
+ * when a new instance is created.  By default, the minimum pool size is 20,
+ * and the max pool size is 100, scaled up by available memory.
+ * Between those, the pool is kept filled to about 10 seconds of recent use,
+ * and a pool miss raises that target right away.
+ * There is a delay after each precalculation so that the CPU isn't hosed during startup.
+ * These parameters are controlled by java environmental variables and 
  * can be adjusted via:
  *  -Dcrypto.yk.precalc.min=40 -Dcrypto.yk.precalc.max=100 -Dcrypto.yk.precalc.delay=60000
+ *  -Dcrypto.yk.precalc.threads=2
  *
  * (delay is milliseconds)
  *
  * To disable precalculation, set min to 0
  *
+ * As of 0.9.28, this is public and also the source of the
+ * DH values for the transports, as (g**x mod p, x) is the same calculation.
+ * Get it with I2PAppContext.elGamalEngine().getYKGenerator().
+ * Each value is handed out only once.
+ *
+ * The values are secrets and are never saved to disk.
+ *
  * @author jrandom
  */
-final class YKGenerator {
+public final class YKGenerator {
     //private final static Log _log = new Log(YKGenerator.class);
     private final int MIN_NUM_BUILDERS;
     private final int MAX_NUM_BUILDERS;
     private final int CALC_DELAY;
+    private final int _numThreads;
     private final LinkedBlockingQueue<BigInteger[]> _values;
-    private Thread _precalcThread;
+    private Thread[] _precalcThreads;
     private final I2PAppContext ctx;
     private volatile boolean _isRunning;
+    /** current fill target, between min and max */
+    private volatile int _target;
+    /** taken since the last adjustment */
+    private final AtomicInteger _used = new AtomicInteger();
+    private long _lastAdjust;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final Object _fillLock = new Object();
 
     public final static String PROP_YK_PRECALC_MIN = "crypto.yk.precalc.min";
     public final static String PROP_YK_PRECALC_MAX = "crypto.yk.precalc.max";
     public final static String PROP_YK_PRECALC_DELAY = "crypto.yk.precalc.delay";
+    /** @since 0.9.28 */
+    public final static String PROP_YK_PRECALC_THREADS = "crypto.yk.precalc.threads";
     public final static int DEFAULT_YK_PRECALC_MIN = 20;
-    public final static int DEFAULT_YK_PRECALC_MAX = 50;
-    public final static int DEFAULT_YK_PRECALC_DELAY = 200;
+    /** 50 before 0.9.28, now shared with DH */
+    public final static int DEFAULT_YK_PRECALC_MAX = 100;
+    /** 200 before 0.9.28, now with multiple low-priority threads */
+    public final static int DEFAULT_YK_PRECALC_DELAY = 25;
+    private final static int MAX_THREADS = 4;
+    /** how often to adjust the target */
+    private final static long ADJUST_INTERVAL = 10*1000;
+    /** how many seconds of use to keep in the pool */
+    private final static int TARGET_SECONDS = 10;
+    /** check this often when full */
+    private final static long CHECK_DELAY = 30*1000;
 
     /**
-     *  Caller must also call start() to start the background precalc thread.
+     *  Caller must also call start() to start the background precalc threads.
      *  Unit tests will still work without calling start().
      */
     public YKGenerator(I2PAppContext context) {
@@ -65,10 +96,14 @@ final class YKGenerator {
         int defaultMin = DEFAULT_YK_PRECALC_MIN * factor;
         int defaultMax = DEFAULT_YK_PRECALC_MAX * factor;
         MIN_NUM_BUILDERS = ctx.getProperty(PROP_YK_PRECALC_MIN, defaultMin);
-        MAX_NUM_BUILDERS = ctx.getProperty(PROP_YK_PRECALC_MAX, defaultMax);
+        MAX_NUM_BUILDERS = Math.max(MIN_NUM_BUILDERS, ctx.getProperty(PROP_YK_PRECALC_MAX, defaultMax));
 
         CALC_DELAY = ctx.getProperty(PROP_YK_PRECALC_DELAY, DEFAULT_YK_PRECALC_DELAY);
-        _values = new LinkedBlockingQueue<BigInteger[]>(MAX_NUM_BUILDERS);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int defaultThreads = Math.max(1, Math.min(MAX_THREADS, cores / 2));
+        _numThreads = Math.max(1, ctx.getProperty(PROP_YK_PRECALC_THREADS, defaultThreads));
+        _values = new LinkedBlockingQueue<BigInteger[]>(Math.max(1, MAX_NUM_BUILDERS));
+        _target = MIN_NUM_BUILDERS;
 
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("ElGamal YK Precalc (minimum: " + MIN_NUM_BUILDERS + " max: " + MAX_NUM_BUILDERS + ", delay: "
@@ -76,10 +111,11 @@ final class YKGenerator {
 
         ctx.statManager().createRateStat("crypto.YKUsed", "Need a YK from the queue", "Encryption", new long[] { 60*60*1000 });
         ctx.statManager().createRateStat("crypto.YKEmpty", "YK queue empty", "Encryption", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("crypto.YKTarget", "YK queue fill target", "Encryption", new long[] { 60*60*1000 });
     }
 
     /**
-     *  Start the background precalc thread.
+     *  Start the background precalc threads.
      *  Must be called for normal operation.
      *  If not called, all generation happens in the foreground.
      *  Not required for unit tests.
@@ -87,17 +123,23 @@ final class YKGenerator {
      *  @since 0.9.14
      */
     public synchronized void start() {
-        if (_isRunning)
+        if (_isRunning || MIN_NUM_BUILDERS <= 0)
             return;
-        _precalcThread = new I2PThread(new YKPrecalcRunner(MIN_NUM_BUILDERS, MAX_NUM_BUILDERS),
-                                       "YK Precalc", true);
-        _precalcThread.setPriority(Thread.NORM_PRIORITY - 2);
         _isRunning = true;
-        _precalcThread.start();
+        _lastAdjust = System.currentTimeMillis();
+        _precalcThreads = new Thread[_numThreads];
+        for (int i = 0; i < _numThreads; i++) {
+            Thread t = new I2PThread(new YKPrecalcRunner(),
+                                     "YK Precalc " + (i + 1) + '/' + _numThreads, true);
+            // only use idle cores
+            t.setPriority(Thread.MIN_PRIORITY);
+            _precalcThreads[i] = t;
+            t.start();
+        }
     }
 
     /**
-     *  Stop the background precalc thread.
+     *  Stop the background precalc threads.
      *  Can be restarted.
      *  Not required for unit tests.
      *
@@ -105,30 +147,110 @@ final class YKGenerator {
      */
     public synchronized void shutdown() {
         _isRunning = false;
-        if (_precalcThread != null)
-            _precalcThread.interrupt();
+        if (_precalcThreads != null) {
+            for (int i = 0; i < _precalcThreads.length; i++) {
+                _precalcThreads[i].interrupt();
+            }
+            _precalcThreads = null;
+        }
         _values.clear();
     }
 
-    private final int getSize() {
+    /**
+     *  @return the number of precalculated values available
+     *  @since 0.9.28 public
+     */
+    public int getSize() {
         return _values.size();
     }
 
+    /**
+     *  @return the current fill target
+     *  @since 0.9.28
+     */
+    public int getTarget() {
+        return _target;
+    }
+
+    /**
+     *  @return values taken from the pool since startup
+     *  @since 0.9.28
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     *  @return values calculated in the foreground because the pool was empty, since startup
+     *  @since 0.9.28
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
     /** @return true if successful, false if full */
     private final boolean addValues(BigInteger yk[]) {
         return _values.offer(yk);
     }
 
-    /** @return rv[0] = Y; rv[1] = K */
+    /**
+     *  From the pool if available, else calculated now.
+     *  Never returns the same value twice.
+     *
+     *  @return rv[0] = Y; rv[1] = K
+     *  @since 0.9.28 public
+     */
     public BigInteger[] getNextYK() {
         ctx.statManager().addRateData("crypto.YKUsed", 1);
+        _used.incrementAndGet();
         BigInteger[] rv = _values.poll();
-        if (rv != null)
+        if (rv != null) {
+            _hits.incrementAndGet();
+            if (_isRunning && _values.size() < _target / 2)
+                wakeup();
             return rv;
+        }
+        _misses.incrementAndGet();
         ctx.statManager().addRateData("crypto.YKEmpty", 1);
+        if (_isRunning) {
+            // don't wait for the next adjustment
+            int target = _target;
+            if (target < MAX_NUM_BUILDERS)
+                _target = Math.min(MAX_NUM_BUILDERS, Math.max(target + 1, target * 3 / 2));
+            wakeup();
+        }
         return generateYK();
     }
 
+    /**
+     *  Wake up the precalc threads
+     *  @since 0.9.28
+     */
+    private void wakeup() {
+        synchronized(_fillLock) {
+            _fillLock.notifyAll();
+        }
+    }
+
+    /**
+     *  Move the target toward TARGET_SECONDS of recent use,
+     *  at most once every ADJUST_INTERVAL.
+     *  @since 0.9.28
+     */
+    private synchronized void adjustTarget() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - _lastAdjust;
+        if (elapsed < ADJUST_INTERVAL && elapsed >= 0)
+            return;
+        _lastAdjust = now;
+        int used = _used.getAndSet(0);
+        long want = used * TARGET_SECONDS * 1000L / Math.max(1000, elapsed);
+        int target = (int) ((_target + want) / 2);
+        target = Math.max(MIN_NUM_BUILDERS, Math.min(MAX_NUM_BUILDERS, target));
+        _target = target;
+        ctx.statManager().addRateData("crypto.YKTarget", target);
+    }
+
     private final static BigInteger _two = new NativeBigInteger(1, new byte[] { 0x02});
 
     /** @return rv[0] = Y; rv[1] = K */
@@ -181,57 +303,33 @@ final class YKGenerator {
     }
 ****/
 
-    /** the thread */
+    /** the threads */
     private class YKPrecalcRunner implements Runnable {
-        private final int _minSize;
-        private final int _maxSize;
-
-        /** check every 30 seconds whether we have less than the minimum */
-        private long _checkDelay = 30 * 1000;
-
-        private YKPrecalcRunner(int minSize, int maxSize) {
-            _minSize = minSize;
-            _maxSize = maxSize;
-        }
 
         public void run() {
             while (_isRunning) {
-                //long start = Clock.getInstance().now();
-                int startSize = getSize();
-                // Adjust delay
-                if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                    _checkDelay -= 1000;
-                else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                    _checkDelay += 1000;
-                if (startSize < _minSize) {
-                    // fill all the way up, do the check here so we don't
+                adjustTarget();
+                if (getSize() < _target) {
+                    // do the check here so we don't
                     // throw away one when full in addValues()
-                    while (getSize() < _maxSize && _isRunning) {
-                        //long begin = Clock.getInstance().now();
-                        if (!addValues(generateYK()))
-                            break;
-                        //long end = Clock.getInstance().now();
-                        //if (_log.shouldLog(Log.DEBUG)) _log.debug("Precalculated YK value in " + (end - begin) + "ms");
-                        // for some relief...
+                    addValues(generateYK());
+                    // for some relief...
+                    if (CALC_DELAY > 0) {
                         try {
                             Thread.sleep(CALC_DELAY);
                         } catch (InterruptedException ie) { // nop
                         }
                     }
+                    continue;
                 }
-                //long end = Clock.getInstance().now();
-                //int numCalc = curSize - startSize;
-                //if (numCalc > 0) {
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("Precalced " + numCalc + " to " + curSize + " in "
-                //                   + (end - start - CALC_DELAY * numCalc) + "ms (not counting "
-                //                   + (CALC_DELAY * numCalc) + "ms relief).  now sleeping");
-                //}
-                if (!_isRunning)
-                    break;
-                try {
-                    Thread.sleep(_checkDelay);
-                } catch (InterruptedException ie) { // nop
+                synchronized(_fillLock) {
+                    // check again with the lock held so we don't miss a wakeup()
+                    if (_isRunning && getSize() >= _target) {
+                        try {
+                            _fillLock.wait(CHECK_DELAY);
+                        } catch (InterruptedException ie) { // nop
+                        }
+                    }
                 }
             }
         }
@@ -8,23 +8,17 @@ package net.i2p.kademlia;
  *
  */
 
-import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.data.SimpleDataStructure;
-import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 
 /**
@@ -44,23 +38,31 @@ public class KBucketSet<T extends SimpleDataStructure> {
     private final T _us;
 
     /**
-     * The bucket list is locked by _bucketsLock, however the individual
-     * buckets are not locked. Users may see buckets that have more than
-     * the maximum k entries, or may have adds and removes silently fail
-     * when they appear to succeed.
+     * Copy-on-write as of 0.9.28. The list is never modified after it is published,
+     * a split publishes a new list. Readers just take the current one, no locking.
+     * The individual buckets are not locked. Users may see buckets that have more than
+     * the maximum k entries.
      *
      * Closest values are in bucket 0, furthest are in the last bucket.
      */
-    private final List<KBucket<T>> _buckets;
+    private volatile List<KBucket<T>> _buckets;
     private final Range<T> _rangeCalc;
     private final KBucketTrimmer<T> _trimmer;
     
     /**
-     *  Locked for reading only when traversing all the buckets.
-     *  Locked for writing only when splitting a bucket.
-     *  Adds/removes/gets from individual buckets are not locked.
+     *  Held while splitting. Only one split at a time.
+     *  @since 0.9.28, replaces the read/write lock
      */
-    private final ReentrantReadWriteLock _bucketsLock = new ReentrantReadWriteLock(false);
+    private final Object _splitLock = new Object();
+
+    /**
+     *  Incremented before and after each split, so it's odd during a split.
+     *  Adds and removes that overlap a split are retried on the new buckets,
+     *  so they don't get lost in the discarded bucket.
+     *  Only written while holding _splitLock.
+     *  @since 0.9.28
+     */
+    private volatile int _splitSeq;
 
     private final int KEYSIZE_BITS;
     private final int NUM_BUCKETS;
@@ -101,35 +103,19 @@ public class KBucketSet<T extends SimpleDataStructure> {
         makeKey(new byte[us.length()]);
     }
     
-    private void getReadLock() {
-        _bucketsLock.readLock().lock();
-    }
-
     /**
-     *  Get the lock if we can. Non-blocking.
-     *  @return true if the lock was acquired
+     *  Wait for any split in progress to finish.
+     *  Splits are short, so just spin.
+     *
+     *  @return the current split sequence, even
+     *  @since 0.9.28
      */
-    private boolean tryReadLock() {
-        return _bucketsLock.readLock().tryLock();
-    }
-
-    private void releaseReadLock() {
-        _bucketsLock.readLock().unlock();
-    }
-
-    /** @return true if the lock was acquired */
-    private boolean getWriteLock() {
-        try {
-            boolean rv = _bucketsLock.writeLock().tryLock(3000, TimeUnit.MILLISECONDS);
-            if ((!rv) && _log.shouldLog(Log.WARN))
-                _log.warn("no lock, size is: " + _bucketsLock.getQueueLength(), new Exception("rats"));
-            return rv;
-        } catch (InterruptedException ie) {}
-        return false;
-    }
-
-    private void releaseWriteLock() {
-        _bucketsLock.writeLock().unlock();
+    private int waitForSplit() {
+        int rv;
+        while (((rv = _splitSeq) & 1) != 0) {
+            Thread.yield();
+        }
+        return rv;
     }
 
     /**
@@ -139,12 +125,20 @@ public class KBucketSet<T extends SimpleDataStructure> {
      */
     public boolean add(T peer) {
         KBucket<T> bucket;
-        getReadLock();
-        try {
-            bucket = getBucket(peer);
-        } finally { releaseReadLock(); }
+        boolean added = false;
+        while (true) {
+            int seq = waitForSplit();
+            bucket = getBucket(_buckets, peer);
+            if (bucket == null)
+                break;
+            if (bucket.add(peer))
+                added = true;
+            // retry if it may have gone into a bucket that was split
+            if (seq == _splitSeq)
+                break;
+        }
         if (bucket != null) {
-            if (bucket.add(peer)) {
+            if (added) {
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Peer " + peer + " added to bucket " + bucket);
                 if (shouldSplit(bucket)) {
@@ -178,30 +172,36 @@ public class KBucketSet<T extends SimpleDataStructure> {
     }
 
     /**
-     *  Grabs the write lock.
-     *  Caller must NOT have the read lock.
+     *  Grabs the split lock.
      *  The bucket should be splittable (range start != range end).
      *  @param r the range start of the bucket to be split
      */
     private void split(int r) {
-        if (!getWriteLock())
-            return;
-        try {
-            locked_split(r);
-        } finally { releaseWriteLock(); }
+        synchronized (_splitLock) {
+            _splitSeq++;
+            try {
+                locked_split(r);
+            } finally {
+                _splitSeq++;
+            }
+        }
     }
 
     /**
      *  Creates two or more new buckets. The old bucket is replaced and discarded.
+     *  The new bucket list is published at the end.
      *
-     *  Caller must hold write lock
+     *  Caller must hold split lock
      *  The bucket should be splittable (range start != range end).
      *  @param r the range start of the bucket to be split
      */
     private void locked_split(int r) {
-        int b = pickBucket(r);
-        while (shouldSplit(_buckets.get(b))) {
-            KBucket<T> b0 = _buckets.get(b);
+        List<KBucket<T>> buckets = new ArrayList<KBucket<T>>(_buckets);
+        int b = pickBucket(buckets, r);
+        if (b < 0)
+            return;
+        while (shouldSplit(buckets.get(b))) {
+            KBucket<T> b0 = buckets.get(b);
             // Each bucket gets half the keyspace.
             // When B_VALUE = 1, or the bucket is larger than B_FACTOR, then
             // e.g. 0-159 => 0-158, 159-159
@@ -237,8 +237,8 @@ public class KBucketSet<T extends SimpleDataStructure> {
                 else
                     b2.add(key);
             }
-            _buckets.set(b, b1);
-            _buckets.add(b + 1, b2);
+            buckets.set(b, b1);
+            buckets.add(b + 1, b2);
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Split bucket at idx " + b +
                            ":\n" + b0 +
@@ -255,6 +255,7 @@ public class KBucketSet<T extends SimpleDataStructure> {
             }
             // loop if all the entries went in the first bucket
         }
+        _buckets = buckets;
     }
 
     /**
@@ -262,36 +263,33 @@ public class KBucketSet<T extends SimpleDataStructure> {
      */
     public int size() {
         int rv = 0;
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                rv += b.getKeyCount();
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            rv += b.getKeyCount();
+        }
         return rv;
     }
     
     public boolean remove(T entry) {
-        KBucket<T> kbucket;
-        getReadLock();
-        try {
-            kbucket = getBucket(entry);
-        } finally { releaseReadLock(); }
-        if (kbucket == null)  // us
-            return false;
-        boolean removed = kbucket.remove(entry);
+        boolean removed = false;
+        while (true) {
+            int seq = waitForSplit();
+            KBucket<T> kbucket = getBucket(_buckets, entry);
+            if (kbucket == null)  // us
+                return false;
+            if (kbucket.remove(entry))
+                removed = true;
+            // retry if it may have been copied to a new bucket by a split
+            if (seq == _splitSeq)
+                break;
+        }
         return removed;
     }
     
     /** @since 0.8.8 */
     public void clear() {
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                b.clear();
-            }
-        } finally { releaseReadLock(); }
-        _rangeCalc.clear();
+        for (KBucket<T> b : _buckets) {
+            b.clear();
+        }
     }
     
     /**
@@ -299,12 +297,9 @@ public class KBucketSet<T extends SimpleDataStructure> {
      */
     public Set<T> getAll() {
         Set<T> all = new HashSet<T>(256);
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                all.addAll(b.getEntries());
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            all.addAll(b.getEntries());
+        }
         return all;
     }
 
@@ -318,12 +313,9 @@ public class KBucketSet<T extends SimpleDataStructure> {
     }
     
     public void getAll(SelectionCollector<T> collector) {
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                b.getEntries(collector);
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : _buckets) {
+            b.getEntries(collector);
+        }
     }
     
     /**
@@ -341,30 +333,16 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null, closest first
      */
     public List<T> getClosest(int max, Collection<T> toIgnore) {
-        List<T> rv = new ArrayList<T>(max);
+        if (max <= 0)
+            return new ArrayList<T>(0);
+        List<KBucket<T>> buckets = _buckets;
+        ClosestHeap<T> heap = new ClosestHeap<T>(_us, max);
         int count = 0;
-        getReadLock();
-        try {
-            // start at first (closest) bucket
-            for (int i = 0; i < _buckets.size() && count < max; i++) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                // add the whole bucket except for ignores,
-                // extras will be trimmed after sorting
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
-            }
-        } finally { releaseReadLock(); }
-        Comparator<T> comp = new XORComparator<T>(_us);
-        Collections.sort(rv, comp);
-        int sz = rv.size();
-        for (int i = sz - 1; i >= max; i--) {
-            rv.remove(i);
+        // start at first (closest) bucket
+        for (int i = 0; i < buckets.size() && count < max; i++) {
+            count += heap.offerAll(buckets.get(i).getEntries(), toIgnore);
         }
-        return rv;
+        return heap.toList();
     }
     
     /**
@@ -384,51 +362,33 @@ public class KBucketSet<T extends SimpleDataStructure> {
     public List<T> getClosest(T key, int max, Collection<T> toIgnore) {
         if (key.equals(_us))
             return getClosest(max, toIgnore);
-        List<T> rv = new ArrayList<T>(max);
+        if (max <= 0)
+            return new ArrayList<T>(0);
+        List<KBucket<T>> buckets = _buckets;
+        ClosestHeap<T> heap = new ClosestHeap<T>(key, max);
         int count = 0;
-        getReadLock();
-        try {
-            int start = pickBucket(key);
-            // start at closest bucket, then to the smaller (closer to us) buckets
-            for (int i = start; i >= 0 && count < max; i--) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
-            }
-            // then the farther from us buckets if necessary
-            for (int i = start + 1; i < _buckets.size() && count < max; i++) {
-                Set<T> entries = _buckets.get(i).getEntries();
-                for (T e : entries) {
-                    if (!toIgnore.contains(e)) {
-                        rv.add(e);
-                        count++;
-                    }
-                }
-            }
-        } finally { releaseReadLock(); }
-        Comparator<T> comp = new XORComparator<T>(key);
-        Collections.sort(rv, comp);
-        int sz = rv.size();
-        for (int i = sz - 1; i >= max; i--) {
-            rv.remove(i);
+        int start = pickBucket(buckets, key);
+        // start at closest bucket, then to the smaller (closer to us) buckets
+        for (int i = start; i >= 0 && count < max; i--) {
+            count += heap.offerAll(buckets.get(i).getEntries(), toIgnore);
         }
-        return rv;
+        // then the farther from us buckets if necessary
+        for (int i = start + 1; i < buckets.size() && count < max; i++) {
+            count += heap.offerAll(buckets.get(i).getEntries(), toIgnore);
+        }
+        return heap.toList();
     }
 
     /**
      *  The bucket number (NOT the range number) that the xor of the key goes in
-     *  Caller must hold read lock
+     *  @param buckets the current bucket list
      *  @return 0 to max-1 or -1 for us
      */
-    private int pickBucket(T key) {
+    private int pickBucket(List<KBucket<T>> buckets, T key) {
         int range = getRange(key);
         if (range < 0)
             return -1;
-        int rv = pickBucket(range);
+        int rv = pickBucket(buckets, range);
         if (rv >= 0) {
              return rv;
         }
@@ -453,44 +413,52 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null
      */
     List<KBucket<T>> getBuckets() {
-        getReadLock();
-        try {
-            return new ArrayList<KBucket<T>>(_buckets);
-        } finally { releaseReadLock(); }
+        return new ArrayList<KBucket<T>>(_buckets);
     }
 
     /**
      *  The bucket that the xor of the key goes in
-     *  Caller must hold read lock
+     *  @param buckets the current bucket list
      *  @return null if key is us
      */
-    private KBucket<T> getBucket(T key) {
-       int bucket = pickBucket(key);
+    private KBucket<T> getBucket(List<KBucket<T>> buckets, T key) {
+       int bucket = pickBucket(buckets, key);
        if (bucket < 0)
            return null;
-       return _buckets.get(bucket);
+       return buckets.get(bucket);
     }
     
     /**
      *  The bucket number that contains this range number
-     *  Caller must hold read lock or write lock
+     *  @param buckets the current bucket list, or the one being split
      *  @return 0 to max-1 or -1 for us
      */
-    private int pickBucket(int range) {
+    private int pickBucket(List<KBucket<T>> buckets, int range) {
         // If B is small, a linear search from back to front
         // is most efficient since most of the keys are at the end...
         // If B is larger, there's a lot of sub-buckets
         // of equal size to be checked so a binary search is better
         if (B_VALUE <= 3) {
-            for (int i = _buckets.size() - 1; i >= 0; i--) {
-                KBucket<T> b = _buckets.get(i);
+            for (int i = buckets.size() - 1; i >= 0; i--) {
+                KBucket<T> b = buckets.get(i);
                 if (range >= b.getRangeBegin() && range <= b.getRangeEnd())
                     return i;
             }
             return -1;
         } else {
-            KBucket<T> dummy = new DummyBucket<T>(range);
-            return Collections.binarySearch(_buckets, dummy, new BucketComparator<T>());
+            int lo = 0;
+            int hi = buckets.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                KBucket<T> b = buckets.get(mid);
+                if (range < b.getRangeBegin())
+                    hi = mid - 1;
+                else if (range > b.getRangeEnd())
+                    lo = mid + 1;
+                else
+                    return mid;
+            }
+            return -1;
         }
     }
 
@@ -527,18 +495,16 @@ public class KBucketSet<T extends SimpleDataStructure> {
      *  @return non-null, closest first
      */
     public List<T> getExploreKeys(long age) {
-        List<T> rv = new ArrayList<T>(_buckets.size());
+        List<KBucket<T>> buckets = _buckets;
+        List<T> rv = new ArrayList<T>(buckets.size());
         long old = _context.clock().now() - age;
-        getReadLock();
-        try {
-            for (KBucket<T> b : _buckets) {
-                int curSize = b.getKeyCount();
-                // Always explore the closest bucket
-                if ((b.getRangeBegin() == 0) ||
-                    (b.getLastChanged() < old || curSize < BUCKET_SIZE * 3 / 4))
-                    rv.add(generateRandomKey(b));
-            }
-        } finally { releaseReadLock(); }
+        for (KBucket<T> b : buckets) {
+            int curSize = b.getKeyCount();
+            // Always explore the closest bucket
+            if ((b.getRangeBegin() == 0) ||
+                (b.getLastChanged() < old || curSize < BUCKET_SIZE * 3 / 4))
+                rv.add(generateRandomKey(b));
+        }
         return rv;
     }
     
@@ -658,107 +624,153 @@ public class KBucketSet<T extends SimpleDataStructure> {
         return rv;
     }
 
+    /**
+     *  Lock-free and allocation-free as of 0.9.28,
+     *  was BigInteger math and a synchronized cache.
+     */
     private static class Range<T extends SimpleDataStructure> {
         private final int _bValue;
-        private final BigInteger _bigUs;
-        private final Map<T, Integer> _distanceCache;
+        private final byte[] _us;
 
         public Range(T us, int bValue) {
             _bValue = bValue;
-            _bigUs = new BigInteger(1, us.getData());
-            _distanceCache = new LHMCache<T, Integer>(256);
+            _us = us.getData();
         }
 
         /** @return 0 to max-1 or -1 for us */
         public int getRange(T key) {
-            Integer rv;
-            synchronized (_distanceCache) {
-                rv = _distanceCache.get(key);
-                if (rv == null) {
-                    // easy way when _bValue == 1
-                    //rv = Integer.valueOf(_bigUs.xor(new BigInteger(1, key.getData())).bitLength() - 1);
-                    BigInteger xor = _bigUs.xor(new BigInteger(1, key.getData()));
-                    int range = xor.bitLength() - 1;
-                    if (_bValue > 1) {
-                        int toShift = range + 1 - _bValue;
-                        int highbit = range;
-                        range <<= _bValue - 1;
-                        if (toShift >= 0) {
-                            int extra = xor.clearBit(highbit).shiftRight(toShift).intValue();
-                            range += extra;
-                            //Log log = I2PAppContext.getGlobalContext().logManager().getLog(KBucketSet.class);
-                            //if (log.shouldLog(Log.DEBUG))
-                            //    log.debug("highbit " + highbit + " toshift " + toShift + " extra " + extra + " new " + range);
+            byte[] k = key.getData();
+            int len = _us.length;
+            for (int i = 0; i < len; i++) {
+                int x = (k[i] ^ _us[i]) & 0xff;
+                if (x == 0)
+                    continue;
+                // bit length of the xor, minus 1
+                int range = ((len - i) * 8) - (Integer.numberOfLeadingZeros(x) - 24) - 1;
+                if (_bValue > 1) {
+                    int toShift = range + 1 - _bValue;
+                    range <<= _bValue - 1;
+                    if (toShift >= 0) {
+                        // the B-1 bits just below the high bit
+                        int extra = 0;
+                        for (int j = _bValue - 2; j >= 0; j--) {
+                            extra <<= 1;
+                            extra |= xorBit(k, toShift + j);
                         }
+                        range += extra;
                     }
-                    rv = Integer.valueOf(range);
-                    _distanceCache.put(key, rv);
                 }
+                return range;
             }
-            return rv.intValue();
+            return -1;
         }
 
-        public void clear() {
-            synchronized (_distanceCache) {
-                _distanceCache.clear();
-            }
+        /**
+         *  @param bit 0 is the least significant bit of the big-endian number
+         *  @return 0 or 1
+         */
+        private int xorBit(byte[] k, int bit) {
+            int idx = _us.length - 1 - (bit >> 3);
+            return ((k[idx] ^ _us[idx]) >> (bit & 0x07)) & 0x01;
         }
     }
 
     /**
-     *  For Collections.binarySearch.
-     *  getRangeBegin == getRangeEnd.
+     *  Keep the closest max entries in a max-heap,
+     *  instead of collecting them all and sorting.
+     *  @since 0.9.28
      */
-    private static class DummyBucket<T extends SimpleDataStructure> implements KBucket<T> {
-        private final int r;
-
-        public DummyBucket(int range) {
-            r = range;
-        }
-
-        public int getRangeBegin() { return r; }
-        public int getRangeEnd() { return r; }
-
-        public int getKeyCount() {
-            return 0;
+    private static class ClosestHeap<T extends SimpleDataStructure> {
+        private final XORComparator<T> _comp;
+        /** the furthest kept is at 0 */
+        private final Object[] _heap;
+        private int _size;
+
+        public ClosestHeap(T key, int max) {
+            _comp = new XORComparator<T>(key);
+            _heap = new Object[max];
         }
 
-        public Set<T> getEntries() {
-            throw new UnsupportedOperationException();
+        /**
+         *  @return the number offered, i.e. the number not ignored
+         */
+        public int offerAll(Collection<T> entries, Collection<T> toIgnore) {
+            int rv = 0;
+            for (T e : entries) {
+                if (!toIgnore.contains(e)) {
+                    offer(e);
+                    rv++;
+                }
+            }
+            return rv;
         }
 
-        public void getEntries(SelectionCollector<T> collector) {
-            throw new UnsupportedOperationException();
+        public void offer(T e) {
+            if (_size < _heap.length) {
+                int i = _size++;
+                // sift up
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    T p = get(parent);
+                    if (_comp.compare(e, p) <= 0)
+                        break;
+                    _heap[i] = p;
+                    i = parent;
+                }
+                _heap[i] = e;
+            } else if (_comp.compare(e, get(0)) < 0) {
+                siftDown(e, _size);
+            }
         }
-    
-        public void clear() {}
 
-        public boolean add(T peer) {
-            throw new UnsupportedOperationException();
-        }
-    
-        public boolean remove(T peer) {
-            return false;
+        /**
+         *  Put e at the root and sift it down
+         */
+        private void siftDown(T e, int size) {
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                T c = get(child);
+                int right = child + 1;
+                if (right < size && _comp.compare(get(right), c) > 0) {
+                    child = right;
+                    c = get(child);
+                }
+                if (_comp.compare(e, c) >= 0)
+                    break;
+                _heap[i] = c;
+                i = child;
+            }
+            _heap[i] = e;
         }
 
-        public void setLastChanged() {}
-
-        public long getLastChanged() {
-            return 0;
+        @SuppressWarnings("unchecked")
+        private T get(int i) {
+            return (T) _heap[i];
         }
-    }
 
-    /**
-     *  For Collections.binarySearch.
-     *  Returns equal for any overlap.
-     */
-    private static class BucketComparator<T extends SimpleDataStructure> implements Comparator<KBucket<T>>, Serializable {
-        public int compare(KBucket<T> l, KBucket<T> r) {
-            if (l.getRangeEnd() < r.getRangeBegin())
-                return -1;
-            if (l.getRangeBegin() > r.getRangeEnd())
-                return 1;
-            return 0;
+        /**
+         *  Empties the heap.
+         *  @return closest first
+         */
+        public List<T> toList() {
+            Object[] sorted = new Object[_size];
+            for (int i = _size - 1; i >= 0; i--) {
+                sorted[i] = _heap[0];
+                T last = get(i);
+                _heap[i] = null;
+                if (i > 0)
+                    siftDown(last, i);
+            }
+            _size = 0;
+            List<T> rv = new ArrayList<T>(sorted.length);
+            for (int i = 0; i < sorted.length; i++) {
+                @SuppressWarnings("unchecked")
+                T e = (T) sorted[i];
+                rv.add(e);
+            }
+            return rv;
         }
     }
 
@@ -770,15 +782,13 @@ public class KBucketSet<T extends SimpleDataStructure> {
            .append(" B=").append(B_VALUE)
            .append(" with ").append(size())
            .append(" keys in ").append(_buckets.size()).append(" buckets:\n");
-        getReadLock();
-        try {
-            int len = _buckets.size();
-            for (int i = 0; i < len; i++) {
-                KBucket<T> b = _buckets.get(i);
-                buf.append("* Bucket ").append(i).append("/").append(len).append(": ");
-                buf.append(b.toString()).append("\n");
-            }
-        } finally { releaseReadLock(); }
+        List<KBucket<T>> buckets = _buckets;
+        int len = buckets.size();
+        for (int i = 0; i < len; i++) {
+            KBucket<T> b = buckets.get(i);
+            buf.append("* Bucket ").append(i).append("/").append(len).append(": ");
+            buf.append(b.toString()).append("\n");
+        }
         return buf.toString();
     }
 }
@@ -36,6 +36,8 @@ import net.i2p.data.ByteArray;
 
 	16K	16	256K	I2PSnark
 
+	16K	32	512K	router I2CP GatheringOutputStream
+
 	32K	4	128K	SAM StreamSession
 	32K	10	320K	SAM v2StreamSession
 	32K	64	2M	UDP OMS
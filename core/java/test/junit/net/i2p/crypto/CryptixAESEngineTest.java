@@ -8,6 +8,8 @@ package net.i2p.crypto;
  *
  */
 
+import java.util.Properties;
+
 import junit.framework.TestCase;
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
@@ -43,6 +45,56 @@ public class CryptixAESEngineTest extends TestCase{
         assertTrue(DataHelper.eq(data,orig));
     }
     
+    /**
+     *  encryptTunnel() and decryptTunnel(), batch and single message,
+     *  against the single-block operations,
+     *  with both the Cryptix and the system CBC layer
+     *  @since 0.9.28
+     */
+    public void testTunnel() {
+        testTunnel("false");
+        if (CryptoCheck.isUnlimited())
+            testTunnel("true");
+    }
+
+    private static void testTunnel(String system) {
+        Properties props = new Properties();
+        props.setProperty(CryptixAESEngine.PROP_SYSTEM_TUNNEL_AES, system);
+        I2PAppContext ctx = new I2PAppContext(props);
+        SessionKey layerKey = ctx.keyGenerator().generateSessionKey();
+        SessionKey ivKey = ctx.keyGenerator().generateSessionKey();
+        CryptixAESEngine aes = new CryptixAESEngine(ctx);
+        int count = 3;
+        int off = 5;
+        byte orig[][] = new byte[count][off + 1024];
+        byte data[][] = new byte[count][];
+        int offsets[] = new int[count];
+        for (int i = 0; i < count; i++) {
+            ctx.random().nextBytes(orig[i]);
+            data[i] = orig[i].clone();
+            offsets[i] = off;
+        }
+        aes.encryptTunnel(data, offsets, count, 1024, layerKey, ivKey);
+        for (int i = 0; i < count; i++) {
+            byte expect[] = orig[i].clone();
+            byte iv[] = new byte[16];
+            aes.encryptBlock(expect, off, ivKey, iv, 0);
+            aes.encrypt(expect, off + 16, expect, off + 16, layerKey, iv, 1024 - 16);
+            aes.encryptBlock(iv, 0, ivKey, expect, off);
+            assertTrue(DataHelper.eq(expect, data[i]));
+            // single message version
+            byte single[] = orig[i].clone();
+            aes.encryptTunnel(single, off, 1024, layerKey, ivKey);
+            assertTrue(DataHelper.eq(expect, single));
+            aes.decryptTunnel(single, off, 1024, layerKey, ivKey);
+            assertTrue(DataHelper.eq(orig[i], single));
+        }
+        aes.decryptTunnel(data, offsets, count, 1024, layerKey, ivKey);
+        for (int i = 0; i < count; i++) {
+            assertTrue(DataHelper.eq(orig[i], data[i]));
+        }
+    }
+
     public static void testFake() {
         I2PAppContext ctx = I2PAppContext.getGlobalContext();
         SessionKey key = ctx.keyGenerator().generateSessionKey();
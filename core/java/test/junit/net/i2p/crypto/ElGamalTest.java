@@ -11,7 +11,9 @@ package net.i2p.crypto;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.HashSet;
+import java.util.Properties;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -377,5 +379,35 @@ public class ElGamalTest extends TestCase{
         for (int i = 0; i < 5; i++) {
             ykgen.getNextYK();
         }
+        // not started, all calculated in the foreground
+        assertEquals(0, ykgen.getHits());
+        assertEquals(5, ykgen.getMisses());
+    }
+
+    /** @since 0.9.28 */
+    public void testYKPrecalc() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_MIN, "4");
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_MAX, "8");
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_DELAY, "0");
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_THREADS, "2");
+        I2PAppContext context = new I2PAppContext(props);
+        YKGenerator ykgen = new YKGenerator(context);
+        ykgen.start();
+        try {
+            for (int i = 0; i < 200 && ykgen.getSize() < 4; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(ykgen.getSize() >= 4);
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            for (int i = 0; i < 4; i++) {
+                BigInteger[] yk = ykgen.getNextYK();
+                assertEquals(yk[0], CryptoConstants.elgg.modPow(yk[1], CryptoConstants.elgp));
+                assertTrue(seen.add(yk[1]));
+            }
+            assertEquals(4, ykgen.getHits());
+        } finally {
+            ykgen.shutdown();
+        }
     }
 }
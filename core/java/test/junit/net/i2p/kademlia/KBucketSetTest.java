@@ -8,7 +8,11 @@ package net.i2p.kademlia;
  *
  */
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import junit.framework.TestCase;
 import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
@@ -158,4 +162,91 @@ public class KBucketSetTest extends TestCase{
             assertTrue(c.size() == i);
         }
     }
+
+    /**
+     *  Against the BigInteger version used before 0.9.28
+     *  @since 0.9.28
+     */
+    public void testRange() {
+        byte val[] = new byte[Hash.HASH_LENGTH];
+        BigInteger bigUs = new BigInteger(1, usHash.getData());
+        for (int b = 1; b <= 8; b++) {
+            KBucketSet<Hash> bset = new KBucketSet<Hash>(context, usHash, K, b);
+            for (int i = 0; i < 1000; i++) {
+                context.random().nextBytes(val);
+                // also some close to us
+                if (i % 2 == 0)
+                    System.arraycopy(usHash.getData(), 0, val, 0, i % Hash.HASH_LENGTH);
+                Hash h = new Hash(val);
+                BigInteger xor = bigUs.xor(new BigInteger(1, h.getData()));
+                int range = xor.bitLength() - 1;
+                if (b > 1) {
+                    int toShift = range + 1 - b;
+                    int highbit = range;
+                    range <<= b - 1;
+                    if (toShift >= 0)
+                        range += xor.clearBit(highbit).shiftRight(toShift).intValue();
+                }
+                assertEquals(range, bset.getRange(h));
+            }
+            assertEquals(-1, bset.getRange(usHash));
+        }
+    }
+
+    /** @since 0.9.28 */
+    public void testClosestOrder() {
+        byte val[] = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < 10; i++) {
+            context.random().nextBytes(val);
+            Hash h = new Hash(val);
+            Set<Hash> all = set.getAll();
+            // asking for everything must return everything, sorted
+            List<Hash> expected = new ArrayList<Hash>(all);
+            Collections.sort(expected, new XORComparator<Hash>(h));
+            assertEquals(expected, set.getClosest(h, all.size()));
+            // a bounded request must be sorted and a prefix of its candidates
+            List<Hash> c = set.getClosest(h, 20);
+            assertEquals(20, c.size());
+            List<Hash> sorted = new ArrayList<Hash>(c);
+            Collections.sort(sorted, new XORComparator<Hash>(h));
+            assertEquals(sorted, c);
+        }
+        List<Hash> c = set.getClosest(20, Collections.singleton(set.getClosest(1).get(0)));
+        assertEquals(20, c.size());
+        List<Hash> sorted = new ArrayList<Hash>(c);
+        Collections.sort(sorted, new XORComparator<Hash>(usHash));
+        assertEquals(sorted, c);
+    }
+
+    /**
+     *  No adds lost to concurrent splits
+     *  @since 0.9.28
+     */
+    public void testConcurrentSplit() throws InterruptedException {
+        final KBucketSet<Hash> bset = new KBucketSet<Hash>(context, usHash, K, 3, new KBucketTrimmer<Hash>() {
+            public boolean trim(KBucket<Hash> kbucket, Hash toAdd) { return true; }
+        });
+        final int count = 2500;
+        int n = 4;
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    byte val[] = new byte[Hash.HASH_LENGTH];
+                    for (int j = 0; j < count; j++) {
+                        context.random().nextBytes(val);
+                        bset.add(new Hash(val));
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < n; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < n; i++) {
+            threads[i].join();
+        }
+        assertEquals(n * count, bset.size());
+        assertEquals(n * count, bset.getAll().size());
+    }
 }
@@ -196,6 +196,8 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         // We can use from the cache, we just can't release to the cache, due to the bug
         // noted above. In effect, this means that transmitted TDMs don't get their
         // dataBufs released - but received TDMs do (via FragmentHandler)
+        // As of 0.9.28, transmitted TDMs are released via release(),
+        // called from OutNetMessage.discardData() after the last transport is done with it.
         //if (_hadCache) {
         //    _cache.release(_dataBuf);
         //    _dataBuf = null;
@@ -203,6 +205,22 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         return curIndex;
     }
     
+    /**
+     *  Return the data buffer to the cache, if it came from there.
+     *  Call only when the message will not be used again,
+     *  i.e. when it has been written by the last transport or dropped.
+     *  Not for messages passed to a FragmentHandler, which releases the data itself.
+     *  Subsequent calls do nothing; subsequent getData() calls will throw.
+     *
+     *  @since 0.9.28
+     */
+    public synchronized void release() {
+        if (_dataBuf != null) {
+            _cache.release(_dataBuf);
+            _dataBuf = null;
+        }
+    }
+
     public int getType() { return MESSAGE_TYPE; }
     
     @Override
@@ -0,0 +1,37 @@
+package net.i2p.data.router;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Shares the String values of RouterInfo and RouterAddress options
+ *  that are the same in most of the netDb, like caps and versions.
+ *  Only call for options with a small number of distinct values.
+ *
+ *  @since 0.9.28
+ */
+class OptionsInterner {
+
+    private static final Map<String, String> _cache = new ConcurrentHashMap<String, String>(64);
+    /** stop adding after this, the values aren't what we expected */
+    private static final int MAX_SIZE = 512;
+    private static final int MAX_LENGTH = 32;
+
+    private OptionsInterner() {}
+
+    /**
+     *  @param val non-null
+     *  @return the shared value, or val
+     */
+    public static String intern(String val) {
+        if (val.length() > MAX_LENGTH)
+            return val;
+        String rv = _cache.get(val);
+        if (rv != null)
+            return rv;
+        if (_cache.size() >= MAX_SIZE)
+            return val;
+        rv = _cache.putIfAbsent(val, val);
+        return rv != null ? rv : val;
+    }
+}
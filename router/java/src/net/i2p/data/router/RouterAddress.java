@@ -9,11 +9,14 @@ package net.i2p.data.router;
  *
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -32,6 +35,11 @@ import net.i2p.util.OrderedProperties;
  * Initialize the structure with readBytes(), or call the setOptions().
  * Don't change it after that.
  *
+ * As of 0.9.28, the options are not parsed by readBytes().
+ * The mapping is checked and kept as read, and parsed on first use.
+ * Most addresses in the netDb are never used by us,
+ * and writeBytes() sends the mapping out unchanged.
+ *
  * To ensure integrity of the RouterInfo, methods that change an element of the
  * RouterInfo will throw an IllegalStateException after the RouterInfo is signed.
  *
@@ -48,7 +56,10 @@ public class RouterAddress extends DataStructureImpl {
     private short _cost;
     private long _expiration;
     private String _transportStyle;
-    private final Properties _options;
+    /** null until parsed if read in */
+    private volatile Properties _options;
+    /** the mapping as read in, including the length, null after parsing */
+    private volatile byte[] _rawOptions;
     // cached values
     private byte[] _ip;
     private int _port;
@@ -56,6 +67,9 @@ public class RouterAddress extends DataStructureImpl {
     public static final String PROP_HOST = "host";
     public static final String PROP_PORT = "port";
 
+    /** values of these options are interned */
+    private static final String[] INTERNED_OPTIONS = { "caps", "mtu" };
+
     public RouterAddress() {
         _options = new OrderedProperties();
     }
@@ -177,7 +191,7 @@ public class RouterAddress extends DataStructureImpl {
      */
     @Deprecated
     public Properties getOptions() {
-        return _options;
+        return options();
     }
 
     /**
@@ -187,14 +201,51 @@ public class RouterAddress extends DataStructureImpl {
      * @since 0.8.13
      */
     public Map<Object, Object> getOptionsMap() {
-        return Collections.unmodifiableMap(_options);
+        return Collections.unmodifiableMap(options());
     }
 
     /**
      * @since 0.8.13
      */
     public String getOption(String opt) {
-        return _options.getProperty(opt);
+        return options().getProperty(opt);
+    }
+
+    /**
+     *  The options, parsing them first if necessary.
+     *  Fails safe: if the raw options do not parse, they are empty.
+     *
+     *  @return non-null
+     *  @since 0.9.28
+     */
+    private Properties options() {
+        Properties rv = _options;
+        if (rv != null)
+            return rv;
+        synchronized(this) {
+            rv = _options;
+            if (rv == null) {
+                rv = new OrderedProperties();
+                try {
+                    DataHelper.readProperties(new ByteArrayInputStream(_rawOptions), rv);
+                } catch (DataFormatException dfe) {
+                    // checked in readBytes(), should not happen,
+                    // but never throw from the getters, an address with no options is unusable
+                    rv.clear();
+                } catch (IOException ioe) {
+                    rv.clear();
+                }
+                for (int i = 0; i < INTERNED_OPTIONS.length; i++) {
+                    String val = rv.getProperty(INTERNED_OPTIONS[i]);
+                    if (val != null)
+                        rv.setProperty(INTERNED_OPTIONS[i], OptionsInterner.intern(val));
+                }
+                // publish before releasing the raw data, see writeBytes()
+                _options = rv;
+                _rawOptions = null;
+            }
+        }
+        return rv;
     }
 
     /**
@@ -206,9 +257,10 @@ public class RouterAddress extends DataStructureImpl {
      */
     @Deprecated
     public void setOptions(Properties options) {
-        if (!_options.isEmpty())
+        Properties opts = options();
+        if (!opts.isEmpty())
             throw new IllegalStateException();
-        _options.putAll(options);
+        opts.putAll(options);
     }
     
     /**
@@ -243,7 +295,7 @@ public class RouterAddress extends DataStructureImpl {
      *  @since IPv6
      */
     public String getHost() {
-        return _options.getProperty(PROP_HOST);
+        return options().getProperty(PROP_HOST);
     }
     
     /**
@@ -256,7 +308,7 @@ public class RouterAddress extends DataStructureImpl {
     public int getPort() {
         if (_port != 0)
             return _port;
-        String port = _options.getProperty(PROP_PORT);
+        String port = options().getProperty(PROP_PORT);
         if (port != null) {
             try {
                 int rv = Integer.parseInt(port);
@@ -271,6 +323,9 @@ public class RouterAddress extends DataStructureImpl {
      *  As of 0.9.3, expiration MUST be all zeros as it is ignored on
      *  readin and the signature will fail.
      *  Restored as of 0.9.12, wait several more releases before using.
+     *
+     *  As of 0.9.28, the options are checked but not parsed until used.
+     *
      *  @throws IllegalStateException if was already read in
      */
     public void readBytes(InputStream in) throws DataFormatException, IOException {
@@ -284,7 +339,80 @@ public class RouterAddress extends DataStructureImpl {
             _transportStyle = "SSU";
         else if (_transportStyle.equals("NTCP"))
             _transportStyle = "NTCP";
-        DataHelper.readProperties(in, _options);
+        int size = (int) DataHelper.readLong(in, 2);
+        byte[] raw = new byte[2 + size];
+        DataHelper.toLong(raw, 0, 2, size);
+        // throws EOFException if short
+        DataHelper.read(in, raw, 2, size);
+        checkMapping(raw);
+        _rawOptions = raw;
+        _options = null;
+    }
+
+    /**
+     *  Check the format of a mapping, as DataHelper.readProperties() would,
+     *  without creating the Strings for ASCII keys.
+     *  Keys with non-ASCII bytes are decoded and compared as Strings,
+     *  as readProperties() does, because different invalid UTF-8
+     *  sequences may decode to the same String.
+     *
+     *  @param data the mapping including the length
+     *  @throws DataFormatException on bad format or duplicate key
+     *  @since 0.9.28
+     */
+    private static void checkMapping(byte[] data) throws DataFormatException {
+        // key offset and length, two per key
+        int[] keys = new int[16];
+        int nkeys = 0;
+        // decoded non-ASCII keys, created only if needed
+        List<String> utf8Keys = null;
+        int off = 2;
+        while (off < data.length) {
+            int klen = data[off] & 0xff;
+            int koff = off + 1;
+            off = koff + klen;
+            if (off >= data.length || data[off] != '=')
+                throw new DataFormatException("Bad key");
+            off++;
+            if (off >= data.length)
+                throw new DataFormatException("Bad value");
+            off += 1 + (data[off] & 0xff);
+            if (off >= data.length || data[off] != ';')
+                throw new DataFormatException("Bad value");
+            off++;
+            if (!isASCII(data, koff, klen)) {
+                // a decoded non-ASCII key never equals an ASCII key
+                String key = DataHelper.getUTF8(data, koff, klen);
+                if (utf8Keys == null)
+                    utf8Keys = new ArrayList<String>(4);
+                else if (utf8Keys.contains(key))
+                    throw new DataFormatException("Duplicate key");
+                utf8Keys.add(key);
+                continue;
+            }
+            for (int i = 0; i < nkeys; i += 2) {
+                if (keys[i + 1] == klen && DataHelper.eq(data, keys[i], data, koff, klen))
+                    throw new DataFormatException("Duplicate key");
+            }
+            if (nkeys == keys.length) {
+                int[] nk = new int[nkeys * 2];
+                System.arraycopy(keys, 0, nk, 0, nkeys);
+                keys = nk;
+            }
+            keys[nkeys++] = koff;
+            keys[nkeys++] = klen;
+        }
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private static boolean isASCII(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (data[i] < 0)
+                return false;
+        }
+        return true;
     }
     
     /**
@@ -297,7 +425,12 @@ public class RouterAddress extends DataStructureImpl {
         out.write((byte) _cost);
         DataHelper.writeLong(out, 8, _expiration);
         DataHelper.writeString(out, _transportStyle);
-        DataHelper.writeProperties(out, _options);
+        byte[] raw = _rawOptions;
+        if (raw != null) {
+            out.write(raw);
+        } else {
+            DataHelper.writeProperties(out, options());
+        }
     }
     
     /**
@@ -326,7 +459,7 @@ public class RouterAddress extends DataStructureImpl {
         return
                equals(addr) &&
                _cost == addr._cost &&
-               _options.equals(addr._options);
+               options().equals(addr.options());
     }
     
     /**
@@ -353,8 +486,9 @@ public class RouterAddress extends DataStructureImpl {
         buf.append("\n\tCost: ").append(_cost);
         if (_expiration > 0)
             buf.append("\n\tExpiration: ").append(new Date(_expiration));
-        buf.append("\n\tOptions (").append(_options.size()).append("):");
-        for (Map.Entry<Object, Object> e : _options.entrySet()) {
+        Properties opts = options();
+        buf.append("\n\tOptions (").append(opts.size()).append("):");
+        for (Map.Entry<Object, Object> e : opts.entrySet()) {
             String key = (String) e.getKey();
             String val = (String) e.getValue();
             buf.append("\n\t\t[").append(key).append("] = [").append(val).append("]");
@@ -40,6 +40,7 @@ import net.i2p.data.Signature;
 import net.i2p.data.SimpleDataStructure;
 import net.i2p.router.Router;
 import net.i2p.util.Clock;
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
@@ -78,12 +79,26 @@ public class RouterInfo extends DatabaseEntry {
     private volatile boolean _hashCodeInitialized;
     /** should we cache the byte and string versions _byteified ? **/
     private boolean _shouldCache;
+    /** SHA-256 of everything read in, including the signature, null if not read in */
+    private byte[] _readDigest;
     /**
      * Maybe we should check if we are floodfill?
      * If we do bring this back, don't do on ARM or Android
      */
     private static final boolean CACHE_ALL = false; // SystemVersion.getMaxMemory() > 128*1024*1024l;
 
+    /**
+     *  The last RI read in for each router that had a good signature,
+     *  so we don't verify it again when we get the same one.
+     *  Byte-identical RIs come in all the time from stores, lookups, and reseeds,
+     *  often after we've dropped ours.
+     */
+    private static final Map<Hash, Verified> _verified;
+    static {
+        int sz = (int) Math.max(256, Math.min(4096, SystemVersion.getMaxMemory() / (64*1024)));
+        _verified = new LHMCache<Hash, Verified>(sz);
+    }
+
     public static final String PROP_NETWORK_ID = "netId";
     public static final String PROP_CAPABILITIES = "caps";
     public static final char CAPABILITY_HIDDEN = 'H';
@@ -99,6 +114,11 @@ public class RouterInfo extends DatabaseEntry {
         Router.CAPABILITY_BW256 +
         Router.CAPABILITY_BW512 +
         Router.CAPABILITY_BW_UNLIMITED;
+
+    /** values of these options are interned */
+    private static final String[] INTERNED_OPTIONS = {
+        PROP_CAPABILITIES, PROP_NETWORK_ID, "coreVersion", "router.version", "stat_uptime", "family"
+    };
     
     public RouterInfo() {
         _addresses = new ArrayList<RouterAddress>(2);
@@ -385,6 +405,8 @@ public class RouterInfo extends DatabaseEntry {
     /**
      * Determine whether this router info is authorized with a valid signature
      *
+     * As of 0.9.28, if this was read in, and we have already verified a
+     * byte-identical RouterInfo, the signature is not verified again.
      */
     public boolean isValid() {
         if (!_validated) doValidate();
@@ -506,8 +528,15 @@ public class RouterInfo extends DatabaseEntry {
      * Actually validate the signature
      */
     private void doValidate() {
+        if (isVerified()) {
+            _isValid = true;
+            _validated = true;
+            return;
+        }
         _isValid = super.verifySignature();
         _validated = true;
+        if (_isValid)
+            setVerified();
 
         if (!_isValid) {
             Log log = I2PAppContext.getGlobalContext().logManager().getLog(RouterInfo.class);
@@ -519,6 +548,55 @@ public class RouterInfo extends DatabaseEntry {
         }
     }
     
+    /**
+     *  Is this byte-identical to a RI that was read in and verified before?
+     *
+     *  @since 0.9.28
+     */
+    private boolean isVerified() {
+        byte[] digest = _readDigest;
+        if (digest == null)
+            return false;
+        Verified v;
+        synchronized(_verified) {
+            v = _verified.get(_identity.getHash());
+        }
+        return v != null && v.published == _published && DataHelper.eq(v.digest, digest);
+    }
+
+    /**
+     *  Remember a good signature, if this was read in.
+     *
+     *  @since 0.9.28
+     */
+    private void setVerified() {
+        byte[] digest = _readDigest;
+        if (digest == null)
+            return;
+        Hash h = _identity.getHash();
+        Verified v = new Verified(_published, digest);
+        synchronized(_verified) {
+            Verified old = _verified.get(h);
+            if (old == null || old.published <= _published)
+                _verified.put(h, v);
+        }
+    }
+
+    /**
+     *  An entry in the verify cache
+     *
+     *  @since 0.9.28
+     */
+    private static class Verified {
+        public final long published;
+        public final byte[] digest;
+
+        public Verified(long published, byte[] digest) {
+            this.published = published;
+            this.digest = digest;
+        }
+    }
+
     /**
      *  This does NOT validate the signature
      *
@@ -534,12 +612,18 @@ public class RouterInfo extends DatabaseEntry {
      *  and throws a DataFormatException if the sig is invalid.
      *  This is faster than reserializing to validate later.
      *
+     *  As of 0.9.28, the signature is not verified again if we have
+     *  already verified a byte-identical RouterInfo, see isValid().
+     *
      *  @throws IllegalStateException if RouterInfo was already read in
      *  @since 0.9
      */
     public void readBytes(InputStream in, boolean verifySig) throws DataFormatException, IOException {
         if (_signature != null)
             throw new IllegalStateException();
+        // digest of everything, for the verify cache
+        MessageDigest all = SHA256Generator.getDigestInstance();
+        in = new DigestInputStream(in, all);
         _identity = new RouterIdentity();
         _identity.readBytes(in);
         // can't set the digest until we know the sig type
@@ -586,17 +670,28 @@ public class RouterInfo extends DatabaseEntry {
             }
         }
         DataHelper.readProperties(din, _options);
+        for (int i = 0; i < INTERNED_OPTIONS.length; i++) {
+            String val = _options.getProperty(INTERNED_OPTIONS[i]);
+            if (val != null)
+                _options.setProperty(INTERNED_OPTIONS[i], OptionsInterner.intern(val));
+        }
         _signature = new Signature(_identity.getSigningPublicKey().getType());
         _signature.readBytes(in);
+        _readDigest = all.digest();
 
         if (verifySig) {
             SigType type = _identity.getSigningPublicKey().getType();
-            if (type != SigType.EdDSA_SHA512_Ed25519) {
+            if (isVerified()) {
+                _isValid = true;
+                _validated = true;
+            } else if (type != SigType.EdDSA_SHA512_Ed25519) {
                 // This won't work for EdDSA
                 SimpleDataStructure hash = _identity.getSigningPublicKey().getType().getHashInstance();
                 hash.setData(digest.digest());
                 _isValid = DSAEngine.getInstance().verifySignature(_signature, hash, _identity.getSigningPublicKey());
                 _validated = true;
+                if (_isValid)
+                    setVerified();
             } else {
                 doValidate();
             }
@@ -0,0 +1,181 @@
+package net.i2p.router;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Lock-free replacement for the JobQueue's TreeSet of timed jobs,
+ *  so that addJob() from many threads does not contend on the job lock.
+ *
+ *  Entries are sorted by a snapshot of the job's start time taken in add(),
+ *  so a job whose JobTiming is changed while queued can't corrupt the ordering.
+ *  As with the TreeSet, the job must be re-added to be re-sorted.
+ *
+ *  A job maps to at most one current entry. Entries replaced by a racing
+ *  add() are stale and are discarded when they reach the head.
+ *
+ *  For use by the router only. Not to be used by applications or plugins.
+ *
+ *  @since 0.9.28
+ */
+class ConcurrentTimedJobs {
+    private final ConcurrentSkipListSet<Entry> _entries;
+    private final ConcurrentHashMap<Job, Entry> _current;
+    private final AtomicLong _seq = new AtomicLong();
+
+    public ConcurrentTimedJobs() {
+        _entries = new ConcurrentSkipListSet<Entry>();
+        _current = new ConcurrentHashMap<Job, Entry>();
+    }
+
+    /**
+     *  Schedule the job at the given time, replacing any existing schedule.
+     *
+     *  @return true if the job was already scheduled
+     */
+    public boolean add(Job job, long startAfter) {
+        Entry e = new Entry(job, startAfter, _seq.incrementAndGet());
+        return add(e);
+    }
+
+    /**
+     *  Same as add(), but returns the entry, for cancel().
+     *
+     *  @return non-null
+     */
+    public Entry schedule(Job job, long startAfter) {
+        Entry e = new Entry(job, startAfter, _seq.incrementAndGet());
+        add(e);
+        return e;
+    }
+
+    private boolean add(Entry e) {
+        Entry old = _current.put(e.job, e);
+        if (old != null)
+            _entries.remove(old);
+        _entries.add(e);
+        return old != null;
+    }
+
+    /**
+     *  Undo a schedule(), unless the job was rescheduled or removed since.
+     *
+     *  @param e from schedule()
+     *  @return true if it was still the current schedule for the job
+     */
+    public boolean cancel(Entry e) {
+        boolean rv = _current.remove(e.job, e);
+        _entries.remove(e);
+        return rv;
+    }
+
+    /**
+     *  @return true if the job was scheduled
+     */
+    public boolean remove(Job job) {
+        Entry e = _current.remove(job);
+        if (e == null)
+            return false;
+        _entries.remove(e);
+        return true;
+    }
+
+    public boolean contains(Job job) {
+        return _current.containsKey(job);
+    }
+
+    public int size() {
+        return _current.size();
+    }
+
+    public void clear() {
+        _current.clear();
+        _entries.clear();
+    }
+
+    /**
+     *  Remove all jobs due at or before now, in start order.
+     *
+     *  @param ready out parameter, due jobs are added to it
+     *  @return ms until the next job is due, or -1 if empty
+     */
+    public long removeReady(long now, Collection<Job> ready) {
+        for (Iterator<Entry> iter = _entries.iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            if (e.start > now)
+                return e.start - now;
+            // only one thread can win the remove, and only the current entry counts
+            if (_entries.remove(e) && _current.remove(e.job, e))
+                ready.add(e.job);
+        }
+        return -1;
+    }
+
+    /**
+     *  Re-sort all jobs after their timings were changed,
+     *  e.g. after a clock shift.
+     */
+    public void resort() {
+        for (Job j : _current.keySet()) {
+            add(j, j.getTiming().getStartAfter());
+        }
+    }
+
+    /**
+     *  @return a snapshot of the scheduled jobs, earliest first
+     */
+    public List<Job> getJobs() {
+        List<Job> rv = new ArrayList<Job>(_current.size());
+        for (Entry e : _entries) {
+            if (_current.get(e.job) == e)
+                rv.add(e.job);
+        }
+        return rv;
+    }
+
+    /**
+     *  Start time snapshot, ties broken by insertion order.
+     *  Opaque outside this class.
+     */
+    static class Entry implements Comparable<Entry> {
+        final Job job;
+        final long start;
+        final long seq;
+
+        public Entry(Job j, long start, long seq) {
+            job = j;
+            this.start = start;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry r) {
+            if (start < r.start)
+                return -1;
+            if (start > r.start)
+                return 1;
+            if (seq < r.seq)
+                return -1;
+            if (seq > r.seq)
+                return 1;
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry e = (Entry) o;
+            return seq == e.seq && job == e.job;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) seq;
+        }
+    }
+}
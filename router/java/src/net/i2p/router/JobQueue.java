@@ -11,11 +11,13 @@ package net.i2p.router;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
@@ -49,8 +51,17 @@ public class JobQueue {
     private final static AtomicInteger _runnerId = new AtomicInteger(0);
     /** list of jobs that are ready to run ASAP */
     private final BlockingQueue<Job> _readyJobs;
+    /**
+     *  The jobs in _readyJobs, so that check-and-add is atomic
+     *  without holding the _jobLock, and contains() is fast.
+     *  Add here first, then to _readyJobs. Removed when taken by a runner.
+     *  @since 0.9.28
+     */
+    private final Set<Job> _readyJobSet;
     /** SortedSet of jobs that are scheduled for running in the future, earliest first */
     private final Set<Job> _timedJobs;
+    /** if non-null, used instead of _timedJobs, without holding the _jobLock */
+    private final ConcurrentTimedJobs _concurrentTimedJobs;
     /** job name to JobStat for that job */
     private final ConcurrentHashMap<String, JobStats> _jobStats;
     private final QueuePumper _pumper;
@@ -78,6 +89,13 @@ public class JobQueue {
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
     private final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
+
+    /**
+     *  router.config parameter to schedule timed jobs in a lock-free skip list
+     *  instead of a TreeSet under the job lock. Requires restart.
+     *  @since 0.9.28
+     */
+    public final static String PROP_CONCURRENT_SCHEDULER = "router.concurrentJobScheduler";
     
     /** how frequently should we check and update the max runners */
     private final static long MAX_LIMIT_UPDATE_DELAY = 60*1000;
@@ -155,10 +173,19 @@ public class JobQueue {
         _context.statManager().createRateStat("jobQueue.jobRunSlow", "How long jobs that take over a second take", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRequiredRateStat("jobQueue.jobLag", "Job run delay (ms)", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("jobQueue.jobWait", "How long does a job sit on the job queue?", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.jobPumpLag", "How late are timed jobs moved to the ready queue (ms)", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
         //_context.statManager().createRateStat("jobQueue.jobRunnerInactive", "How long are runners inactive?", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
 
         _readyJobs = new LinkedBlockingQueue<Job>();
+        _readyJobSet = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
         _timedJobs = new TreeSet<Job>(new JobComparator());
+        if (_context.getBooleanProperty(PROP_CONCURRENT_SCHEDULER)) {
+            _concurrentTimedJobs = new ConcurrentTimedJobs();
+            _context.statManager().createRateStat("jobQueue.addJobRace", "How often addJob() lost a race with another addJob() or the pumper for the same job", "JobQueue", new long[] { 60*1000l, 60*60*1000l });
+        } else {
+            _concurrentTimedJobs = null;
+            _context.statManager().createRateStat("jobQueue.jobLockWait", "How long addJob() waits for the job lock (us)", "JobQueue", new long[] { 60*1000l, 60*60*1000l });
+        }
         _jobLock = new Object();
         _queueRunners = new ConcurrentHashMap<Integer,JobQueueRunner>(RUNNERS);
         _jobStats = new ConcurrentHashMap<String,JobStats>();
@@ -187,64 +214,111 @@ public class JobQueue {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Scheduling job far in the future: " + (new Date(start)) + ' ' + job);
         }
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job))
-                alreadyExists = true;
+        if (_concurrentTimedJobs != null) {
+            alreadyExists = _readyJobSet.contains(job);
             numReady = _readyJobs.size();
             if (!alreadyExists) {
-                //if (_timedJobs.contains(job))
-                //    alreadyExists = true;
-                // Always remove and re-add, since it needs to be
-                // re-sorted in the TreeSet.
-                boolean removed = _timedJobs.remove(job);
+                // Always remove and re-add, so it is re-sorted
+                boolean removed = _concurrentTimedJobs.remove(job);
                 if (removed && _log.shouldLog(Log.WARN))
                     _log.warn("Rescheduling job: " + job);
-            }
-
-            if ((!alreadyExists) && shouldDrop(job, numReady)) {
-                job.dropped();
-                dropped = true;
-            } else {
-                if (!alreadyExists) {
-                    if (start <= now) {
-                        // don't skew us - its 'start after' its been queued, or later
+                if (shouldDrop(job, numReady)) {
+                    job.dropped();
+                    dropped = true;
+                } else if (start <= now) {
+                    // atomic check-and-add, another thread may have just added it
+                    if (_readyJobSet.add(job)) {
+                        // A racing addJob() may have scheduled it since we removed it above,
+                        // it's ready now. Before the offer, so it can't have run yet.
+                        _concurrentTimedJobs.remove(job);
                         job.getTiming().setStartAfter(now);
                         if (job instanceof JobImpl)
                             ((JobImpl)job).madeReady();
                         _readyJobs.offer(job);
                     } else {
-                        _timedJobs.add(job);
-                        // only notify for _timedJobs, as _readyJobs does not use that lock
-                        // only notify if sooner, to reduce contention
-                        if (start < _nextPumperRun)
+                        _context.statManager().addRateData("jobQueue.addJobRace", 1);
+                    }
+                } else {
+                    ConcurrentTimedJobs.Entry scheduled = _concurrentTimedJobs.schedule(job, start);
+                    // Made ready by the pumper or another addJob() since we checked,
+                    // don't leave it both ready and scheduled. Whoever made it ready
+                    // removes it from the timed jobs after adding it to _readyJobSet,
+                    // so one of us sees the other.
+                    // Only undo our own entry, the job may have run and been rescheduled since.
+                    if (_readyJobSet.contains(job)) {
+                        _concurrentTimedJobs.cancel(scheduled);
+                        _context.statManager().addRateData("jobQueue.addJobRace", 1);
+                    } else if (start < _nextPumperRun) {
+                        // The pumper sets _nextPumperRun to MAX_VALUE while it is pumping,
+                        // so we can't miss a wakeup. Only take the lock if sooner.
+                        synchronized (_jobLock) {
                             _jobLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } else {
+            long lockStart = System.nanoTime();
+            synchronized (_jobLock) {
+                _context.statManager().addRateData("jobQueue.jobLockWait", (System.nanoTime() - lockStart) / 1000);
+                if (_readyJobSet.contains(job))
+                    alreadyExists = true;
+                numReady = _readyJobs.size();
+                if (!alreadyExists) {
+                    //if (_timedJobs.contains(job))
+                    //    alreadyExists = true;
+                    // Always remove and re-add, since it needs to be
+                    // re-sorted in the TreeSet.
+                    boolean removed = _timedJobs.remove(job);
+                    if (removed && _log.shouldLog(Log.WARN))
+                        _log.warn("Rescheduling job: " + job);
+                }
+
+                if ((!alreadyExists) && shouldDrop(job, numReady)) {
+                    job.dropped();
+                    dropped = true;
+                } else {
+                    if (!alreadyExists) {
+                        if (start <= now) {
+                            // don't skew us - its 'start after' its been queued, or later
+                            job.getTiming().setStartAfter(now);
+                            if (job instanceof JobImpl)
+                                ((JobImpl)job).madeReady();
+                            _readyJobSet.add(job);
+                            _readyJobs.offer(job);
+                        } else {
+                            _timedJobs.add(job);
+                            // only notify for _timedJobs, as _readyJobs does not use that lock
+                            // only notify if sooner, to reduce contention
+                            if (start < _nextPumperRun)
+                                _jobLock.notifyAll();
+                        }
                     }
                 }
             }
         }
         
         _context.statManager().addRateData("jobQueue.readyJobs", numReady);
-        _context.statManager().addRateData("jobQueue.queuedJobs", _timedJobs.size());
+        _context.statManager().addRateData("jobQueue.queuedJobs", getTimedCount());
         if (dropped) {
             _context.statManager().addRateData("jobQueue.droppedJobs", 1);
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Dropping job due to overload!  # ready jobs: " 
                           + numReady + ": job = " + job);
-            String key = job.getName();
-            JobStats stats = _jobStats.get(key);
-            if (stats == null) {
-                stats = new JobStats(key);
-                JobStats old = _jobStats.putIfAbsent(key, stats);
-                if (old != null)
-                    stats = old;
-            }
-            stats.jobDropped();
+            getStats(job.getName()).jobDropped();
         }
     }
     
     public void removeJob(Job job) {
+        if (_concurrentTimedJobs != null) {
+            if (_readyJobSet.remove(job))
+                _readyJobs.remove(job);
+            _concurrentTimedJobs.remove(job);
+            return;
+        }
         synchronized (_jobLock) {
-            _readyJobs.remove(job);
+            if (_readyJobSet.remove(job))
+                _readyJobs.remove(job);
             _timedJobs.remove(job);
         }
     }
@@ -257,9 +331,14 @@ public class JobQueue {
      */
     @Deprecated
     public boolean isJobActive(Job job) {
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job) || _timedJobs.contains(job))
+        if (_concurrentTimedJobs != null) {
+            if (_readyJobSet.contains(job) || _concurrentTimedJobs.contains(job))
                 return true;
+        } else {
+            synchronized (_jobLock) {
+                if (_readyJobSet.contains(job) || _timedJobs.contains(job))
+                    return true;
+            }
         }
         for (JobQueueRunner runner: _queueRunners.values())
             if (runner.getCurrentJob() == job)
@@ -281,6 +360,16 @@ public class JobQueue {
             return _readyJobs.size();
     }
 
+    /**
+     *  Number of jobs scheduled for the future.
+     *  @since 0.9.28
+     */
+    public int getTimedCount() {
+        if (_concurrentTimedJobs != null)
+            return _concurrentTimedJobs.size();
+        return _timedJobs.size();
+    }
+
     public long getMaxLag() { 
             // first job is the one that has been waiting the longest
             Job j = _readyJobs.peek();
@@ -358,7 +447,10 @@ public class JobQueue {
     public void restart() {
         synchronized (_jobLock) {
             _timedJobs.clear();
+            if (_concurrentTimedJobs != null)
+                _concurrentTimedJobs.clear();
             _readyJobs.clear();
+            _readyJobSet.clear();
             _jobLock.notifyAll();
         }
     }
@@ -367,7 +459,10 @@ public class JobQueue {
         _alive = false; 
         synchronized (_jobLock) {
             _timedJobs.clear();
+            if (_concurrentTimedJobs != null)
+                _concurrentTimedJobs.clear();
             _readyJobs.clear();
+            _readyJobSet.clear();
             _jobLock.notifyAll();
         }
         // The JobQueueRunners are NOT daemons,
@@ -473,6 +568,8 @@ public class JobQueue {
                 Job j = _readyJobs.take();
                 if (j.getJobId() == POISON_ID)
                     break;
+                // before it runs, so it may requeue itself
+                _readyJobSet.remove(j);
                 return j;
             } catch (InterruptedException ie) {}
         }
@@ -527,6 +624,9 @@ public class JobQueue {
      *
      */
     private final class QueuePumper implements Runnable, Clock.ClockUpdateListener, RouterClock.ClockShiftListener {
+        /** for _concurrentTimedJobs only, pumper thread only */
+        private final List<Job> _pumped = new ArrayList<Job>(16);
+
         public QueuePumper() { 
             _context.clock().addUpdateListener(this);
             ((RouterClock) _context.clock()).addShiftListener(this);
@@ -539,6 +639,16 @@ public class JobQueue {
                     long timeToWait = -1;
                     try {
                         synchronized (_jobLock) {
+                            if (_concurrentTimedJobs != null) {
+                                // addJob() doesn't take the lock, so make sure any
+                                // job added while we are pumping notifies us.
+                                _nextPumperRun = Long.MAX_VALUE;
+                                timeToWait = _concurrentTimedJobs.removeReady(now, _pumped);
+                                for (int i = 0; i < _pumped.size(); i++) {
+                                    pumped(_pumped.get(i), now);
+                                }
+                                _pumped.clear();
+                            } else {
                             Job lastJob = null;
                             long lastTime = Long.MIN_VALUE;
                             for (Iterator<Job> iter = _timedJobs.iterator(); iter.hasNext(); ) {
@@ -552,11 +662,8 @@ public class JobQueue {
                                 lastJob = j;
                                 lastTime = lastJob.getTiming().getStartAfter();
                                 if (timeLeft <= 0) {
-                                    if (j instanceof JobImpl)
-                                        ((JobImpl)j).madeReady();
-
-                                    _readyJobs.offer(j);
                                     iter.remove();
+                                    pumped(j, now);
                                 } else {
                                     //if ( (timeToWait <= 0) || (timeLeft < timeToWait) )
                                     // _timedJobs is now a TreeSet, so once we hit one that is
@@ -586,6 +693,7 @@ public class JobQueue {
                                     }
                                     break;
                                 }
+                            }
                             }
                                 if (timeToWait < 0)
                                     timeToWait = 1000;
@@ -609,6 +717,25 @@ public class JobQueue {
             }
         }
 
+        /**
+         *  Move a timed job to the ready queue
+         *  @since 0.9.28
+         */
+        private void pumped(Job j, long now) {
+            // already ready if a racing addJob() made it ready
+            if (!_readyJobSet.add(j))
+                return;
+            // a racing addJob() may have rescheduled it, see addJob()
+            if (_concurrentTimedJobs != null)
+                _concurrentTimedJobs.remove(j);
+            long lag = now - j.getTiming().getStartAfter();
+            if (j instanceof JobImpl)
+                ((JobImpl)j).madeReady();
+            _readyJobs.offer(j);
+            _context.statManager().addRateData("jobQueue.jobPumpLag", lag);
+            getStats(j.getName()).jobPumped(lag);
+        }
+
         public void offsetChanged(long delta) {
             updateJobTimings(delta);
             synchronized (_jobLock) {
@@ -640,8 +767,15 @@ public class JobQueue {
      */
     private void updateJobTimings(long delta) {
         synchronized (_jobLock) {
-            for (Job j : _timedJobs) {
-                j.getTiming().offsetChanged(delta);
+            if (_concurrentTimedJobs != null) {
+                for (Job j : _concurrentTimedJobs.getJobs()) {
+                    j.getTiming().offsetChanged(delta);
+                }
+                _concurrentTimedJobs.resort();
+            } else {
+                for (Job j : _timedJobs) {
+                    j.getTiming().offsetChanged(delta);
+                }
             }
             for (Job j : _readyJobs) {
                 j.getTiming().offsetChanged(delta);
@@ -671,14 +805,7 @@ public class JobQueue {
         if (lag < 0) lag = 0;
         if (duration < 0) duration = 0;
         
-        JobStats stats = _jobStats.get(key);
-        if (stats == null) {
-            stats = new JobStats(key);
-            JobStats old = _jobStats.putIfAbsent(key, stats);
-            if (old != null)
-                stats = old;
-        }
-        stats.jobRan(duration, lag);
+        getStats(key).jobRan(duration, lag);
 
         String dieMsg = null;
 
@@ -715,6 +842,21 @@ public class JobQueue {
         }
     }
     
+
+    /**
+     *  Get or create the stats for a job name
+     *  @since 0.9.28 split out of updateStats()
+     */
+    private JobStats getStats(String key) {
+        JobStats stats = _jobStats.get(key);
+        if (stats == null) {
+            stats = new JobStats(key);
+            JobStats old = _jobStats.putIfAbsent(key, stats);
+            if (old != null)
+                stats = old;
+        }
+        return stats;
+    }
         
     /** job ID counter changed from int to long so it won't wrap negative */
     private static final int POISON_ID = -99999;
@@ -778,9 +920,14 @@ public class JobQueue {
                     justFinishedJobs.add(job);
             }
         }
-        synchronized (_jobLock) {
-            readyJobs.addAll(_readyJobs); 
-            timedJobs.addAll(_timedJobs);
+        if (_concurrentTimedJobs != null) {
+            readyJobs.addAll(_readyJobs);
+            timedJobs.addAll(_concurrentTimedJobs.getJobs());
+        } else {
+            synchronized (_jobLock) {
+                readyJobs.addAll(_readyJobs); 
+                timedJobs.addAll(_timedJobs);
+            }
         }
         return _queueRunners.size();
     }
@@ -19,6 +19,9 @@ public class JobStats {
     private final AtomicLong _totalPendingTime = new AtomicLong();
     private volatile long _maxPendingTime;
     private volatile long _minPendingTime;
+    private final AtomicLong _numPumped = new AtomicLong();
+    private final AtomicLong _totalPumpLag = new AtomicLong();
+    private volatile long _maxPumpLag;
     
     public JobStats(String name) {
         _job = name;
@@ -50,6 +53,35 @@ public class JobStats {
     /** @since 0.9.19 */
     public long getDropped() { return _numDropped.get(); }
 
+    /**
+     *  A timed job was moved to the ready queue.
+     *  @param lag how late the job queue pumper was, in ms
+     *  @since 0.9.28
+     */
+    public void jobPumped(long lag) {
+        if (lag < 0)
+            lag = 0;
+        _numPumped.incrementAndGet();
+        _totalPumpLag.addAndGet(lag);
+        if (lag > _maxPumpLag)
+            _maxPumpLag = lag;
+    }
+
+    /** @since 0.9.28 */
+    public long getPumped() { return _numPumped.get(); }
+
+    /** @since 0.9.28 */
+    public long getMaxPumpLag() { return _maxPumpLag; }
+
+    /** @since 0.9.28 */
+    public double getAvgPumpLag() {
+        long numPumped = _numPumped.get();
+        if (numPumped > 0)
+            return _totalPumpLag.get() / (double) numPumped;
+        else
+            return 0;
+    }
+
     public String getName() { return _job; }
     public long getRuns() { return _numRuns.get(); }
     public long getTotalTime() { return _totalTime.get(); }
@@ -20,6 +20,7 @@ import java.util.Set;
 
 import net.i2p.data.router.RouterInfo;
 import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.data.i2np.TunnelDataMessage;
 import net.i2p.router.util.CDPQEntry;
 import net.i2p.util.Log;
 
@@ -356,8 +357,13 @@ public class OutNetMessage implements CDPQEntry {
     /** 
      * We've done what we need to do with the data from this message, though
      * we may keep the object around for a while to use its ID, jobs, etc.
+     *
+     * As of 0.9.28, returns the data buffer of a forwarded TunnelDataMessage
+     * to its cache, so the message must not be requeued after this.
      */
     public void discardData() {
+        if (_message != null && _message.getType() == TunnelDataMessage.MESSAGE_TYPE)
+            ((TunnelDataMessage) _message).release();
     }
     
     @Override
@@ -17,6 +17,7 @@ import net.i2p.internal.InternalClientManager;
 import net.i2p.router.client.ClientManagerFacadeImpl;
 import net.i2p.router.crypto.TransientSessionKeyManager;
 import net.i2p.router.dummy.*;
+import net.i2p.router.message.GarlicDecryptPool;
 import net.i2p.router.message.GarlicMessageParser;
 import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
 import net.i2p.router.peermanager.PeerManagerFacadeImpl;
@@ -68,6 +69,7 @@ public class RouterContext extends I2PAppContext {
     private RouterAppManager _appManager;
     private RouterKeyGenerator _routingKeyGenerator;
     private GarlicMessageParser _garlicMessageParser;
+    private GarlicDecryptPool _garlicDecryptPool;
     private final Set<Runnable> _finalShutdownTasks;
     // split up big lock on this to avoid deadlocks
     private volatile boolean _initialized;
@@ -182,6 +184,7 @@ public class RouterContext extends I2PAppContext {
             // internal client manager is null
         }
         _garlicMessageParser = new GarlicMessageParser(this);
+        _garlicDecryptPool = new GarlicDecryptPool(this);
         _clientMessagePool = new ClientMessagePool(this);
         _jobQueue = new JobQueue(this);
         _jobQueue.startup();
@@ -637,4 +640,14 @@ public class RouterContext extends I2PAppContext {
     public GarlicMessageParser garlicMessageParser() {
         return _garlicMessageParser;
     }
+
+    /**
+     * Since we only need one.
+     *
+     * @return non-null after initAll()
+     * @since 0.9.28
+     */
+    public GarlicDecryptPool garlicDecryptPool() {
+        return _garlicDecryptPool;
+    }
 }
@@ -14,6 +14,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -66,6 +68,14 @@ class ClientConnectionRunner {
     private final Socket _socket;
     /** output stream of the socket that I2CP messages bound to the client should be written to */
     private OutputStream _out;
+    /**
+     *  Non-null if the socket came from a ServerSocketChannel, see ClientListenerRunner.PROP_NIO.
+     *  Blocking mode, written to by the ClientWriterRunner thread only.
+     *  @since 0.9.28
+     */
+    private SocketChannel _channel;
+    /** for _channel, ClientWriterRunner thread only @since 0.9.28 */
+    private GatheringOutputStream _gatherer;
 
     private final ConcurrentHashMap<Hash, SessionParams> _sessions;
 
@@ -167,7 +177,10 @@ class ClientConnectionRunner {
             t.setName("I2CP Writer " + __id.incrementAndGet());
             t.setDaemon(true);
             t.start();
-            _out = new BufferedOutputStream(_socket.getOutputStream());
+            _out = new BufferedOutputStream(_socket.getOutputStream(), BUF_SIZE);
+            _channel = _socket.getChannel();
+            if (_channel != null)
+                _gatherer = new GatheringOutputStream();
             _reader.startReading();
             // TODO need a cleaner for unclaimed items in _messages, but we have no timestamps...
     }
@@ -922,15 +935,37 @@ class ClientConnectionRunner {
      *  Not thread-safe. Blocking. Only used for external sockets.
      *  ClientWriterRunner thread is the only caller.
      *  Others must use doSend().
+     *
+     *  Writes the whole batch, then flushes once.
+     *  If we have a channel, the batch is serialized to pooled buffers
+     *  and written with a single gathering write.
+     *
+     *  @param msgs non-empty
+     *  @since 0.9.28 was writeMessage(I2CPMessage)
      */
-    void writeMessage(I2CPMessage msg) {
+    void writeMessages(List<I2CPMessage> msgs) {
         //long before = _context.clock().now();
         try {
             // We don't need synchronization here, ClientWriterRunner is the only writer.
-            //synchronized (_out) {
-                msg.writeMessage(_out);
+            if (_channel != null) {
+                try {
+                    for (int i = 0; i < msgs.size(); i++) {
+                        msgs.get(i).writeMessage(_gatherer);
+                    }
+                    ByteBuffer[] bufs = _gatherer.getBuffers();
+                    long remaining = _gatherer.size();
+                    while (remaining > 0) {
+                        remaining -= _channel.write(bufs);
+                    }
+                } finally {
+                    _gatherer.reset();
+                }
+            } else {
+                for (int i = 0; i < msgs.size(); i++) {
+                    msgs.get(i).writeMessage(_out);
+                }
                 _out.flush();
-            //}
+            }
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("after writeMessage("+ msg.getClass().getName() + "): " 
             //               + (_context.clock().now()-before) + "ms");
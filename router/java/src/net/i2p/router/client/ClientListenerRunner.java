@@ -11,8 +11,10 @@ package net.i2p.router.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import net.i2p.client.I2PClient;
 import net.i2p.router.Router;
@@ -37,6 +39,13 @@ class ClientListenerRunner implements Runnable {
     protected volatile boolean _listening;
     
     public static final String BIND_ALL_INTERFACES = "i2cp.tcp.bindAllInterfaces";
+    /**
+     *  If true, the ServerSocket is from a ServerSocketChannel,
+     *  so the ClientConnectionRunner can do gathering writes to the channel.
+     *  Not for SSL.
+     *  @since 0.9.28
+     */
+    public static final String PROP_NIO = "i2cp.tcp.nio";
 
     public ClientListenerRunner(RouterContext context, ClientManager manager, int port) {
         _context = context;
@@ -54,19 +63,40 @@ class ClientListenerRunner implements Runnable {
      * @since 0.8.3
      */
     protected ServerSocket getServerSocket() throws IOException {
+        boolean nio = _context.getBooleanProperty(PROP_NIO);
         if (_bindAllInterfaces) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Listening on port " + _port + " on all interfaces");
+            if (nio)
+                return getChannelServerSocket(new InetSocketAddress(_port));
             return new ServerSocket(_port);
         } else {
             String listenInterface = _context.getProperty(ClientManagerFacadeImpl.PROP_CLIENT_HOST, 
                                                           ClientManagerFacadeImpl.DEFAULT_HOST);
             if (_log.shouldLog(Log.INFO))
                 _log.info("Listening on port " + _port + " of the specific interface: " + listenInterface);
+            if (nio)
+                return getChannelServerSocket(new InetSocketAddress(InetAddress.getByName(listenInterface), _port));
             return new ServerSocket(_port, 0, InetAddress.getByName(listenInterface));
         }
     }
 
+    /** 
+     * A blocking ServerSocket whose accepted Sockets have channels.
+     * @since 0.9.28
+     */
+    private static ServerSocket getChannelServerSocket(InetSocketAddress addr) throws IOException {
+        ServerSocketChannel chan = ServerSocketChannel.open();
+        try {
+            ServerSocket rv = chan.socket();
+            rv.bind(addr);
+            return rv;
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+    }
+
     public void run() { runServer(); }
 
     /** 
@@ -166,10 +196,19 @@ class ClientListenerRunner implements Runnable {
      *  Verify the first byte.
      *  The InternalSocket doesn't support SoTimeout, so use available()
      *  instead to prevent hanging.
+     *  Sockets with channels may not support available(), so use SoTimeout for those.
      */
     protected boolean validate(Socket socket) {
         try {
             InputStream is = socket.getInputStream();
+            if (socket.getChannel() != null) {
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+                try {
+                    return is.read() == I2PClient.PROTOCOL_BYTE;
+                } finally {
+                    socket.setSoTimeout(0);
+                }
+            }
             for (int i = 0; i < CONNECT_TIMEOUT / LOOP_DELAY; i++) {
                 if (is.available() > 0)
                     return is.read() == I2PClient.PROTOCOL_BYTE;
@@ -111,6 +111,9 @@ class ClientManager {
         _ctx.statManager().createRateStat("client.requestLeaseSetSuccess", "How frequently the router requests successfully a new leaseSet?", "ClientMessages", new long[] { 60*60*1000 });
         _ctx.statManager().createRateStat("client.requestLeaseSetTimeout", "How frequently the router requests a new leaseSet but gets no reply?", "ClientMessages", new long[] { 60*60*1000 });
         _ctx.statManager().createRateStat("client.requestLeaseSetDropped", "How frequently the router requests a new leaseSet but the client drops?", "ClientMessages", new long[] { 60*60*1000 });
+        // following are for ClientWriterRunner
+        _ctx.statManager().createRateStat("client.writerQueueDepth", "How many I2CP messages are queued when the writer wakes up", "ClientMessages", new long[] { 60*1000, 60*60*1000 });
+        _ctx.statManager().createRateStat("client.writerBatchSize", "How many I2CP messages are written at once", "ClientMessages", new long[] { 60*1000, 60*60*1000 });
     }
 
     /** @since 0.9.8 */
@@ -1,5 +1,7 @@
 package net.i2p.router.client;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -16,18 +18,25 @@ import net.i2p.util.Log;
  * happen)
  *
  * For external I2CP connections only.
+ *
+ * As of 0.9.28, everything queued is written as a batch,
+ * with a single flush or channel write.
  */
 class ClientWriterRunner implements Runnable {
     private final BlockingQueue<I2CPMessage> _messagesToWrite;
     private final ClientConnectionRunner _runner;
+    private final RouterContext _context;
     //private final Log _log;
     //private final long _id;
     //private static long __id = 0;
 
     private static final int QUEUE_SIZE = 256;
+    /** @since 0.9.28 */
+    private static final int MAX_BATCH = 64;
     
     public ClientWriterRunner(RouterContext context, ClientConnectionRunner runner) {
         //_log = context.logManager().getLog(ClientWriterRunner.class);
+        _context = context;
         _messagesToWrite = new LinkedBlockingQueue<I2CPMessage>(QUEUE_SIZE);
         _runner = runner;
         //_id = ++__id;
@@ -59,6 +68,7 @@ class ClientWriterRunner implements Runnable {
 
     public void run() {
         I2CPMessage msg;
+        List<I2CPMessage> batch = new ArrayList<I2CPMessage>(MAX_BATCH);
         while (!_runner.getIsDead()) {
             try {
                 msg = _messagesToWrite.take();
@@ -67,7 +77,25 @@ class ClientWriterRunner implements Runnable {
             }
             if (msg.getType() == PoisonI2CPMessage.MESSAGE_TYPE)
                 break;
-            _runner.writeMessage(msg);
+            int depth = _messagesToWrite.size();
+            batch.add(msg);
+            if (depth > 0)
+                _messagesToWrite.drainTo(batch, MAX_BATCH - 1);
+            boolean poisoned = false;
+            for (int i = 1; i < batch.size(); i++) {
+                if (batch.get(i).getType() == PoisonI2CPMessage.MESSAGE_TYPE) {
+                    // stopWriting() cleared the queue first, so this is the last one
+                    batch.subList(i, batch.size()).clear();
+                    poisoned = true;
+                    break;
+                }
+            }
+            _context.statManager().addRateData("client.writerQueueDepth", depth + 1);
+            _context.statManager().addRateData("client.writerBatchSize", batch.size());
+            _runner.writeMessages(batch);
+            batch.clear();
+            if (poisoned)
+                break;
         }
     }
 }
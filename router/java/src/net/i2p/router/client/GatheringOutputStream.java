@@ -0,0 +1,94 @@
+package net.i2p.router.client;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.data.ByteArray;
+import net.i2p.util.ByteCache;
+
+/**
+ *  Collects everything written in a chain of pooled buffers,
+ *  so that a batch of I2CP messages may be sent to a
+ *  SocketChannel in one gathering write.
+ *
+ *  Not thread-safe. Call reset() after each write to release the buffers.
+ *
+ *  @since 0.9.28
+ */
+class GatheringOutputStream extends OutputStream {
+    private final List<ByteArray> _chunks;
+    /** the last chunk, valid is the number of bytes used */
+    private ByteArray _current;
+    private int _size;
+
+    private static final int CHUNK_SIZE = 16*1024;
+    private static final ByteCache _cache = ByteCache.getInstance(32, CHUNK_SIZE);
+
+    public GatheringOutputStream() {
+        _chunks = new ArrayList<ByteArray>(4);
+    }
+
+    @Override
+    public void write(int b) {
+        if (_current == null || _current.getValid() >= CHUNK_SIZE)
+            nextChunk();
+        int valid = _current.getValid();
+        _current.getData()[valid] = (byte) b;
+        _current.setValid(valid + 1);
+        _size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (_current == null || _current.getValid() >= CHUNK_SIZE)
+                nextChunk();
+            int valid = _current.getValid();
+            int toCopy = Math.min(len, CHUNK_SIZE - valid);
+            System.arraycopy(b, off, _current.getData(), valid, toCopy);
+            _current.setValid(valid + toCopy);
+            off += toCopy;
+            len -= toCopy;
+            _size += toCopy;
+        }
+    }
+
+    private void nextChunk() {
+        _current = _cache.acquire();
+        _chunks.add(_current);
+    }
+
+    /**
+     *  @return total bytes written since the last reset()
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *  The data, ready for a gathering write.
+     *  The buffers are backed by the pooled chunks and are only valid until reset().
+     */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer[] rv = new ByteBuffer[_chunks.size()];
+        for (int i = 0; i < rv.length; i++) {
+            ByteArray ba = _chunks.get(i);
+            rv[i] = ByteBuffer.wrap(ba.getData(), 0, ba.getValid());
+        }
+        return rv;
+    }
+
+    /**
+     *  Return the buffers to the pool
+     */
+    public void reset() {
+        for (ByteArray ba : _chunks) {
+            _cache.release(ba, false);
+        }
+        _chunks.clear();
+        _current = null;
+        _size = 0;
+    }
+}
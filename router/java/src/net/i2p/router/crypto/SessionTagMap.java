@@ -0,0 +1,246 @@
+package net.i2p.router.crypto;
+
+import net.i2p.data.SessionTag;
+import net.i2p.util.SipHash;
+
+/**
+ *  A compact concurrent map from 32-byte session tags to values.
+ *
+ *  Tags are stored as primitive longs in open-addressed tables with
+ *  linear probing, so there is no SessionTag, byte array, or entry
+ *  object per mapping. The map is split into segments, each with its own lock,
+ *  so lookups from multiple decrypt threads rarely contend.
+ *
+ *  Hashing uses the same keyed SipHash as SessionTag.hashCode(),
+ *  since tags are chosen by our peers.
+ *
+ *  Null values are not allowed.
+ *
+ *  @since 0.9.28
+ */
+class SessionTagMap<V> {
+    private final Segment<V>[] _segments;
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 4;
+    private static final int MIN_CAPACITY = 16;
+    private static final int LEN = SessionTag.BYTE_LENGTH;
+
+    public SessionTagMap() {
+        @SuppressWarnings("unchecked")
+        Segment<V>[] segs = (Segment<V>[]) new Segment<?>[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segs[i] = new Segment<V>();
+        }
+        _segments = segs;
+    }
+
+    /**
+     *  @return the value or null
+     */
+    public V get(SessionTag tag) {
+        int hash = tag.hashCode();
+        return segment(hash).get(tag.getData(), 0, hash);
+    }
+
+    /**
+     *  @return the previous value, or null if the value was added
+     */
+    public V putIfAbsent(SessionTag tag, V value) {
+        int hash = tag.hashCode();
+        return segment(hash).putIfAbsent(tag.getData(), 0, hash, value);
+    }
+
+    /**
+     *  @return the removed value or null
+     */
+    public V remove(SessionTag tag) {
+        int hash = tag.hashCode();
+        return segment(hash).remove(tag.getData(), 0, hash, null);
+    }
+
+    /**
+     *  Remove the tag only if it is mapped to the value.
+     *
+     *  @param data 32 bytes starting at off
+     *  @return success
+     */
+    public boolean remove(byte[] data, int off, V value) {
+        int hash = (int) SipHash.digest(data, off, LEN);
+        return segment(hash).remove(data, off, hash, value) != null;
+    }
+
+    public int size() {
+        int rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += _segments[i].size;
+        }
+        return rv;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i].clear();
+        }
+    }
+
+    private Segment<V> segment(int hash) {
+        return _segments[hash & (SEGMENTS - 1)];
+    }
+
+    /** big endian */
+    private static long toLong(byte[] data, int off) {
+        return ((data[off] & 0xffL) << 56) |
+               ((data[off + 1] & 0xffL) << 48) |
+               ((data[off + 2] & 0xffL) << 40) |
+               ((data[off + 3] & 0xffL) << 32) |
+               ((data[off + 4] & 0xffL) << 24) |
+               ((data[off + 5] & 0xffL) << 16) |
+               ((data[off + 6] & 0xffL) << 8) |
+               (data[off + 7] & 0xffL);
+    }
+
+    /**
+     *  One open-addressed table. All methods synchronized.
+     *  Removal shifts following entries back, so there are no tombstones.
+     */
+    private static class Segment<V> {
+        /** 4 per slot */
+        private long[] _keys;
+        private int[] _hashes;
+        /** null if the slot is empty */
+        private Object[] _values;
+        private int _mask;
+        /** written under lock, read unlocked by size() */
+        volatile int size;
+
+        public Segment() {
+            init(MIN_CAPACITY);
+        }
+
+        private void init(int capacity) {
+            _keys = new long[capacity * 4];
+            _hashes = new int[capacity];
+            _values = new Object[capacity];
+            _mask = capacity - 1;
+        }
+
+        private int home(int hash) {
+            return (hash >>> SEGMENT_SHIFT) & _mask;
+        }
+
+        /**
+         *  @return slot or -1
+         */
+        private int find(byte[] data, int off, int hash) {
+            long k0 = toLong(data, off);
+            long k1 = toLong(data, off + 8);
+            long k2 = toLong(data, off + 16);
+            long k3 = toLong(data, off + 24);
+            int i = home(hash);
+            while (_values[i] != null) {
+                int k = i * 4;
+                if (_hashes[i] == hash &&
+                    _keys[k] == k0 && _keys[k + 1] == k1 &&
+                    _keys[k + 2] == k2 && _keys[k + 3] == k3)
+                    return i;
+                i = (i + 1) & _mask;
+            }
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        public synchronized V get(byte[] data, int off, int hash) {
+            int i = find(data, off, hash);
+            return i >= 0 ? (V) _values[i] : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public synchronized V putIfAbsent(byte[] data, int off, int hash, V value) {
+            int i = find(data, off, hash);
+            if (i >= 0)
+                return (V) _values[i];
+            // keep the load factor under 3/4
+            if ((size + 1) * 4 > _values.length * 3)
+                resize(_values.length * 2);
+            i = home(hash);
+            while (_values[i] != null) {
+                i = (i + 1) & _mask;
+            }
+            int k = i * 4;
+            _keys[k] = toLong(data, off);
+            _keys[k + 1] = toLong(data, off + 8);
+            _keys[k + 2] = toLong(data, off + 16);
+            _keys[k + 3] = toLong(data, off + 24);
+            _hashes[i] = hash;
+            _values[i] = value;
+            size++;
+            return null;
+        }
+
+        /**
+         *  @param value if non-null, only remove if mapped to this value
+         *  @return the removed value or null
+         */
+        @SuppressWarnings("unchecked")
+        public synchronized V remove(byte[] data, int off, int hash, V value) {
+            int i = find(data, off, hash);
+            if (i < 0)
+                return null;
+            V rv = (V) _values[i];
+            if (value != null && rv != value)
+                return null;
+            delete(i);
+            size--;
+            // give back the memory after a burst
+            if (_values.length > MIN_CAPACITY && size * 8 < _values.length)
+                resize(_values.length / 2);
+            return rv;
+        }
+
+        /**
+         *  Empty slot i, moving back any following entries
+         *  that would then be unreachable.
+         */
+        private void delete(int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & _mask;
+                if (_values[j] == null)
+                    break;
+                int h = home(_hashes[j]);
+                // leave it if its home is cyclically in (i, j]
+                if (i <= j ? (i < h && h <= j) : (i < h || h <= j))
+                    continue;
+                System.arraycopy(_keys, j * 4, _keys, i * 4, 4);
+                _hashes[i] = _hashes[j];
+                _values[i] = _values[j];
+                i = j;
+            }
+            _values[i] = null;
+        }
+
+        private void resize(int capacity) {
+            long[] keys = _keys;
+            int[] hashes = _hashes;
+            Object[] values = _values;
+            init(capacity);
+            for (int j = 0; j < values.length; j++) {
+                if (values[j] == null)
+                    continue;
+                int i = home(hashes[j]);
+                while (_values[i] != null) {
+                    i = (i + 1) & _mask;
+                }
+                System.arraycopy(keys, j * 4, _keys, i * 4, 4);
+                _hashes[i] = hashes[j];
+                _values[i] = values[j];
+            }
+        }
+
+        public synchronized void clear() {
+            init(MIN_CAPACITY);
+            size = 0;
+        }
+    }
+}
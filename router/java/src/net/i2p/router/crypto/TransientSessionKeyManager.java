@@ -21,7 +21,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -80,7 +83,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
     /** Map allowing us to go from a SessionTag to the containing TagSet */
-    private final Map<SessionTag, TagSet> _inboundTagSets;
+    private final SessionTagMap<InboundTagSet> _inboundTagSets;
+    /**
+     *  Inbound TagSets by expiration time, rounded up to EXPIRE_BUCKET_MS,
+     *  so they can be expired in batches without scanning every tag.
+     *  Synchronize on this.
+     */
+    private final SortedMap<Long, List<InboundTagSet>> _inboundExpirations;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -104,6 +113,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     private final static long SESSION_LIFETIME_MAX_MS = SESSION_TAG_DURATION_MS + 3 * 60 * 1000;
 
+    /** granularity of _inboundExpirations */
+    private final static long EXPIRE_BUCKET_MS = 30 * 1000;
+
     /**
      * Time to send more if we are this close to expiration
      */
@@ -178,8 +190,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         _lowThreshold = lowThreshold;
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
-        _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        _outboundSessions = new ConcurrentHashMap<PublicKey, OutboundSession>(64);
+        _inboundTagSets = new SessionTagMap<InboundTagSet>();
+        _inboundExpirations = new TreeMap<Long, List<InboundTagSet>>();
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
@@ -189,12 +202,11 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public void shutdown() {
          _alive = false;
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
-        }
-        synchronized (_outboundSessions) {
-            _outboundSessions.clear();
+        synchronized (_inboundExpirations) {
+            _inboundExpirations.clear();
         }
+        _inboundTagSets.clear();
+        _outboundSessions.clear();
     }
 
     private class CleanupEvent implements SimpleTimer.TimedEvent {
@@ -210,18 +222,23 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
 
-    /** TagSet - used only by HTML */
-    private Set<TagSet> getInboundTagSets() {
-        synchronized (_inboundTagSets) {
-            return new HashSet<TagSet>(_inboundTagSets.values());
+    /** InboundTagSet with tags remaining - used only by HTML */
+    private Set<InboundTagSet> getInboundTagSets() {
+        Set<InboundTagSet> rv = new HashSet<InboundTagSet>();
+        synchronized (_inboundExpirations) {
+            for (List<InboundTagSet> sets : _inboundExpirations.values()) {
+                for (InboundTagSet ts : sets) {
+                    if (ts.getRemaining() > 0)
+                        rv.add(ts);
+                }
+            }
         }
+        return rv;
     }
 
     /** OutboundSession - used only by HTML */
     private Set<OutboundSession> getOutboundSessions() {
-        synchronized (_outboundSessions) {
-            return new HashSet<OutboundSession>(_outboundSessions.values());
-        }
+        return new HashSet<OutboundSession>(_outboundSessions.values());
     }
 
 /****** leftover from when we had the persistent SKM
@@ -518,46 +535,48 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public void tagsReceived(SessionKey key, Set<SessionTag> sessionTags, long expire) {
-        TagSet tagSet = new TagSet(sessionTags, key, _context.clock().now() + expire,
-                                   _rcvTagSetID.incrementAndGet());
+        InboundTagSet tagSet = new InboundTagSet(sessionTags, key, _context.clock().now() + expire,
+                                                 _rcvTagSetID.incrementAndGet());
         if (_log.shouldLog(Log.INFO)) {
             _log.info("Received " + tagSet);
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Tags: " + DataHelper.toString(sessionTags));
         }
-        TagSet old = null;
+        InboundTagSet old = null;
         SessionTag dupTag = null;
-        synchronized (_inboundTagSets) {
-            for (SessionTag tag : sessionTags) {
-                old = _inboundTagSets.put(tag, tagSet);
-                if (old != null) {
-                    if (!old.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
-                        _inboundTagSets.remove(tag);
-                        dupTag = tag;
-                        break;
-                    } else {
-                        old = null; // ignore the dup
-                    }
+        for (SessionTag tag : sessionTags) {
+            InboundTagSet cur = _inboundTagSets.putIfAbsent(tag, tagSet);
+            if (cur != null) {
+                if (!cur.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
+                    _inboundTagSets.remove(tag);
+                    old = cur;
+                    dupTag = tag;
+                    break;
                 }
+                // else ignore the dup
             }
         }
 
         if (old != null) {
             // drop both old and tagSet tags
-            synchronized (_inboundTagSets) {
-                for (SessionTag tag : old.getTags()) {
-                    _inboundTagSets.remove(tag);
-                }
-                for (SessionTag tag : sessionTags) {
-                    _inboundTagSets.remove(tag);
-                }
-            }
+            removeTags(old);
+            removeTags(tagSet);
 
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("Multiple tags matching!  tagSet: " + tagSet + " and old tagSet: " + old + " tag: " + dupTag + "/" + dupTag);
                 _log.warn("Earlier tag set creation: " + old + ": key=" + old.getAssociatedKey());
                 _log.warn("Current tag set creation: " + tagSet + ": key=" + tagSet.getAssociatedKey());
             }
+        } else {
+            Long bucket = Long.valueOf(((tagSet.getDate() + EXPIRE_BUCKET_MS - 1) / EXPIRE_BUCKET_MS) * EXPIRE_BUCKET_MS);
+            synchronized (_inboundExpirations) {
+                List<InboundTagSet> sets = _inboundExpirations.get(bucket);
+                if (sets == null) {
+                    sets = new ArrayList<InboundTagSet>();
+                    _inboundExpirations.put(bucket, sets);
+                }
+                sets.add(tagSet);
+            }
         }
         
         int overage = _inboundTagSets.size() - MAX_INBOUND_SESSION_TAGS;
@@ -570,61 +589,64 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
     
     /**
-     * remove a bunch of arbitrarily selected tags, then drop all of
-     * the associated tag sets.  this is very time consuming - iterating
-     * across the entire _inboundTagSets map, but it should be very rare,
-     * and the stats we can gather can hopefully reduce the frequency of
-     * using too many session tags in the future
+     * Remove the tag sets that expire soonest, and all their remaining tags,
+     * until we have removed twice the overage.
+     * This should be very rare, and the stats we can gather can hopefully
+     * reduce the frequency of using too many session tags in the future.
      *
+     * Prior to 0.9.28, this removed arbitrarily selected tag sets,
+     * iterating across the entire _inboundTagSets map.
      */
     private void clearExcess(int overage) {
-        long now = _context.clock().now();
-        int old = 0;
         int large = 0;
         int absurd = 0;
-        int recent = 0;
         int tags = 0;
         int toRemove = overage * 2;
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS! Starting cleanup, overage = " + overage);
-        List<TagSet> removed = new ArrayList<TagSet>(toRemove);
-        synchronized (_inboundTagSets) {
-            for (TagSet set : _inboundTagSets.values()) {
-                int size = set.getTags().size();
-                if (size > 1000)
-                    absurd++;
-                if (size > 100)
-                    large++;
-                if (set.getDate() - now < 3*60*1000) {
-                    // expiration is 12 minutes, so these are older than 9 minutes
-                    old++;
+        List<InboundTagSet> removed = new ArrayList<InboundTagSet>();
+        synchronized (_inboundExpirations) {
+            int remaining = 0;
+            for (Iterator<List<InboundTagSet>> iter = _inboundExpirations.values().iterator();
+                 iter.hasNext() && remaining < toRemove; ) {
+                List<InboundTagSet> sets = iter.next();
+                iter.remove();
+                for (InboundTagSet set : sets) {
+                    remaining += set.getRemaining();
                     removed.add(set);
-                    continue;
-                } else if (set.getDate() - now > 8*60*1000) {
-                    // expiration is 12 minutes, so these were created in last 4 minutes
-                    recent++;
-                    continue;
-                }
-
-                if (removed.size() < toRemove)
-                    removed.add(set);
-            }
-            for (int i = 0; i < removed.size(); i++) {
-                TagSet cur = removed.get(i);
-                for (SessionTag tag : cur.getTags()) {
-                    _inboundTagSets.remove(tag);
-                    tags++;
                 }
             }
         }
+        for (InboundTagSet set : removed) {
+            int size = set.getOriginalSize();
+            if (size > 1000)
+                absurd++;
+            if (size > 100)
+                large++;
+            tags += removeTags(set);
+        }
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS!  removed " + removed.size() 
-                     + " tag sets arbitrarily, with " + tags + " tags,"
-                     + "where there are " + old + " long lasting sessions, "
-                     + recent + " ones created in the last few minutes, and "
-                     + large + " sessions with more than 100 tags (and "
+                     + " tag sets expiring soonest, with " + tags + " tags, "
+                     + large + " sets with more than 100 tags (and "
                      + absurd + " with more than 1000!), leaving a total of "
                      + _inboundTagSets.size() + " tags behind");
     }
 
+    /**
+     * Remove all of the set's tags that are still mapped to it.
+     *
+     * @return number of tags removed
+     * @since 0.9.28
+     */
+    private int removeTags(InboundTagSet set) {
+        int rv = 0;
+        byte[] tags = set.getTagData();
+        for (int off = 0; off < tags.length; off += SessionTag.BYTE_LENGTH) {
+            if (_inboundTagSets.remove(tags, off, set))
+                rv++;
+        }
+        return rv;
+    }
+
     /**
      * Determine if we have received a session key associated with the given session tag,
      * and if so, discard it (but keep track for frequent dups) and return the decryption
@@ -634,16 +656,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public SessionKey consumeTag(SessionTag tag) {
-        TagSet tagSet;
-        synchronized (_inboundTagSets) {
-            tagSet = _inboundTagSets.remove(tag);
-            if (tagSet == null) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Cannot consume IB " + tag + " as it is not known");
-                return null;
-            }
-            tagSet.consume(tag);
+        InboundTagSet tagSet = _inboundTagSets.remove(tag);
+        if (tagSet == null) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Cannot consume IB " + tag + " as it is not known");
+            return null;
         }
+        tagSet.consume();
 
         SessionKey key = tagSet.getAssociatedKey();
         if (_log.shouldLog(Log.DEBUG))
@@ -652,23 +671,16 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
     private OutboundSession getSession(PublicKey target) {
-        synchronized (_outboundSessions) {
-            return _outboundSessions.get(target);
-        }
+        return _outboundSessions.get(target);
     }
 
     private void addSession(OutboundSession sess) {
-        synchronized (_outboundSessions) {
-            _outboundSessions.put(sess.getTarget(), sess);
-        }
+        _outboundSessions.put(sess.getTarget(), sess);
     }
 
     private void removeSession(PublicKey target) {
         if (target == null) return;
-        OutboundSession session = null;
-        synchronized (_outboundSessions) {
-            session = _outboundSessions.remove(target);
-        }
+        OutboundSession session = _outboundSessions.remove(target);
         if ( (session != null) && (_log.shouldLog(Log.WARN)) )
             _log.warn("Removing session tags with " + session.availableTags() + " available for "
                        + (session.getLastExpirationDate()-_context.clock().now())
@@ -685,32 +697,34 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int remaining = 0;
         long now = _context.clock().now();
 
-        synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
-                }
+        // buckets are keyed by the latest expiration time in them
+        List<InboundTagSet> expired = new ArrayList<InboundTagSet>();
+        synchronized (_inboundExpirations) {
+            for (Iterator<Map.Entry<Long, List<InboundTagSet>>> iter = _inboundExpirations.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<Long, List<InboundTagSet>> e = iter.next();
+                if (e.getKey().longValue() > now)
+                    break;
+                expired.addAll(e.getValue());
+                iter.remove();
             }
-            remaining = _inboundTagSets.size();
         }
+        for (InboundTagSet ts : expired) {
+            // bug, this counts inbound tags, not tag sets
+            removed += removeTags(ts);
+        }
+        remaining = _inboundTagSets.size();
         _context.statManager().addRateData("crypto.sessionTagsRemaining", remaining, 0);
         if (removed > 0 && _log.shouldLog(Log.DEBUG))
             _log.debug("Expired inbound: " + removed);
 
-        synchronized (_outboundSessions) {
-            for (Iterator<OutboundSession> iter = _outboundSessions.values().iterator(); iter.hasNext();) {
-                OutboundSession sess = iter.next();
-                removed += sess.expireTags();
-                // don't kill a new session or one that's temporarily out of tags
-                if (sess.getLastUsedDate() < now - (SESSION_LIFETIME_MAX_MS / 2) &&
-                    sess.availableTags() <= 0) {
-                    iter.remove();
-                    removed++;   // just to have a non-zero return value?
-                }
+        for (Iterator<OutboundSession> iter = _outboundSessions.values().iterator(); iter.hasNext();) {
+            OutboundSession sess = iter.next();
+            removed += sess.expireTags();
+            // don't kill a new session or one that's temporarily out of tags
+            if (sess.getLastUsedDate() < now - (SESSION_LIFETIME_MAX_MS / 2) &&
+                sess.availableTags() <= 0) {
+                iter.remove();
+                removed++;   // just to have a non-zero return value?
             }
         }
         return removed;
@@ -721,28 +735,28 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         StringBuilder buf = new StringBuilder(1024);
         buf.append("<h2>Inbound sessions</h2>" +
                    "<table>");
-        Set<TagSet> inbound = getInboundTagSets();
-        Map<SessionKey, Set<TagSet>> inboundSets = new HashMap<SessionKey, Set<TagSet>>(inbound.size());
+        Set<InboundTagSet> inbound = getInboundTagSets();
+        Map<SessionKey, Set<InboundTagSet>> inboundSets = new HashMap<SessionKey, Set<InboundTagSet>>(inbound.size());
         // Build a map of the inbound tag sets, grouped by SessionKey
-        for (TagSet ts : inbound) {
-            Set<TagSet> sets = inboundSets.get(ts.getAssociatedKey());
+        for (InboundTagSet ts : inbound) {
+            Set<InboundTagSet> sets = inboundSets.get(ts.getAssociatedKey());
             if (sets == null) {
-                sets = new HashSet<TagSet>();
+                sets = new HashSet<InboundTagSet>();
                 inboundSets.put(ts.getAssociatedKey(), sets);
             }
             sets.add(ts);
         }
         int total = 0;
         long now = _context.clock().now();
-        for (Map.Entry<SessionKey, Set<TagSet>> e : inboundSets.entrySet()) {
+        for (Map.Entry<SessionKey, Set<InboundTagSet>> e : inboundSets.entrySet()) {
             SessionKey skey = e.getKey();
-            Set<TagSet> sets = new TreeSet<TagSet>(new TagSetComparator());
+            Set<InboundTagSet> sets = new TreeSet<InboundTagSet>(new InboundTagSetComparator());
             sets.addAll(e.getValue());
             buf.append("<tr><td><b>Session key</b>: ").append(skey.toBase64()).append("</td>" +
                        "<td><b># Sets:</b> ").append(sets.size()).append("</td></tr>" +
                        "<tr><td colspan=\"2\"><ul>");
-            for (TagSet ts : sets) {
-                int size = ts.getTags().size();
+            for (InboundTagSet ts : sets) {
+                int size = ts.getRemaining();
                 total += size;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
@@ -816,6 +830,20 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
     }
 
+    /**
+     *  Just for the HTML method above so we can see what's going on easier
+     *  Earliest first
+     *  @since 0.9.28
+     */
+    private static class InboundTagSetComparator implements Comparator<InboundTagSet> {
+         public int compare(InboundTagSet l, InboundTagSet r) {
+             int rv = (int) (l.getDate() - r.getDate());
+             if (rv != 0)
+                 return rv;
+             return l.hashCode() - r.hashCode();
+        }
+    }
+
     /**
      *  The state for a crypto session to a single public key
      */
@@ -1088,6 +1116,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
     }
 
+    /**
+     *  Outbound only as of 0.9.28, see InboundTagSet
+     */
     private static class TagSet implements TagSetHandle {
         private final Set<SessionTag> _sessionTags;
         private final SessionKey _key;
@@ -1211,4 +1242,82 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             return buf.toString();
         }
     }
+
+    /**
+     *  A set of tags received together, for decryption.
+     *  The tags are stored in a single array; the lookup from tag to set
+     *  is in _inboundTagSets. The array is only used to remove the
+     *  tags that were not consumed, when the set expires.
+     *
+     *  @since 0.9.28, was TagSet
+     */
+    private static class InboundTagSet {
+        private final byte[] _tags;
+        private final SessionKey _key;
+        private final long _date;
+        private final int _id;
+        private final AtomicInteger _remaining;
+
+        /**
+         *  @param date when the set will expire
+         */
+        public InboundTagSet(Set<SessionTag> tags, SessionKey key, long date, int id) {
+            if (key == null) throw new IllegalArgumentException("Missing key");
+            if (tags == null) throw new IllegalArgumentException("Missing tags");
+            _tags = new byte[tags.size() * SessionTag.BYTE_LENGTH];
+            int off = 0;
+            for (SessionTag tag : tags) {
+                System.arraycopy(tag.getData(), 0, _tags, off, SessionTag.BYTE_LENGTH);
+                off += SessionTag.BYTE_LENGTH;
+            }
+            _key = key;
+            _date = date;
+            _id = id;
+            _remaining = new AtomicInteger(tags.size());
+        }
+
+        /**
+         *  When the set will expire
+         */
+        public long getDate() {
+            return _date;
+        }
+
+        public int getOriginalSize() {
+            return _tags.length / SessionTag.BYTE_LENGTH;
+        }
+
+        /** tags not yet consumed, but may include tags removed as dups */
+        public int getRemaining() {
+            return _remaining.get();
+        }
+
+        /** all the tags, 32 bytes each, consumed or not. Do not modify. */
+        public byte[] getTagData() {
+            return _tags;
+        }
+
+        public SessionKey getAssociatedKey() {
+            return _key;
+        }
+
+        /** one of our tags was consumed */
+        public void consume() {
+            _remaining.decrementAndGet();
+        }
+
+        public int getID() {
+            return _id;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder(256);
+            buf.append("TagSet #").append(_id).append(" expires: ").append(new Date(_date));
+            buf.append(" Session key: ").append(_key);
+            buf.append(" Size: ").append(getRemaining());
+            buf.append('/').append(getOriginalSize());
+            return buf.toString();
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package net.i2p.router.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.i2p.crypto.SessionKeyManager;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.i2np.GarlicMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  Decrypts new-session (ElGamal) garlic messages off the caller's thread.
+ *
+ *  Garlic messages using an existing session tag are cheap to decrypt
+ *  and are still handled inline by the GarlicMessageReceiver.
+ *  A garlic message with an unknown tag needs an ElGamal decrypt,
+ *  which takes several ms, and a burst of them would stall the
+ *  job runners and tunnel threads calling GarlicMessageReceiver.receive().
+ *  Those are queued here instead, and the resulting cloves are
+ *  handed back to the GarlicMessageReceiver on one of our threads.
+ *
+ *  Each thread has its own queue, and all messages for the same
+ *  SessionKeyManager go to the same queue, so they are decrypted in order.
+ *  A follow-up message using tags delivered in a still-queued new session
+ *  message also misses the tag lookup, is queued behind it,
+ *  and finds the tags when its turn comes.
+ *
+ *  The queues are bounded. When a queue is full, the message is
+ *  decrypted inline on the caller's thread, as if there were no pool.
+ *  If the message expires while queued, it is dropped.
+ *
+ *  For use by the router only. Not to be used by applications or plugins.
+ *
+ *  @since 0.9.28
+ */
+public class GarlicDecryptPool {
+    private final RouterContext _context;
+    private final Log _log;
+    /** one per thread */
+    private final List<BlockingQueue<Task>> _queues;
+    private final int _numThreads;
+    private volatile boolean _isRunning;
+
+    /** 0 to decrypt inline as before */
+    public static final String PROP_THREADS = "router.garlicDecryptThreads";
+    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_PER_THREAD = 32;
+    /** max tasks handled per wakeup */
+    private static final int MAX_BATCH = 8;
+
+    public GarlicDecryptPool(RouterContext ctx) {
+        this(ctx, defaultThreads(ctx), QUEUE_PER_THREAD);
+    }
+
+    /**
+     *  For tests
+     *
+     *  @param threads 0 to decrypt inline
+     *  @param queueSize per thread
+     */
+    GarlicDecryptPool(RouterContext ctx, int threads, int queueSize) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(GarlicDecryptPool.class);
+        _numThreads = threads;
+        _queues = new ArrayList<BlockingQueue<Task>>(threads);
+        for (int i = 0; i < threads; i++) {
+            _queues.add(new LinkedBlockingQueue<Task>(queueSize));
+        }
+        ctx.statManager().createRateStat("crypto.garlic.decryptQueueTime", "Time a new session garlic waits for decryption (ms)", "Encryption", new long[] { 60*1000, 10*60*1000 });
+        ctx.statManager().createRateStat("crypto.garlic.decryptQueueFull", "New session garlic decrypted inline, decrypt queue full", "Encryption", new long[] { 60*1000, 60*60*1000 });
+        ctx.statManager().createRateStat("crypto.garlic.decryptExpired", "New session garlic dropped, expired in decrypt queue", "Encryption", new long[] { 60*1000, 60*60*1000 });
+    }
+
+    public synchronized void startup() {
+        if (_isRunning || _numThreads <= 0)
+            return;
+        _isRunning = true;
+        for (int i = 1; i <= _numThreads; i++) {
+            I2PThread t = new I2PThread(new Runner(_queues.get(i - 1)), "GarlicDecrypt " + i + '/' + _numThreads, true);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (!_isRunning)
+            return;
+        _isRunning = false;
+        Task poison = new Task(null, null, null, null, 0);
+        for (BlockingQueue<Task> queue : _queues) {
+            queue.clear();
+            queue.offer(poison);
+        }
+    }
+
+    private static int defaultThreads(RouterContext ctx) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int def = Math.max(1, Math.min(MAX_THREADS, cores / 2));
+        return Math.max(0, Math.min(2 * MAX_THREADS, ctx.getProperty(PROP_THREADS, def)));
+    }
+
+    /**
+     *  @return false if not running; the caller should decrypt inline
+     */
+    public boolean isRunning() {
+        return _isRunning;
+    }
+
+    /**
+     *  Queue a message for decryption as a new session,
+     *  behind any other queued messages for the same SessionKeyManager.
+     *  The result is passed to receiver.received() on a pool thread.
+     *
+     *  Does not block on the queue. If the queue is full, or the pool
+     *  is not running, the message is decrypted inline on this thread
+     *  and the result is passed to receiver.received() before returning.
+     *
+     *  @return true if queued, false if decrypted inline
+     */
+    public boolean add(GarlicMessageReceiver receiver, GarlicMessage message,
+                       PrivateKey key, SessionKeyManager skm) {
+        if (_isRunning) {
+            BlockingQueue<Task> queue = _queues.get((System.identityHashCode(skm) & 0x7fffffff) % _numThreads);
+            if (queue.offer(new Task(receiver, message, key, skm, _context.clock().now())))
+                return true;
+            _context.statManager().addRateData("crypto.garlic.decryptQueueFull", 1);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Garlic decrypt queue full, decrypting inline " + message.getUniqueId());
+        }
+        receiver.received(message, getCloves(message, key, skm));
+        return false;
+    }
+
+    /**
+     *  @return number of messages waiting
+     */
+    public int getQueueSize() {
+        int rv = 0;
+        for (BlockingQueue<Task> queue : _queues) {
+            rv += queue.size();
+        }
+        return rv;
+    }
+
+    /**
+     *  The expensive part. Overridden in tests.
+     *
+     *  Not the 4-arg version with a null key,
+     *  the tags may have arrived while we were queued.
+     *
+     *  @return null on failure
+     */
+    CloveSet getCloves(GarlicMessage msg, PrivateKey key, SessionKeyManager skm) {
+        return _context.garlicMessageParser().getGarlicCloves(msg, key, skm);
+    }
+
+    private static class Task {
+        final GarlicMessageReceiver receiver;
+        final GarlicMessage message;
+        final PrivateKey key;
+        final SessionKeyManager skm;
+        final long queued;
+
+        /** all null for poison */
+        public Task(GarlicMessageReceiver r, GarlicMessage msg, PrivateKey k, SessionKeyManager s, long now) {
+            receiver = r;
+            message = msg;
+            key = k;
+            skm = s;
+            queued = now;
+        }
+    }
+
+    private class Runner implements Runnable {
+        private final BlockingQueue<Task> _queue;
+        private final List<Task> _batch = new ArrayList<Task>(MAX_BATCH);
+
+        public Runner(BlockingQueue<Task> queue) {
+            _queue = queue;
+        }
+
+        public void run() {
+            while (_isRunning) {
+                try {
+                    _batch.add(_queue.take());
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                _queue.drainTo(_batch, MAX_BATCH - 1);
+                for (int i = 0; i < _batch.size(); i++) {
+                    Task task = _batch.get(i);
+                    if (task.message == null) {
+                        // poison
+                        _batch.clear();
+                        return;
+                    }
+                    try {
+                        decrypt(task);
+                    } catch (RuntimeException e) {
+                        _log.log(Log.CRIT, "Error decrypting garlic", e);
+                    }
+                }
+                _batch.clear();
+            }
+        }
+
+        private void decrypt(Task task) {
+            long now = _context.clock().now();
+            GarlicMessage msg = task.message;
+            _context.statManager().addRateData("crypto.garlic.decryptQueueTime", now - task.queued);
+            if (msg.getMessageExpiration() < now) {
+                _context.statManager().addRateData("crypto.garlic.decryptExpired", 1);
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Garlic " + msg.getUniqueId() + " expired waiting " +
+                              (now - task.queued) + "ms for decryption");
+                return;
+            }
+            task.receiver.received(msg, getCloves(msg, task.key, task.skm));
+        }
+    }
+}
@@ -16,6 +16,7 @@ import net.i2p.data.Certificate;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.PrivateKey;
+import net.i2p.data.SessionKey;
 import net.i2p.data.i2np.GarlicClove;
 import net.i2p.data.i2np.GarlicMessage;
 import net.i2p.util.Log;
@@ -45,12 +46,24 @@ public class GarlicMessageParser {
      *  @return null on error
      */
     public CloveSet getGarlicCloves(GarlicMessage message, PrivateKey encryptionKey, SessionKeyManager skm) {
+        SessionKey key = _context.elGamalAESEngine().consumeTag(message.getData(), skm);
+        return getGarlicCloves(message, encryptionKey, skm, key);
+    }
+    
+    /**
+     *  @param skm use tags from this session key manager
+     *  @param key from ElGamalAESEngine.consumeTag(), or null to decrypt as a new session
+     *  @return null on error
+     *  @since 0.9.28
+     */
+    public CloveSet getGarlicCloves(GarlicMessage message, PrivateKey encryptionKey, SessionKeyManager skm,
+                                    SessionKey key) {
         byte encData[] = message.getData();
         byte decrData[];
         try {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Decrypting with private key " + encryptionKey);
-            decrData = _context.elGamalAESEngine().decrypt(encData, encryptionKey, skm);
+            decrData = _context.elGamalAESEngine().decrypt(encData, encryptionKey, skm, key);
         } catch (DataFormatException dfe) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Error decrypting", dfe);
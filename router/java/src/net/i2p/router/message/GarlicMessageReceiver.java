@@ -12,6 +12,7 @@ import net.i2p.crypto.SessionKeyManager;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.PrivateKey;
+import net.i2p.data.SessionKey;
 import net.i2p.data.i2np.DeliveryInstructions;
 import net.i2p.data.i2np.GarlicClove;
 import net.i2p.data.i2np.GarlicMessage;
@@ -24,6 +25,9 @@ import net.i2p.util.Log;
  * Unencrypt a garlic message and pass off any valid cloves to the configured
  * receiver to dispatch as they choose.
  *
+ * As of 0.9.28, messages requiring an ElGamal decrypt are handed off
+ * to the GarlicDecryptPool, and the cloves are passed to the receiver
+ * later, on another thread. The receiver must be thread-safe.
  */
 public class GarlicMessageReceiver {
     private final RouterContext _context;
@@ -72,7 +76,29 @@ public class GarlicMessageReceiver {
             skm = _context.sessionKeyManager();
         }
         
-        CloveSet set = _context.garlicMessageParser().getGarlicCloves(message, decryptionKey, skm);
+        // Existing session tags are cheap, decrypt them inline.
+        // ElGamal is expensive, hand those off to the decrypt pool if it's running.
+        // The pool decrypts inline if it's full.
+        SessionKey key = _context.elGamalAESEngine().consumeTag(message.getData(), skm);
+        if (key == null) {
+            GarlicDecryptPool pool = _context.garlicDecryptPool();
+            if (pool != null && pool.isRunning()) {
+                pool.add(this, message, decryptionKey, skm);
+                return;
+            }
+        }
+        CloveSet set = _context.garlicMessageParser().getGarlicCloves(message, decryptionKey, skm, key);
+        received(message, set);
+    }
+
+    /**
+     *  Handle the result of the decryption, either inline from receive()
+     *  or from a GarlicDecryptPool thread.
+     *
+     *  @param set null on decryption failure
+     *  @since 0.9.28
+     */
+    void received(GarlicMessage message, CloveSet set) {
         if (set != null) {
             for (int i = 0; i < set.getCloveCount(); i++) {
                 GarlicClove clove = set.getClove(i);
@@ -0,0 +1,194 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+
+/**
+ *  The known floodfills, sorted by hash, so that the floodfills closest
+ *  to a routing key may be found without sorting them all each time.
+ *
+ *  Treating the sorted array as a binary trie, each subtree is a contiguous
+ *  range, and a depth-first walk that takes the branch matching the key first
+ *  returns the entries in XOR order. The first k cost O(log n + k) or so.
+ *
+ *  The floodfills are placed in the keyspace by their router hash, which
+ *  doesn't change at the daily routing key rotation, so the index only
+ *  needs a rebuild when the set of floodfills changes.
+ *  We don't get notified of that, so the index is rebuilt when the
+ *  number of floodfills changes, and at least every REBUILD_TIME.
+ *  Callers must check that entries are still in the current floodfill set,
+ *  see getFloodfills().
+ *
+ *  @since 0.9.28
+ */
+class FloodfillIndex {
+    private final RouterContext _context;
+    /** sorted, immutable */
+    private volatile Hash[] _sorted;
+    private volatile long _lastRebuild;
+
+    private static final long REBUILD_TIME = 60*1000;
+    private static final Hash[] EMPTY = new Hash[0];
+
+    public FloodfillIndex(RouterContext ctx) {
+        _context = ctx;
+        _sorted = EMPTY;
+    }
+
+    /**
+     *  The current floodfills, from the peer manager.
+     *
+     *  @return non-null, unmodifiable, not a copy
+     */
+    public Set<Hash> getFloodfills() {
+        return _context.peerManager().getPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL);
+    }
+
+    /**
+     *  All the indexed floodfills, closest to the key first.
+     *  May include floodfills that are no longer in getFloodfills(),
+     *  may be missing a few recent additions.
+     *
+     *  @param key the ROUTING key (NOT the original key)
+     */
+    public Iterator<Hash> closest(Hash key) {
+        Set<Hash> ffs = getFloodfills();
+        Hash[] sorted = _sorted;
+        long now = _context.clock().now();
+        if (sorted.length != ffs.size() || now - _lastRebuild > REBUILD_TIME) {
+            synchronized (this) {
+                sorted = _sorted;
+                if (sorted.length != ffs.size() || now - _lastRebuild > REBUILD_TIME) {
+                    sorted = sort(ffs);
+                    _sorted = sorted;
+                    _lastRebuild = now;
+                }
+            }
+        }
+        return new ClosestIterator(sorted, key);
+    }
+
+    /**
+     *  @return a new array, sorted unsigned big-endian
+     */
+    static Hash[] sort(Collection<Hash> hashes) {
+        Hash[] rv = hashes.toArray(new Hash[hashes.size()]);
+        Arrays.sort(rv, new HashComparator());
+        return rv;
+    }
+
+    private static class HashComparator implements Comparator<Hash> {
+        public int compare(Hash l, Hash r) {
+            return DataHelper.compareTo(l.getData(), r.getData());
+        }
+    }
+
+    /**
+     *  Walk the trie of a sorted array, closest first.
+     *  Package private for unit tests.
+     */
+    static class ClosestIterator implements Iterator<Hash> {
+        private final Hash[] _sorted;
+        private final byte[] _key;
+        /** pending ranges, the top is the closest; lo, hi (exclusive), bit */
+        private int[] _stack;
+        private int _depth;
+        private Hash _next;
+
+        /**
+         *  @param sorted as from sort(), not copied, must not be changed
+         */
+        public ClosestIterator(Hash[] sorted, Hash key) {
+            _sorted = sorted;
+            _key = key.getData();
+            _stack = new int[3 * 16];
+            if (sorted.length > 0)
+                push(0, sorted.length, 0);
+        }
+
+        public boolean hasNext() {
+            if (_next == null)
+                _next = findNext();
+            return _next != null;
+        }
+
+        public Hash next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Hash rv = _next;
+            _next = null;
+            return rv;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Hash findNext() {
+            while (_depth > 0) {
+                _depth -= 3;
+                int lo = _stack[_depth];
+                int hi = _stack[_depth + 1];
+                int bit = _stack[_depth + 2];
+                if (hi - lo == 1)
+                    return _sorted[lo];
+                if (bit >= Hash.HASH_LENGTH * 8) {
+                    // duplicates, shouldn't happen
+                    push(lo + 1, hi, bit);
+                    return _sorted[lo];
+                }
+                int split = split(lo, hi, bit);
+                if (isSet(_key, bit)) {
+                    // far side first, so the near side is on top
+                    if (split > lo)
+                        push(lo, split, bit + 1);
+                    if (split < hi)
+                        push(split, hi, bit + 1);
+                } else {
+                    if (split < hi)
+                        push(split, hi, bit + 1);
+                    if (split > lo)
+                        push(lo, split, bit + 1);
+                }
+            }
+            return null;
+        }
+
+        /**
+         *  All entries in the range share the bits before this one,
+         *  so the ones with this bit clear come first.
+         *
+         *  @return the index of the first entry in the range with the bit set, or hi
+         */
+        private int split(int lo, int hi, int bit) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (isSet(_sorted[mid].getData(), bit))
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            return lo;
+        }
+
+        private void push(int lo, int hi, int bit) {
+            if (_depth + 3 > _stack.length)
+                _stack = Arrays.copyOf(_stack, _stack.length * 2);
+            _stack[_depth++] = lo;
+            _stack[_depth++] = hi;
+            _stack[_depth++] = bit;
+        }
+
+        private static boolean isSet(byte[] b, int bit) {
+            return (b[bit >> 3] & (0x80 >> (bit & 0x07))) != 0;
+        }
+    }
+}
@@ -40,9 +40,11 @@ import net.i2p.util.Log;
  *
  */
 class FloodfillPeerSelector extends PeerSelector {
+    private final FloodfillIndex _ffIndex;
 
     public FloodfillPeerSelector(RouterContext ctx) {
         super(ctx);
+        _ffIndex = new FloodfillIndex(ctx);
     }
     
     /**
@@ -197,13 +199,15 @@ class FloodfillPeerSelector extends PeerSelector {
      *  @param kbuckets now unused
      */
     private List<Hash> selectFloodfillParticipantsIncludingUs(Hash key, int howMany, Set<Hash> toIgnore, KBucketSet<Hash> kbuckets) {
-        List<Hash> ffs = selectFloodfillParticipants(toIgnore, kbuckets);
-        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
-        sorted.addAll(ffs);
+        Set<Hash> ffs = _ffIndex.getFloodfills();
+        // closest first, instead of sorting them all, as of 0.9.28
+        Iterator<Hash> sorted = _ffIndex.closest(key);
+        // 5 == FNDF.MAX_TO_FLOOD + 1
+        int limit = Math.max(5, howMany);
 
         List<Hash> rv = new ArrayList<Hash>(howMany);
-        List<Hash> okff = new ArrayList<Hash>(ffs.size());
-        List<Hash> badff = new ArrayList<Hash>(ffs.size());
+        List<Hash> okff = new ArrayList<Hash>(limit);
+        List<Hash> badff = new ArrayList<Hash>(limit);
         int found = 0;
         long now = _context.clock().now();
 
@@ -219,16 +223,12 @@ class FloodfillPeerSelector extends PeerSelector {
             }
         }
 
-        // 5 == FNDF.MAX_TO_FLOOD + 1
-        int limit = Math.max(5, howMany);
-        limit = Math.min(limit, ffs.size());
         Set<Integer> maskedIPs = new HashSet<Integer>(limit + 4);
         // split sorted list into 3 sorted lists
         for (int i = 0; found < howMany && i < limit; i++) {
-            Hash entry = sorted.first();
+            Hash entry = nextFloodfill(sorted, ffs, toIgnore);
             if (entry == null)
-                break;  // shouldn't happen
-            sorted.remove(entry);
+                break;
             // put anybody in the same /16 at the end
             RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
             Set<Integer> entryIPs = maskedIPSet(entry, info, 2);
@@ -301,6 +301,27 @@ class FloodfillPeerSelector extends PeerSelector {
     }
     
 
+    /**
+     *  The next one from the index that is still a floodfill,
+     *  not ignored, and not banlisted forever.
+     *  Same criteria as selectFloodfillParticipants(toIgnore, kbuckets).
+     *
+     *  @param toIgnore can be null
+     *  @return null if none left
+     *  @since 0.9.28
+     */
+    private Hash nextFloodfill(Iterator<Hash> iter, Set<Hash> ffs, Set<Hash> toIgnore) {
+        while (iter.hasNext()) {
+            Hash h = iter.next();
+            if (!ffs.contains(h) ||
+                (toIgnore != null && toIgnore.contains(h)) ||
+                _context.banlist().isBanlistedForever(h))
+               continue;
+            return h;
+        }
+        return null;
+    }
+
     /**
       * The Set of IPs for this peer, with a given mask.
       * Includes the comm system's record of the IP, and all netDb addresses.
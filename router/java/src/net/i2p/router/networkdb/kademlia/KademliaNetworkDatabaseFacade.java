@@ -113,6 +113,14 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     
     public final static String PROP_DB_DIR = "router.networkDatabase.dbDir";
     public final static String DEFAULT_DB_DIR = "netDb";
+
+    /**
+     *  "files" (default) for one file per RouterInfo, or "log" for a single append-only file.
+     *  See LogDataStore.
+     *  @since 0.9.28
+     */
+    public final static String PROP_DB_STORE = "router.networkDatabase.store";
+    static final String STORE_LOG = "log";
     
     /** Reseed if below this.
      *  @since 0.9.4
@@ -272,7 +280,10 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         _kb = new KBucketSet<Hash>(_context, ri.getIdentity().getHash(),
                                    BUCKET_SIZE, KAD_B, new RejectTrimmer<Hash>());
         try {
-            _ds = new PersistentDataStore(_context, dbDir, this);
+            if (STORE_LOG.equals(_context.getProperty(PROP_DB_STORE)))
+                _ds = new LogDataStore(_context, dbDir, this);
+            else
+                _ds = new PersistentDataStore(_context, dbDir, this);
         } catch (IOException ioe) {
             throw new RuntimeException("Unable to initialize netdb storage", ioe);
         }
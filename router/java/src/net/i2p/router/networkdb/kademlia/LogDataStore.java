@@ -0,0 +1,732 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.JobImpl;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Stores RouterInfos in a single append-only log file in the netDb directory,
+ *  instead of one file per RouterInfo as in PersistentDataStore.
+ *  Enable with router.networkDatabase.store=log.
+ *
+ *  At startup the whole log is read sequentially, the last record
+ *  for each hash wins. Each record has a CRC, and the log is truncated
+ *  after the last good record, so a torn write from a crash only loses
+ *  that record. Writes are batched and synced once per batch.
+ *  When the log has grown to more than twice the size of the live data,
+ *  it is rewritten to a temp file and renamed over the old one.
+ *
+ *  The per-file directory layout is still the import/export format.
+ *  Any routerInfo-*.dat files found in the netDb directory or its subdirectories,
+ *  for example from a reseed, are imported into the log and deleted.
+ *  If the store is switched back to files, PersistentDataStore
+ *  exports the log to the directory layout at startup.
+ *
+ *  Log format:
+ *<pre>
+ *  8 bytes "I2PnetDb"
+ *  1 byte version (1)
+ *  records:
+ *    1 byte type (1 = RouterInfo, 2 = delete)
+ *    32 byte hash
+ *    4 byte length of data
+ *    data (the RouterInfo, or empty for delete)
+ *    4 byte CRC32 of all the above
+ *</pre>
+ *
+ *  @since 0.9.28
+ */
+class LogDataStore extends TransientDataStore {
+    private final File _dbDir;
+    private final File _logFile;
+    private final KademliaNetworkDatabaseFacade _facade;
+    private final Writer _writer;
+    private final ReadJob _readJob;
+    private final int _networkID;
+    private volatile boolean _initialized;
+
+    static final String LOG_FILE = "netDb.log";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2PnetDb");
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = MAGIC.length + 1;
+    private static final int TYPE_ROUTERINFO = 1;
+    private static final int TYPE_DELETE = 2;
+    /** type + hash + length + crc */
+    private static final int RECORD_OVERHEAD = 1 + Hash.HASH_LENGTH + 4 + 4;
+    /** sanity check, RIs are about 1 KB */
+    private static final int MAX_RECORD = 64*1024;
+    /** don't bother compacting small logs */
+    private static final long MIN_COMPACT_SIZE = 1024*1024;
+    private static final long WRITE_DELAY = 60*1000;
+    private final static int READ_DELAY = 2*60*1000;
+
+    /**
+     *  @param dbDir relative path
+     */
+    public LogDataStore(RouterContext ctx, String dbDir, KademliaNetworkDatabaseFacade facade) throws IOException {
+        super(ctx);
+        _networkID = ctx.router().getNetworkID();
+        _dbDir = new SecureDirectory(ctx.getRouterDir(), dbDir);
+        if (!_dbDir.exists() && !_dbDir.mkdirs())
+            throw new IOException("Unable to create the DB directory [" + _dbDir.getAbsolutePath() + "]");
+        _logFile = new File(_dbDir, LOG_FILE);
+        _facade = facade;
+        ctx.statManager().createRateStat("netDb.writeOut", "How many we wrote", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.writeTime", "How long it took", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.logLoadTime", "How long to load the netDb log (ms)", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.logCompactTime", "How long to compact the netDb log (ms)", "NetworkDatabase", new long[] { 60*60*1000 });
+        _readJob = new ReadJob();
+        _context.jobQueue().addJob(_readJob);
+        _writer = new Writer();
+        I2PThread writer = new I2PThread(_writer, "DBWriter");
+        // stop() must be called to flush data to disk
+        writer.start();
+    }
+
+    @Override
+    public boolean isInitialized() { return _initialized; }
+
+    @Override
+    public void stop() {
+        super.stop();
+        _writer.flush();
+    }
+
+    @Override
+    public void rescan() {
+        if (_initialized)
+            _readJob.wakeup();
+    }
+
+    /**
+     *  @param persist ignored, everything is in memory
+     */
+    @Override
+    public DatabaseEntry get(Hash key, boolean persist) {
+        return super.get(key);
+    }
+
+    @Override
+    public DatabaseEntry remove(Hash key) {
+        return remove(key, true);
+    }
+
+    @Override
+    public DatabaseEntry remove(Hash key, boolean persist) {
+        DatabaseEntry rv = super.remove(key);
+        if (persist && rv != null && rv.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            _writer.queue(key, null);
+        return rv;
+    }
+
+    @Override
+    public boolean put(Hash key, DatabaseEntry data) {
+        return put(key, data, true);
+    }
+
+    @Override
+    public boolean put(Hash key, DatabaseEntry data, boolean persist) {
+        if ( (data == null) || (key == null) ) return false;
+        boolean rv = super.put(key, data);
+        // Don't bother writing LeaseSets to disk
+        if (rv && persist && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            _writer.queue(key, data);
+        return rv;
+    }
+
+    /**
+     *  Append a delete record to the log, if it exists.
+     *  For use before the netdb is started, to delete our old RI.
+     *
+     *  @since 0.9.28
+     */
+    public static void delete(RouterContext ctx, Hash key) {
+        File dir = new File(ctx.getRouterDir(), ctx.getProperty(KademliaNetworkDatabaseFacade.PROP_DB_DIR,
+                                                                KademliaNetworkDatabaseFacade.DEFAULT_DB_DIR));
+        delete(new File(dir, LOG_FILE), key, ctx.logManager().getLog(LogDataStore.class));
+    }
+
+    /**
+     *  Append a delete record to the log, if it exists,
+     *  after truncating any partial record at the end.
+     *
+     *  @since 0.9.28
+     */
+    static void delete(File f, Hash key, Log log) {
+        if (!f.exists())
+            return;
+        // a record appended after a partial record would never be read
+        long good = recoverLog(f, null, log);
+        if (good < 0 || good != f.length())
+            return;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(f, true);
+            writeRecord(out, TYPE_DELETE, key, null);
+        } catch (IOException ioe) {
+            log.error("Error writing " + f, ioe);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Read the log.
+     *
+     *  @param out the current data for each hash, in the order first written, may be null
+     *  @return the offset after the last good record
+     *  @throws IOException on a bad header
+     */
+    static long readLog(File f, Map<Hash, byte[]> out) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(f), 64*1024);
+            DataInputStream din = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            din.readFully(magic);
+            if (!DataHelper.eq(magic, MAGIC))
+                throw new IOException("Not a netDb log: " + f);
+            int version = din.read();
+            if (version != VERSION)
+                throw new IOException("Unsupported netDb log version " + version + ": " + f);
+            long good = HEADER_LEN;
+            CRC32 crc = new CRC32();
+            byte[] hdr = new byte[1 + Hash.HASH_LENGTH + 4];
+            while (true) {
+                try {
+                    din.readFully(hdr);
+                } catch (EOFException eofe) {
+                    break;
+                }
+                int type = hdr[0] & 0xff;
+                int len = (int) DataHelper.fromLong(hdr, 1 + Hash.HASH_LENGTH, 4);
+                if ((type != TYPE_ROUTERINFO && type != TYPE_DELETE) || len < 0 || len > MAX_RECORD)
+                    break;
+                byte[] data = new byte[len];
+                long expected;
+                try {
+                    din.readFully(data);
+                    expected = din.readInt() & 0xffffffffL;
+                } catch (EOFException eofe) {
+                    break;
+                }
+                crc.reset();
+                crc.update(hdr);
+                crc.update(data);
+                if (crc.getValue() != expected)
+                    break;
+                if (out != null) {
+                    Hash h = Hash.create(hdr, 1);
+                    if (type == TYPE_ROUTERINFO)
+                        out.put(h, data);
+                    else
+                        out.remove(h);
+                }
+                good += RECORD_OVERHEAD + len;
+            }
+            return good;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Read the log and truncate any partial record at the end,
+     *  so that records may be appended.
+     *  A log with a bad header is moved aside.
+     *
+     *  @param out the current data for each hash, in the order first written, may be null
+     *  @return the offset after the last good record, or -1 if the log was moved aside
+     *  @since 0.9.28 split out of loadLog()
+     */
+    private static long recoverLog(File f, Map<Hash, byte[]> out, Log log) {
+        long good;
+        try {
+            good = readLog(f, out);
+        } catch (IOException ioe) {
+            File bad = new File(f.getParentFile(), LOG_FILE + CORRUPT_SUFFIX);
+            log.error("Unable to read the netDb log, moving it to " + bad, ioe);
+            FileUtil.rename(f, bad);
+            return -1;
+        }
+        long len = f.length();
+        if (good < len) {
+            log.logAlways(Log.WARN, "Truncating netDb log from " + len + " to " + good + " bytes");
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(f, "rw");
+                raf.setLength(good);
+            } catch (IOException ioe) {
+                log.error("Unable to truncate the netDb log", ioe);
+            } finally {
+                if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+            }
+        }
+        return good;
+    }
+
+    /**
+     *  @param data null for delete
+     *  @return bytes written
+     */
+    static int writeRecord(OutputStream out, int type, Hash key, byte[] data) throws IOException {
+        int len = data != null ? data.length : 0;
+        byte[] hdr = new byte[1 + Hash.HASH_LENGTH + 4];
+        hdr[0] = (byte) type;
+        System.arraycopy(key.getData(), 0, hdr, 1, Hash.HASH_LENGTH);
+        DataHelper.toLong(hdr, 1 + Hash.HASH_LENGTH, 4, len);
+        CRC32 crc = new CRC32();
+        crc.update(hdr);
+        if (data != null)
+            crc.update(data);
+        byte[] c = new byte[4];
+        DataHelper.toLong(c, 0, 4, crc.getValue());
+        out.write(hdr);
+        if (data != null)
+            out.write(data);
+        out.write(c);
+        return RECORD_OVERHEAD + len;
+    }
+
+    static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     *  Read the log into memory, truncating any partial record at the end.
+     *  Called once from the ReadJob before the writer starts.
+     *
+     *  @return number of RIs
+     */
+    private int loadLog() {
+        if (!_logFile.exists())
+            return 0;
+        long start = System.currentTimeMillis();
+        Map<Hash, byte[]> entries = new LinkedHashMap<Hash, byte[]>(8192);
+        long good = recoverLog(_logFile, entries, _log);
+        if (good < 0)
+            return 0;
+        _writer.setLogSize(good);
+        // Loading in-order causes clumping in the kbuckets,
+        // and bias on early peer selection, so shuffle first.
+        List<Map.Entry<Hash, byte[]>> toRead = new ArrayList<Map.Entry<Hash, byte[]>>(entries.entrySet());
+        Collections.shuffle(toRead, _context.random());
+        int count = 0;
+        for (Map.Entry<Hash, byte[]> e : toRead) {
+            // drop out if the router gets killed right after startup
+            if (!_context.router().isAlive())
+                break;
+            Hash key = e.getKey();
+            byte[] data = e.getValue();
+            RouterInfo ri = readRouterInfo(new ByteArrayInputStream(data), key, LOG_FILE, false);
+            // if corrupt or refused, it's dropped at the next compaction
+            if (ri != null) {
+                _writer.written(key, ri.getPublished(), RECORD_OVERHEAD + data.length);
+                count++;
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        _context.statManager().addRateData("netDb.logLoadTime", time);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded " + count + " RIs from the netDb log in " + time + "ms");
+        return count;
+    }
+
+    /**
+     *  Import RI files in the directory layout, and delete them.
+     *
+     *  @return number imported
+     */
+    private int importFiles() {
+        List<File> toRead = new ArrayList<File>();
+        File[] files = _dbDir.listFiles(PersistentDataStore.RouterInfoFilter.getInstance());
+        if (files != null)
+            Collections.addAll(toRead, files);
+        for (int j = 0; j < PersistentDataStore.B64.length(); j++) {
+            File subdir = new File(_dbDir, PersistentDataStore.DIR_PREFIX + PersistentDataStore.B64.charAt(j));
+            files = subdir.listFiles(PersistentDataStore.RouterInfoFilter.getInstance());
+            if (files != null)
+                Collections.addAll(toRead, files);
+        }
+        if (toRead.isEmpty())
+            return 0;
+        Collections.shuffle(toRead, _context.random());
+        int count = 0;
+        for (File file : toRead) {
+            Hash key = PersistentDataStore.getRouterInfoHash(file.getName());
+            if (key == null) {
+                file.delete();
+                continue;
+            }
+            DatabaseEntry known = get(key, false);
+            if (known != null) {
+                // don't overwrite recent netdb RIs with reseed data, as in PersistentDataStore
+                if (known.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO ||
+                    file.lastModified() <= known.getDate() + 60*60*1000) {
+                    file.delete();
+                    continue;
+                }
+            }
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(file));
+                // persist = true to write it to the log
+                if (readRouterInfo(in, key, file.getName(), true) != null)
+                    count++;
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Unable to read " + file, ioe);
+            } finally {
+                if (in != null) try { in.close(); } catch (IOException ioe) {}
+            }
+            file.delete();
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Imported " + count + " of " + toRead.size() + " RI files into the netDb log");
+        return count;
+    }
+
+    /**
+     *  Read, verify, and store a RouterInfo.
+     *
+     *  @param key must match the RI hash
+     *  @param persist write it to the log
+     *  @return the RI if stored, null on error
+     */
+    private RouterInfo readRouterInfo(InputStream in, Hash key, String source, boolean persist) {
+        try {
+            RouterInfo ri = new RouterInfo();
+            ri.readBytes(in, true);  // true = verify sig on read
+            if (ri.getNetworkId() != _networkID) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("The router " + ri.getIdentity().calculateHash().toBase64() +
+                               " is from a different network");
+                return null;
+            }
+            if (!ri.getIdentity().calculateHash().equals(key)) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn(ri.getIdentity().calculateHash() + " does not match " + key + " from " + source);
+                return null;
+            }
+            DatabaseEntry known = get(key, false);
+            if (known != null && known.getDate() >= ri.getPublished())
+                return null;
+            _facade.store(key, ri, persist);
+            // see PersistentDataStore.ReadRouterJob
+            _context.profileManager().heardAbout(key, ri.getPublished());
+            return ri;
+        } catch (IllegalArgumentException iae) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Refused locally loaded routerInfo from " + source, iae);
+        } catch (DataFormatException dfe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Error reading the routerInfo from " + source, dfe);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + source, ioe);
+        } catch (RuntimeException e) {
+            // key certificate problems, etc., don't let one bad RI kill the whole thing
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + source, e);
+        }
+        return null;
+    }
+
+    /**
+     *  Loads the log on the first run, and imports files on every run,
+     *  and checks for reseed, as in PersistentDataStore.
+     */
+    private class ReadJob extends JobImpl {
+        private volatile long _lastReseed;
+        private static final int MIN_ROUTERS = KademliaNetworkDatabaseFacade.MIN_RESEED;
+        private static final long MIN_RESEED_INTERVAL = 90*60*1000;
+
+        public ReadJob() {
+            super(LogDataStore.this._context);
+        }
+
+        public String getName() { return "DB Read Job"; }
+
+        public void runJob() {
+            if (getContext().router().gracefulShutdownInProgress()) {
+                requeue(READ_DELAY);
+                return;
+            }
+            int routerCount;
+            if (!_initialized) {
+                routerCount = loadLog();
+                routerCount += importFiles();
+                // now the writer may append and compact
+                _writer.start();
+                _initialized = true;
+                if (_facade.reseedChecker().checkReseed(routerCount))
+                    _lastReseed = _context.clock().now();
+                else
+                    _context.router().setNetDbReady();
+            } else {
+                importFiles();
+                if (_lastReseed < _context.clock().now() - MIN_RESEED_INTERVAL) {
+                    int count = _facade.getAllRouters().size();
+                    if (count < MIN_ROUTERS) {
+                        if (_facade.reseedChecker().checkReseed(count))
+                            _lastReseed = _context.clock().now();
+                    } else {
+                        _context.router().setNetDbReady();
+                    }
+                }
+            }
+            requeue(READ_DELAY);
+        }
+
+        public void wakeup() {
+            requeue(0);
+        }
+    }
+
+    /**
+     *  Batches appends to the log and compacts it.
+     *  Only this thread writes to the log after startup.
+     */
+    private class Writer implements Runnable {
+        /** null value for delete, access synchronized */
+        private final Map<Hash, DatabaseEntry> _pending;
+        /** what's in the log, writer thread only after startup */
+        private final Map<Hash, Written> _written;
+        private final Object _waitLock = new Object();
+        private long _logSize;
+        private long _liveSize;
+        private volatile boolean _started;
+        private volatile boolean _quit;
+
+        public Writer() {
+            _pending = new LinkedHashMap<Hash, DatabaseEntry>(64);
+            _written = new HashMap<Hash, Written>(8192);
+        }
+
+        public void queue(Hash key, DatabaseEntry data) {
+            synchronized (_pending) {
+                // move to the end
+                _pending.remove(key);
+                _pending.put(key, data);
+            }
+        }
+
+        /** startup only */
+        public void setLogSize(long size) {
+            _logSize = size;
+        }
+
+        /** startup only */
+        public void written(Hash key, long published, int size) {
+            _written.put(key, new Written(published, size));
+            _liveSize += size;
+        }
+
+        public void start() {
+            synchronized (_waitLock) {
+                _started = true;
+                _waitLock.notifyAll();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (_waitLock) {
+                    if (!_quit) {
+                        try {
+                            _waitLock.wait(WRITE_DELAY);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+                // never write before the log is loaded
+                if (_started) {
+                    writePending();
+                    if (_logSize > MIN_COMPACT_SIZE && _logSize > 2 * _liveSize)
+                        compact();
+                }
+                if (_quit)
+                    break;
+            }
+        }
+
+        public void flush() {
+            synchronized (_waitLock) {
+                _quit = true;
+                _waitLock.notifyAll();
+            }
+        }
+
+        private void writePending() {
+            List<Map.Entry<Hash, DatabaseEntry>> batch;
+            synchronized (_pending) {
+                if (_pending.isEmpty())
+                    return;
+                batch = new ArrayList<Map.Entry<Hash, DatabaseEntry>>(_pending.entrySet());
+                _pending.clear();
+            }
+            long start = _context.clock().now();
+            boolean exists = _logFile.exists() && _logSize > 0;
+            OutputStream out = null;
+            FileOutputStream fos = null;
+            int count = 0;
+            try {
+                fos = new SecureFileOutputStream(_logFile, exists);
+                out = new BufferedOutputStream(fos, 64*1024);
+                if (!exists) {
+                    writeHeader(out);
+                    _logSize = HEADER_LEN;
+                    _liveSize = 0;
+                    _written.clear();
+                }
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                for (Map.Entry<Hash, DatabaseEntry> e : batch) {
+                    Hash key = e.getKey();
+                    DatabaseEntry data = e.getValue();
+                    Written old = _written.get(key);
+                    if (data == null) {
+                        if (old == null)
+                            continue;
+                        _logSize += writeRecord(out, TYPE_DELETE, key, null);
+                        _liveSize -= old.size;
+                        _written.remove(key);
+                    } else {
+                        long published = data.getDate();
+                        if (old != null && old.published >= published)
+                            continue;
+                        baos.reset();
+                        try {
+                            data.writeBytes(baos);
+                        } catch (DataFormatException dfe) {
+                            _log.error("Error writing out malformed object as " + key + ": " + data, dfe);
+                            continue;
+                        }
+                        int sz = writeRecord(out, TYPE_ROUTERINFO, key, baos.toByteArray());
+                        _logSize += sz;
+                        _liveSize += sz;
+                        if (old != null)
+                            _liveSize -= old.size;
+                        _written.put(key, new Written(published, sz));
+                    }
+                    count++;
+                }
+                out.flush();
+                fos.getFD().sync();
+            } catch (IOException ioe) {
+                _log.error("Error writing the netDb log", ioe);
+            } finally {
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+                else if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+            }
+            if (count > 0) {
+                long time = _context.clock().now() - start;
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Wrote " + count + " entries to the netDb log in " + time);
+                _context.statManager().addRateData("netDb.writeOut", count);
+                _context.statManager().addRateData("netDb.writeTime", time);
+            }
+        }
+
+        /**
+         *  Rewrite the log with only what's in memory,
+         *  to a temp file which is then renamed over the log.
+         *  The old log is intact until the rename.
+         */
+        private void compact() {
+            long start = System.currentTimeMillis();
+            File tmp = new File(_dbDir, LOG_FILE + TMP_SUFFIX);
+            Map<Hash, Written> written = new HashMap<Hash, Written>(_written.size());
+            long size = HEADER_LEN;
+            OutputStream out = null;
+            FileOutputStream fos = null;
+            boolean success = false;
+            try {
+                fos = new SecureFileOutputStream(tmp);
+                out = new BufferedOutputStream(fos, 64*1024);
+                writeHeader(out);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                for (Iterator<Hash> iter = _written.keySet().iterator(); iter.hasNext(); ) {
+                    Hash key = iter.next();
+                    DatabaseEntry data = get(key, false);
+                    if (data == null || data.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
+                        continue;
+                    baos.reset();
+                    try {
+                        data.writeBytes(baos);
+                    } catch (DataFormatException dfe) {
+                        continue;
+                    }
+                    int sz = writeRecord(out, TYPE_ROUTERINFO, key, baos.toByteArray());
+                    size += sz;
+                    written.put(key, new Written(data.getDate(), sz));
+                }
+                out.flush();
+                fos.getFD().sync();
+                out.close();
+                out = null;
+                success = FileUtil.rename(tmp, _logFile);
+            } catch (IOException ioe) {
+                _log.error("Error compacting the netDb log", ioe);
+            } finally {
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+                else if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+                if (!success)
+                    tmp.delete();
+            }
+            if (success) {
+                long time = System.currentTimeMillis() - start;
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Compacted the netDb log from " + _logSize + " to " + size + " bytes in " + time + "ms");
+                _context.statManager().addRateData("netDb.logCompactTime", time);
+                _written.clear();
+                _written.putAll(written);
+                _logSize = size;
+                _liveSize = size - HEADER_LEN;
+            }
+        }
+    }
+
+    /** a record in the log */
+    private static class Written {
+        final long published;
+        final int size;
+
+        public Written(long published, int size) {
+            this.published = published;
+            this.size = size;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -583,9 +584,47 @@ public class PersistentDataStore extends TransientDataStore {
             if (routerInfoFiles != null)
                 migrate(f, routerInfoFiles);
         }
+        exportLog(f);
         return f;
     }
 
+    /**
+     *  Export the LogDataStore's log, if any, to files, after switching back from it.
+     *  The log is renamed, not deleted.
+     *  Runs before the ReadJob, which will then read the files.
+     *  @since 0.9.28
+     */
+    private void exportLog(File dbDir) {
+        File log = new File(dbDir, LogDataStore.LOG_FILE);
+        if (!log.exists())
+            return;
+        Map<Hash, byte[]> entries = new LinkedHashMap<Hash, byte[]>(8192);
+        try {
+            LogDataStore.readLog(log, entries);
+        } catch (IOException ioe) {
+            _log.error("Unable to read the netDb log " + log, ioe);
+        }
+        int count = 0;
+        for (Map.Entry<Hash, byte[]> e : entries.entrySet()) {
+            File dbFile = new File(dbDir, getRouterInfoName(e.getKey()));
+            if (dbFile.exists())
+                continue;
+            OutputStream fos = null;
+            try {
+                fos = new SecureFileOutputStream(dbFile);
+                fos.write(e.getValue());
+                count++;
+            } catch (IOException ioe) {
+                _log.error("Error exporting " + dbFile, ioe);
+            } finally {
+                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+            }
+        }
+        File bak = new File(dbDir, LogDataStore.LOG_FILE + ".bak");
+        FileUtil.rename(log, bak);
+        _log.logAlways(Log.INFO, "Exported " + count + " RouterInfos from the netDb log, renamed it to " + bak);
+    }
+
     /**
      *  Migrate from two-level to one-level directory structure
      *  @since 0.9.5
@@ -650,6 +689,17 @@ public class PersistentDataStore extends TransientDataStore {
         return new File(dir, DIR_PREFIX + b64.charAt(0) + File.separatorChar + ROUTERINFO_PREFIX + b64 + ROUTERINFO_SUFFIX);
     }
     
+    /**
+     *  Delete the persistent RI for a hash, in either store.
+     *  This is available before the netdb subsystem is running, so we can delete our old RI.
+     *
+     *  @since 0.9.28
+     */
+    public static void deleteRouterInfo(RouterContext ctx, Hash hash) {
+        getRouterInfoFile(ctx, hash).delete();
+        LogDataStore.delete(ctx, hash);
+    }
+    
     /**
      *  Package private for installer BundleRouterInfos
      */
@@ -52,6 +52,9 @@ class PeerManager {
      *  Rate contained in the profile, as the Rates must be coalesced.
      */
     private static final long REORGANIZE_TIME_LONG = 351*1000;
+    /** how often to store changed profiles, only if the snapshot is enabled */
+    private static final long STORE_TIME = 30*60*1000;
+    private volatile long _lastStored;
     
     public static final String TRACKED_CAPS = "" +
         FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL +
@@ -80,6 +83,7 @@ class PeerManager {
         _peersByCapability = new HashMap<Character, Set<Hash>>(TRACKED_CAPS.length());
         for (int i = 0; i < TRACKED_CAPS.length(); i++)
             _peersByCapability.put(Character.valueOf(Character.toLowerCase(TRACKED_CAPS.charAt(i))), new ConcurrentHashSet<Hash>());
+        _lastStored = _context.clock().now();
         loadProfilesInBackground();
         ////_context.jobQueue().addJob(new EvaluateProfilesJob(_context));
         //SimpleTimer2.getInstance().addPeriodicEvent(new Reorg(), 0, REORGANIZE_TIME);
@@ -117,6 +121,16 @@ class PeerManager {
                 _log.log(Log.CRIT, "Error evaluating profiles", t);
             }
             long orgtime = System.currentTimeMillis() - start;
+            // only the changed profiles are written, so this is cheap
+            if (_persistenceHelper.isSnapshotEnabled() &&
+                _context.clock().now() - _lastStored > STORE_TIME &&
+                !_context.router().gracefulShutdownInProgress()) {
+                try {
+                    storeProfiles();
+                } catch (Throwable t) {
+                    _log.log(Log.CRIT, "Error storing profiles", t);
+                }
+            }
             long uptime = _context.router().getUptime();
             long delay;
             if (orgtime > 1000 || uptime > 2*60*60*1000)
@@ -131,9 +145,14 @@ class PeerManager {
     
     void storeProfiles() {
         Set<Hash> peers = selectPeers();
+        List<PeerProfile> profiles = new ArrayList<PeerProfile>(peers.size());
         for (Hash peer : peers) {
-            storeProfile(peer);
+            PeerProfile prof = _organizer.getProfile(peer);
+            if (prof != null)
+                profiles.add(prof);
         }
+        _persistenceHelper.writeProfiles(profiles);
+        _lastStored = _context.clock().now();
     }
 
     /** @since 0.8.8 */
@@ -8,6 +8,7 @@ import java.util.Set;
 
 import net.i2p.data.Hash;
 import net.i2p.router.RouterContext;
+import net.i2p.stat.Rate;
 import net.i2p.stat.RateStat;
 import net.i2p.util.Log;
 
@@ -91,6 +92,8 @@ public class PeerProfile {
     private static final int DROP_PERIOD_MINUTES = 60;
     private static final float DEGRADE_FACTOR = 0.75f;
     private long _lastCoalesceDate = System.currentTimeMillis();
+    /** changed since last stored, new profiles start dirty */
+    private volatile boolean _dirty = true;
     
     /**
      *  Countries with more than about a 2% share of the netdb.
@@ -148,6 +151,24 @@ public class PeerProfile {
      */
     public boolean getIsExpanded() { return _expanded; }
     public boolean getIsExpandedDB() { return _expandedDB; }
+
+    /**
+     *  Has the profile changed since setClean() was called?
+     *  @since 0.9.28
+     */
+    boolean isDirty() { return _dirty; }
+
+    /**
+     *  Note that the profile has changed and should be stored.
+     *  @since 0.9.28
+     */
+    void setDirty() { _dirty = true; }
+
+    /**
+     *  Note that the profile was stored or loaded.
+     *  @since 0.9.28
+     */
+    void setClean() { _dirty = false; }
     
     //public int incrementBanlists() { return _consecutiveBanlists++; }
     //public void unbanlist() { _consecutiveBanlists = 0; }
@@ -522,10 +543,15 @@ public class PeerProfile {
                         break;
                     }
                 }
+                _dirty = true;
             } else {
                 if (_context.random().nextInt(DROP_PERIOD_MINUTES*2) <= 0) {
-                    for (int i = 0; i < THROUGHPUT_COUNT; i++)
-                        _peakThroughput[i] *= DEGRADE_FACTOR;
+                    for (int i = 0; i < THROUGHPUT_COUNT; i++) {
+                        if (_peakThroughput[i] > 0) {
+                            _peakThroughput[i] *= DEGRADE_FACTOR;
+                            _dirty = true;
+                        }
+                    }
                 }
             }
             
@@ -533,8 +559,11 @@ public class PeerProfile {
             // activity
             if (_context.random().nextInt(DROP_PERIOD_MINUTES*2) <= 0) {
                 for (int i = 0; i < THROUGHPUT_COUNT; i++) {
-                    _peakTunnelThroughput[i] *= DEGRADE_FACTOR;
-                    _peakTunnel1mThroughput[i] *= DEGRADE_FACTOR;
+                    if (_peakTunnelThroughput[i] > 0 || _peakTunnel1mThroughput[i] > 0) {
+                        _peakTunnelThroughput[i] *= DEGRADE_FACTOR;
+                        _peakTunnel1mThroughput[i] *= DEGRADE_FACTOR;
+                        _dirty = true;
+                    }
                 }
             }
             _peakThroughputCurrentTotal = 0;
@@ -560,6 +589,10 @@ public class PeerProfile {
     void coalesceOnly() {
     	_coalescing = true;
     	
+    	// check before the rates are rolled over
+    	if (!_dirty && willCoalesceData())
+    		_dirty = true;
+    	
     	//_receiveSize.coalesceStats();
     	//_sendSuccessSize.coalesceStats();
     	_tunnelCreateResponseTime.coalesceStats();
@@ -596,6 +629,45 @@ public class PeerProfile {
     	_capacityValue = _capacityValueNew;
     }
     
+    /**
+     *  Will coalesceOnly() change any stored rate values?
+     *  Rolling over a rate with no data in the current or last period
+     *  only moves its coalesce date, which does not need to be stored.
+     *
+     *  @since 0.9.28
+     */
+    private boolean willCoalesceData() {
+        long now = System.currentTimeMillis();
+        if (willCoalesceData(_tunnelCreateResponseTime, now) ||
+            willCoalesceData(_tunnelTestResponseTime, now) ||
+            willCoalesceData(_tunnelHistory.getRejectionRate(), now) ||
+            willCoalesceData(_tunnelHistory.getFailedRate(), now))
+            return true;
+        return _expandedDB &&
+               (willCoalesceData(_dbIntroduction, now) ||
+                willCoalesceData(_dbResponseTime, now) ||
+                willCoalesceData(_dbHistory.getFailedLookupRate(), now) ||
+                willCoalesceData(_dbHistory.getInvalidReplyRate(), now));
+    }
+
+    /**
+     *  Same test as Rate.coalesce(), which uses the OS time and 2 seconds of slack
+     *
+     *  @since 0.9.28
+     */
+    private static boolean willCoalesceData(RateStat rs, long now) {
+        long[] periods = rs.getPeriods();
+        for (int i = 0; i < periods.length; i++) {
+            Rate r = rs.getRate(periods[i]);
+            if (r != null &&
+                now - r.getLastCoalesceDate() >= r.getPeriod() - 2000 &&
+                (r.getCurrentEventCount() > 0 || r.getLastEventCount() > 0 ||
+                 r.getCurrentTotalValue() != 0 || r.getLastTotalValue() != 0))
+                return true;
+        }
+        return false;
+    }
+
     private float calculateSpeed() { return (float) SpeedCalculator.calc(this); }
     private float calculateCapacity() { return (float) CapacityCalculator.calc(this); }
     private float calculateIntegration() { return (float) IntegrationCalculator.calc(this); }
@@ -340,6 +340,9 @@ public class ProfileManagerImpl implements ProfileManager {
         if (prof == null) {
             prof = new PeerProfile(_context, peer);
             _context.profileOrganizer().addProfile(prof);
+        } else {
+            // all callers are about to update it
+            prof.setDirty();
         }
         return prof;
     }
@@ -350,7 +353,10 @@ public class ProfileManagerImpl implements ProfileManager {
      *  @since 0.8.12
      */
     private PeerProfile getProfileNonblocking(Hash peer) {
-        return _context.profileOrganizer().getProfileNonblocking(peer);
+        PeerProfile prof = _context.profileOrganizer().getProfileNonblocking(peer);
+        if (prof != null)
+            prof.setDirty();
+        return prof;
     }
     
     /**
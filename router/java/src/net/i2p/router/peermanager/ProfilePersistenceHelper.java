@@ -8,10 +8,13 @@ import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -32,6 +35,9 @@ import net.i2p.util.SecureFileOutputStream;
  *  The files are gzip compressed, we previously stored them
  *  with a ".dat" extension instead of ".txt.gz", so it wasn't apparent.
  *  Now migrated to a ".txt.gz" extension.
+ *
+ *  As of 0.9.28, optionally stores all profiles in a single ProfileSnapshot file instead.
+ *  Any text profiles found are imported into the snapshot and deleted.
  */
 class ProfilePersistenceHelper {
     private final Log _log;
@@ -39,6 +45,8 @@ class ProfilePersistenceHelper {
     
     public final static String PROP_PEER_PROFILE_DIR = "router.profileDir";
     public final static String DEFAULT_PEER_PROFILE_DIR = "peerProfiles";
+    /** @since 0.9.28 */
+    public final static String PROP_SNAPSHOT = "router.profileSnapshot";
     private final static String NL = System.getProperty("line.separator");
     private static final String PREFIX = "profile-";
     private static final String SUFFIX = ".txt.gz";
@@ -57,6 +65,10 @@ class ProfilePersistenceHelper {
     
     private final File _profileDir;
     private Hash _us;
+    /** null if disabled */
+    private final ProfileSnapshot _snapshot;
+    /** text files to delete after they are in the snapshot */
+    private final List<File> _imported = new ArrayList<File>();
     
     public ProfilePersistenceHelper(RouterContext ctx) {
         _context = ctx;
@@ -70,6 +82,49 @@ class ProfilePersistenceHelper {
             if (!subdir.exists())
                 subdir.mkdir();
         }
+        _snapshot = ctx.getBooleanProperty(PROP_SNAPSHOT) ? new ProfileSnapshot(ctx, _profileDir) : null;
+    }
+
+    /**
+     *  Are profiles stored in a single snapshot file?
+     *  If so, writeProfiles() only writes the changed ones and may be called periodically.
+     *
+     *  @since 0.9.28
+     */
+    public boolean isSnapshotEnabled() {
+        return _snapshot != null;
+    }
+
+    /**
+     *  Write out all the profiles, as files or to the snapshot.
+     *
+     *  @since 0.9.28
+     */
+    public void writeProfiles(Collection<PeerProfile> profiles) {
+        if (_snapshot == null) {
+            for (PeerProfile profile : profiles) {
+                writeProfile(profile);
+            }
+            return;
+        }
+        long before = _context.clock().now();
+        List<PeerProfile> toWrite = new ArrayList<PeerProfile>(profiles.size());
+        for (PeerProfile profile : profiles) {
+            if (!isExpired(profile.getLastSendSuccessful()))
+                toWrite.add(profile);
+        }
+        int count = _snapshot.write(toWrite);
+        synchronized (_imported) {
+            if (count > 0 || toWrite.isEmpty()) {
+                for (File f : _imported) {
+                    f.delete();
+                }
+                _imported.clear();
+            }
+        }
+        long delay = _context.clock().now() - before;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Writing " + count + " of " + toWrite.size() + " profiles took " + delay + "ms");
     }
     
     public void setUs(Hash routerIdentHash) { _us = routerIdentHash; }
@@ -179,10 +234,31 @@ class ProfilePersistenceHelper {
         long start = _context.clock().now();
         List<File> files = selectFiles();
         Set<PeerProfile> profiles = new HashSet<PeerProfile>(files.size());
+        if (_snapshot != null) {
+            Map<Hash, ByteBuffer> records = _snapshot.read();
+            for (Map.Entry<Hash, ByteBuffer> e : records.entrySet()) {
+                PeerProfile profile = _snapshot.decode(e.getKey(), e.getValue());
+                if (profile == null || isExpired(profile.getLastSendSuccessful()))
+                    continue;
+                fixupFirstHeardAbout(profile);
+                profile.setClean();
+                profiles.add(profile);
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Loaded " + profiles.size() + " profiles from the snapshot");
+        }
         for (File f :  files) {
             PeerProfile profile = readProfile(f);
-            if (profile != null)
+            if (profile != null) {
+                if (_snapshot != null) {
+                    // text file wins, it's new or from before the snapshot was enabled
+                    profiles.remove(profile);
+                    synchronized (_imported) {
+                        _imported.add(f);
+                    }
+                }
                 profiles.add(profile);
+            }
         }
         long duration = _context.clock().now() - start;
         if (_log.shouldLog(Log.DEBUG))
@@ -0,0 +1,427 @@
+package net.i2p.router.peermanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  All profiles in a single binary file, as an alternative to
+ *  one gzipped text file per profile.
+ *  Enable with router.profileSnapshot=true.
+ *
+ *  The file is an append-only log of records, the last record for a peer wins.
+ *  Only profiles changed since they were last stored are appended,
+ *  and the file is rewritten with only the current profiles
+ *  when it grows to more than twice their size.
+ *  Each record has a CRC, and a partial record at the end,
+ *  from a crash during a write, is truncated at load.
+ *
+ *  The fixed fields are binary. The TunnelHistory and DBHistory and their rates
+ *  are stored in their existing properties format, deflated,
+ *  so they don't need a second serialization to be maintained.
+ *
+ *  Format:
+ *<pre>
+ *  8 bytes "I2Pprofs"
+ *  1 byte version (1)
+ *  records:
+ *    4 byte length of body
+ *    body:
+ *      32 byte peer hash
+ *      1 byte flags (0x01: DB section present)
+ *      8 byte each: first heard about, last heard about, last heard from,
+ *                   last send successful, last send failed
+ *      4 byte each: speed, capacity, integration bonus
+ *      4 byte float each: tunnel test time average, peak throughput,
+ *                         peak tunnel throughput, peak tunnel 1m throughput
+ *      4 byte length, tunnel section
+ *      4 byte length, DB section (if flagged)
+ *    4 byte CRC32 of the body
+ *</pre>
+ *
+ *  @since 0.9.28
+ */
+class ProfileSnapshot {
+    private final RouterContext _context;
+    private final Log _log;
+    private final File _file;
+    /** record size of each stored peer, access synchronized */
+    private final Map<Hash, Integer> _stored;
+    private long _fileSize;
+    private long _liveSize;
+
+    static final String SNAPSHOT_FILE = "profiles.snap";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2Pprofs");
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = MAGIC.length + 1;
+    private static final int FLAG_DB = 0x01;
+    private static final int MAX_RECORD = 256*1024;
+    private static final long MIN_COMPACT_SIZE = 256*1024;
+
+    public ProfileSnapshot(RouterContext ctx, File dir) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(ProfileSnapshot.class);
+        _file = new File(dir, SNAPSHOT_FILE);
+        _stored = new HashMap<Hash, Integer>(1024);
+    }
+
+    public boolean exists() {
+        return _file.exists();
+    }
+
+    /**
+     *  Read all the profiles. The whole file is read at once
+     *  and the records are decoded from the buffer.
+     *
+     *  @return the current record for each peer, not decoded
+     */
+    public synchronized Map<Hash, ByteBuffer> read() {
+        Map<Hash, ByteBuffer> rv = new LinkedHashMap<Hash, ByteBuffer>(1024);
+        _stored.clear();
+        _fileSize = 0;
+        _liveSize = 0;
+        if (!_file.exists())
+            return rv;
+        ByteBuffer buf;
+        try {
+            buf = readFile(_file);
+        } catch (IOException ioe) {
+            _log.error("Error reading " + _file, ioe);
+            return rv;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        if (buf.remaining() < HEADER_LEN) {
+            badFile();
+            return rv;
+        }
+        buf.get(magic);
+        if (!DataHelper.eq(magic, MAGIC) || (buf.get() & 0xff) != VERSION) {
+            badFile();
+            return rv;
+        }
+        CRC32 crc = new CRC32();
+        long good = HEADER_LEN;
+        while (buf.remaining() >= 4 + Hash.HASH_LENGTH + 4) {
+            int len = buf.getInt();
+            if (len < Hash.HASH_LENGTH || len > MAX_RECORD || buf.remaining() < len + 4)
+                break;
+            byte[] body = new byte[len];
+            buf.get(body);
+            long expected = buf.getInt() & 0xffffffffL;
+            crc.reset();
+            crc.update(body);
+            if (crc.getValue() != expected)
+                break;
+            Hash peer = Hash.create(body, 0);
+            rv.put(peer, ByteBuffer.wrap(body));
+            int size = 4 + len + 4;
+            Integer old = _stored.put(peer, Integer.valueOf(size));
+            if (old != null)
+                _liveSize -= old.intValue();
+            _liveSize += size;
+            good += size;
+        }
+        if (good < _file.length()) {
+            _log.logAlways(Log.WARN, "Truncating " + _file + " from " + _file.length() + " to " + good + " bytes");
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(_file, "rw");
+                raf.setLength(good);
+            } catch (IOException ioe) {
+                _log.error("Unable to truncate " + _file, ioe);
+            } finally {
+                if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+            }
+        }
+        _fileSize = good;
+        return rv;
+    }
+
+    private static ByteBuffer readFile(File f) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            FileChannel chan = in.getChannel();
+            long size = chan.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("too big");
+            ByteBuffer rv = ByteBuffer.allocate((int) size);
+            while (rv.hasRemaining()) {
+                if (chan.read(rv) < 0)
+                    break;
+            }
+            rv.flip();
+            return rv;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private void badFile() {
+        File bad = new File(_file.getParentFile(), SNAPSHOT_FILE + ".corrupt");
+        _log.error("Bad profile snapshot, moving it to " + bad);
+        FileUtil.rename(_file, bad);
+    }
+
+    /**
+     *  Decode a record from read().
+     *
+     *  @return null on error
+     */
+    public PeerProfile decode(Hash peer, ByteBuffer buf) {
+        try {
+            buf.position(Hash.HASH_LENGTH);
+            int flags = buf.get() & 0xff;
+            PeerProfile profile = new PeerProfile(_context, peer);
+            profile.setFirstHeardAbout(buf.getLong());
+            profile.setLastHeardAbout(buf.getLong());
+            profile.setLastHeardFrom(buf.getLong());
+            profile.setLastSendSuccessful(buf.getLong());
+            profile.setLastSendFailed(buf.getLong());
+            profile.setSpeedBonus(buf.getInt());
+            profile.setCapacityBonus(buf.getInt());
+            profile.setIntegrationBonus(buf.getInt());
+            profile.setTunnelTestTimeAverage(buf.getFloat());
+            profile.setPeakThroughputKBps(buf.getFloat());
+            profile.setPeakTunnelThroughputKBps(buf.getFloat());
+            profile.setPeakTunnel1mThroughputKBps(buf.getFloat());
+            Properties props = readSection(buf);
+            profile.getTunnelHistory().load(props);
+            profile.getTunnelCreateResponseTime().load(props, "tunnelCreateResponseTime", true);
+            profile.getTunnelTestResponseTime().load(props, "tunnelTestResponseTime", true);
+            if ((flags & FLAG_DB) != 0) {
+                props = readSection(buf);
+                profile.expandDBProfile();
+                profile.getDBHistory().load(props);
+                profile.getDbIntroduction().load(props, "dbIntroduction", true);
+                profile.getDbResponseTime().load(props, "dbResponseTime", true);
+            }
+            return profile;
+        } catch (BufferUnderflowException bue) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Bad profile record for " + peer, bue);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Bad profile record for " + peer, ioe);
+        } catch (IllegalArgumentException iae) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Bad profile record for " + peer, iae);
+        }
+        return null;
+    }
+
+    private static Properties readSection(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining())
+            throw new IOException("bad section length " + len);
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(buf.array(), buf.position(), len));
+        buf.position(buf.position() + len);
+        Properties props = new Properties();
+        DataHelper.loadProps(props, in);
+        return props;
+    }
+
+    /**
+     *  Append the profiles that changed since they were last stored,
+     *  or rewrite the file with all of them if it has grown too large.
+     *
+     *  @param profiles all the current profiles
+     *  @return number written
+     */
+    public synchronized int write(Collection<PeerProfile> profiles) {
+        if (_fileSize <= 0 || !_file.exists() ||
+            (_fileSize > MIN_COMPACT_SIZE && _fileSize > 2 * _liveSize))
+            return rewrite(profiles);
+        List<PeerProfile> dirty = new ArrayList<PeerProfile>();
+        for (PeerProfile p : profiles) {
+            if (p.isDirty())
+                dirty.add(p);
+        }
+        if (dirty.isEmpty())
+            return 0;
+        return append(dirty);
+    }
+
+    /**
+     *  Write all the profiles to a temp file and rename it over the old one.
+     *  @return number written
+     */
+    private int rewrite(Collection<PeerProfile> profiles) {
+        long oldSize = _fileSize;
+        File tmp = new File(_file.getParentFile(), SNAPSHOT_FILE + ".tmp");
+        Map<Hash, Integer> stored = new HashMap<Hash, Integer>(profiles.size());
+        OutputStream out = null;
+        FileOutputStream fos = null;
+        long size = HEADER_LEN;
+        int count = 0;
+        boolean success = false;
+        try {
+            fos = new SecureFileOutputStream(tmp);
+            out = new BufferedOutputStream(fos, 64*1024);
+            out.write(MAGIC);
+            out.write(VERSION);
+            for (PeerProfile p : profiles) {
+                int sz = writeRecord(out, p);
+                if (sz <= 0)
+                    continue;
+                stored.put(p.getPeer(), Integer.valueOf(sz));
+                size += sz;
+                count++;
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            success = FileUtil.rename(tmp, _file);
+        } catch (IOException ioe) {
+            _log.error("Error writing " + tmp, ioe);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            else if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+            if (!success)
+                tmp.delete();
+        }
+        if (!success)
+            return 0;
+        _stored.clear();
+        _stored.putAll(stored);
+        _fileSize = size;
+        _liveSize = size - HEADER_LEN;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Rewrote " + count + " profiles to " + _file + ", " + oldSize + " -> " + size + " bytes");
+        return count;
+    }
+
+    /**
+     *  @return number written
+     */
+    private int append(List<PeerProfile> profiles) {
+        OutputStream out = null;
+        FileOutputStream fos = null;
+        int count = 0;
+        try {
+            fos = new SecureFileOutputStream(_file, true);
+            out = new BufferedOutputStream(fos, 64*1024);
+            for (PeerProfile p : profiles) {
+                int sz = writeRecord(out, p);
+                if (sz <= 0)
+                    continue;
+                Integer old = _stored.put(p.getPeer(), Integer.valueOf(sz));
+                if (old != null)
+                    _liveSize -= old.intValue();
+                _liveSize += sz;
+                _fileSize += sz;
+                count++;
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException ioe) {
+            _log.error("Error writing " + _file, ioe);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            else if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Appended " + count + " changed profiles to " + _file);
+        return count;
+    }
+
+    /**
+     *  @return record size, or 0 if not written
+     */
+    private int writeRecord(OutputStream out, PeerProfile p) throws IOException {
+        // clear first, so a change while we're writing it isn't lost
+        p.setClean();
+        byte[] body;
+        try {
+            body = encode(p);
+        } catch (IOException ioe) {
+            _log.error("Error encoding " + p, ioe);
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        byte[] tmp = new byte[4];
+        DataHelper.toLong(tmp, 0, 4, body.length);
+        out.write(tmp);
+        out.write(body);
+        DataHelper.toLong(tmp, 0, 4, crc.getValue());
+        out.write(tmp);
+        return 4 + body.length + 4;
+    }
+
+    private static byte[] encode(PeerProfile p) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(baos);
+        boolean db = p.getIsExpandedDB();
+        out.write(p.getPeer().getData());
+        out.write(db ? FLAG_DB : 0);
+        out.writeLong(p.getFirstHeardAbout());
+        out.writeLong(p.getLastHeardAbout());
+        out.writeLong(p.getLastHeardFrom());
+        out.writeLong(p.getLastSendSuccessful());
+        out.writeLong(p.getLastSendFailed());
+        out.writeInt(p.getSpeedBonus());
+        out.writeInt(p.getCapacityBonus());
+        out.writeInt(p.getIntegrationBonus());
+        out.writeFloat(p.getTunnelTestTimeAverage());
+        out.writeFloat(p.getPeakThroughputKBps());
+        out.writeFloat(p.getPeakTunnelThroughputKBps());
+        out.writeFloat(p.getPeakTunnel1mThroughputKBps());
+        ByteArrayOutputStream section = new ByteArrayOutputStream(1024);
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream dout = new DeflaterOutputStream(section, def);
+            p.getTunnelHistory().store(dout);
+            p.getTunnelCreateResponseTime().store(dout, "tunnelCreateResponseTime");
+            p.getTunnelTestResponseTime().store(dout, "tunnelTestResponseTime");
+            dout.finish();
+            out.writeInt(section.size());
+            section.writeTo(out);
+            if (db) {
+                section.reset();
+                def.reset();
+                dout = new DeflaterOutputStream(section, def);
+                p.getDBHistory().store(dout);
+                p.getDbIntroduction().store(dout, "dbIntroduction");
+                p.getDbResponseTime().store(dout, "dbResponseTime");
+                dout.finish();
+                out.writeInt(section.size());
+                section.writeTo(out);
+            }
+        } finally {
+            def.end();
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+}
@@ -135,8 +135,7 @@ class LoadRouterInfoJob extends JobImpl {
                         Hash h = _us.getIdentity().getHash();
                         _log.logAlways(Log.WARN, "Deleting old router identity " + h.toBase64());
                         // the netdb hasn't started yet, but we want to delete the RI
-                        File f = PersistentDataStore.getRouterInfoFile(getContext(), h);
-                        f.delete();
+                        PersistentDataStore.deleteRouterInfo(getContext(), h);
                         // the banlist can be called at any time
                         getContext().banlist().banlistRouterForever(h, "Our previous identity");
                         _us = null;
@@ -30,12 +30,22 @@ import net.i2p.util.Log;
  *  methods for the common case where we are under the bandwidth limits.
  *  And the volatile counters are now AtomicIntegers / AtomicLongs.
  *
+ *  As of 0.9.28, the shortcut methods reserve bytes with a compare-and-set
+ *  on the available counter, so they never overdraw it, and they check
+ *  a volatile count of pending requests instead of the unlocked list.
+ *  The queues and their locks are only used when a request can't be
+ *  satisfied immediately.
+ *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
     private final I2PAppContext _context;
     private final List<SimpleRequest> _pendingInboundRequests;
     private final List<SimpleRequest> _pendingOutboundRequests;
+    /** _pendingInboundRequests.size(), for the lockless shortcut */
+    private volatile int _pendingInboundCount;
+    /** _pendingOutboundRequests.size(), for the lockless shortcut */
+    private volatile int _pendingOutboundCount;
     /** how many bytes we can consume for inbound transmission immediately */
     private final AtomicInteger _availableInbound = new AtomicInteger();
     /** how many bytes we can consume for outbound transmission immediately */
@@ -91,6 +101,8 @@ public class FIFOBandwidthLimiter {
         _context.statManager().createRateStat("bwLimiter.pendingInboundRequests", "How many inbound requests are ahead of the current one (ignoring ones with 0)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _context.statManager().createRateStat("bwLimiter.outboundDelayedTime", "How long it takes to honor an outbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _context.statManager().createRateStat("bwLimiter.inboundDelayedTime", "How long it takes to honor an inbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
+        _context.statManager().createRateStat("bwLimiter.inboundQueued", "How many inbound requests could not be satisfied immediately", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
+        _context.statManager().createRateStat("bwLimiter.outboundQueued", "How many outbound requests could not be satisfied immediately", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _pendingInboundRequests = new ArrayList<SimpleRequest>(16);
         _pendingOutboundRequests = new ArrayList<SimpleRequest>(16);
         _lastTotalSent = _totalAllocatedOutboundBytes.get();
@@ -159,8 +171,14 @@ public class FIFOBandwidthLimiter {
 
     /** @since 0.8.8 */
     private void clear() {
-        _pendingInboundRequests.clear();
-        _pendingOutboundRequests.clear();
+        synchronized (_pendingInboundRequests) {
+            _pendingInboundRequests.clear();
+            _pendingInboundCount = 0;
+        }
+        synchronized (_pendingOutboundRequests) {
+            _pendingOutboundRequests.clear();
+            _pendingOutboundCount = 0;
+        }
         _availableInbound.set(0);
         _availableOutbound.set(0);
         _maxInbound = 0;
@@ -218,9 +236,11 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingInboundRequests) {
             pending = _pendingInboundRequests.size();
             _pendingInboundRequests.add(req);
+            _pendingInboundCount = pending + 1;
         }
         satisfyInboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
+        _context.statManager().addRateData("bwLimiter.inboundQueued", 1);
         if (pending > 0)
             _context.statManager().addRateData("bwLimiter.pendingInboundRequests", pending);
     }
@@ -244,9 +264,11 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingOutboundRequests) {
             pending = _pendingOutboundRequests.size();
             _pendingOutboundRequests.add(req);
+            _pendingOutboundCount = pending + 1;
         }
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
+        _context.statManager().addRateData("bwLimiter.outboundQueued", 1);
         if (pending > 0)
             _context.statManager().addRateData("bwLimiter.pendingOutboundRequests", pending);
     }
@@ -438,6 +460,7 @@ public class FIFOBandwidthLimiter {
                                   + ", longest waited " + locked_getLongestInboundWait() + ')');
                 }
             }
+            _pendingInboundCount = _pendingInboundRequests.size();
         }
         
         if (satisfied != null) {
@@ -588,6 +611,7 @@ public class FIFOBandwidthLimiter {
                                   + ", longest waited " + locked_getLongestOutboundWait() + ')');
                 }
             }
+            _pendingOutboundCount = _pendingOutboundRequests.size();
         }
         
         if (satisfied != null) {
@@ -693,44 +717,60 @@ public class FIFOBandwidthLimiter {
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  Only if nothing is queued ahead of us, so we stay FIFO.
+     *  As of 0.9.28, reserves the bytes with a CAS loop,
+     *  so the available counter can't be driven below zero.
      *
      *  @param requested number of bytes
      *  @return satisfaction
      *  @since 0.7.13
      */
     private boolean shortcutSatisfyInboundRequest(int requested) {
-        boolean rv = _inboundUnlimited ||
-                     (_pendingInboundRequests.isEmpty() &&
-                      _availableInbound.get() >= requested);
-        if (rv) {
-            _availableInbound.addAndGet(0 - requested);
-            _totalAllocatedInboundBytes.addAndGet(requested);
+        boolean rv = _inboundUnlimited;
+        if (!rv && _pendingInboundCount <= 0) {
+            while (true) {
+                int avail = _availableInbound.get();
+                if (avail < requested)
+                    break;
+                if (_availableInbound.compareAndSet(avail, avail - requested)) {
+                    rv = true;
+                    break;
+                }
+            }
         }
+        if (rv)
+            _totalAllocatedInboundBytes.addAndGet(requested);
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("IB shortcut for " + requested + "B? " + rv);
         return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  Only if nothing is queued ahead of us, so we stay FIFO.
+     *  As of 0.9.28, reserves the bytes with a CAS loop,
+     *  so the available counter can't be driven below zero.
      *
      *  @param requested number of bytes
      *  @return satisfaction
      *  @since 0.7.13
      */
     private boolean shortcutSatisfyOutboundRequest(int requested) {
-        boolean rv = _outboundUnlimited ||
-                     (_pendingOutboundRequests.isEmpty() &&
-                      _availableOutbound.get() >= requested);
-        if (rv) {
-            _availableOutbound.addAndGet(0 - requested);
-            _totalAllocatedOutboundBytes.addAndGet(requested);
+        boolean rv = _outboundUnlimited;
+        if (!rv && _pendingOutboundCount <= 0) {
+            while (true) {
+                int avail = _availableOutbound.get();
+                if (avail < requested)
+                    break;
+                if (_availableOutbound.compareAndSet(avail, avail - requested)) {
+                    rv = true;
+                    break;
+                }
+            }
         }
+        if (rv)
+            _totalAllocatedOutboundBytes.addAndGet(requested);
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("OB shortcut for " + requested + "B? " + rv);
         return rv;
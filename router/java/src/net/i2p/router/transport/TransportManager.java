@@ -52,7 +52,7 @@ public class TransportManager implements TransportEventListener {
     private final Map<String, Transport> _pluggableTransports;
     private final RouterContext _context;
     private final UPnPManager _upnpManager;
-    private final DHSessionKeyBuilder.PrecalcRunner _dhThread;
+    private final DHSessionKeyBuilder.PrecalcRunner _dhFactory;
 
     /** default true */
     public final static String PROP_ENABLE_UDP = "i2np.udp.enable";
@@ -82,7 +82,7 @@ public class TransportManager implements TransportEventListener {
             _upnpManager = new UPnPManager(context, this);
         else
             _upnpManager = null;
-        _dhThread = new DHSessionKeyBuilder.PrecalcRunner(context);
+        _dhFactory = new DHSessionKeyBuilder.PrecalcRunner(context);
     }
 
     /**
@@ -129,7 +129,7 @@ public class TransportManager implements TransportEventListener {
      *  @since 0.9.16
      */
     DHSessionKeyBuilder.Factory getDHFactory() {
-        return _dhThread;
+        return _dhFactory;
     }
     
     private void addTransport(Transport transport) {
@@ -152,12 +152,12 @@ public class TransportManager implements TransportEventListener {
         boolean enableUDP = _context.getBooleanPropertyDefaultTrue(PROP_ENABLE_UDP);
         Transport udp = null;
         if (enableUDP) {
-            udp = new UDPTransport(_context, _dhThread);
+            udp = new UDPTransport(_context, _dhFactory);
             addTransport(udp);
             initializeAddress(udp);
         }
         if (isNTCPEnabled(_context)) {
-            Transport ntcp = new NTCPTransport(_context, _dhThread);
+            Transport ntcp = new NTCPTransport(_context, _dhFactory);
             addTransport(ntcp);
             initializeAddress(ntcp);
             if (udp != null) {
@@ -233,8 +233,6 @@ public class TransportManager implements TransportEventListener {
     }
 
     public synchronized void startListening() {
-        if (_dhThread.getState() == Thread.State.NEW)
-            _dhThread.start();
         // For now, only start UPnP if we have no publicly-routable addresses
         // so we don't open the listener ports to the world.
         // Maybe we need a config option to force on? Probably not.
@@ -293,7 +291,7 @@ public class TransportManager implements TransportEventListener {
      */
     public synchronized void shutdown() {
         stopListening();
-        _dhThread.shutdown();
+        _dhFactory.shutdown();
         Addresses.clearCaches();
         TransportImpl.clearCaches();
     }
@@ -18,33 +18,24 @@ import java.util.concurrent.LinkedBlockingQueue;
 import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
 import net.i2p.crypto.CryptoConstants;
+import net.i2p.crypto.YKGenerator;
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.crypto.SigUtil;
 import net.i2p.data.ByteArray;
 //import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
-import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.NativeBigInteger;
 import net.i2p.util.RandomSource;
-import net.i2p.util.SystemVersion;
 
 /**
  * Generate a new session key through a diffie hellman exchange.  This uses the
  * constants defined in CryptoConstants, which causes the exchange to create a 
  * 256 bit session key.
  *
- * This class precalcs a set of values on its own thread.
- * Whenever the pool has
- * less than the minimum, it fills it up again to the max.  There is a delay after 
- * each precalculation so that the CPU isn't hosed during startup.  
- * These three parameters are controlled by java environmental variables and 
- * can be adjusted via:
- *  -Dcrypto.dh.precalc.min=40 -Dcrypto.dh.precalc.max=100 -Dcrypto.dh.precalc.delay=60000
- *
- * (delay is milliseconds)
- *
- * To disable precalculation, set min to 0
+ * As of 0.9.28, the precalculated values come from the ElGamal YKGenerator,
+ * which has its own threads and settings, as (g**x mod p, x) is the same
+ * calculation. The crypto.dh.precalc.* settings are no longer used.
  *
  * @since 0.9 moved from net.i2p.crypto
  *
@@ -59,12 +50,8 @@ public class DHSessionKeyBuilder {
     private SessionKey _sessionKey;
     private final ByteArray _extraExchangedBytes; // bytes after the session key from the DH exchange
 
-    private final static String PROP_DH_PRECALC_MIN = "crypto.dh.precalc.min";
-    private final static String PROP_DH_PRECALC_MAX = "crypto.dh.precalc.max";
-    private final static String PROP_DH_PRECALC_DELAY = "crypto.dh.precalc.delay";
-    private final static int DEFAULT_DH_PRECALC_MIN = 20;
-    private final static int DEFAULT_DH_PRECALC_MAX = 60;
-    private final static int DEFAULT_DH_PRECALC_DELAY = 25;
+    /** max unused builders kept for reuse */
+    private final static int MAX_RETURNED = 16;
 
     /**
      * Create a new public/private value pair for the DH exchange.
@@ -85,6 +72,18 @@ public class DHSessionKeyBuilder {
         _myPublicValue = CryptoConstants.elgg.modPow(_myPrivateValue, CryptoConstants.elgp);
         _extraExchangedBytes = new ByteArray();
     }
+
+    /**
+     * Use a precalculated public/private value pair for the DH exchange.
+     *
+     * @param yk from YKGenerator, rv[0] = public value; rv[1] = private value
+     * @since 0.9.28
+     */
+    private DHSessionKeyBuilder(BigInteger[] yk) {
+        _myPublicValue = yk[0];
+        _myPrivateValue = yk[1];
+        _extraExchangedBytes = new ByteArray();
+    }
     
     /**
      * Conduct a DH exchange over the streams, returning the resulting data.
@@ -434,132 +433,50 @@ public class DHSessionKeyBuilder {
      *  It's important to do this in a separate thread, because if we run out,
      *  the pairs are generated in the NTCP Pumper thread,
      *  and it can fall behind.
+     *
+     *  As of 0.9.28, this is no longer a thread.
+     *  The pairs come from the ElGamal YKGenerator threads,
+     *  which are shared with ElGamal encryption and size their pool
+     *  to the combined use. Only returned unused builders are kept here.
      */
-    public static class PrecalcRunner extends I2PThread implements Factory {
+    public static class PrecalcRunner implements Factory {
         private final I2PAppContext _context;
         private final Log _log;
-        private final int _minSize;
-        private final int _maxSize;
-        private final int _calcDelay;
+        private final YKGenerator _ykgen;
         private final LinkedBlockingQueue<DHSessionKeyBuilder> _builders;
-        private volatile boolean _isRunning;
-
-        /** check periodically whether we have less than the minimum */
-        private long _checkDelay = 10 * 1000;
 
         public PrecalcRunner(I2PAppContext ctx) {
-            super("DH Precalc");
             _context = ctx;
             _log = ctx.logManager().getLog(DHSessionKeyBuilder.class);
-            ctx.statManager().createRateStat("crypto.dhGeneratePublicTime", "How long it takes to create x and X", "Encryption", new long[] { 60*60*1000 });
+            _ykgen = ctx.elGamalEngine().getYKGenerator();
             ctx.statManager().createRateStat("crypto.dhCalculateSessionTime", "How long it takes to create the session key", "Encryption", new long[] { 60*60*1000 });        
             ctx.statManager().createRateStat("crypto.DHUsed", "Need a DH from the queue", "Encryption", new long[] { 60*60*1000 });
             ctx.statManager().createRateStat("crypto.DHReused", "Unused DH requeued", "Encryption", new long[] { 60*60*1000 });
-            ctx.statManager().createRateStat("crypto.DHEmpty", "DH queue empty", "Encryption", new long[] { 60*60*1000 });
-
-            // add to the defaults for every 128MB of RAM, up to 512MB
-            long maxMemory = SystemVersion.getMaxMemory();
-            int factor = (int) Math.max(1l, Math.min(4l, 1 + (maxMemory / (128*1024*1024l))));
-            int defaultMin = DEFAULT_DH_PRECALC_MIN * factor;
-            int defaultMax = DEFAULT_DH_PRECALC_MAX * factor;
-            _minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
-            _maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
-            _calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
-
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("DH Precalc (minimum: " + _minSize + " max: " + _maxSize + ", delay: "
-                           + _calcDelay + ")");
-            _builders = new LinkedBlockingQueue<DHSessionKeyBuilder>(_maxSize);
-            if (!SystemVersion.isWindows())
-                setPriority(Thread.NORM_PRIORITY - 1);
+            _builders = new LinkedBlockingQueue<DHSessionKeyBuilder>(MAX_RETURNED);
         }
         
         /**
-         *  Note that this stops the singleton precalc thread.
-         *  You don't want to do this if there are multiple routers in the JVM.
-         *  Fix this if you care. See Router.shutdown().
+         *  Drops the returned builders.
+         *  Does not stop the YKGenerator threads, that's done by the ElGamalEngine.
          *  @since 0.8.8
          */
         public void shutdown() {
-            _isRunning = false;
-            this.interrupt();
             _builders.clear();
         }
 
-        public void run() {
-            _isRunning = true;
-            while (_isRunning) {
-                //long start = System.currentTimeMillis();
-                int startSize = getSize();
-                // Adjust delay
-                if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                    _checkDelay -= 1000;
-                else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                    _checkDelay += 1000;
-                if (startSize < _minSize) {
-                    // fill all the way up, do the check here so we don't
-                    // throw away one when full in addValues()
-                    while (getSize() < _maxSize && _isRunning) {
-                        long curStart = System.currentTimeMillis();
-                        if (!addBuilder(precalc()))
-                            break;
-                        long curCalc = System.currentTimeMillis() - curStart;
-                        // for some relief...
-                        if (!interrupted()) {
-                            try {
-                                Thread.sleep(Math.min(200, Math.max(10, _calcDelay + (curCalc * 3))));
-                            } catch (InterruptedException ie) {}
-                        }
-                    }
-                }
-                //long end = System.currentTimeMillis();
-                //int numCalc = curSize - startSize;
-                //if (numCalc > 0) {
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("Precalced " + numCalc + " to " + curSize + " in "
-                //                   + (end - start - CALC_DELAY * numCalc) + "ms (not counting "
-                //                   + (CALC_DELAY * numCalc) + "ms relief).  now sleeping");
-                //}
-                if (!_isRunning)
-                    break;
-                try {
-                    Thread.sleep(_checkDelay);
-                } catch (InterruptedException ie) { // nop
-                }
-            }
-        }
-
         /**
          * Construct a new DH key builder
          * or pulls a prebuilt one from the queue.
+         * If the YKGenerator is empty, the pair is generated now;
+         * see the crypto.YKEmpty stat.
          *
          * @since 0.9 moved from DHSKB
          */
         public DHSessionKeyBuilder getBuilder() {
             _context.statManager().addRateData("crypto.DHUsed", 1);
             DHSessionKeyBuilder builder = _builders.poll();
-            if (builder == null) {
-                if (_log.shouldLog(Log.INFO)) _log.info("No more builders, creating one now");
-                _context.statManager().addRateData("crypto.DHEmpty", 1);
-                builder = precalc();
-                // stop sleeping, wake up, make some more
-                this.interrupt();
-            }
-            return builder;
-        }
-
-        private DHSessionKeyBuilder precalc() {
-            long start = System.currentTimeMillis();
-            DHSessionKeyBuilder builder = new DHSessionKeyBuilder(_context);
-            long end = System.currentTimeMillis();
-            long diff = end - start;
-            _context.statManager().addRateData("crypto.dhGeneratePublicTime", diff);
-            if (diff > 1000) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Took more than a second (" + diff + "ms) to generate local DH value");
-            } else {
-                if (_log.shouldLog(Log.DEBUG)) _log.debug("Took " + diff + "ms to generate local DH value");
-            }
+            if (builder == null)
+                builder = new DHSessionKeyBuilder(_ykgen.getNextYK());
             return builder;
         }
 
@@ -579,16 +496,6 @@ public class DHSessionKeyBuilder {
             _context.statManager().addRateData("crypto.DHReused", 1);
             _builders.offer(builder);
         }
-
-        /** @return true if successful, false if full */
-        private final boolean addBuilder(DHSessionKeyBuilder builder) {
-            return _builders.offer(builder);
-        }
-
-        private final int getSize() {
-            return _builders.size();
-        }
-
     }
     
     public static class InvalidPublicParameterException extends I2PException {
@@ -349,7 +349,7 @@ class EstablishState {
 
                     // ok, now that is prepared, we want to actually send it, so make sure we are up for writing
                     changeState(State.IB_SENT_Y);
-                    _transport.getPumper().wantsWrite(_con, write);
+                    _con.getPumper().wantsWrite(_con, write);
                     if (!src.hasRemaining()) return;
                 } catch (DHSessionKeyBuilder.InvalidPublicParameterException e) {
                     _context.statManager().addRateData("ntcp.invalidDH", 1);
@@ -611,7 +611,7 @@ class EstablishState {
                 //}
                 // send 'er off (when the bw limiter says, etc)
                 changeState(State.OB_SENT_RI);
-                _transport.getPumper().wantsWrite(_con, _prevEncrypted);
+                _con.getPumper().wantsWrite(_con, _prevEncrypted);
             }
         }
 
@@ -732,7 +732,7 @@ class EstablishState {
             System.arraycopy(_X, 0, toWrite, 0, XY_SIZE);
             System.arraycopy(_hX_xor_bobIdentHash, 0, toWrite, XY_SIZE, _hX_xor_bobIdentHash.length);
             changeState(State.OB_SENT_X);
-            _transport.getPumper().wantsWrite(_con, toWrite);
+            _con.getPumper().wantsWrite(_con, toWrite);
         } else {
             if (_log.shouldLog(Log.WARN))
                 _log.warn(prefix() + "unexpected prepareOutbound()");
@@ -940,7 +940,7 @@ class EstablishState {
 
         if (_log.shouldLog(Log.DEBUG))
             _log.debug(prefix() + "Sending encrypted inbound confirmation");
-        _transport.getPumper().wantsWrite(_con, _e_bobSig);
+        _con.getPumper().wantsWrite(_con, _e_bobSig);
     }
 
     /** Anything left over in the byte buffer after verification is extra
@@ -15,13 +15,13 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
-import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
 import net.i2p.data.router.RouterAddress;
 import net.i2p.data.router.RouterIdentity;
@@ -37,6 +37,10 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  As of 0.9.28, there may be several, each with its own Selector and
+ *  a partition of the connections, see NTCPTransport.PROP_PUMPERS.
+ *  Connections stay with one pumper for their lifetime.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
@@ -50,8 +54,25 @@ class EventPumper implements Runnable {
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** inbound, accepted by another pumper, @since 0.9.28 */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
+    /** inline mode only, @since 0.9.28 */
+    private final Set<NTCPConnection> _wantsPrepare = new ConcurrentHashSet<NTCPConnection>(32);
     private final NTCPTransport _transport;
+    /** only used by the pumper thread, @since 0.9.28 */
+    private final ByteBuffer[] _gatherBufs = new ByteBuffer[MAX_GATHER];
+    /** only used by the pumper thread, inline mode only, @since 0.9.28 */
+    private final NTCPConnection.PrepBuffer _prepBuffer;
+    /** shared by all pumpers */
     private final ObjectCounter<ByteArray> _blockedIPs;
+    /** @since 0.9.28 */
+    private final int _shard, _shards;
+    /**
+     *  Process established reads and writes on this thread, not in the Reader and Writer.
+     *  @since 0.9.28
+     */
+    private final boolean _inline;
+    private volatile Thread _thread;
     private long _expireIdleWriteTime;
     private boolean _useDirect;
     
@@ -61,15 +82,15 @@ class EventPumper implements Runnable {
      *  The occasional larger message can use multiple buffers.
      */
     private static final int BUF_SIZE = 8*1024;
+    /** max buffers per gathering write, @since 0.9.28 */
+    private static final int MAX_GATHER = 16;
     private static final int MAX_CACHE_SIZE = 64;
 
     /**
      *  Read buffers. (write buffers use wrap())
-     *  Shared if there are multiple routers in the JVM
-     *  Note that if the routers have different PROP_DIRECT settings this will have a mix,
-     *  so don't do that.
+     *  One per pumper as of 0.9.28, previously static.
      */
-    private static final LinkedBlockingQueue<ByteBuffer> _bufCache = new LinkedBlockingQueue<ByteBuffer>(MAX_CACHE_SIZE);
+    private final LinkedBlockingQueue<ByteBuffer> _bufCache = new LinkedBlockingQueue<ByteBuffer>(MAX_CACHE_SIZE);
 
     /** 
      * every few seconds, iterate across all ntcp connections just to make sure
@@ -102,12 +123,23 @@ class EventPumper implements Runnable {
         MIN_BUFS = (int) Math.max(MIN_MINB, Math.min(MAX_MINB, 1 + (maxMemory / (16*1024*1024))));
     }
 
-    public EventPumper(RouterContext ctx, NTCPTransport transport) {
+    /**
+     *  @param shard 0 to shards - 1, shard 0 expires connections and has the listeners
+     *  @param shards total number of pumpers, if greater than 1, established reads and writes are done inline
+     *  @param blockedIPs shared by all pumpers
+     *  @since 0.9.28 added last three params
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int shard, int shards,
+                       ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _shard = shard;
+        _shards = shards;
+        _inline = shards > 1;
+        _prepBuffer = _inline ? new NTCPConnection.PrepBuffer() : null;
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
@@ -122,7 +154,8 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            String name = _shards > 1 ? "NTCP Pumper " + (_shard + 1) + '/' + _shards : "NTCP Pumper";
+            new I2PThread(this, name, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -172,6 +205,7 @@ class EventPumper implements Runnable {
      *  take care to minimize overhead and unnecessary debugging stuff.
      */
     public void run() {
+        _thread = Thread.currentThread();
         int loopCount = 0;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
@@ -314,7 +348,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_shard == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -361,6 +395,11 @@ class EventPumper implements Runnable {
             _log.error("Error closing keys on pumper shutdown", e);
         }
         _wantsConRegister.clear();
+        SocketChannel sc;
+        while ((sc = _wantsAcceptRegister.poll()) != null) {
+            try { sc.close(); } catch (IOException ioe) {}
+        }
+        _wantsPrepare.clear();
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
@@ -421,11 +460,20 @@ class EventPumper implements Runnable {
      *  If no bandwidth, calls con.queuedWrite().
      */
     public void wantsWrite(NTCPConnection con, byte data[]) {
-        ByteBuffer buf = ByteBuffer.wrap(data);
-        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(data.length, 0, "NTCP write");//con, buf);
+        wantsWrite(con, data, data.length);
+    }
+
+    /**
+     *  As above, for the first len bytes of data.
+     *
+     *  @since 0.9.28
+     */
+    public void wantsWrite(NTCPConnection con, byte data[], int len) {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write");//con, buf);
         if (req.getPendingRequested() > 0) {
             if (_log.shouldLog(Log.INFO))
-                _log.info("queued write on " + con + " for " + data.length);
+                _log.info("queued write on " + con + " for " + len);
             _context.statManager().addRateData("ntcp.wantsQueuedWrite", 1);
             con.queuedWrite(buf, req);
         } else {
@@ -441,11 +489,44 @@ class EventPumper implements Runnable {
      *  Only wakeup if new.
      */
     public void wantsWrite(NTCPConnection con) {
-        if (_wantsWrite.add(con)) {
+        if (_wantsWrite.add(con) && Thread.currentThread() != _thread) {
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     *  Inline mode only.
+     *  Called by the connection when it has messages queued, in place of
+     *  Writer.wantsWrite(), so the next write is prepared on this thread.
+     *  Only wakeup if new.
+     *
+     *  @since 0.9.28
+     */
+    public void wantsPrepare(NTCPConnection con) {
+        if (_wantsPrepare.add(con) && Thread.currentThread() != _thread) {
             _selector.wakeup();
         }
     }
 
+    /**
+     *  Are established reads and writes done on this pumper's thread?
+     *
+     *  @since 0.9.28
+     */
+    public boolean isInline() {
+        return _inline;
+    }
+
+    /**
+     *  An inbound connection accepted by another pumper, to be owned by this one.
+     *
+     *  @since 0.9.28
+     */
+    private void registerAccepted(SocketChannel chan) {
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
+
     /**
      *  This is only called from NTCPConnection.complete()
      *  if there is more data, which is rare (never?)
@@ -458,10 +539,9 @@ class EventPumper implements Runnable {
 
     /**
      *  How many to keep in reserve.
-     *  Shared if there are multiple routers in the JVM
      */
-    private static int _numBufs = MIN_BUFS;
-    private static int __consecutiveExtra;
+    private volatile int _numBufs = MIN_BUFS;
+    private int _consecutiveExtra;
 
     /**
      *  High-frequency path in thread.
@@ -489,15 +569,17 @@ class EventPumper implements Runnable {
      *  Return a read buffer to the pool.
      *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
      *  High-frequency path in thread.
+     *
+     *  @since 0.9.28 non-static, use con.getPumper().releaseBuf()
      */
-    public static void releaseBuf(ByteBuffer buf) {
+    public void releaseBuf(ByteBuffer buf) {
         //if (false) return;
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("releasing read buffer " + System.identityHashCode(buf) + " with " + __liveBufs + " live: " + buf);
 
         // double check
         if (buf.capacity() < BUF_SIZE) {
-            I2PAppContext.getGlobalContext().logManager().getLog(EventPumper.class).error("Bad size " + buf.capacity(), new Exception());
+            _log.error("Bad size " + buf.capacity(), new Exception());
             return;
         }
         buf.clear();
@@ -508,11 +590,11 @@ class EventPumper implements Runnable {
         if (cached) {
             _bufCache.offer(buf);
             if (extra > MIN_BUFS) {
-                __consecutiveExtra++;
-                if (__consecutiveExtra >= 20) {
+                _consecutiveExtra++;
+                if (_consecutiveExtra >= 20) {
                     if (_numBufs > MIN_BUFS)
                         _numBufs--;
-                    __consecutiveExtra = 0;
+                    _consecutiveExtra = 0;
                 }
             }
         }
@@ -563,14 +645,29 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
-            SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            new NTCPConnection(_context, _transport, chan, ckey);
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("new NTCP connection established: " +con);
+            EventPumper owner = _transport.nextPumper();
+            if (owner != this) {
+                owner.registerAccepted(chan);
+                return;
+            }
+            registerInbound(chan);
         } catch (IOException ioe) {
             _log.error("Error accepting", ioe);
         }
     }
+
+    /**
+     *  Register an accepted channel with our selector and create the connection.
+     *  Pumper thread only.
+     *
+     *  @since 0.9.28 split out of processAccept()
+     */
+    private void registerInbound(SocketChannel chan) throws ClosedChannelException {
+        SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
+        new NTCPConnection(_context, _transport, chan, ckey, this);
+        //if (_log.shouldLog(Log.DEBUG))
+        //    _log.debug("new NTCP connection established: " +con);
+    }
     
     private void processConnect(SelectionKey key) {
         NTCPConnection con = (NTCPConnection)key.attachment();
@@ -689,7 +786,10 @@ class EventPumper implements Runnable {
                     //    _log.debug("not bw throttled reading for " + con);
                     // stay interested
                     //key.interestOps(key.interestOps() | SelectionKey.OP_READ);
-                    con.recv(buf);
+                    if (con.isReadInline())
+                        con.recvInline(buf);
+                    else
+                        con.recv(buf);
                     _context.statManager().addRateData("ntcp.read", read);
                 }
             }
@@ -747,60 +847,33 @@ class EventPumper implements Runnable {
      *  High-frequency path in thread.
      */
     private void processWrite(SelectionKey key) {
-        //int totalWritten = 0;
-        //int buffers = 0;
-        //long before = System.currentTimeMillis();
         NTCPConnection con = (NTCPConnection)key.attachment();
+        ByteBuffer[] bufs = _gatherBufs;
         try {
             while (true) {
-                ByteBuffer buf = con.getNextWriteBuf();
-                if (buf != null) {
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("writing " + buf.remaining()+"...");
-                    if (buf.remaining() <= 0) {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer was already fully written and removed after " + (afterRem-beforeRem) + "...");
-                        //buffers++;
-                        continue;                    
-                    }
-                    int written = con.getChannel().write(buf);
-                    //totalWritten += written;
-                    if (written == 0) {
-                        if ( (buf.remaining() > 0) || (!con.isWriteBufEmpty()) ) {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, but data remains...");
-                            // stay interested
-                            //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        } else {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, no data remains...");
-                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-                        }
-                        break;
-                    } else if (buf.remaining() > 0) {
-                        //if (_log.shouldLog(Log.DEBUG)) _log.debug("buffer data remaining...");
-                        // stay interested
-                        //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        break;
-                    } else {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer "+ buffers+"/"+written+"/"+totalWritten+" fully written after " +
-                        //               (beforeRem-before) + ", then removed after " + (afterRem-beforeRem) + "...");
-                        //releaseBuf(buf);
-                        //buffers++;
-                        //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
-                        // LOOP
-                    }
-                } else {
+                int count = con.getWriteBufs(bufs);
+                if (count <= 0) {
                     // Nothing more to write
 		    if (key.isValid())
                     	key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                     break;
                 }
+                // a single gathering write for everything pending,
+                // e.g. a meta message and one or more coalesced I2NP messages
+                if (count > 1 || bufs[0].hasRemaining())
+                    con.getChannel().write(bufs, 0, count);
+                int done = 0;
+                for ( ; done < count; done++) {
+                    ByteBuffer buf = bufs[done];
+                    if (buf.hasRemaining())
+                        break;
+                    con.removeWriteBuf(buf);
+                }
+                if (done < count) {
+                    // socket is full, stay interested
+                    break;
+                }
+                // LOOP
             }
         } catch (CancelledKeyException cke) {
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
@@ -810,6 +883,8 @@ class EventPumper implements Runnable {
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
             _context.statManager().addRateData("ntcp.writeError", 1);
             con.close();
+        } finally {
+            Arrays.fill(bufs, null);
         }
         //long after = System.currentTimeMillis();
         //if (_log.shouldLog(Log.INFO))
@@ -824,6 +899,20 @@ class EventPumper implements Runnable {
      */
     private void runDelayedEvents() {
         NTCPConnection con;
+        // inline mode, do this first, it may add to _wantsWrite
+        if (!_wantsPrepare.isEmpty()) {
+            for (Iterator<NTCPConnection> iter = _wantsPrepare.iterator(); iter.hasNext(); ) {
+                con = iter.next();
+                iter.remove();
+                try {
+                    _prepBuffer.init();
+                    con.prepareNextWrite(_prepBuffer);
+                } catch (RuntimeException re) {
+                    _log.log(Log.CRIT, "Error in the ntcp writer on " + con, re);
+                }
+            }
+        }
+
         while ((con = _wantsRead.poll()) != null) {
             SelectionKey key = con.getKey();
             try {
@@ -884,6 +973,15 @@ class EventPumper implements Runnable {
             }
         }
         
+        SocketChannel schan;
+        while ((schan = _wantsAcceptRegister.poll()) != null) {
+            try {
+                registerInbound(schan);
+            } catch (ClosedChannelException cce) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+            }
+        }
+
         while ((con = _wantsConRegister.poll()) != null) {
             try {
                 SelectionKey key = con.getChannel().register(_selector, SelectionKey.OP_CONNECT);
@@ -933,7 +1031,7 @@ class EventPumper implements Runnable {
         }
         
         long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
+        if (_shard == 0 && _lastExpired + 1000 <= now) {
             expireTimedOut();
             _lastExpired = now;
         }
@@ -105,6 +105,21 @@ class NTCPConnection implements Closeable {
      *  FIXME why do we need this???
      */
     private OutNetMessage _currentOutbound;
+    /**
+     *  additional messages prepared into the same buffer as _currentOutbound,
+     *  in coalescing mode - synchronize on _outbound to modify or read
+     *  @since 0.9.28
+     */
+    private final List<OutNetMessage> _coalescedOutbound = new ArrayList<OutNetMessage>(4);
+    /**
+     *  pooled buffer holding the current coalesced write, or null
+     *  @since 0.9.28
+     */
+    private ByteArray _coalesceBuf;
+    /** owner for the lifetime of the connection, @since 0.9.28 */
+    private final EventPumper _pumper;
+    /** the Reader is done with the establishment, @since 0.9.28 */
+    private volatile boolean _readInline;
     private SessionKey _sessionKey;
     /** encrypted block of the current I2NP message being read */
     private byte _curReadBlock[];
@@ -163,6 +178,17 @@ class NTCPConnection implements Closeable {
     /** 2 bytes for length and 4 for CRC */
     public static final int MAX_MSG_SIZE = BUFFER_SIZE - (2 + 4);
 
+    /**
+     *  Coalescing mode: stop adding queued messages to a write after this many bytes.
+     *  The last message may go past it, so the pooled buffers are larger by BUFFER_SIZE.
+     *  @since 0.9.28
+     */
+    private static final int COALESCE_BYTES = 8*1024;
+    /** @since 0.9.28 */
+    private static final int COALESCE_MAX_MSGS = 16;
+    /** @since 0.9.28 */
+    private static final ByteCache _coalesceBufs = ByteCache.getInstance(16, COALESCE_BYTES + BUFFER_SIZE);
+
     private static final int INFO_PRIORITY = OutNetMessage.PRIORITY_MY_NETDB_STORE_LOW;
     private static final String FIXED_RI_VERSION = "0.9.12";
     private static final AtomicLong __connID = new AtomicLong();
@@ -171,9 +197,12 @@ class NTCPConnection implements Closeable {
     /**
      * Create an inbound connected (though not established) NTCP connection
      *
+     * @param pumper the one whose selector the key is registered with, since 0.9.28
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key) {
+    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key,
+                          EventPumper pumper) {
         _context = ctx;
+        _pumper = pumper;
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
@@ -202,6 +231,7 @@ class NTCPConnection implements Closeable {
      */
     public NTCPConnection(RouterContext ctx, NTCPTransport transport, RouterIdentity remotePeer, RouterAddress remAddr) {
         _context = ctx;
+        _pumper = transport.nextPumper();
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
@@ -236,6 +266,24 @@ class NTCPConnection implements Closeable {
      */
     public SocketChannel getChannel() { return _chan; }
 
+    /**
+     *  The pumper that owns this connection's channel
+     *  @since 0.9.28
+     */
+    EventPumper getPumper() { return _pumper; }
+
+    /**
+     *  Prepare the next write, on the pumper thread in inline mode,
+     *  otherwise in the Writer pool.
+     *  @since 0.9.28
+     */
+    private void wantsWrite(String source) {
+        if (_pumper.isInline())
+            _pumper.wantsPrepare(this);
+        else
+            _transport.getWriter().wantsWrite(this, source);
+    }
+
     /**
      *  Valid for inbound; valid for outbound shortly after creation
      */
@@ -336,7 +384,7 @@ class NTCPConnection implements Closeable {
             synchronized(_outbound) {
                 queued = _outbound.size();
                 if (getCurrentOutbound() != null)
-                    queued++;
+                    queued += 1 + _coalescedOutbound.size();
             }
             return queued;
     }
@@ -434,7 +482,7 @@ class NTCPConnection implements Closeable {
 
         for (FIFOBandwidthLimiter.Request req :_bwInRequests) {
             req.abort();
-            // we would like to return read ByteBuffers via EventPumper.releaseBuf(),
+            // we would like to return read ByteBuffers via _pumper.releaseBuf(),
             // but we can't risk releasing it twice
         }
         _bwInRequests.clear();
@@ -446,7 +494,7 @@ class NTCPConnection implements Closeable {
         _writeBufs.clear();
         ByteBuffer bb;
         while ((bb = _readBufs.poll()) != null) {
-            EventPumper.releaseBuf(bb);
+            _pumper.releaseBuf(bb);
         }
 
         List<OutNetMessage> pending = new ArrayList<OutNetMessage>();
@@ -455,9 +503,16 @@ class NTCPConnection implements Closeable {
         for (OutNetMessage msg : pending) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
 
-        OutNetMessage msg = getCurrentOutbound();
+        OutNetMessage msg;
+        synchronized (_outbound) {
+            msg = _currentOutbound;
+            pending.clear();
+            pending.addAll(_coalescedOutbound);
+        }
         if (msg != null) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
+        for (OutNetMessage m : pending) 
+            _transport.afterSend(m, false, allowRequeue, m.getLifetime());
         
         return old;
     }
@@ -497,7 +552,7 @@ class NTCPConnection implements Closeable {
         boolean noOutbound = (getCurrentOutbound() == null);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("messages enqueued on " + toString() + ": " + enqueued + " new one: " + msg.getMessageId() + " of " + msg.getMessageType());
         if (isEstablished() && noOutbound)
-            _transport.getWriter().wantsWrite(this, "enqueued");
+            wantsWrite("enqueued");
     }
 
 /****
@@ -647,7 +702,7 @@ class NTCPConnection implements Closeable {
         _nextMetaTime = _establishedOn + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY);
         _nextInfoTime = _establishedOn + (INFO_FREQUENCY / 2) + _context.random().nextInt(INFO_FREQUENCY);
         if (msgs)
-            _transport.getWriter().wantsWrite(this, "outbound established");
+            wantsWrite("outbound established");
     }
     
     /**
@@ -768,7 +823,7 @@ class NTCPConnection implements Closeable {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, encrypted);
+        _pumper.wantsWrite(this, encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -804,6 +859,8 @@ class NTCPConnection implements Closeable {
         }
       
         OutNetMessage msg = null;
+        List<OutNetMessage> others = null;
+        boolean coalesce = _context.getBooleanProperty(NTCPTransport.PROP_COALESCE);
         // this is synchronized only for _currentOutbound
         // Todo: figure out how to remove the synchronization
         synchronized (_outbound) {
@@ -847,25 +904,44 @@ class NTCPConnection implements Closeable {
             }
 ****/
             _currentOutbound = msg;
+            if (coalesce) {
+                // Drain more of the queue, in priority order, up to the size budget.
+                // Messages offered after this point wait for the next write.
+                int total = frameSize(msg);
+                OutNetMessage next;
+                while (total < COALESCE_BYTES &&
+                       _coalescedOutbound.size() < COALESCE_MAX_MSGS - 1 &&
+                       (next = _outbound.poll()) != null) {
+                    _coalescedOutbound.add(next);
+                    total += frameSize(next);
+                }
+                if (!_coalescedOutbound.isEmpty())
+                    others = new ArrayList<OutNetMessage>(_coalescedOutbound);
+            }
         }
         
-        //long begin = System.currentTimeMillis();
-        bufferedPrepare(msg,buf);
-        _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
-        System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
-        //long encryptedTime = System.currentTimeMillis();
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
-        //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
-        //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
-        //long wantsTime = System.currentTimeMillis();
-        //long releaseTime = System.currentTimeMillis();
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("prepared outbound " + System.identityHashCode(msg) 
-        //               + " encrypted=" + (encryptedTime-begin)
-        //               + " wantsWrite=" + (wantsTime-encryptedTime)
-        //               + " releaseBuf=" + (releaseTime-wantsTime));
+        if (others != null) {
+            prepareCoalesced(msg, others, buf);
+        } else {
+            //long begin = System.currentTimeMillis();
+            bufferedPrepare(msg, buf, buf.unencrypted, 0);
+            buf.encrypted = new byte[buf.unencryptedLength];
+            _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
+            System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
+            //long encryptedTime = System.currentTimeMillis();
+            //if (_log.shouldLog(Log.DEBUG))
+            //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
+            //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
+            //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
+            _pumper.wantsWrite(this, buf.encrypted);
+            //long wantsTime = System.currentTimeMillis();
+            //long releaseTime = System.currentTimeMillis();
+            //if (_log.shouldLog(Log.DEBUG))
+            //    _log.debug("prepared outbound " + System.identityHashCode(msg) 
+            //               + " encrypted=" + (encryptedTime-begin)
+            //               + " wantsWrite=" + (wantsTime-encryptedTime)
+            //               + " releaseBuf=" + (releaseTime-wantsTime));
+        }
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -877,14 +953,66 @@ class NTCPConnection implements Closeable {
         }
     }
     
+    /**
+     * Encrypt the current message and the coalesced ones into a single pooled
+     * buffer, in one AES-CBC pass, and hand it to the pumper as one write.
+     * The ciphertext is identical to that of separate writes, as each frame
+     * is chained from the last block of the previous one anyway.
+     * This should be called from a Writer thread
+     *
+     * @param msg the current message
+     * @param others the coalesced messages, non-empty
+     * @param buf PrepBuffer to use as scratch space
+     * @since 0.9.28
+     */
+    private void prepareCoalesced(OutNetMessage msg, List<OutNetMessage> others, PrepBuffer buf) {
+        ByteArray ba = _coalesceBufs.acquire();
+        byte[] data = ba.getData();
+        int len = bufferedPrepare(msg, buf, data, 0);
+        int i = 0;
+        for ( ; i < others.size(); i++) {
+            if (len + BUFFER_SIZE > data.length) {
+                // size estimate was off, put the rest back for the next write
+                List<OutNetMessage> rest = others.subList(i, others.size());
+                synchronized (_outbound) {
+                    _coalescedOutbound.removeAll(rest);
+                }
+                for (OutNetMessage m : rest) {
+                    _outbound.offer(m);
+                }
+                break;
+            }
+            len += bufferedPrepare(others.get(i), buf, data, len);
+        }
+        _context.aes().encrypt(data, 0, data, 0, _sessionKey, _prevWriteEnd, 0, len);
+        System.arraycopy(data, len - 16, _prevWriteEnd, 0, _prevWriteEnd.length);
+        _coalesceBuf = ba;
+        _context.statManager().addRateData("ntcp.coalescedMessages", 1 + i);
+        _pumper.wantsWrite(this, data, len);
+    }
+
+    /**
+     * The padded frame length of the message, without serializing it
+     *
+     * @since 0.9.28
+     */
+    private static int frameSize(OutNetMessage msg) {
+        int min = 2 + (int) msg.getMessageSize() + 4;
+        int rem = min % 16;
+        return rem > 0 ? min + 16 - rem : min;
+    }
+
     /**
      * Serialize the message/checksum/padding/etc for transmission, but leave off
      * the encryption.  This should be called from a Writer thread
      * 
      * @param msg message to send
      * @param buf PrepBuffer to use as scratch space
+     * @param out where to put the unencrypted frame, buf.unencrypted for a single message
+     * @param off offset in out
+     * @return the frame length, also stored in buf.unencryptedLength
      */
-    private void bufferedPrepare(OutNetMessage msg, PrepBuffer buf) {
+    private int bufferedPrepare(OutNetMessage msg, PrepBuffer buf, byte[] out, int off) {
         //if (!_isInbound && !_established)
         //    return;
         //long begin = System.currentTimeMillis();
@@ -901,32 +1029,34 @@ class NTCPConnection implements Closeable {
             padding = 16 - rem;
         
         buf.unencryptedLength = min+padding;
-        DataHelper.toLong(buf.unencrypted, 0, 2, sz);
-        System.arraycopy(buf.base, 0, buf.unencrypted, 2, buf.baseLength);
+        DataHelper.toLong(out, off, 2, sz);
+        System.arraycopy(buf.base, 0, out, off + 2, buf.baseLength);
         if (padding > 0) {
-            _context.random().nextBytes(buf.unencrypted, 2+sz, padding);
+            _context.random().nextBytes(out, off + 2 + sz, padding);
         }
         
         //long serialized = System.currentTimeMillis();
-        buf.crc.update(buf.unencrypted, 0, buf.unencryptedLength-4);
+        buf.crc.reset();
+        buf.crc.update(out, off, buf.unencryptedLength-4);
         
         long val = buf.crc.getValue();
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Outbound message " + _messagesWritten + " has crc " + val
                        + " sz=" +sz + " rem=" + rem + " padding=" + padding);
         
-        DataHelper.toLong(buf.unencrypted, buf.unencryptedLength-4, 4, val);
+        DataHelper.toLong(out, off + buf.unencryptedLength-4, 4, val);
         // TODO object churn
         // 1) store the length only
         // 2) in prepareNextWriteFast(), pull a byte buffer off a queue and encrypt to that
         // 3) change EventPumper.wantsWrite() to take a ByteBuffer arg
         // 4) in EventPumper.processWrite(), release the byte buffer
-        buf.encrypted = new byte[buf.unencryptedLength];
+        // (done for coalesced writes, see prepareCoalesced())
         
         //long crced = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Buffered prepare took " + (crced-begin) + ", alloc=" + (alloc-begin)
         //               + " serialize=" + (serialized-alloc) + " crc=" + (crced-serialized));
+        return buf.unencryptedLength;
     }
 
     public static class PrepBuffer {
@@ -959,7 +1089,7 @@ class NTCPConnection implements Closeable {
         _conKey.interestOps(SelectionKey.OP_READ);
         // schedule up the beginning of our handshaking by calling prepareNextWrite on the
         // writer thread pool
-        _transport.getWriter().wantsWrite(this, "outbound connected");
+        wantsWrite("outbound connected");
     }
 
     /**
@@ -971,7 +1101,7 @@ class NTCPConnection implements Closeable {
             removeIBRequest(req);
             ByteBuffer buf = (ByteBuffer)req.attachment();
             if (_closed.get()) {
-                EventPumper.releaseBuf(buf);
+                _pumper.releaseBuf(buf);
                 return;
             }
             _context.statManager().addRateData("ntcp.throttledReadComplete", (_context.clock().now()-req.getRequestTime()));
@@ -979,7 +1109,7 @@ class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            _pumper.wantsRead(NTCPConnection.this);
             //_transport.getReader().wantsRead(this);
         }
     }
@@ -1038,7 +1168,7 @@ class NTCPConnection implements Closeable {
      * The contents of the buffer have been read and can be processed asap.
      * This should not block, and the NTCP connection now owns the buffer
      * to do with as it pleases BUT it should eventually copy out the data
-     * and call EventPumper.releaseBuf().
+     * and call _pumper.releaseBuf().
      */
     public void recv(ByteBuffer buf) {
         _bytesReceived += buf.remaining();
@@ -1048,6 +1178,61 @@ class NTCPConnection implements Closeable {
         updateStats();
     }
 
+    /**
+     * Called by the Reader when establishment, including any extra bytes
+     * read with it, has been processed, so that the pumper may process
+     * later reads inline without reordering.
+     *
+     * @since 0.9.28
+     */
+    void setReadInline() {
+        if (_pumper.isInline() && !_readInline)
+            _readInline = true;
+    }
+
+    /**
+     * May recvInline() be used?
+     *
+     * @since 0.9.28
+     */
+    boolean isReadInline() {
+        return _readInline;
+    }
+
+    /**
+     * As recv(), but process the buffer on this thread, not in the Reader pool.
+     * Only after setReadInline(). Pumper thread in inline mode only.
+     *
+     * @since 0.9.28
+     */
+    void recvInline(ByteBuffer buf) {
+        _bytesReceived += buf.remaining();
+        _readBufs.offer(buf);
+        processReadBufs();
+        updateStats();
+    }
+
+    /**
+     * Decrypt and process all queued read buffers, in order,
+     * and return them to the pumper. Established connections only.
+     * Called from the Reader, or from the pumper thread in inline mode.
+     * The lock keeps the buffers in order if both are running.
+     *
+     * @since 0.9.28 moved from Reader
+     */
+    void processReadBufs() {
+        ByteBuffer buf;
+        synchronized (_readBufs) {
+            while (!_closed.get() && (buf = _readBufs.poll()) != null) {
+                // decrypt the data and push it into an i2np message
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Processing read buffer as part of an i2np message (" + buf.remaining() + " bytes)");
+                recvEncryptedI2NP(buf);
+                _pumper.releaseBuf(buf);
+            }
+        }
+    }
+
     /**
      * The contents of the buffer have been encrypted / padded / etc and have
      * been fully allocated for the bandwidth limiter.
@@ -1056,7 +1241,7 @@ class NTCPConnection implements Closeable {
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("Before write(buf)");
         _writeBufs.offer(buf);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("After write(buf)");
-        _transport.getPumper().wantsWrite(this);
+        _pumper.wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1076,15 +1261,35 @@ class NTCPConnection implements Closeable {
     public ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  Fill in the pending write buffers, in order, for a gathering write.
+     *  Not removed! We removeWriteBuf afterwards.
+     *
+     *  @param bufs out parameter
+     *  @return number filled in, 0 if none available
+     *  @since 0.9.28
+     */
+    public int getWriteBufs(ByteBuffer[] bufs) {
+        int rv = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            bufs[rv++] = buf;
+            if (rv >= bufs.length)
+                break;
+        }
+        return rv;
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
      */
     public void removeWriteBuf(ByteBuffer buf) {
-        _bytesSent += buf.capacity();
+        // limit, not capacity, as coalesced writes use a part of a pooled buffer
+        _bytesSent += buf.limit();
         OutNetMessage msg = null;
+        List<OutNetMessage> others = null;
         boolean clearMessage = false;
-        if (_sendingMeta && (buf.capacity() == _meta.length)) {
+        if (_sendingMeta && (buf.limit() == _meta.length)) {
             _sendingMeta = false;
         } else {
             clearMessage = true;
@@ -1096,8 +1301,17 @@ class NTCPConnection implements Closeable {
                 if (_currentOutbound != null) {
                     msg = _currentOutbound;
                     _currentOutbound = null;
+                    if (!_coalescedOutbound.isEmpty()) {
+                        others = new ArrayList<OutNetMessage>(_coalescedOutbound);
+                        _coalescedOutbound.clear();
+                    }
                 }
             }
+            ByteArray ba = _coalesceBuf;
+            if (ba != null && ba.getData() == buf.array()) {
+                _coalesceBuf = null;
+                _coalesceBufs.release(ba, false);
+            }
             if (msg != null) {
                 _lastSendTime = _context.clock().now();
                 _context.statManager().addRateData("ntcp.sendTime", msg.getSendTime());
@@ -1105,24 +1319,31 @@ class NTCPConnection implements Closeable {
                     _log.debug("I2NP message " + _messagesWritten + "/" + msg.getMessageId() + " sent after " 
                               + msg.getSendTime() + "/"
                               + msg.getLifetime()
-                              + " with " + buf.capacity() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
+                              + " with " + buf.limit() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
                 }
                 _messagesWritten.incrementAndGet();
                 _transport.sendComplete(msg);
             }
+            if (others != null) {
+                for (OutNetMessage m : others) {
+                    _context.statManager().addRateData("ntcp.sendTime", m.getSendTime());
+                    _messagesWritten.incrementAndGet();
+                    _transport.sendComplete(m);
+                }
+            }
         } else {
             if (_log.shouldLog(Log.INFO))
                 _log.info("I2NP meta message sent completely");
         }
         
         if (getOutboundQueueSize() > 0) // push through the bw limiter to reach _writeBufs
-            _transport.getWriter().wantsWrite(this, "write completed");
+            wantsWrite("write completed");
 
         // this is not necessary, EventPumper.processWrite() handles this
         // and it just causes unnecessary selector.wakeup() and looping
         //boolean bufsRemain = !_writeBufs.isEmpty();
         //if (bufsRemain) // send asap
-        //    _transport.getPumper().wantsWrite(this);
+        //    _pumper.wantsWrite(this);
 
         updateStats();
     }
@@ -1187,7 +1408,7 @@ class NTCPConnection implements Closeable {
      *
      * The NTCP connection now owns the buffer
      * BUT it must copy out the data
-     * as reader will call EventPumper.releaseBuf().
+     * as reader will call _pumper.releaseBuf().
      */
     synchronized void recvEncryptedI2NP(ByteBuffer buf) {
         //if (_log.shouldLog(Log.DEBUG))
@@ -1366,7 +1587,7 @@ class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, encrypted);
+        _pumper.wantsWrite(this, encrypted);
         // enqueueInfoMessage(); // this often?
     }
     
@@ -22,8 +22,10 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.crypto.SigType;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
@@ -46,6 +48,7 @@ import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -64,7 +67,9 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final Map<Hash, NTCPConnection> _conByIdent;
-    private final EventPumper _pumper;
+    /** shard 0 has the listeners */
+    private final EventPumper[] _pumpers;
+    private final AtomicInteger _nextPumper = new AtomicInteger();
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -96,6 +101,21 @@ public class NTCPTransport extends TransportImpl {
     
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
+    /**
+     *  Encrypt and write several queued messages to a peer at once
+     *  @since 0.9.28
+     */
+    public static final String PROP_COALESCE = "i2np.ntcp.coalesce";
+    /**
+     *  Number of selector threads, each with its own partition of the connections.
+     *  With more than one, data phase reads and writes are processed on the
+     *  owning selector thread instead of the Reader and Writer pools.
+     *  Takes effect at restart.
+     *  @since 0.9.28
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int DEFAULT_PUMPERS = 1;
+    private static final int MAX_PUMPERS = 16;
 
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
@@ -118,6 +138,7 @@ public class NTCPTransport extends TransportImpl {
         _log = ctx.logManager().getLog(getClass());
 
         _context.statManager().createRateStat("ntcp.sendTime", "Total message lifetime when sent completely", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.coalescedMessages", "How many messages were encrypted and written together", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.sendQueueSize", "How many messages were ahead of the current one on the connection's queue when it was first added", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.receiveTime", "How long it takes to receive an inbound message", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.receiveSize", "How large the received message was", "ntcp", RATES);
@@ -188,7 +209,12 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = Math.max(1, Math.min(MAX_PUMPERS, ctx.getProperty(PROP_PUMPERS, DEFAULT_PUMPERS)));
+        _pumpers = new EventPumper[pumpers];
+        ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+        for (int i = 0; i < pumpers; i++) {
+            _pumpers[i] = new EventPumper(ctx, this, i, pumpers, blockedIPs);
+        }
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -281,7 +307,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    con.getPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -323,7 +349,7 @@ public class NTCPTransport extends TransportImpl {
                         SocketChannel channel = SocketChannel.open();
                         con.setChannel(channel);
                         channel.configureBlocking(false);
-                        _pumper.registerConnect(con);
+                        con.getPumper().registerConnect(con);
                     } catch (IOException ioe) {
                         if (_log.shouldLog(Log.ERROR))
                             _log.error("Error opening a channel", ioe);
@@ -615,7 +641,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -686,7 +712,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -703,7 +731,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (EventPumper pumper : _pumpers) {
+            if (pumper.isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -779,7 +811,7 @@ public class NTCPTransport extends TransportImpl {
                 _endpoints.add(addr);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Listening on " + addr);
-                _pumper.register(chan);
+                _pumpers[0].register(chan);
             } catch (IOException ioe) {
                 _log.error("Error listening", ioe);
                 myAddress = null;
@@ -840,9 +872,18 @@ public class NTCPTransport extends TransportImpl {
     public String getStyle() { return STYLE; }
 
     /**
-     *  Hook for NTCPConnection
+     *  Hook for NTCPConnection.
+     *  Connections stay with the returned pumper for their lifetime,
+     *  use NTCPConnection.getPumper() after that.
+     *
+     *  @return the pumper for a new connection, round-robin
+     *  @since 0.9.28 replaces getPumper()
      */
-    EventPumper getPumper() { return _pumper; }
+    EventPumper nextPumper() {
+        if (_pumpers.length == 1)
+            return _pumpers[0];
+        return _pumpers[(_nextPumper.getAndIncrement() & Integer.MAX_VALUE) % _pumpers.length];
+    }
 
     /**
      *  @since 0.9
@@ -1312,7 +1353,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
@@ -1358,7 +1401,7 @@ public class NTCPTransport extends TransportImpl {
         StringBuilder buf = new StringBuilder(512);
         buf.append("<h3 id=\"ntcpcon\">").append(_t("NTCP connections")).append(": ").append(peers.size());
         buf.append(". ").append(_t("Limit")).append(": ").append(getMaxConnections());
-        buf.append(". ").append(_t("Timeout")).append(": ").append(DataHelper.formatDuration2(_pumper.getIdleTimeout()));
+        buf.append(". ").append(_t("Timeout")).append(": ").append(DataHelper.formatDuration2(_pumpers[0].getIdleTimeout()));
         if (_context.getBooleanProperty(PROP_ADVANCED)) {
             buf.append(". ").append(_t("Status")).append(": ").append(_t(getReachabilityStatus().toStatusString()));
         }
@@ -156,12 +156,12 @@ class Reader {
                 // why is it complete yet !con.isEstablished?
                 _log.error("establishment state [" + est + "] is complete, yet the connection isn't established? " 
                         + con.isEstablished() + " (inbound? " + con.isInbound() + " " + con + ")");
-                EventPumper.releaseBuf(buf);
+                con.getPumper().releaseBuf(buf);
                 break;
             }
             // FIXME call est.isCorrupt() before also? throws ISE here... see above
             est.receive(buf);
-            EventPumper.releaseBuf(buf);
+            con.getPumper().releaseBuf(buf);
             if (est.isCorrupt()) {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("closing connection on establishment because: " +est.getError(), est.getException());
@@ -173,12 +173,7 @@ class Reader {
             if (est.isComplete() && est.getExtraBytes() != null)
                 con.recvEncryptedI2NP(ByteBuffer.wrap(est.getExtraBytes()));
         }
-        while (!con.isClosed() && (buf = con.getNextReadBuf()) != null) {
-            // decrypt the data and push it into an i2np message
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Processing read buffer as part of an i2np message (" + buf.remaining() + " bytes)");
-            con.recvEncryptedI2NP(buf);
-            EventPumper.releaseBuf(buf);
-        }
+        con.setReadInline();
+        con.processReadBufs();
     }
 }
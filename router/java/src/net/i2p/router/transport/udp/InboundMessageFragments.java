@@ -1,12 +1,11 @@
 package net.i2p.router.transport.udp;
 
-import java.util.Map;
-
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
 import net.i2p.router.RouterContext;
 import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.router.util.DecayingHashSet;
+import net.i2p.router.util.LongHashMap;
 import net.i2p.util.Log;
 
 /**
@@ -115,18 +114,17 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
         if (fragments <= 0) return fragments;
         Hash fromPeer = from.getRemotePeer();
             
-        Map<Long, InboundMessageState> messages = from.getInboundMessages();
+        LongHashMap<InboundMessageState> messages = from.getInboundMessages();
 
         for (int i = 0; i < fragments; i++) {
             long mid = data.readMessageId(i);
-            Long messageId = Long.valueOf(mid);
 
             if (_recentlyCompletedMessages.isKnown(mid)) {
                 // Only update stats for the first fragment,
                 // otherwise it wildly overstates things
                 if (data.readMessageFragmentNum(i) == 0) {
                     _context.statManager().addRateData("udp.ignoreRecentDuplicate", 1);
-                    from.messageFullyReceived(messageId, -1);
+                    from.messageFullyReceived(mid, -1);
                     _ackSender.ackPeer(from);
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Message received is a dup: " + mid + " dups: " 
@@ -145,7 +143,7 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
          
             synchronized (messages) {
                 boolean isNew = false;
-                state = messages.get(messageId);
+                state = messages.get(mid);
                 if (state == null) {
                     state = new InboundMessageState(_context, mid, fromPeer, data, i);
                     isNew = true;
@@ -159,21 +157,21 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
                 if (state.isComplete()) {
                     messageComplete = true;
                     if (!isNew)
-                        messages.remove(messageId);
+                        messages.remove(mid);
                 } else if (state.isExpired()) {
                     messageExpired = true;
                     if (!isNew)
-                        messages.remove(messageId);
+                        messages.remove(mid);
                 } else {
                     partialACK = true;
                     if (isNew)
-                        messages.put(messageId, state);
+                        messages.put(mid, state);
                 }
             }
 
             if (messageComplete) {
                 _recentlyCompletedMessages.add(mid);
-                from.messageFullyReceived(messageId, state.getCompleteSize());
+                from.messageFullyReceived(mid, state.getCompleteSize());
                 _ackSender.ackPeer(from);
 
                 if (_log.shouldLog(Log.DEBUG))
@@ -3,6 +3,7 @@ package net.i2p.router.transport.udp;
 import net.i2p.data.ByteArray;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
+import net.i2p.data.i2np.I2NPMessage;
 import net.i2p.router.RouterContext;
 import net.i2p.router.util.CDQEntry;
 import net.i2p.util.ByteCache;
@@ -11,6 +12,11 @@ import net.i2p.util.Log;
 /**
  * Hold the raw data fragments of an inbound message.
  *
+ * As of 0.9.28, the fragments are kept in a single pooled buffer, in the
+ * order received, with a bitmap of the received fragments.
+ * If they were received in order, which is the usual case,
+ * the buffer is the complete message and no copy is required.
+ *
  * Warning - there is no synchronization in this class, take care in
  * InboundMessageFragments to avoid use-after-release, etc.
  */
@@ -20,10 +26,31 @@ class InboundMessageState implements CDQEntry {
     private final long _messageId;
     private final Hash _from;
     /** 
-     * indexed array of fragments for the message, where not yet
-     * received fragments are null.
+     * Bit n is set if fragment n was received.
+     * @since 0.9.28 replaces ByteArray[]
+     */
+    private long _received;
+
+    /**
+     * The fragment data in the order received. From one of the caches below.
+     * Null after release.
+     * @since 0.9.28
+     */
+    private ByteArray _data;
+
+    /** bytes used in _data, @since 0.9.28 */
+    private int _dataLen;
+
+    /**
+     * Indexed by fragment number, the offset in _data and the size of each received fragment.
+     * Null if the first fragment received was the last fragment,
+     * as it's then the only one, at offset 0.
+     * @since 0.9.28
      */
-    private final ByteArray _fragments[];
+    private final int[] _fragmentInfo;
+
+    /** number of fragments possible, 1 to MAX_FRAGMENTS, @since 0.9.28 */
+    private final int _maxFragments;
 
     /**
      * what is the last fragment in the message (or -1 if not yet known)
@@ -44,13 +71,24 @@ class InboundMessageState implements CDQEntry {
 
     private static final int MAX_FRAGMENT_SIZE = UDPPacket.MAX_PACKET_SIZE;
     private static final ByteCache _fragmentCache = ByteCache.getInstance(64, MAX_FRAGMENT_SIZE);
+    /** larger buffers for multi-fragment messages, @since 0.9.28 */
+    private static final int MEDIUM_SIZE = 8*1024;
+    private static final int LARGE_SIZE = 24*1024;
+    private static final ByteCache _mediumCache = ByteCache.getInstance(32, MEDIUM_SIZE);
+    private static final ByteCache _largeCache = ByteCache.getInstance(8, LARGE_SIZE);
+    private static final ByteCache _maxCache = ByteCache.getInstance(4, I2NPMessage.MAX_SIZE);
+
+    /** packing of _fragmentInfo, @since 0.9.28 */
+    private static final int SIZE_BITS = 14;
+    private static final int SIZE_MASK = (1 << SIZE_BITS) - 1;
     
     public InboundMessageState(RouterContext ctx, long messageId, Hash from) {
         _context = ctx;
         _log = ctx.logManager().getLog(InboundMessageState.class);
         _messageId = messageId;
         _from = from;
-        _fragments = new ByteArray[MAX_FRAGMENTS];
+        _maxFragments = MAX_FRAGMENTS;
+        _fragmentInfo = new int[MAX_FRAGMENTS];
         _lastFragment = -1;
         _completeSize = -1;
         _receiveBegin = ctx.clock().now();
@@ -60,7 +98,7 @@ class InboundMessageState implements CDQEntry {
      * Create a new IMS and read in the data from the fragment.
      * Do NOT call receiveFragment for the same fragment afterwards.
      * This is more efficient if the fragment is the last (and probably only) fragment.
-     * The main savings is not allocating ByteArray[64].
+     * The main savings is not allocating the fragment table.
      *
      * @throws DataFormatException if the fragment was corrupt
      * @since 0.9.9
@@ -76,9 +114,11 @@ class InboundMessageState implements CDQEntry {
             int num = 1 + data.readMessageFragmentNum(dataFragment);
             if (num > MAX_FRAGMENTS)
                 throw new DataFormatException("corrupt - too many fragments: " + num);
-            _fragments = new ByteArray[num];
+            _maxFragments = num;
+            _fragmentInfo = num > 1 ? new int[num] : null;
         } else {
-            _fragments = new ByteArray[MAX_FRAGMENTS];
+            _maxFragments = MAX_FRAGMENTS;
+            _fragmentInfo = new int[MAX_FRAGMENTS];
         }
         _lastFragment = -1;
         _completeSize = -1;
@@ -95,16 +135,16 @@ class InboundMessageState implements CDQEntry {
      */
     public boolean receiveFragment(UDPPacketReader.DataReader data, int dataFragment) throws DataFormatException {
         int fragmentNum = data.readMessageFragmentNum(dataFragment);
-        if ( (fragmentNum < 0) || (fragmentNum >= _fragments.length)) {
+        if ( (fragmentNum < 0) || (fragmentNum >= _maxFragments)) {
             if (_log.shouldLog(Log.WARN))
-                _log.warn("Invalid fragment " + fragmentNum + '/' + _fragments.length);
+                _log.warn("Invalid fragment " + fragmentNum + '/' + _maxFragments);
             return false;
         }
-        if (_fragments[fragmentNum] == null) {
+        if (_released)
+            return false;
+        if (!isReceived(fragmentNum)) {
             // new fragment, read it
-            ByteArray message = _fragmentCache.acquire();
             try {
-                data.readMessageFragment(dataFragment, message.getData(), 0);
                 int size = data.readMessageFragmentSize(dataFragment);
                 if (size <= 0) {
                     // Bug in routers prior to 0.8.12
@@ -117,8 +157,6 @@ class InboundMessageState implements CDQEntry {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("Zero-length fragment " + fragmentNum + " for message " + _messageId + " from " + _from);
                 }
-                message.setValid(size);
-                _fragments[fragmentNum] = message;
                 boolean isLast = data.readMessageIsLast(dataFragment);
                 if (isLast) {
                     // don't allow _lastFragment to be set twice
@@ -128,18 +166,30 @@ class InboundMessageState implements CDQEntry {
                         return false;
                     }
                     // TODO - check for non-last fragments after this one?
-                    _lastFragment = fragmentNum;
                 } else if (_lastFragment >= 0 && fragmentNum >= _lastFragment) {
                     // don't allow non-last after last
                     if (_log.shouldLog(Log.ERROR))
                         _log.error("Non-last fragment " + fragmentNum + " when last is " + _lastFragment + " for message " + _messageId + " from " + _from);
                     return false;
                 }
+                int off = _dataLen;
+                if (!ensureCapacity(off + size)) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Message too big: " + (off + size) + " for message " + _messageId + " from " + _from);
+                    return false;
+                }
+                data.readMessageFragment(dataFragment, _data.getData(), off);
+                _dataLen = off + size;
+                if (_fragmentInfo != null)
+                    _fragmentInfo[fragmentNum] = (off << SIZE_BITS) | size;
+                _received |= 1L << fragmentNum;
+                if (isLast)
+                    _lastFragment = fragmentNum;
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("New fragment " + fragmentNum + " for message " + _messageId 
                                + ", size=" + size
                                + ", isLast=" + isLast
-                          /*   + ", data=" + Base64.encode(message.getData(), 0, size)   */  );
+                          /*   + ", data=" + Base64.encode(_data.getData(), off, size)   */  );
             } catch (ArrayIndexOutOfBoundsException aioobe) {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("Corrupt SSU fragment " + fragmentNum, aioobe);
@@ -148,11 +198,84 @@ class InboundMessageState implements CDQEntry {
         } else {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Received fragment " + fragmentNum + " for message " + _messageId 
-                           + " again, old size=" + _fragments[fragmentNum].getValid() 
+                           + " again, old size=" + fragmentSize(fragmentNum) 
                            + " and new size=" + data.readMessageFragmentSize(dataFragment));
         }
         return true;
     }
+
+    /**
+     *  Make sure _data can hold this many bytes, moving to a larger
+     *  pooled buffer if necessary.
+     *
+     *  @return false if too big
+     *  @since 0.9.28
+     */
+    private boolean ensureCapacity(int len) {
+        if (_data != null && _data.getData().length >= len)
+            return true;
+        ByteCache cache;
+        if (len <= MAX_FRAGMENT_SIZE)
+            cache = _fragmentCache;
+        else if (len <= MEDIUM_SIZE)
+            cache = _mediumCache;
+        else if (len <= LARGE_SIZE)
+            cache = _largeCache;
+        else if (len <= I2NPMessage.MAX_SIZE)
+            cache = _maxCache;
+        else
+            return false;
+        ByteArray ba = cache.acquire();
+        if (_data != null) {
+            System.arraycopy(_data.getData(), 0, ba.getData(), 0, _dataLen);
+            release(_data);
+        }
+        _data = ba;
+        return true;
+    }
+
+    /**
+     *  To the cache it came from. No need to zero.
+     *  @since 0.9.28
+     */
+    private static void release(ByteArray ba) {
+        int len = ba.getData().length;
+        if (len == MAX_FRAGMENT_SIZE)
+            _fragmentCache.release(ba, false);
+        else if (len == MEDIUM_SIZE)
+            _mediumCache.release(ba, false);
+        else if (len == LARGE_SIZE)
+            _largeCache.release(ba, false);
+        else
+            _maxCache.release(ba, false);
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private boolean isReceived(int fragmentNum) {
+        return (_received & (1L << fragmentNum)) != 0;
+    }
+
+    /**
+     *  @return offset in _data of a received fragment
+     *  @since 0.9.28
+     */
+    private int fragmentOffset(int fragmentNum) {
+        if (_fragmentInfo == null)
+            return 0;
+        return _fragmentInfo[fragmentNum] >>> SIZE_BITS;
+    }
+
+    /**
+     *  @return size of a received fragment
+     *  @since 0.9.28
+     */
+    private int fragmentSize(int fragmentNum) {
+        if (_fragmentInfo == null)
+            return _dataLen;
+        return _fragmentInfo[fragmentNum] & SIZE_MASK;
+    }
     
     /**
      *  May not be valid after released.
@@ -163,10 +286,8 @@ class InboundMessageState implements CDQEntry {
     public boolean isComplete() {
         int last = _lastFragment;
         if (last < 0) return false;
-        for (int i = 0; i <= last; i++)
-            if (_fragments[i] == null)
-                return false;
-        return true;
+        long all = last == 63 ? -1L : (1L << (last + 1)) - 1;
+        return _received == all;
     }
 
     public boolean isExpired() { 
@@ -214,23 +335,57 @@ class InboundMessageState implements CDQEntry {
                 throw new IllegalStateException("last fragment not set");
             if (_released)
                 throw new IllegalStateException("SSU IMS 2 Use after free");
-            int size = 0;
-            for (int i = 0; i <= _lastFragment; i++) {
-                ByteArray frag = _fragments[i];
-                if (frag == null)
-                    throw new IllegalStateException("null fragment " + i + '/' + _lastFragment);
-                size += frag.getValid();
-            }
-            _completeSize = size;
+            if (!isComplete())
+                throw new IllegalStateException("incomplete " + Long.toBinaryString(_received) + '/' + _lastFragment);
+            // all received fragments are in the message
+            _completeSize = _dataLen;
         }
         return _completeSize;
     }
 
+    /**
+     *  The complete message.
+     *  If the fragments were received in order, this is the internal buffer,
+     *  no copy is made, and scratch is not used.
+     *  Otherwise they are copied in order to scratch.
+     *  The data is at offset 0 in either case, and is getCompleteSize() bytes.
+     *  The internal buffer is not valid after releaseResources().
+     *
+     *  @param scratch at least getCompleteSize() bytes
+     *  @return the internal buffer or scratch
+     *  @throws IllegalStateException if released or not isComplete()
+     *  @since 0.9.28 replaces getFragments()
+     */
+    public byte[] getCompleteData(byte[] scratch) {
+        int size = getCompleteSize();
+        byte[] data = _data.getData();
+        if (_fragmentInfo == null)
+            return data;
+        boolean inOrder = true;
+        int off = 0;
+        for (int i = 0; i <= _lastFragment; i++) {
+            if (fragmentOffset(i) != off) {
+                inOrder = false;
+                break;
+            }
+            off += fragmentSize(i);
+        }
+        if (inOrder)
+            return data;
+        off = 0;
+        for (int i = 0; i <= _lastFragment; i++) {
+            int fsz = fragmentSize(i);
+            System.arraycopy(data, fragmentOffset(i), scratch, off, fsz);
+            off += fsz;
+        }
+        if (off != size)
+            throw new IllegalStateException("Fragment sizes " + off + " != " + size);
+        return scratch;
+    }
+
     /** FIXME synch here or PeerState.fetchPartialACKs() */
     public ACKBitfield createACKBitfield() {
-        int last = _lastFragment;
-        int sz = (last >= 0) ? last + 1 : _fragments.length;
-        return new PartialBitfield(_messageId, _fragments, sz);
+        return new PartialBitfield(_messageId, _received);
     }
     
     /**
@@ -245,26 +400,14 @@ class InboundMessageState implements CDQEntry {
         private final long _fragmentAcks;
         
         /**
-         *  @param data each element is non-null or null for received or not
-         *  @param size size of data to use
+         *  @param acks bit n set if fragment n was received
+         *  @since 0.9.28 was Object[], int
          */
-        public PartialBitfield(long messageId, Object data[], int size) {
-            if (size > MAX_FRAGMENTS)
-                throw new IllegalArgumentException();
+        public PartialBitfield(long messageId, long acks) {
             _bitfieldMessageId = messageId;
-            int ackCount = 0;
-            int highestReceived = -1;
-            long acks = 0;
-            for (int i = 0; i < size; i++) {
-                if (data[i] != null) {
-                    acks |= mask(i);
-                    ackCount++;
-                    highestReceived = i;
-                }
-            }
             _fragmentAcks = acks;
-            _ackCount = ackCount;
-            _highestReceived = highestReceived;
+            _ackCount = Long.bitCount(acks);
+            _highestReceived = 63 - Long.numberOfLeadingZeros(acks);
         }
 
         /**
@@ -308,24 +451,11 @@ class InboundMessageState implements CDQEntry {
     
     public void releaseResources() {
         _released = true;
-        for (int i = 0; i < _fragments.length; i++) {
-            if (_fragments[i] != null) {
-                _fragmentCache.release(_fragments[i]);
-                _fragments[i] = null;
-            }
-        }
-    }
-    
-    /**
-     *  @throws IllegalStateException if released
-     */
-    public ByteArray[] getFragments() {
-        if (_released) {
-            RuntimeException e = new IllegalStateException("Use after free: " + _messageId);
-            _log.error("SSU IMS", e);
-            throw e;
+        ByteArray ba = _data;
+        if (ba != null) {
+            _data = null;
+            release(ba);
         }
-        return _fragments;
     }
 
     public int getFragmentCount() { return _lastFragment+1; }
@@ -347,8 +477,8 @@ class InboundMessageState implements CDQEntry {
         } else {
             for (int i = 0; i <= _lastFragment; i++) {
                 buf.append(" fragment ").append(i);
-                if (_fragments[i] != null)
-                    buf.append(": known at size ").append(_fragments[i].getValid());
+                if (isReceived(i))
+                    buf.append(": known at size ").append(fragmentSize(i));
                 else
                     buf.append(": unknown");
             }
@@ -187,51 +187,22 @@ class MessageReceiver {
      *  @return null on error
      */
     private I2NPMessage readMessage(ByteArray buf, InboundMessageState state, I2NPMessageHandler handler) {
+        byte[] data = null;
         try {
-            //byte buf[] = new byte[state.getCompleteSize()];
-            I2NPMessage m;
-            int numFragments = state.getFragmentCount();
-            if (numFragments > 1) {
-                ByteArray fragments[] = state.getFragments();
-                int off = 0;
-                for (int i = 0; i < numFragments; i++) {
-                    System.arraycopy(fragments[i].getData(), 0, buf.getData(), off, fragments[i].getValid());
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("Raw fragment[" + i + "] for " + state.getMessageId() + ": " 
-                    //               + Base64.encode(fragments[i].getData(), 0, fragments[i].getValid())
-                    //               + " (valid: " + fragments[i].getValid() 
-                    //               + " raw: " + Base64.encode(fragments[i].getData()) + ")");
-                    off += fragments[i].getValid();
-                }
-                if (off != state.getCompleteSize()) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Hmm, offset of the fragments = " + off + " while the state says " + state.getCompleteSize());
-                    return null;
-                }
-                //if (_log.shouldLog(Log.DEBUG))
-                //    _log.debug("Raw byte array for " + state.getMessageId() + ": " + HexDump.dump(buf.getData(), 0, state.getCompleteSize()));
-                m = I2NPMessageImpl.fromRawByteArray(_context, buf.getData(), 0, state.getCompleteSize(), handler);
-            } else {
-                // zero copy for single fragment
-                m = I2NPMessageImpl.fromRawByteArray(_context, state.getFragments()[0].getData(), 0, state.getCompleteSize(), handler);
-            }
+            // zero copy unless the fragments were received out of order
+            data = state.getCompleteData(buf.getData());
+            I2NPMessage m = I2NPMessageImpl.fromRawByteArray(_context, data, 0, state.getCompleteSize(), handler);
             m.setUniqueId(state.getMessageId());
             return m;
         } catch (I2NPMessageException ime) {
             if (_log.shouldLog(Log.WARN)) {
-                ByteArray ba;
-                if (state.getFragmentCount() > 1)
-                    ba = buf;
-                else
-                    ba = state.getFragments()[0];
-                byte[] data = ba.getData();
                 _log.warn("Message invalid: " + state +
                           " PeerState: " + _transport.getPeerState(state.getFrom()) +
                           "\nDUMP:\n" + HexDump.dump(data, 0, state.getCompleteSize()) +
                           "\nRAW:\n" + Base64.encode(data, 0, state.getCompleteSize()),
                           ime);
             }
-            if (state.getFragments()[0].getData()[0] == DatabaseStoreMessage.MESSAGE_TYPE) {
+            if (data[0] == DatabaseStoreMessage.MESSAGE_TYPE) {
                 PeerState ps = _transport.getPeerState(state.getFrom());
                 if (ps != null && ps.getRemotePort() == 65520) {
                     // distinct port of buggy router
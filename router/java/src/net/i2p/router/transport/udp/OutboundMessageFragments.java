@@ -4,9 +4,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeSet;
 
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
@@ -14,7 +15,6 @@ import net.i2p.data.router.RouterInfo;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.udp.PacketBuilder.Fragment;
-import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
 
 /**
@@ -28,6 +28,11 @@ import net.i2p.util.Log;
  * {@link InboundMessageFragments}, signaling that we can stop sending a
  * message.
  *
+ * As of 0.9.28, peers are kept in a schedule ordered by the time they
+ * may next have something to send, as determined by their window, RTO, and
+ * bandwidth state. {@link #getNextVolley()} only looks at peers that are due,
+ * instead of iterating over every active peer.
+ *
  */
 class OutboundMessageFragments {
     private final RouterContext _context;
@@ -36,24 +41,23 @@ class OutboundMessageFragments {
     // private ActiveThrottle _throttle; // LINT not used ??
 
     /**
-     *  Peers we are actively sending messages to.
-     *  We use the iterator so we treat it like a list,
-     *  but we use a HashSet so remove() is fast and
-     *  we don't need to do contains().
-     *  Even though most (but NOT all) accesses are synchronized,
-     *  we use a ConcurrentHashSet as the iterator is long-lived.
+     *  Peers we are actively sending messages to,
+     *  mapped to their current entry in _schedule.
+     *  The entry is not in _schedule while the PacketPusher is working on the peer.
+     *  Protected by the _schedule lock.
+     *  @since 0.9.28 was a Set with a long-lived iterator
      */
-    private final Set<PeerState> _activePeers;
+    private final Map<PeerState, Wakeup> _activePeers;
 
     /**
-     *  The long-lived iterator over _activePeers.
+     *  Active peers in order of when they next want to send.
+     *  Protected by its own lock, which the PacketPusher waits on.
+     *  @since 0.9.28
      */
-    private Iterator<PeerState> _iterator;
+    private final TreeSet<Wakeup> _schedule;
 
-    /**
-     *  Avoid sync in add() if possible (not 100% reliable)
-     */
-    private boolean _isWaiting;
+    /** tie breaker for _schedule, so peers due at the same time go round robin, @since 0.9.28 */
+    private long _sequence;
 
     private volatile boolean _alive;
     private final PacketBuilder _builder;
@@ -66,13 +70,16 @@ class OutboundMessageFragments {
     // don't send a packet more than 10 times
     static final int MAX_VOLLEYS = 10;
     private static final int MAX_WAIT = 1000;
+    /** don't reschedule a peer that has nothing to send sooner than this */
+    private static final int MIN_WAIT = 10;
 
     public OutboundMessageFragments(RouterContext ctx, UDPTransport transport, ActiveThrottle throttle) {
         _context = ctx;
         _log = ctx.logManager().getLog(OutboundMessageFragments.class);
         _transport = transport;
         // _throttle = throttle;
-        _activePeers = new ConcurrentHashSet<PeerState>(256);
+        _activePeers = new HashMap<PeerState, Wakeup>(256);
+        _schedule = new TreeSet<Wakeup>();
         _builder = new PacketBuilder(ctx, transport);
         _alive = true;
         // _allowExcess = false;
@@ -95,15 +102,17 @@ class OutboundMessageFragments {
         _context.statManager().createRateStat("udp.blockedRetransmissions", "How packets have been transmitted to the peer when we blocked a retransmission to them?", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendCycleTime", "How long it takes to cycle through all of the active messages?", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendCycleTimeSlow", "How long it takes to cycle through all of the active messages, when its going slowly?", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendScheduleLatency", "How long after it was due was a peer serviced by the packet pusher", "udp", UDPTransport.RATES);
     }
 
     public synchronized void startup() { _alive = true; }
 
     public synchronized void shutdown() {
         _alive = false;
-        _activePeers.clear();
-        synchronized (_activePeers) {
-            _activePeers.notifyAll();
+        synchronized (_schedule) {
+            _activePeers.clear();
+            _schedule.clear();
+            _schedule.notifyAll();
         }
     }
 
@@ -111,7 +120,15 @@ class OutboundMessageFragments {
         if (_log.shouldLog(Log.INFO))
             _log.info("Dropping peer " + peer.getRemotePeer());
         peer.dropOutbound();
-        _activePeers.remove(peer);
+        synchronized (_schedule) {
+            Wakeup w = _activePeers.get(peer);
+            // PeerState.equals() compares the remote hash, it could be a new session
+            if (w != null && w.peer == peer) {
+                _activePeers.remove(peer);
+                if (w.queued)
+                    _schedule.remove(w);
+            }
+        }
     }
 
     /**
@@ -202,39 +219,129 @@ class OutboundMessageFragments {
     }
 
     /**
-     * Add the peer to the list of peers wanting to transmit something.
+     * Add the peer to the list of peers wanting to transmit something,
+     * or, if it is already there, move it up to be checked now,
+     * as something changed (new message, or ACKs opening the window).
      * This wakes up the packet pusher if it is sleeping.
      *
-     * Avoid synchronization where possible.
-     * There are small chances of races.
-     * There are larger chances of adding the PeerState "behind" where
-     * the iterator is now... but these issues are the same as before concurrentification.
-     *
      * @since 0.8.9
      */
     public void add(PeerState peer) {
-        boolean wasEmpty = _activePeers.isEmpty();
-        boolean added = _activePeers.add(peer);
-        if (added) {
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Add a new message to a new peer " + peer.getRemotePeer());
-        } else {
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Add a new message to an existing peer " + peer.getRemotePeer());
+        long now = _context.clock().now();
+        int sz;
+        synchronized (_schedule) {
+            Wakeup w = _activePeers.get(peer);
+            if (w != null && w.peer == peer && w.queued && w.time <= now) {
+                // already due
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Add a new message to an existing peer " + peer.getRemotePeer());
+                return;
+            }
+            if (w == null) {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Add a new message to a new peer " + peer.getRemotePeer());
+            } else if (w.queued) {
+                _schedule.remove(w);
+            }
+            // if not queued, the PacketPusher is working on it,
+            // and this new entry will supersede its reschedule
+            Wakeup nw = new Wakeup(peer, now, _sequence++);
+            _activePeers.put(peer, nw);
+            _schedule.add(nw);
+            if (_schedule.first() == nw)
+                _schedule.notifyAll();
+            sz = _activePeers.size();
+        }
+        _context.statManager().addRateData("udp.outboundActivePeers", sz);
+    }
+
+    /**
+     *  Block until a peer is due.
+     *  The returned entry is removed from _schedule but stays in _activePeers
+     *  until finished with reschedule().
+     *
+     *  @return null only on shutdown
+     *  @since 0.9.28
+     */
+    private Wakeup nextDue() {
+        synchronized (_schedule) {
+            while (_alive) {
+                long toWait;
+                if (_schedule.isEmpty()) {
+                    toWait = MAX_WAIT;
+                } else {
+                    Wakeup w = _schedule.first();
+                    toWait = w.time - _context.clock().now();
+                    if (toWait <= 0) {
+                        _schedule.pollFirst();
+                        w.queued = false;
+                        return w;
+                    }
+                    toWait = Math.min(toWait, MAX_WAIT);
+                }
+                try {
+                    _schedule.wait(toWait);
+                } catch (InterruptedException ie) {}
+            }
         }
-        _context.statManager().addRateData("udp.outboundActivePeers", _activePeers.size());
-
-        // Avoid sync if possible
-        // no, this doesn't always work.
-        // Also note that the iterator in getNextVolley may have alreay passed us,
-        // or not reflect the addition.
-        if (_isWaiting || wasEmpty) {
-            synchronized (_activePeers) {
-                _activePeers.notifyAll();
+        return null;
+    }
+
+    /**
+     *  Put the peer back in the schedule, or remove it if it has nothing left.
+     *  If add() was called while we were working on it, its entry wins.
+     *
+     *  @param w from nextDue()
+     *  @param next the time it is next due, or -1 to remove
+     *  @since 0.9.28
+     */
+    private void reschedule(Wakeup w, long next) {
+        synchronized (_schedule) {
+            if (_activePeers.get(w.peer) != w)
+                return;
+            if (next < 0) {
+                _activePeers.remove(w.peer);
+            } else {
+                Wakeup nw = new Wakeup(w.peer, next, _sequence++);
+                _activePeers.put(w.peer, nw);
+                _schedule.add(nw);
             }
         }
     }
 
+    /**
+     *  An entry in the schedule.
+     *  Immutable except for queued. Ordered by time, then sequence.
+     *  @since 0.9.28
+     */
+    private static class Wakeup implements Comparable<Wakeup> {
+        public final PeerState peer;
+        public final long time;
+        private final long seq;
+        /** in _schedule, protected by the _schedule lock */
+        public boolean queued = true;
+
+        public Wakeup(PeerState peer, long time, long seq) {
+            this.peer = peer;
+            this.time = time;
+            this.seq = seq;
+        }
+
+        public int compareTo(Wakeup w) {
+            if (time < w.time)
+                return -1;
+            if (time > w.time)
+                return 1;
+            if (seq < w.seq)
+                return -1;
+            if (seq > w.seq)
+                return 1;
+            return 0;
+        }
+
+        // equals() and hashCode() are Object's, only the same entry is equal
+    }
+
     /**
      * Remove any expired or complete messages
      */
@@ -260,6 +367,11 @@ class OutboundMessageFragments {
      * Fetch all the packets for a message volley, blocking until there is a
      * message which can be fully transmitted (or the transport is shut down).
      *
+     * Peers are taken from the schedule as they come due. A peer that sent
+     * goes to the back of the line of peers that are due now; a peer that
+     * could not send is put back for when PeerState.getNextDelay() says,
+     * but no more than MAX_WAIT, so that expired messages are still failed out.
+     *
      * NOT thread-safe. Called by the PacketPusher thread only.
      *
      * @return null only on shutdown
@@ -267,85 +379,30 @@ class OutboundMessageFragments {
     public List<UDPPacket> getNextVolley() {
         PeerState peer = null;
         List<OutboundMessageState> states = null;
-        // Keep track of how many we've looked at, since we don't start the iterator at the beginning.
-        int peersProcessed = 0;
         while (_alive && (states == null) ) {
-            int nextSendDelay = Integer.MAX_VALUE;
-            // no, not every time - O(n**2) - do just before waiting below
-            //finishMessages();
-
-                    // do we need a new long-lived iterator?
-                    if (_iterator == null ||
-                        ((!_activePeers.isEmpty()) && (!_iterator.hasNext()))) {
-                        _iterator = _activePeers.iterator();
-                    }
-
-                    // Go through all the peers that we are actively sending messages to.
-                    // Call finishMessages() for each one, and remove them from the iterator
-                    // if there is nothing left to send.
-                    // Otherwise, return the volley to be sent.
-                    // Otherwise, wait()
-                    while (_iterator.hasNext()) {
-                        peer = _iterator.next();
-                        int remaining = peer.finishMessages();
-                        if (remaining <= 0) {
-                            // race with add()
-                            _iterator.remove();
-                            if (_log.shouldLog(Log.DEBUG))
-                                _log.debug("No more pending messages for " + peer.getRemotePeer());
-                            continue;
-                        }
-                        peersProcessed++;
-                        states = peer.allocateSend();
-                        if (states != null) {
-                            // we have something to send and we will be returning it
-                            break;
-                        } else if (peersProcessed >= _activePeers.size()) {
-                            // we've gone all the way around, time to sleep
-                            break;
-                        } else {
-                            // Update the minimum delay for all peers
-                            // which will be used if we found nothing to send across all peers
-                            int delay = peer.getNextDelay();
-                            if (delay < nextSendDelay)
-                                nextSendDelay = delay;
-                            peer = null;
-                        }
-                    }
-
-                    //if (peer != null && _log.shouldLog(Log.DEBUG))
-                    //    _log.debug("Done looping, next peer we are sending for: " +
-                    //               peer.getRemotePeer());
-
-                    // if we've gone all the way through the loop, wait
-                    // ... unless nextSendDelay says we have more ready now
-                    if (states == null && peersProcessed >= _activePeers.size() && nextSendDelay > 0) {
-                        _isWaiting = true;
-                        peersProcessed = 0;
-                        // why? we do this in the loop one at a time
-                        //finishMessages();
-                        // wait a min of 10 and a max of MAX_WAIT ms no matter what peer.getNextDelay() says
-                        // use max of 1 second so finishMessages() and/or PeerState.finishMessages()
-                        // gets called regularly
-                        int toWait = Math.min(Math.max(nextSendDelay, 10), MAX_WAIT);
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("wait for " + toWait);
-                        // wait.. or somethin'
-                        synchronized (_activePeers) {
-                            try {
-                                _activePeers.wait(toWait);
-                            } catch (InterruptedException ie) {
-                                // noop
-                                if (_log.shouldLog(Log.DEBUG))
-                                     _log.debug("Woken up while waiting");
-                            }
-                        }
-                        _isWaiting = false;
-                    //} else {
-                    //    if (_log.shouldLog(Log.DEBUG))
-                    //        _log.debug("dont wait: alive=" + _alive + " state = " + state);
-                    }
-
+            Wakeup w = nextDue();
+            if (w == null)
+                break;
+            peer = w.peer;
+            long now = _context.clock().now();
+            _context.statManager().addRateData("udp.sendScheduleLatency", now - w.time);
+            int remaining = peer.finishMessages();
+            if (remaining <= 0) {
+                // race with add() handled in reschedule()
+                reschedule(w, -1);
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("No more pending messages for " + peer.getRemotePeer());
+                continue;
+            }
+            states = peer.allocateSend();
+            long next;
+            if (states != null) {
+                next = now;
+            } else {
+                int delay = peer.getNextDelay();
+                next = now + Math.min(Math.max(delay, MIN_WAIT), MAX_WAIT);
+            }
+            reschedule(w, next);
         } // while alive && state == null
 
         if (_log.shouldLog(Log.DEBUG))
@@ -1,5 +1,6 @@
 package net.i2p.router.transport.udp;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +26,10 @@ import net.i2p.util.SystemVersion;
  * an actual pool of packet handler threads, each pulling off the inbound
  * receiver's queue and pushing them as necessary.
  *
+ * As of 0.9.28, each handler has its own queue, and packets are assigned
+ * to a handler by a hash of the remote host, so that the packets from
+ * a single peer are still handled in order, by a single thread.
+ *
  */
 class PacketHandler {
     private final RouterContext _context;
@@ -37,14 +42,22 @@ class PacketHandler {
     private volatile boolean _keepReading;
     private final Handler[] _handlers;
     private final Map<RemoteHostId, Object> _failCache;
-    private final BlockingQueue<UDPPacket> _inboundQueue;
+    /** one per handler, indexed by shard */
+    private final List<BlockingQueue<UDPPacket>> _inboundQueues;
     private static final Object DUMMY = new Object();
     
     private static final int TYPE_POISON = -99999;
     private static final int MIN_QUEUE_SIZE = 16;
     private static final int MAX_QUEUE_SIZE = 192;
     private static final int MIN_NUM_HANDLERS = 1;  // unless < 32MB
-    private static final int MAX_NUM_HANDLERS = 1;
+    private static final int MAX_NUM_HANDLERS = 8;
+    /** inbound KBps per handler when not configured */
+    private static final int KBPS_PER_HANDLER = 2048;
+    /**
+     *  Override the number of packet handlers. Requires restart.
+     *  @since 0.9.28
+     */
+    public static final String PROP_NUM_HANDLERS = "i2np.udp.packetHandlers";
     /** let packets be up to 30s slow */
     private static final long GRACE_PERIOD = Router.CLOCK_FUDGE_FACTOR + 30*1000;
     private static final long MAX_SKEW = 90*24*60*60*1000L;
@@ -64,21 +77,31 @@ class PacketHandler {
 
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
-        _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
         int num_handlers;
-        if (maxMemory < 32*1024*1024)
+        if (maxMemory < 32*1024*1024) {
             num_handlers = 1;
-        else if (maxMemory < 64*1024*1024)
+        } else if (maxMemory < 64*1024*1024) {
             num_handlers = 2;
-        else
-            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+        } else {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int bwLimit = ctx.bandwidthLimiter().getInboundKBytesPerSecond() / KBPS_PER_HANDLER;
+            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, Math.min(cores / 2, bwLimit)));
+        }
+        num_handlers = ctx.getProperty(PROP_NUM_HANDLERS, num_handlers);
+        if (num_handlers <= 0)
+            num_handlers = 1;
+        // split the queue among the shards
+        int shardsize = Math.max(MIN_QUEUE_SIZE, qsize / num_handlers);
+        _inboundQueues = new ArrayList<BlockingQueue<UDPPacket>>(num_handlers);
         _handlers = new Handler[num_handlers];
         for (int i = 0; i < num_handlers; i++) {
-            _handlers[i] = new Handler();
+            _inboundQueues.add(new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", shardsize));
+            _handlers[i] = new Handler(i);
         }
 
         _context.statManager().createRateStat("udp.handleTime", "How long it takes to handle a received packet after its been pulled off the queue", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.queueTime", "How long after a packet is received can we begin handling it", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.handlerQueueDepth", "How many packets are waiting for the packet handler", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receivePacketSkew", "How long ago after the packet was sent did we receive it", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.droppedInvalidUnkown", "How old the packet we dropped due to invalidity (unkown type) was", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.droppedInvalidReestablish", "How old the packet we dropped due to invalidity (doesn't use existing key, not an establishment) was", "udp", UDPTransport.RATES);
@@ -125,19 +148,38 @@ class PacketHandler {
         rv.append("Handlers: ").append(_handlers.length);
         for (int i = 0; i < _handlers.length; i++) {
             Handler handler = _handlers[i];
-            rv.append(" handler ").append(i).append(" state: ").append(handler._state);
+            rv.append(" handler ").append(i).append(" state: ").append(handler._state)
+              .append(" queued: ").append(_inboundQueues.get(i).size())
+              .append(" handled: ").append(handler._handled)
+              .append(" avg time: ").append(handler.getAvgHandleTime());
         }
         return rv.toString();
     }
 
     /**
-     * Blocking call to retrieve the next inbound packet, or null if we have
-     * shut down.
+     * Queue the packet for the handler responsible for the remote host.
+     * Blocking if that handler's queue is full.
      *
      * @since IPv6 moved from UDPReceiver
      */
     public void queueReceived(UDPPacket packet) throws InterruptedException {
-        _inboundQueue.put(packet);
+        _inboundQueues.get(getShard(packet.getRemoteHost(), _inboundQueues.size())).put(packet);
+    }
+
+    /**
+     * All packets from a remote host go to the same handler,
+     * so they are handled in order.
+     *
+     * @param count number of handlers
+     * @return 0 to count - 1
+     * @since 0.9.28
+     */
+    static int getShard(RemoteHostId rem, int count) {
+        if (count == 1)
+            return 0;
+        int h = rem.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % count;
     }
 
 
@@ -147,32 +189,45 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     private void stopQueue() {
-        _inboundQueue.clear();
-        for (int i = 0; i < _handlers.length; i++) {
+        for (int i = 0; i < _inboundQueues.size(); i++) {
+            _inboundQueues.get(i).clear();
             UDPPacket poison = UDPPacket.acquire(_context, false);
             poison.setMessageType(TYPE_POISON);
-            _inboundQueue.offer(poison);
+            _inboundQueues.get(i).offer(poison);
         }
-        for (int i = 1; i <= 5 && !_inboundQueue.isEmpty(); i++) {
+        for (int i = 1; i <= 5 && !queuesEmpty(); i++) {
             try {
                 Thread.sleep(i * 50);
             } catch (InterruptedException ie) {}
         }
-        _inboundQueue.clear();
+        for (int i = 0; i < _inboundQueues.size(); i++) {
+            _inboundQueues.get(i).clear();
+        }
+    }
+
+    /** @since 0.9.28 */
+    private boolean queuesEmpty() {
+        for (int i = 0; i < _inboundQueues.size(); i++) {
+            if (!_inboundQueues.get(i).isEmpty())
+                return false;
+        }
+        return true;
     }
 
     /**
-     * Blocking call to retrieve the next inbound packet, or null if we have
-     * shut down.
+     * Blocking call to retrieve the next inbound packet for a handler,
+     * or null if we have shut down.
      *
+     * @param shard the handler's index
      * @since IPv6 moved from UDPReceiver
      */
-    public UDPPacket receiveNext() {
+    private UDPPacket receiveNext(int shard) {
+        BlockingQueue<UDPPacket> queue = _inboundQueues.get(shard);
         UDPPacket rv = null;
         //int remaining = 0;
         while (_keepReading && rv == null) {
             try {
-                rv = _inboundQueue.take();
+                rv = queue.take();
             } catch (InterruptedException ie) {}
             if (rv != null && rv.getMessageType() == TYPE_POISON)
                 return null;
@@ -190,18 +245,31 @@ class PacketHandler {
     
     private class Handler implements Runnable { 
         private final UDPPacketReader _reader;
+        private final int _shard;
         // TODO comment out all uses of _state
         public /* volatile */ int _state;
+        /** for getHandlerStatus() only, written by this thread only */
+        public volatile long _handled;
+        private volatile long _totalHandleTime;
 
-        public Handler() {
+        public Handler(int shard) {
             _reader = new UDPPacketReader(_context);
+            _shard = shard;
+        }
+
+        /** @since 0.9.28 */
+        public long getAvgHandleTime() {
+            long handled = _handled;
+            if (handled <= 0)
+                return 0;
+            return _totalHandleTime / handled;
         }
         
         public void run() {
             _state = 1;
             while (_keepReading) {
                 _state = 2;
-                UDPPacket packet = receiveNext();
+                UDPPacket packet = receiveNext(_shard);
                 _state = 3;
                 if (packet == null) break; // keepReading is probably false, or bind failed...
 
@@ -224,6 +292,9 @@ class PacketHandler {
                 //packet.afterHandling();
                 _context.statManager().addRateData("udp.handleTime", handleTime, packet.getLifetime());
                 _context.statManager().addRateData("udp.queueTime", queueTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.handlerQueueDepth", _inboundQueues.get(_shard).size());
+                _totalHandleTime += handleTime;
+                _handled++;
                 _state = 8;
 
                 //if (_log.shouldLog(Log.DEBUG))
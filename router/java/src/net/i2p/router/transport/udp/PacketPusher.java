@@ -74,7 +74,7 @@ class PacketPusher implements Runnable {
             if ((isIPv4 && ep.isIPv4()) ||
                 ((!isIPv4) && ep.isIPv6())) {
                 // BLOCKING if queue is full
-                ep.getSender().add(packet);
+                ep.send(packet);
                 return;
             }
         }
@@ -4,11 +4,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,11 +14,12 @@ import net.i2p.data.Hash;
 import net.i2p.data.SessionKey;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
+import net.i2p.router.util.LongHashMap;
+import net.i2p.router.util.LongHashSet;
 import net.i2p.router.util.CachedIteratorArrayList;
 import net.i2p.router.util.CoDelPriorityBlockingQueue;
 import net.i2p.router.util.PriBlockingQueue;
 import net.i2p.util.Log;
-import net.i2p.util.ConcurrentHashSet;
 
 /**
  * Contain all of the state about a UDP connection to a peer.
@@ -94,12 +92,14 @@ class PeerState {
     // private long _lastFailedSendPeriod;
 
     /**
-     *  Set of messageIds (Long) that we have received but not yet sent
+     *  Set of messageIds that we have received but not yet sent
      *  Since even with the smallest MTU we can fit 131 acks in a message,
      *  we are unlikely to get backed up on acks, so we don't keep
      *  them in any particular order.
+     *  Access must be synchronized on it.
+     *  As of 0.9.28, not boxed.
      */
-    private final Set<Long> _currentACKs;
+    private final LongHashSet _currentACKs;
 
     /** 
      * list of the most recent messageIds (Long) that we have received and sent
@@ -200,8 +200,8 @@ class PeerState {
     private int _packetsReceived;
     private boolean _mayDisconnect;
     
-    /** list of InboundMessageState for active message */
-    private final Map<Long, InboundMessageState> _inboundMessages;
+    /** InboundMessageState for active messages, by message ID. As of 0.9.28, not boxed. */
+    private final LongHashMap<InboundMessageState> _inboundMessages;
 
     /**
      *  Mostly messages that have been transmitted and are awaiting acknowledgement,
@@ -343,7 +343,7 @@ class PeerState {
         _currentReceiveSecond = now - (now % 1000);
         _lastSendTime = now;
         _lastReceiveTime = now;
-        _currentACKs = new ConcurrentHashSet<Long>();
+        _currentACKs = new LongHashSet();
         _currentACKsResend = new LinkedBlockingQueue<ResendACK>();
         _sendWindowBytes = DEFAULT_SEND_WINDOW_BYTES;
         _sendWindowBytesRemaining = DEFAULT_SEND_WINDOW_BYTES;
@@ -366,7 +366,7 @@ class PeerState {
         _rto = INIT_RTO;
         _rtt = INIT_RTT;
         _rttDeviation = _rtt;
-        _inboundMessages = new HashMap<Long, InboundMessageState>(8);
+        _inboundMessages = new LongHashMap<InboundMessageState>(8);
         _outboundMessages = new CachedIteratorArrayList<OutboundMessageState>(32);
         //_outboundQueue = new CoDelPriorityBlockingQueue(ctx, "UDP-PeerState", 32);
         _outboundQueue = new PriBlockingQueue<OutboundMessageState>(ctx, "UDP-PeerState", 32);
@@ -793,14 +793,14 @@ class PeerState {
      *  We received the message specified completely.
      *  @param bytes if less than or equal to zero, message is a duplicate.
      */
-    public void messageFullyReceived(Long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
+    public void messageFullyReceived(long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
 
     /** 
      *  We received the message specified completely.
      *  @param isForACK unused
      *  @param bytes if less than or equal to zero, message is a duplicate.
      */
-    private synchronized void messageFullyReceived(Long messageId, int bytes, boolean isForACK) {
+    private synchronized void messageFullyReceived(long messageId, int bytes, boolean isForACK) {
         if (bytes > 0) {
             _receiveBytes += bytes;
             //if (isForACK)
@@ -829,7 +829,9 @@ class PeerState {
         
         if (_wantACKSendSince <= 0)
             _wantACKSendSince = now;
-        _currentACKs.add(messageId);
+        synchronized (_currentACKs) {
+            _currentACKs.add(messageId);
+        }
     }
     
     public void messagePartiallyReceived() {
@@ -838,10 +840,11 @@ class PeerState {
     }
     
     /** 
-     * Fetch the internal id (Long) to InboundMessageState for incomplete inbound messages.
+     * Fetch the internal id to InboundMessageState for incomplete inbound messages.
      * Access to this map must be synchronized explicitly!
+     * @return as of 0.9.28, a LongHashMap
      */
-    public Map<Long, InboundMessageState> getInboundMessages() { return _inboundMessages; }
+    public LongHashMap<InboundMessageState> getInboundMessages() { return _inboundMessages; }
 
     /**
      * Expire partially received inbound messages, returning how many are still pending.
@@ -853,7 +856,7 @@ class PeerState {
         int rv = 0;
         
         synchronized (_inboundMessages) {
-            for (Iterator<InboundMessageState> iter = _inboundMessages.values().iterator(); iter.hasNext(); ) {
+            for (Iterator<InboundMessageState> iter = _inboundMessages.valueIterator(); iter.hasNext(); ) {
                 InboundMessageState state = iter.next();
                 if (state.isExpired() || _dead) {
                     iter.remove();
@@ -910,8 +913,14 @@ class PeerState {
      * @return a new list, do as you like with it
      */
     public List<Long> getCurrentFullACKs() {
-            // no such element exception seen here
-            List<Long> rv = new ArrayList<Long>(_currentACKs);
+            long[] acks;
+            synchronized (_currentACKs) {
+                acks = _currentACKs.toArray();
+            }
+            List<Long> rv = new ArrayList<Long>(acks.length);
+            for (int i = 0; i < acks.length; i++) {
+                rv.add(Long.valueOf(acks[i]));
+            }
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("Returning " + _currentACKs.size() + " current acks");
             return rv;
@@ -959,14 +968,19 @@ class PeerState {
      * Side effect - sets _lastACKSend
      */
     public void removeACKMessage(Long messageId) {
-            boolean removed = _currentACKs.remove(messageId);
+            boolean removed;
+            int sz;
+            synchronized (_currentACKs) {
+                removed = _currentACKs.remove(messageId.longValue());
+                sz = _currentACKs.size();
+            }
             if (removed) {
                 // only add if removed from current, as this may be called for
                 // acks already in _currentACKsResend.
                 _currentACKsResend.offer(new ResendACK(messageId, _context.clock().now()));
                 // trim happens in getCurrentResendACKs above
                 if (_log.shouldLog(Log.INFO))
-                    _log.info("Sent ack " + messageId + " now " + _currentACKs.size() + " current and " +
+                    _log.info("Sent ack " + messageId + " now " + sz + " current and " +
                               _currentACKsResend.size() + " resend acks");
             }
             // should we only do this if removed?
@@ -1010,28 +1024,31 @@ class PeerState {
             List<ACKBitfield> rv = new ArrayList<ACKBitfield>(maxResendAcks);
 
             // save to add to currentACKsResend later so we don't include twice
-            List<Long> currentACKsRemoved = new ArrayList<Long>(_currentACKs.size());
+            List<Long> currentACKsRemoved;
             // As explained above, we include the acks in any order
             // since we are unlikely to get backed up -
-            // just take them using the Set iterator.
-            Iterator<Long> iter = _currentACKs.iterator();
-            while (bytesRemaining >= 4 && iter.hasNext()) {
-                Long val = iter.next();
-                iter.remove();
-                long id = val.longValue();
-                rv.add(new FullACKBitfield(id));
-                currentACKsRemoved.add(val);
-                bytesRemaining -= 4;
+            // just take them in the Set order.
+            synchronized (_currentACKs) {
+                long[] acks = _currentACKs.toArray();
+                int max = Math.min(acks.length, Math.max(0, bytesRemaining / 4));
+                currentACKsRemoved = new ArrayList<Long>(max);
+                for (int i = 0; i < max; i++) {
+                    long id = acks[i];
+                    _currentACKs.remove(id);
+                    rv.add(new FullACKBitfield(id));
+                    currentACKsRemoved.add(Long.valueOf(id));
+                    bytesRemaining -= 4;
+                }
+                if (_currentACKs.isEmpty())
+                    _wantACKSendSince = -1;
             }
-            if (_currentACKs.isEmpty())
-                _wantACKSendSince = -1;
             if (alwaysIncludeRetransmissions || !rv.isEmpty()) {
                 List<Long> randomResends = getCurrentResendACKs();
                 // now repeat by putting in some old ACKs
                 // randomly selected from the Resend queue.
                 // Maybe we should only resend each one a certain number of times...
                 int oldIndex = Math.min(resendSize, maxResendAcks);
-                iter = randomResends.iterator();
+                Iterator<Long> iter = randomResends.iterator();
                 while (bytesRemaining >= 4 && oldIndex-- > 0 && iter.hasNext()) {
                     Long cur = iter.next();
                     long c = cur.longValue();
@@ -1097,7 +1114,7 @@ class PeerState {
             if (numMessages <= 0) 
                 return;
             // todo: make this a list instead of a map, so we can iterate faster w/out the memory overhead?
-            for (Iterator<InboundMessageState> iter = _inboundMessages.values().iterator(); iter.hasNext(); ) {
+            for (Iterator<InboundMessageState> iter = _inboundMessages.valueIterator(); iter.hasNext(); ) {
                 InboundMessageState state = iter.next();
                 if (state.isExpired()) {
                     //if (_context instanceof RouterContext)
@@ -1392,7 +1409,9 @@ class PeerState {
     public boolean unsentACKThresholdReached() {
         //int threshold = countMaxACKData() / 4;
         //return _currentACKs.size() >= threshold;
-        return _currentACKs.size() >= MAX_RESEND_ACKS / 2;
+        synchronized (_currentACKs) {
+            return _currentACKs.size() >= MAX_RESEND_ACKS / 2;
+        }
     }
 
     /**
@@ -2004,16 +2023,18 @@ class PeerState {
         _sendWindowBytes = oldPeer._sendWindowBytes;
         oldPeer._dead = true;
         
-        List<Long> tmp = new ArrayList<Long>();
-        // AIOOBE from concurrent access
-        //tmp.addAll(oldPeer._currentACKs);
-        for (Long l : oldPeer._currentACKs) {
-            tmp.add(l);
+        long[] tmp;
+        synchronized (oldPeer._currentACKs) {
+            tmp = oldPeer._currentACKs.toArray();
+            oldPeer._currentACKs.clear();
         }
-        oldPeer._currentACKs.clear();
 
         if (!_dead) {
-            _currentACKs.addAll(tmp);
+            synchronized (_currentACKs) {
+                for (int i = 0; i < tmp.length; i++) {
+                    _currentACKs.add(tmp[i]);
+                }
+            }
 	}
         
         List<ResendACK> tmp3 = new ArrayList<ResendACK>();
@@ -2024,15 +2045,21 @@ class PeerState {
             _currentACKsResend.addAll(tmp3);
 	}
         
-        Map<Long, InboundMessageState> msgs = new HashMap<Long, InboundMessageState>();
+        List<InboundMessageState> msgs;
         synchronized (oldPeer._inboundMessages) {
-            msgs.putAll(oldPeer._inboundMessages);
+            msgs = new ArrayList<InboundMessageState>(oldPeer._inboundMessages.size());
+            for (Iterator<InboundMessageState> iter = oldPeer._inboundMessages.valueIterator(); iter.hasNext(); ) {
+                msgs.add(iter.next());
+            }
             oldPeer._inboundMessages.clear();
         }
         if (!_dead) {
-            synchronized (_inboundMessages) { _inboundMessages.putAll(msgs); }
+            synchronized (_inboundMessages) {
+                for (InboundMessageState ims : msgs) {
+                    _inboundMessages.put(ims.getMessageId(), ims);
+                }
+            }
 	}
-        msgs.clear();
         
         List<OutboundMessageState> tmp2 = new ArrayList<OutboundMessageState>();
         OutboundMessageState retransmitter = null;
@@ -5,7 +5,14 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -15,15 +22,24 @@ import net.i2p.util.Log;
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * As of 0.9.28, may optionally use one or more DatagramChannels
+ * bound to the same port with SO_REUSEPORT, each with its own
+ * UDPSender and UDPReceiver, so the kernel spreads inbound
+ * packets over several receive threads.
  */
 class UDPEndpoint implements SocketListener {
     private final RouterContext _context;
     private final Log _log;
     private int _listenPort;
     private final UDPTransport _transport;
-    private UDPSender _sender;
-    private UDPReceiver _receiver;
+    /** one per socket or channel */
+    private UDPSender[] _senders;
+    private UDPReceiver[] _receivers;
+    /** socket mode, else null */
     private DatagramSocket _socket;
+    /** channel mode, else null, @since 0.9.28 */
+    private DatagramChannel[] _channels;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
@@ -52,28 +68,73 @@ class UDPEndpoint implements SocketListener {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Starting up the UDP endpoint");
         shutdown();
+        int channels = Math.min(MAX_CHANNELS, _context.getProperty(PROP_CHANNELS, DEFAULT_CHANNELS));
+        if (channels > 0) {
+            startupChannels(channels);
+            return;
+        }
         _socket = getSocket();
         if (_socket == null) {
             _log.log(Log.CRIT, "UDP Unable to open a port");
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
-        _sender.startup();
+        _senders = new UDPSender[] { new UDPSender(_context, _socket, "UDPSender " + count, this) };
+        _senders[0].startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
-            _receiver.startup();
+            _receivers = new UDPReceiver[] { new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this) };
+            _receivers[0].startup();
+        }
+    }
+
+    /**
+     *  Channel mode.
+     *  No receivers if there is no transport (unit testing), use receive().
+     *  @param channels greater than zero
+     *  @since 0.9.28
+     */
+    private void startupChannels(int channels) throws SocketException {
+        _channels = getChannels(channels);
+        if (_channels == null) {
+            _log.log(Log.CRIT, "UDP Unable to open a port");
+            throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
+        }
+        int count = _counter.incrementAndGet();
+        int sz = _channels.length;
+        _senders = new UDPSender[sz];
+        if (_transport != null)
+            _receivers = new UDPReceiver[sz];
+        for (int i = 0; i < sz; i++) {
+            String suffix = sz > 1 ? count + "." + (i + 1) : Integer.toString(count);
+            _senders[i] = new UDPSender(_context, _channels[i], "UDPSender " + suffix, this);
+            _senders[i].startup();
+            if (_transport != null) {
+                _receivers[i] = new UDPReceiver(_context, _transport, _channels[i], "UDPReceiver " + suffix, this);
+                _receivers[i].startup();
+            }
         }
     }
     
     public synchronized void shutdown() {
-        if (_sender != null) {
-            _sender.shutdown();
-            _receiver.shutdown();
+        if (_senders != null) {
+            for (int i = 0; i < _senders.length; i++) {
+                _senders[i].shutdown();
+            }
+        }
+        if (_receivers != null) {
+            for (int i = 0; i < _receivers.length; i++) {
+                _receivers[i].shutdown();
+            }
         }
         if (_socket != null) {
             _socket.close();
         }
+        if (_channels != null) {
+            for (int i = 0; i < _channels.length; i++) {
+                try { _channels[i].close(); } catch (IOException ioe) {}
+            }
+            _channels = null;
+        }
     }
     
     public void setListenPort(int newPort) { _listenPort = newPort; }
@@ -104,6 +165,18 @@ class UDPEndpoint implements SocketListener {
     private static final int MAX_RANDOM_PORT = 30777;
     private static final int MAX_PORT_RETRIES = 20;
 
+    /**
+     *  Number of DatagramChannels to bind to our port.
+     *  0 (default) for a single blocking DatagramSocket as before.
+     *  1 for a single channel with batched reads.
+     *  More than 1 requires SO_REUSEPORT support (Java 9+ and the OS),
+     *  otherwise a single channel is used.
+     *  @since 0.9.28
+     */
+    public static final String PROP_CHANNELS = "i2np.udp.channels";
+    private static final int DEFAULT_CHANNELS = 0;
+    private static final int MAX_CHANNELS = 8;
+
     /**
      *  Open socket using requested port in _listenPort and  bind host in _bindAddress.
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
@@ -150,6 +223,87 @@ class UDPEndpoint implements SocketListener {
         return socket;
     }
 
+    /**
+     *  Channel version of getSocket(), same port selection.
+     *  All channels are bound to the same port, with SO_REUSEPORT if there is more than one.
+     *  If SO_REUSEPORT is not available, returns a single channel.
+     *
+     *  @param count greater than zero
+     *  @return null on failure
+     *  Sets _listenPort to actual port or -1 on failure
+     *  @since 0.9.28
+     */
+    private DatagramChannel[] getChannels(int count) {
+        SocketOption<Boolean> reusePort = count > 1 ? getReusePortOption() : null;
+        if (count > 1 && reusePort == null) {
+            _log.logAlways(Log.WARN, "SO_REUSEPORT not supported, using a single UDP channel");
+            count = 1;
+        }
+        DatagramChannel[] rv = null;
+        int port = _listenPort;
+        if (port > 0 && !TransportUtil.isValidPort(port)) {
+            _log.error("Specified UDP port " + port + " is not valid, selecting a new port");
+            // See isValidPort() for list
+            _log.error("Invalid ports are: 0-1023, 1900, 2827, 4444, 4445, 6668, 7650-7664, 8998, 31000, 32000, 65536+");
+            port = -1;
+        }
+
+        for (int i = 0; i < MAX_PORT_RETRIES; i++) {
+             if (port <= 0)
+                 port = selectRandomPort(_context);
+             InetSocketAddress addr = _bindAddress != null ? new InetSocketAddress(_bindAddress, port)
+                                                            : new InetSocketAddress(port);
+             rv = new DatagramChannel[count];
+             try {
+                 for (int j = 0; j < count; j++) {
+                     rv[j] = DatagramChannel.open();
+                     // required to register with the receiver's selector
+                     rv[j].configureBlocking(false);
+                     if (reusePort != null) {
+                         if (!rv[j].supportedOptions().contains(reusePort))
+                             throw new IOException("SO_REUSEPORT not supported");
+                         rv[j].setOption(reusePort, Boolean.TRUE);
+                     }
+                     rv[j].bind(addr);
+                 }
+                 break;
+             } catch (IOException ioe) {
+                 if (_log.shouldLog(Log.WARN))
+                     _log.warn("Binding to port " + port + " failed", ioe);
+                 for (int j = 0; j < count; j++) {
+                     if (rv[j] != null)
+                         try { rv[j].close(); } catch (IOException e) {}
+                 }
+                 rv = null;
+             }
+             port = -1;
+        }
+        if (rv == null) {
+            _log.log(Log.CRIT, "SSU Unable to bind to a port on " + _bindAddress);
+        } else if (port != _listenPort) {
+            if (_listenPort > 0)
+                _log.error("SSU Unable to bind to requested port " + _listenPort + ", using random port " + port);
+            else
+                _log.logAlways(Log.INFO, "UDP selected random port " + port);
+        }
+        _listenPort = port;
+        return rv;
+    }
+
+    /**
+     *  StandardSocketOptions.SO_REUSEPORT was added in Java 9.
+     *  @return null if not available
+     *  @since 0.9.28
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      *  Pick a random port between the configured boundaries
      *  @since IPv6
@@ -163,26 +317,37 @@ class UDPEndpoint implements SocketListener {
 
     /** call after startup() to get actual port or -1 on startup failure */
     public int getListenPort() { return _listenPort; }
-    public UDPSender getSender() { return _sender; }
-    
+
     /**
      * Add the packet to the outobund queue to be sent ASAP (as allowed by
      * the bandwidth limiter)
      * BLOCKING if queue is full.
+     *
+     * With multiple channels, the sender is selected by the remote host,
+     * so packets to a peer stay in order.
      */
     public void send(UDPPacket packet) { 
-        _sender.add(packet); 
+        UDPSender[] senders = _senders;
+        UDPSender sender;
+        if (senders.length == 1)
+            sender = senders[0];
+        else
+            sender = senders[(packet.getPacket().getSocketAddress().hashCode() & 0x7fffffff) % senders.length];
+        sender.add(packet); 
     }
      
     /**
      * Blocking call to receive the next inbound UDP packet from any peer.
      *
-     * UNIT TESTING ONLY. Direct from the socket.
+     * UNIT TESTING ONLY. Direct from the socket or channels.
      * In normal operation, UDPReceiver thread injects to PacketHandler queue.
      *
      * @return null if we have shut down, or on failure
      */
     public UDPPacket receive() { 
+        DatagramChannel[] channels = _channels;
+        if (channels != null)
+            return receive(channels);
         UDPPacket packet = UDPPacket.acquire(_context, true);
         try {
             _socket.receive(packet.getPacket());
@@ -193,13 +358,51 @@ class UDPEndpoint implements SocketListener {
         }
     }
     
+    /**
+     *  Channel mode version of receive(), same selector and read
+     *  as the UDPReceiver, so it requires non-blocking channels.
+     *
+     *  UNIT TESTING ONLY.
+     *
+     *  @return null if we have shut down, or on failure
+     *  @since 0.9.28
+     */
+    private UDPPacket receive(DatagramChannel[] channels) {
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            for (int i = 0; i < channels.length; i++) {
+                channels[i].register(selector, SelectionKey.OP_READ);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            while (channels[0].isOpen()) {
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    UDPPacket packet = UDPReceiver.receive(_context, (DatagramChannel) key.channel(), buf);
+                    if (packet != null)
+                        return packet;
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException ioe) {
+        } finally {
+            if (selector != null)
+                try { selector.close(); } catch (IOException ioe) {}
+        }
+        return null;
+    }
+    
     /**
      *  Clear outbound queue, probably in preparation for sending destroy() to everybody.
      *  @since 0.9.2
      */
     public void clearOutbound() {
-        if (_sender != null)
-            _sender.clear();
+        UDPSender[] senders = _senders;
+        if (senders != null) {
+            for (int i = 0; i < senders.length; i++) {
+                senders[i].clear();
+            }
+        }
     }
 
     /**
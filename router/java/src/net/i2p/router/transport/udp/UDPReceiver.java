@@ -3,6 +3,11 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Arrays;
 
 import net.i2p.router.RouterContext;
@@ -18,14 +23,20 @@ import net.i2p.util.SystemVersion;
  * waiting around too long, they are dropped.  Packets should be pulled off
  * from the queue ASAP by a {@link PacketHandler}
  *
- * There is a UDPReceiver for each UDPEndpoint.
+ * There is a UDPReceiver for each UDPEndpoint socket.
  * It contains a thread but no queue. Received packets are queued
- * in the common PacketHandler queue.
+ * in the common PacketHandler queues, one per handler thread.
+ *
+ * As of 0.9.28, may read from a non-blocking DatagramChannel instead
+ * of a DatagramSocket, draining many datagrams per selector wakeup.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
+    /** null in channel mode */
     private final DatagramSocket _socket;
+    /** null in socket mode, @since 0.9.28 */
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
     private final Runner _runner;
@@ -37,10 +48,29 @@ class UDPReceiver {
 
     public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
                        SocketListener lsnr) {
+        this(ctx, transport, socket, null, name, lsnr);
+    }
+
+    /**
+     *  @param channel must be bound and not registered with a selector
+     *  @since 0.9.28
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name,
+                       SocketListener lsnr) {
+        this(ctx, transport, null, channel, name, lsnr);
+    }
+
+    /**
+     *  One of socket or channel non-null
+     *  @since 0.9.28
+     */
+    private UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket,
+                        DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
@@ -53,6 +83,8 @@ class UDPReceiver {
         _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
+        if (channel != null)
+            _context.statManager().createRateStat("udp.receiveBatch", "How many packets were read per wakeup", "udp", UDPTransport.RATES);
     }
     
     /**
@@ -96,6 +128,11 @@ class UDPReceiver {
 
     /** if a packet been sitting in the queue for a full second (meaning the handlers are overwhelmed), drop subsequent packets */
     private static final long MAX_QUEUE_PERIOD = 2*1000;
+
+    /** channel mode, max packets read per selector wakeup, @since 0.9.28 */
+    private static final int MAX_BATCH = 64;
+    /** channel mode, so we notice shutdown, @since 0.9.28 */
+    private static final long SELECT_TIMEOUT = 1000;
     
 /*********
     private static int ARTIFICIAL_DROP_PROBABILITY = 0; // 4
@@ -217,10 +254,85 @@ class UDPReceiver {
   ****/
     
     
+    /**
+     *  Size checks, bandwidth limiting, and hole punch handling,
+     *  then queue it to the PacketHandler.
+     *  Releases the packet on all paths except for IOException.
+     *
+     *  @param size the datagram length
+     *  @throws IOException if too large, caller must release the packet
+     *  @since 0.9.28 moved from Runner.run()
+     */
+    private void handlePacket(UDPPacket packet, int size) throws IOException {
+        DatagramPacket dpacket = packet.getPacket();
+        // and block after we know how much we read but before
+        // we release the packet to the inbound queue
+        if (size >= UDPPacket.MAX_PACKET_SIZE) {
+            // DatagramSocket javadocs: If the message is longer than the packet's length, the message is truncated.
+            throw new IOException("packet too large! truncated and dropped from: " + packet.getRemoteHost());
+        }
+        if (_context.commSystem().isDummy()) {
+            // testing
+            packet.release();
+        } else if (size > 0) {
+            //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+            //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
+            FIFOBandwidthLimiter.Request req =
+                  _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+            // failsafe, don't wait forever
+            int waitCount = 0;
+            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                req.waitForNextAllocation();
+            }
+            if (waitCount >= 5) {
+                // tell FBL we didn't receive it, but receive it anyway
+                req.abort();
+                _context.statManager().addRateData("udp.receiveFailsafe", 1);
+            }
+            
+            receive(packet);
+            //_context.statManager().addRateData("udp.receivePacketSize", size);
+        } else {
+            _context.statManager().addRateData("udp.receiveHolePunch", 1);
+            // nat hole punch packets are 0 bytes
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Received a 0 byte udp packet from " + dpacket.getAddress() + ":" + dpacket.getPort());
+            _transport.getEstablisher().receiveHolePunch(dpacket.getAddress(), dpacket.getPort());
+            packet.release();
+        }
+    }
+
+    /**
+     *  Read one datagram from a non-blocking channel into a new UDPPacket.
+     *
+     *  @param buf scratch buffer of at least MAX_PACKET_SIZE, contents discarded
+     *  @return null if there was nothing to read
+     *  @since 0.9.28
+     */
+    static UDPPacket receive(RouterContext ctx, DatagramChannel channel, ByteBuffer buf) throws IOException {
+        buf.clear();
+        SocketAddress from = channel.receive(buf);
+        if (from == null)
+            return null;
+        buf.flip();
+        int size = buf.remaining();
+        UDPPacket packet = UDPPacket.acquire(ctx, true);
+        DatagramPacket dpacket = packet.getPacket();
+        buf.get(dpacket.getData(), 0, size);
+        dpacket.setLength(size);
+        dpacket.setSocketAddress(from);
+        packet.resetBegin();
+        return packet;
+    }
+
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
 
         public void run() {
+            if (_channel != null) {
+                runChannel();
+                return;
+            }
             //_socketChanged = false;
             while (_keepRunning) {
                 //if (_socketChanged) {
@@ -251,42 +363,7 @@ class UDPReceiver {
                     if (_log.shouldLog(Log.INFO))
                         _log.info("After blocking socket.receive: packet is " + size + " bytes on " + System.identityHashCode(packet));
                     packet.resetBegin();
-            
-                    // and block after we know how much we read but before
-                    // we release the packet to the inbound queue
-                    if (size >= UDPPacket.MAX_PACKET_SIZE) {
-                        // DatagramSocket javadocs: If the message is longer than the packet's length, the message is truncated.
-                        throw new IOException("packet too large! truncated and dropped from: " + packet.getRemoteHost());
-                    }
-                    if (_context.commSystem().isDummy()) {
-                        // testing
-                        packet.release();
-                    } else if (size > 0) {
-                        //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        // failsafe, don't wait forever
-                        int waitCount = 0;
-                        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                            req.waitForNextAllocation();
-                        }
-                        if (waitCount >= 5) {
-                            // tell FBL we didn't receive it, but receive it anyway
-                            req.abort();
-                            _context.statManager().addRateData("udp.receiveFailsafe", 1);
-                        }
-                        
-                        receive(packet);
-                        //_context.statManager().addRateData("udp.receivePacketSize", size);
-                    } else {
-                        _context.statManager().addRateData("udp.receiveHolePunch", 1);
-                        // nat hole punch packets are 0 bytes
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("Received a 0 byte udp packet from " + dpacket.getAddress() + ":" + dpacket.getPort());
-                        _transport.getEstablisher().receiveHolePunch(dpacket.getAddress(), dpacket.getPort());
-                        packet.release();
-                    }
+                    handlePacket(packet, size);
                 } catch (IOException ioe) {
                     //if (_socketChanged) {
                     //    if (_log.shouldLog(Log.INFO))
@@ -310,6 +387,73 @@ class UDPReceiver {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Stop receiving on " + _endpoint);
         }
+
+        /**
+         *  Channel mode. Wait for the channel to be readable, then read
+         *  until it is empty or MAX_BATCH, into a direct buffer owned by
+         *  this thread, copying each datagram into a UDPPacket.
+         *
+         *  @since 0.9.28
+         */
+        private void runChannel() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                _channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException | RuntimeException e) {
+                // IllegalBlockingModeException etc. would otherwise kill the thread with no failover
+                _log.error("Error opening the UDP selector", e);
+                if (selector != null)
+                    try { selector.close(); } catch (IOException ioe) {}
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            while (_keepRunning) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    selector.selectedKeys().clear();
+                    int count = 0;
+                    while (count < MAX_BATCH && _keepRunning) {
+                        // block before we read...
+                        while (!_context.throttle().acceptNetworkMessage())
+                            try { Thread.sleep(10); } catch (InterruptedException ie) {}
+                        UDPPacket packet = receive(_context, _channel, buf);
+                        if (packet == null)
+                            break;
+                        count++;
+                        try {
+                            handlePacket(packet, packet.getPacket().getLength());
+                        } catch (IOException ioe) {
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("Error receiving", ioe);
+                            packet.release();
+                        }
+                    }
+                    if (count > 0)
+                        _context.statManager().addRateData("udp.receiveBatch", count);
+                } catch (IOException ioe) {
+                    if (!_channel.isOpen()) {
+                        if (_keepRunning) {
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("Error receiving", ioe);
+                            _keepRunning = false;
+                            _endpoint.fail();
+                        }
+                    } else if (_keepRunning) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Error receiving", ioe);
+                        try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                    }
+                }
+            }
+            try { selector.close(); } catch (IOException ioe) {}
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
         
      /******
         public DatagramSocket updateListeningPort(DatagramSocket socket, int newPort) {
@@ -3,6 +3,11 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -15,14 +20,19 @@ import net.i2p.util.SystemVersion;
 /**
  * Lowest level packet sender, pushes anything on its queue ASAP.
  *
- * There is a UDPSender for each UDPEndpoint.
+ * There is a UDPSender for each UDPEndpoint socket.
  * It contains a thread and a queue. Packet to be sent are queued
  * by the PacketPusher.
+ *
+ * As of 0.9.28, may write to a DatagramChannel instead of a DatagramSocket.
  */
 class UDPSender {
     private final RouterContext _context;
     private final Log _log;
+    /** null in channel mode */
     private final DatagramSocket _socket;
+    /** null in socket mode, @since 0.9.28 */
+    private final DatagramChannel _channel;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
@@ -37,8 +47,27 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /** channel mode, how long to wait for room in the socket buffer before dropping, @since 0.9.28 */
+    private static final long MAX_SEND_WAIT = 100;
     
     public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+        this(ctx, socket, null, name, lsnr);
+    }
+
+    /**
+     *  @param channel must be bound
+     *  @since 0.9.28
+     */
+    public UDPSender(RouterContext ctx, DatagramChannel channel, String name, SocketListener lsnr) {
+        this(ctx, null, channel, name, lsnr);
+    }
+
+    /**
+     *  One of socket or channel non-null
+     *  @since 0.9.28
+     */
+    private UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel,
+                      String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
@@ -46,6 +75,7 @@ class UDPSender {
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
+        _channel = channel;
         _runner = new Runner();
         _name = name;
         _endpoint = lsnr;
@@ -60,6 +90,8 @@ class UDPSender {
         _context.statManager().createRateStat("udp.sendFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
         // used in RouterWatchdog
         _context.statManager().createRequiredRateStat("udp.sendException", "Send fails (Windows exception?)", "udp", new long[] { 60*1000, 10*60*1000 });
+        if (channel != null)
+            _context.statManager().createRateStat("udp.sendBufferFull", "Packets dropped, socket buffer still full after waiting (duration == lifetime)", "udp", UDPTransport.RATES);
 
         _context.statManager().createRateStat("udp.sendPacketSize." + PacketBuilder.TYPE_ACK, "ack-only packet size", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendPacketSize." + PacketBuilder.TYPE_PUNCH, "hole punch packet size", "udp", UDPTransport.RATES);
@@ -215,6 +247,44 @@ class UDPSender {
     
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
+        /** channel mode only, @since 0.9.28 */
+        private ByteBuffer _sendBuf;
+        /** channel mode only, lazily opened on the first full socket buffer, @since 0.9.28 */
+        private Selector _writeSelector;
+
+        /**
+         *  Channel mode. The channel is non-blocking, so a zero return
+         *  is the normal result when the socket send buffer is full.
+         *  Wait on a selector for the channel to become writable,
+         *  for at most MAX_SEND_WAIT, then give up on the packet.
+         *
+         *  @return true if sent, false if dropped because the buffer stayed full
+         *  @since 0.9.28
+         */
+        private boolean channelSend(DatagramPacket dp) throws IOException {
+            if (_sendBuf == null)
+                _sendBuf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            _sendBuf.clear();
+            _sendBuf.put(dp.getData(), dp.getOffset(), dp.getLength());
+            _sendBuf.flip();
+            SocketAddress to = dp.getSocketAddress();
+            if (_channel.send(_sendBuf, to) > 0)
+                return true;
+            if (_writeSelector == null) {
+                _writeSelector = Selector.open();
+                _channel.register(_writeSelector, SelectionKey.OP_WRITE);
+            }
+            long start = System.currentTimeMillis();
+            long remaining = MAX_SEND_WAIT;
+            while (_keepRunning && remaining > 0) {
+                _writeSelector.select(remaining);
+                _writeSelector.selectedKeys().clear();
+                if (_channel.send(_sendBuf, to) > 0)
+                    return true;
+                remaining = MAX_SEND_WAIT - (System.currentTimeMillis() - start);
+            }
+            return false;
+        }
 
         public void run() {
             if (_log.shouldLog(Log.DEBUG))
@@ -270,7 +340,16 @@ class UDPSender {
                             DatagramPacket dp = packet.getPacket();
                             //if (_log.shouldLog(Log.DEBUG))
                             //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
+                            if (_channel != null) {
+                                if (!channelSend(dp)) {
+                                    // back to the cache
+                                    _context.statManager().addRateData("udp.sendBufferFull", 1, packet.getLifetime());
+                                    packet.release();
+                                    continue;
+                                }
+                            } else {
+                                _socket.send(dp);
+                            }
                             //if (_log.shouldLog(Log.DEBUG))
                             //    _log.debug("Just after socket.send of " + packet);
                         //}
@@ -290,7 +369,7 @@ class UDPSender {
                         if (_log.shouldLog(Log.WARN))
                             _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
                         _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
+                        if (_channel != null ? !_channel.isOpen() : _socket.isClosed()) {
                             if (_keepRunning) {
                                 _keepRunning = false;
                                 _endpoint.fail();
@@ -302,6 +381,8 @@ class UDPSender {
                     packet.release();
                 }
             }
+            if (_writeSelector != null)
+                try { _writeSelector.close(); } catch (IOException ioe) {}
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Stop sending on " + _endpoint);
             _outboundQueue.clear();
@@ -93,9 +93,8 @@ class HopProcessor {
         }
         //if (USE_ENCRYPTION) {
             //if (USE_DOUBLE_IV_ENCRYPTION) 
-                updateIV(orig, offset);
-            encrypt(orig, offset, length);
-            updateIV(orig, offset);
+            // encrypt the IV, CBC encrypt the data with it, encrypt the IV again
+            _context.aes().encryptTunnel(orig, offset, length, _config.getLayerKey(), _config.getIVKey());
         //}
         //if (_log.shouldLog(Log.DEBUG)) {
             //_log.debug("Data after processing: " + Base64.encode(orig, IV_LENGTH, orig.length - IV_LENGTH));
@@ -104,20 +103,6 @@ class HopProcessor {
         return true;
     }
     
-    private final void encrypt(byte data[], int offset, int length) {
-        for (int off = offset + IV_LENGTH; off < length; off += IV_LENGTH) {
-            //DataHelper.xor(data, off - IV_LENGTH, data, off, data, off, IV_LENGTH);
-            for (int j = 0; j < IV_LENGTH; j++) {
-                data[off + j] ^= data[(off - IV_LENGTH) + j];
-            }
-            _context.aes().encryptBlock(data, off, _config.getLayerKey(), data, off);
-        }
-    }
-    
-    private final void updateIV(byte orig[], int offset) {
-        _context.aes().encryptBlock(orig, offset, _config.getIVKey(), orig, offset);
-    }
-
     /**
      *  @since 0.8.12
      */
@@ -71,7 +71,7 @@ class InboundEndpointProcessor {
         
         // inbound endpoints and outbound gateways have to undo the crypto in the same way
         //if (USE_ENCRYPTION)
-            decrypt(_context, _config, iv, orig, offset, length);
+            decrypt(_context, _config, orig, offset, length);
         
         SimpleByteCache.release(iv);
         
@@ -90,17 +90,15 @@ class InboundEndpointProcessor {
     /**
      * Iteratively undo the crypto that the various layers in the tunnel added.
      */
-    private void decrypt(RouterContext ctx, TunnelCreatorConfig cfg, byte iv[], byte orig[], int offset, int length) {
+    private void decrypt(RouterContext ctx, TunnelCreatorConfig cfg, byte orig[], int offset, int length) {
         //Log log = ctx.logManager().getLog(OutboundGatewayProcessor.class);
-        byte cur[] = SimpleByteCache.acquire(HopProcessor.IV_LENGTH);
         for (int i = cfg.getLength()-2; i >= 0; i--) { // dont include the endpoint, since that is the creator
-            OutboundGatewayProcessor.decrypt(ctx, iv, orig, offset, length, cur, cfg.getConfig(i));
+            OutboundGatewayProcessor.decrypt(ctx, orig, offset, length, cfg.getConfig(i));
             //if (log.shouldLog(Log.DEBUG)) {
                 //log.debug("IV at hop " + i + ": " + Base64.encode(orig, offset, HopProcessor.IV_LENGTH));
                 //log.debug("hop " + i + ": " + Base64.encode(orig, offset + HopProcessor.IV_LENGTH, length - HopProcessor.IV_LENGTH));
             //}
         }
-        SimpleByteCache.release(cur);
     }
     
 }
@@ -43,7 +43,7 @@ class OutboundGatewayProcessor {
             //_log.debug("data:  " + Base64.encode(orig, iv.length, length - iv.length));
         }
         //if (USE_ENCRYPTION)
-            decrypt(_context, _config, iv, orig, offset, length);
+            decrypt(_context, _config, orig, offset, length);
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("finished processing the preprocessed data");
         SimpleByteCache.release(iv);
@@ -53,51 +53,26 @@ class OutboundGatewayProcessor {
      * Iteratively undo the crypto that the various layers in the tunnel added.  This is used
      * by the outbound gateway (preemptively undoing the crypto peers will add).
      */
-    private void decrypt(I2PAppContext ctx, TunnelCreatorConfig cfg, byte iv[], byte orig[], int offset, int length) {
+    private void decrypt(I2PAppContext ctx, TunnelCreatorConfig cfg, byte orig[], int offset, int length) {
         Log log = ctx.logManager().getLog(OutboundGatewayProcessor.class);
-        byte cur[] = SimpleByteCache.acquire(HopProcessor.IV_LENGTH);
         for (int i = cfg.getLength()-1; i >= 1; i--) { // dont include hop 0, since that is the creator
-            decrypt(ctx, iv, orig, offset, length, cur, cfg.getConfig(i));
+            decrypt(ctx, orig, offset, length, cfg.getConfig(i));
             if (log.shouldLog(Log.DEBUG)) {
                 log.debug("IV at hop " + i + ": " + Base64.encode(orig, offset, HopProcessor.IV_LENGTH));
                 //log.debug("hop " + i + ": " + Base64.encode(orig, offset + HopProcessor.IV_LENGTH, length - HopProcessor.IV_LENGTH));
             }
         }
-        SimpleByteCache.release(cur);
     }
     
     /**
      * Undo the crypto for a single hop.  This is used
      * by both the outbound gateway (preemptively undoing the crypto peers will add)
      * and by the inbound endpoint.
+     *
+     * @param orig message with the IV at offset, processed in place
+     * @since 0.9.28 previously with caller-supplied IV buffers
      */
-    static void decrypt(I2PAppContext ctx, byte iv[], byte orig[], int offset, int length, byte cur[], HopConfig config) {
-        // update the IV for the previous (next?) hop
-        ctx.aes().decryptBlock(orig, offset, config.getIVKey(), orig, offset);
-        
-        int numBlocks = (length - HopProcessor.IV_LENGTH) / HopProcessor.IV_LENGTH;
-        
-        // prev == previous encrypted block (or IV for the first block)
-        byte prev[] = iv;
-        System.arraycopy(orig, offset, prev, 0, HopProcessor.IV_LENGTH);
-        //_log.debug("IV at curHop: " + Base64.encode(iv));
-        
-        //decrypt the whole row
-        for (int i = 0; i < numBlocks; i++) {
-            int off = (i + 1) * HopProcessor.IV_LENGTH + offset;
-        
-            System.arraycopy(orig, off, cur, 0, HopProcessor.IV_LENGTH);
-            ctx.aes().decryptBlock(orig, off, config.getLayerKey(), orig, off);
-            //DataHelper.xor(prev, 0, orig, off, orig, off, HopProcessor.IV_LENGTH);
-            for (int j = 0; j < HopProcessor.IV_LENGTH; j++) {
-                orig[off + j] ^= prev[j];
-            }
-            byte xf[] = prev;
-            prev = cur;
-            cur = xf;
-        }
-        
-        //if (HopProcessor.USE_DOUBLE_IV_ENCRYPTION)
-            ctx.aes().decryptBlock(orig, offset, config.getIVKey(), orig, offset);
+    static void decrypt(I2PAppContext ctx, byte orig[], int offset, int length, HopConfig config) {
+        ctx.aes().decryptTunnel(orig, offset, length, config.getLayerKey(), config.getIVKey());
     }
 }
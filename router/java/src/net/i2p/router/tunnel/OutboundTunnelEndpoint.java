@@ -36,10 +36,11 @@ class OutboundTunnelEndpoint {
         if (!ok) {
             // invalid IV
             // If we pass it on to the handler, it will fail
-            // If we don't, the data buf won't get released from the cache... that's ok
+            // If we don't, we must release the data buf ourselves
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Invalid IV, dropping at OBEP " + _config);
             _context.statManager().addRateData("tunnel.corruptMessage", 1, 1);
+            msg.release();
             return;
         }
         _handler.receiveTunnelMessage(msg.getData(), 0, msg.getData().length);
@@ -552,6 +552,7 @@ public class TunnelDispatcher implements Service {
                     _log.log(level, "no matching participant/endpoint for id=" + msg.getTunnelId() 
                              + " expiring in " + DataHelper.formatDuration(msg.getMessageExpiration()-_context.clock().now())
                              + ": existing = " + _participants.size() + " / " + _outboundEndpoints.size());
+                msg.release();
             }
         }
         
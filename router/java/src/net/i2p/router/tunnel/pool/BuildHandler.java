@@ -51,6 +51,9 @@ import net.i2p.util.Log;
  * There is only one of these objects but there may be multiple
  * threads running it. Instantiated and started by TunnelPoolManager.
  *
+ * As of 0.9.28, the number of threads scales with the cores,
+ * and new requests are dropped before queueing when the
+ * measured processing time says they would wait too long.
  */
 class BuildHandler implements Runnable {
     private final RouterContext _context;
@@ -65,6 +68,10 @@ class BuildHandler implements Runnable {
     private final ParticipatingThrottler _throttler;
     private final BuildReplyHandler _buildReplyHandler;
     private final AtomicInteger _currentLookups = new AtomicInteger();
+    /** number of threads in run() */
+    private final AtomicInteger _threads = new AtomicInteger();
+    /** moving average of the time to decrypt and handle a request, in microseconds */
+    private volatile int _avgProcessTime;
     private volatile boolean _isRunning;
     private final Object _startupLock = new Object();
     private ExplState _explState = ExplState.NONE;
@@ -99,6 +106,12 @@ class BuildHandler implements Runnable {
 
     private static final long JOB_LAG_LIMIT_TUNNEL = 350;
 
+    /**
+     *  Drop new requests if the estimated queue time is over this.
+     *  Same as the age at which the handler drops them anyway.
+     */
+    private static final int MAX_QUEUE_TIME = BuildRequestor.REQUEST_TIMEOUT/4;
+
 
     public BuildHandler(RouterContext ctx, TunnelPoolManager manager, BuildExecutor exec) {
         _context = ctx;
@@ -116,6 +129,8 @@ class BuildHandler implements Runnable {
         _context.statManager().createRateStat("tunnel.reject.50", "How often we reject a tunnel because of a critical issue (shutdown, etc)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
 
         _context.statManager().createRequiredRateStat("tunnel.decryptRequestTime", "Time to decrypt a build request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.buildRequestQueueTime", "Time a build request waits for a handler (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.buildRequestHandleTime", "Time to handle a decrypted build request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTooOld", "Reject tunnel count (too old)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectFuture", "Reject tunnel count (time in future)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTimeout", "Reject tunnel count (unknown next hop)", "Tunnels", new long[] { 60*60*1000 });
@@ -215,12 +230,17 @@ class BuildHandler implements Runnable {
      */
     public void run() {
         _isRunning = true;
-        while (_isRunning && !_manager.isShutdown()) {
-            try {
-                handleInboundRequest();
-            } catch (RuntimeException e) {
-                _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+        _threads.incrementAndGet();
+        try {
+            while (_isRunning && !_manager.isShutdown()) {
+                try {
+                    handleInboundRequest();
+                } catch (RuntimeException e) {
+                    _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+                }
             }
+        } finally {
+            _threads.decrementAndGet();
         }
         if (_log.shouldLog(Log.WARN))
             _log.warn("Done handling");
@@ -246,6 +266,7 @@ class BuildHandler implements Runnable {
             }
 
             long now = _context.clock().now();
+            _context.statManager().addRateData("tunnel.buildRequestQueueTime", now - state.recvTime);
             long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
             if (state.recvTime <= dropBefore) {
                 if (_log.shouldLog(Log.WARN))
@@ -469,13 +490,15 @@ class BuildHandler implements Runnable {
         // ok, this is not our own tunnel, so we need to do some heavy lifting
         // this not only decrypts the current hop's record, but encrypts the other records
         // with the enclosed reply key
-        long beforeDecrypt = System.currentTimeMillis();
+        long beforeDecrypt = System.nanoTime();
         BuildRequestRecord req = _processor.decrypt(state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
-        long decryptTime = System.currentTimeMillis() - beforeDecrypt;
+        long decryptNanos = System.nanoTime() - beforeDecrypt;
+        long decryptTime = decryptNanos / 1000000;
         _context.statManager().addRateData("tunnel.decryptRequestTime", decryptTime);
         if (decryptTime > 500 && _log.shouldLog(Log.WARN))
             _log.warn("Took too long to decrypt the request: " + decryptTime + " for message " + state.msg.getUniqueId() + " received " + (timeSinceReceived+decryptTime) + " ago");
         if (req == null) {
+            addProcessTime(decryptNanos);
             // no records matched, or the decryption failed.  bah
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("The request " + state.msg.getUniqueId() + " could not be decrypted from: " + from);
@@ -494,6 +517,7 @@ class BuildHandler implements Runnable {
         if (lookupTime > 500 && _log.shouldLog(Log.WARN))
             _log.warn("Took too long to lookup the request: " + lookupTime + "/" + readPeerTime + " for " + req);
         if (nextPeerInfo == null) {
+            addProcessTime(decryptNanos);
             // limit concurrent next-hop lookups to prevent job queue overload attacks
             int numTunnels = _context.tunnelManager().getParticipatingCount();
             int limit = Math.max(MIN_LOOKUP_LIMIT, Math.min(MAX_LOOKUP_LIMIT, numTunnels * PERCENT_LOOKUP_LIMIT / 100));
@@ -523,9 +547,12 @@ class BuildHandler implements Runnable {
             }
             return -1;
         } else {
-            long beforeHandle = System.currentTimeMillis();
+            long beforeHandle = System.nanoTime();
             handleReq(nextPeerInfo, state, req, nextPeer);
-            long handleTime = System.currentTimeMillis() - beforeHandle;
+            long handleNanos = System.nanoTime() - beforeHandle;
+            addProcessTime(decryptNanos + handleNanos);
+            long handleTime = handleNanos / 1000000;
+            _context.statManager().addRateData("tunnel.buildRequestHandleTime", handleTime);
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Request " + req + " handled and we know the next peer " 
                            + nextPeer + " after " + handleTime
@@ -534,6 +561,19 @@ class BuildHandler implements Runnable {
         }
     }
     
+    /**
+     *  Update the moving average used by estimateQueueTime().
+     *  Not synchronized, a lost update now and then doesn't matter.
+     *
+     *  @param nanos time to decrypt and handle a request
+     *  @since 0.9.28
+     */
+    private void addProcessTime(long nanos) {
+        int us = (int) Math.min(nanos / 1000, Integer.MAX_VALUE / 8);
+        int avg = _avgProcessTime;
+        _avgProcessTime = avg > 0 ? ((avg * 7) + us) / 8 : us;
+    }
+
     /**
      * This request is actually a reply, process it as such
      */
@@ -1024,25 +1064,30 @@ class BuildHandler implements Runnable {
                         }
                     }
                     if (accept) {
-                        // This is expensive and rarely seen, use CoDel instead
-                        //int queueTime = estimateQueueTime(sz);
-                        //float pDrop = queueTime/((float)BuildRequestor.REQUEST_TIMEOUT*3);
-                        //pDrop = (float)Math.pow(pDrop, 16); // steeeep
-                        //float f = _context.random().nextFloat();
-                        //if ( (pDrop > f) && (allowProactiveDrop()) ) {
-                        //if (pDrop > f) {
-                        //    _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Queue time"));
-                        //    _context.statManager().addRateData("tunnel.dropLoadProactive", queueTime, sz);
-                        //} else {
-                            accept = _inboundBuildMessages.offer(new BuildMessageState(_context, receivedMessage, from, fromHash));
-                            if (accept) {
-                                // wake up the Executor to call handleInboundRequests()
-                                _exec.repoll();
-                            } else {
-                                _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High load"));
-                                _context.statManager().addRateData("tunnel.dropLoadBacklog", sz);
+                        // Drop if it would wait so long that the handler would drop it anyway,
+                        // and randomly above half of that, before we spend anything on it.
+                        int queueTime = estimateQueueTime(sz);
+                        if (queueTime > MAX_QUEUE_TIME / 2) {
+                            float pDrop = (2 * queueTime / (float) MAX_QUEUE_TIME) - 1;
+                            if (pDrop > _context.random().nextFloat() && allowProactiveDrop()) {
+                                if (_log.shouldLog(Log.WARN))
+                                    _log.warn("Dropping tunnel request, estimated queue time " + queueTime +
+                                              " with " + sz + " pending");
+                                _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Queue time"));
+                                _context.statManager().addRateData("tunnel.dropLoadProactive", queueTime, sz);
+                                accept = false;
                             }
-                        //}
+                        }
+                    }
+                    if (accept) {
+                        accept = _inboundBuildMessages.offer(new BuildMessageState(_context, receivedMessage, from, fromHash));
+                        if (accept) {
+                            // wake up the Executor to call handleInboundRequests()
+                            _exec.repoll();
+                        } else {
+                            _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High load"));
+                            _context.statManager().addRateData("tunnel.dropLoadBacklog", sz);
+                        }
                     }
                 }
             }
@@ -1050,37 +1095,31 @@ class BuildHandler implements Runnable {
         }
     }
     
-/****
+    /**
+     *  @since 0.9.28 uncommented
+     */
     private boolean allowProactiveDrop() {
         boolean rv = _context.getBooleanPropertyDefaultTrue("router.allowProactiveDrop");
         if (!rv)
-            _context.statManager().addRateData("tunnel.dropLoadProactiveAbort", 1, 0);
+            _context.statManager().addRateData("tunnel.dropLoadProactiveAbort", 1);
         return rv;
     }
-****/
     
-/****
+    /**
+     *  How long a new request would wait for a handler thread,
+     *  from the average time to decrypt and handle a request.
+     *  Cheap, does not look at the stats.
+     *
+     *  @param numPendingMessages already queued
+     *  @return ms
+     *  @since 0.9.28 uncommented and rewritten
+     */
     private int estimateQueueTime(int numPendingMessages) {
-        int decryptTime = 200;
-        RateStat rs = _context.statManager().getRate("tunnel.decryptRequestTime");
-        if (rs != null) {
-            Rate r = rs.getRate(60*1000);
-            double avg = 0;
-            if (r != null)
-                avg = r.getAverageValue();
-            if (avg > 0) {
-                decryptTime = (int)avg;
-            } else {
-                avg = rs.getLifetimeAverageValue();
-                if (avg > 0)
-                    decryptTime = (int)avg;
-            }
-        }
-        float estimatedQueueTime = numPendingMessages * decryptTime;
-        estimatedQueueTime *= 1.2f; // lets leave some cpu to spare, 'eh?
-        return (int)estimatedQueueTime;
+        int threads = Math.max(1, _threads.get());
+        long estimatedQueueTime = (numPendingMessages + 1) * (long) _avgProcessTime / threads;
+        estimatedQueueTime = estimatedQueueTime * 6 / 5; // lets leave some cpu to spare, 'eh?
+        return (int) Math.min(estimatedQueueTime / 1000, Integer.MAX_VALUE);
     }
-****/
     
     /** */
     private class TunnelBuildReplyMessageHandlerJobBuilder implements HandlerJobBuilder {
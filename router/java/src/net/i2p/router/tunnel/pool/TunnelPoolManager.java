@@ -44,8 +44,9 @@ public class TunnelPoolManager implements TunnelManagerFacade {
     private volatile boolean _isShutdown;
     private final int _numHandlerThreads;
 
-    private static final int MIN_KBPS_TWO_HANDLERS = 512;
-    private static final int MIN_KBPS_THREE_HANDLERS = 1024;
+    /** one more BuildHandler thread for each, up to the number of cores */
+    private static final int KBPS_PER_HANDLER = 512;
+    private static final int MAX_HANDLER_THREADS = 8;
     
     public TunnelPoolManager(RouterContext ctx) {
         _context = ctx;
@@ -70,14 +71,12 @@ public class TunnelPoolManager implements TunnelManagerFacade {
         // threads will be started in startup()
         _executor = new BuildExecutor(ctx, this);
         _handler = new BuildHandler(ctx, this, _executor);
-        int numHandlerThreads;
+        // Request decryption is CPU-bound, so more threads than cores doesn't help.
+        // Same as before 0.9.28 (1, 2, or 3 threads) up to 1024 KBps share bandwidth.
         int share = TunnelDispatcher.getShareBandwidth(ctx);
-        if (share >= MIN_KBPS_THREE_HANDLERS)
-            numHandlerThreads = 3;
-        else if (share >= MIN_KBPS_TWO_HANDLERS)
-            numHandlerThreads = 2;
-        else
-            numHandlerThreads = 1;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int numHandlerThreads = Math.max(1, Math.min(MAX_HANDLER_THREADS,
+                                                     Math.min(cores, 1 + (share / KBPS_PER_HANDLER))));
         _numHandlerThreads = ctx.getProperty("router.buildHandlerThreads", numHandlerThreads);
         
         // The following are for TestJob
@@ -0,0 +1,266 @@
+package net.i2p.router.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ *  A minimal hash map with primitive long keys, so that keys are not boxed
+ *  and there are no per-entry objects.
+ *  Open addressing with linear probing.
+ *  Unsynchronized, not thread-safe.
+ *  Null values are not permitted.
+ *
+ *  Removal leaves a marker in the table, so the value iterator
+ *  supports remove() and is not affected by it.
+ *  Any put() during iteration may rehash, and the iterator's behavior is then undefined.
+ *
+ *  @since 0.9.28
+ */
+public class LongHashMap<V> {
+    private long[] _keys;
+    /** null for empty, REMOVED for a removed entry */
+    private Object[] _values;
+    private int _size;
+    /** entries plus removed markers */
+    private int _used;
+
+    private static final Object REMOVED = new Object();
+    private static final int MIN_CAPACITY = 8;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     *  @param expected number of entries, no resize until this is exceeded
+     */
+    public LongHashMap(int expected) {
+        int cap = capacityFor(expected);
+        _keys = new long[cap];
+        _values = new Object[cap];
+    }
+
+    /**
+     *  Power of two, at most half full with this many entries
+     */
+    private static int capacityFor(int entries) {
+        int cap = MIN_CAPACITY;
+        while (cap < entries * 2) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    /**
+     *  Fibonacci hash, message IDs and the like may not be random in the low bits
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     *  @return the index or -1
+     */
+    private int indexOf(long key) {
+        int mask = _keys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            Object v = _values[i];
+            if (v == null)
+                return -1;
+            if (v != REMOVED && _keys[i] == key)
+                return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     *  @return value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i >= 0 ? (V) _values[i] : null;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     *  @param value non-null
+     *  @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        int i = indexOf(key);
+        if (i >= 0) {
+            V rv = (V) _values[i];
+            _values[i] = value;
+            return rv;
+        }
+        // keep the load factor at 3/4 or less, including removed markers
+        if ((_used + 1) * 4 > _keys.length * 3)
+            rehash(capacityFor(_size + 1));
+        int mask = _keys.length - 1;
+        i = hash(key) & mask;
+        while (true) {
+            Object v = _values[i];
+            if (v == null) {
+                _used++;
+                break;
+            }
+            if (v == REMOVED)
+                break;
+            i = (i + 1) & mask;
+        }
+        _keys[i] = key;
+        _values[i] = value;
+        _size++;
+        return null;
+    }
+
+    /**
+     *  @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        V rv = (V) _values[i];
+        removeAt(i);
+        return rv;
+    }
+
+    private void removeAt(int i) {
+        _values[i] = REMOVED;
+        _size--;
+        // cheap cleanup of all the markers
+        if (_size == 0 && _used > 0)
+            clear();
+    }
+
+    private void rehash(int cap) {
+        long[] oldKeys = _keys;
+        Object[] oldValues = _values;
+        _keys = new long[cap];
+        _values = new Object[cap];
+        int mask = cap - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            Object v = oldValues[j];
+            if (v == null || v == REMOVED)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (_values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            _keys[i] = oldKeys[j];
+            _values[i] = v;
+        }
+        _used = _size;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public void clear() {
+        if (_used > 0) {
+            Arrays.fill(_values, null);
+            _size = 0;
+            _used = 0;
+        }
+    }
+
+    /**
+     *  @return a new array of the keys, in no particular order
+     */
+    public long[] keys() {
+        long[] rv = new long[_size];
+        int j = 0;
+        for (int i = 0; i < _keys.length && j < rv.length; i++) {
+            Object v = _values[i];
+            if (v != null && v != REMOVED)
+                rv[j++] = _keys[i];
+        }
+        return rv;
+    }
+
+    /**
+     *  Iterator over the values, in no particular order.
+     *  Supports remove().
+     */
+    public Iterator<V> valueIterator() {
+        return new ValueIterator();
+    }
+
+    private class ValueIterator implements Iterator<V> {
+        /** index of the next entry, or _keys.length */
+        private int _next = -1;
+        private int _last = -1;
+
+        public ValueIterator() {
+            advance();
+        }
+
+        private void advance() {
+            Object[] values = _values;
+            int i = _next + 1;
+            while (i < values.length && (values[i] == null || values[i] == REMOVED)) {
+                i++;
+            }
+            _next = i;
+        }
+
+        public boolean hasNext() {
+            return _next < _values.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            _last = _next;
+            V rv = (V) _values[_next];
+            advance();
+            return rv;
+        }
+
+        public void remove() {
+            if (_last < 0 || _values[_last] == null || _values[_last] == REMOVED)
+                throw new IllegalStateException();
+            // don't let removeAt() clear() the table under us
+            _values[_last] = REMOVED;
+            _size--;
+            _last = -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(16 + _size * 24);
+        buf.append('{');
+        boolean first = true;
+        for (int i = 0; i < _keys.length; i++) {
+            Object v = _values[i];
+            if (v == null || v == REMOVED)
+                continue;
+            if (first)
+                first = false;
+            else
+                buf.append(", ");
+            buf.append(_keys[i]).append('=').append(v);
+        }
+        buf.append('}');
+        return buf.toString();
+    }
+}
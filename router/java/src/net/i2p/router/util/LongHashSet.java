@@ -0,0 +1,61 @@
+package net.i2p.router.util;
+
+/**
+ *  A minimal set of primitive longs, backed by a LongHashMap.
+ *  Unsynchronized, not thread-safe.
+ *
+ *  @since 0.9.28
+ */
+public class LongHashSet {
+    private final LongHashMap<Object> _map;
+
+    private static final Object PRESENT = new Object();
+
+    public LongHashSet() {
+        _map = new LongHashMap<Object>();
+    }
+
+    /**
+     *  @param expected number of entries, no resize until this is exceeded
+     */
+    public LongHashSet(int expected) {
+        _map = new LongHashMap<Object>(expected);
+    }
+
+    /**
+     *  @return true if not already present
+     */
+    public boolean add(long val) {
+        return _map.put(val, PRESENT) == null;
+    }
+
+    /**
+     *  @return true if it was present
+     */
+    public boolean remove(long val) {
+        return _map.remove(val) != null;
+    }
+
+    public boolean contains(long val) {
+        return _map.containsKey(val);
+    }
+
+    public int size() {
+        return _map.size();
+    }
+
+    public boolean isEmpty() {
+        return _map.isEmpty();
+    }
+
+    public void clear() {
+        _map.clear();
+    }
+
+    /**
+     *  @return a new array of the values, in no particular order
+     */
+    public long[] toArray() {
+        return _map.keys();
+    }
+}
@@ -0,0 +1,78 @@
+package net.i2p.crypto.eddsa;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ed25519 sign and verify, the default RouterInfo and
+ * LeaseSet signature type.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EdDSABenchmark {
+
+    /** bytes signed; a RouterInfo is typically about 1 KB */
+    @Param({"64", "1024"})
+    public int size;
+
+    private EdDSAEngine signer;
+    private EdDSAEngine verifier;
+    private byte[] data;
+    private byte[] sig;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        Random rand = new Random(42);
+        byte[] seed = new byte[32];
+        rand.nextBytes(seed);
+        data = new byte[size];
+        rand.nextBytes(data);
+        EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName("ed25519-sha-512");
+        EdDSAPrivateKeySpec privSpec = new EdDSAPrivateKeySpec(seed, spec);
+        EdDSAPrivateKey priv = new EdDSAPrivateKey(privSpec);
+        EdDSAPublicKey pub = new EdDSAPublicKey(new EdDSAPublicKeySpec(privSpec.getA(), spec));
+        signer = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        signer.initSign(priv);
+        verifier = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        verifier.initVerify(pub);
+        sig = signer.signOneShot(data);
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        return signer.signOneShot(data);
+    }
+
+    @Benchmark
+    public boolean verify() throws GeneralSecurityException {
+        boolean rv = verifier.verifyOneShot(data, sig);
+        if (!rv)
+            throw new IllegalStateException();
+        return rv;
+    }
+}
@@ -0,0 +1,76 @@
+package net.i2p.data;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataHelper integer and Mapping serialization,
+ * as used by every data structure and I2NP message.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataHelperBenchmark {
+
+    private byte[] buf;
+    private long value;
+    private Properties props;
+    private byte[] propsData;
+
+    @Setup
+    public void setup() throws DataFormatException {
+        Random rand = new Random(42);
+        buf = new byte[16];
+        value = rand.nextLong() & 0xffffffffffffL;
+        // typical RouterInfo options
+        props = new Properties();
+        props.setProperty("caps", "XfR");
+        props.setProperty("netId", "2");
+        props.setProperty("router.version", "0.9.28");
+        props.setProperty("coreVersion", "0.9.28");
+        props.setProperty("netdb.knownLeaseSets", "37");
+        props.setProperty("netdb.knownRouters", "2843");
+        props.setProperty("stat_uptime", "90m");
+        propsData = DataHelper.toProperties(props);
+    }
+
+    @Benchmark
+    public long longRoundTrip() {
+        DataHelper.toLong(buf, 0, 6, value);
+        return DataHelper.fromLong(buf, 0, 6);
+    }
+
+    @Benchmark
+    public byte[] propertiesToBytes() throws DataFormatException {
+        return DataHelper.toProperties(props);
+    }
+
+    @Benchmark
+    public Properties propertiesFromBytes() throws DataFormatException {
+        Properties rv = new Properties();
+        DataHelper.fromProperties(propsData, 0, rv);
+        return rv;
+    }
+
+    @Benchmark
+    public boolean eq() {
+        return DataHelper.eq(propsData, 0, propsData, 0, propsData.length);
+    }
+}
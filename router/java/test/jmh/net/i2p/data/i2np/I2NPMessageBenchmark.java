@@ -0,0 +1,84 @@
+package net.i2p.data.i2np;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * I2NP parsing and serialization of the message types
+ * that dominate transit traffic.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class I2NPMessageBenchmark {
+
+    /** DataMessage payload size */
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private I2NPMessageHandler handler;
+    private DataMessage dataMsg;
+    private byte[] dataBytes;
+    private byte[] tdmBytes;
+
+    @Setup
+    public void setup() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        Random rand = new Random(42);
+        handler = new I2NPMessageHandler(ctx);
+
+        byte[] payload = new byte[size];
+        rand.nextBytes(payload);
+        dataMsg = new DataMessage(ctx);
+        dataMsg.setData(payload);
+        dataMsg.setUniqueId(1234);
+        dataMsg.setMessageExpiration(ctx.clock().now() + 60*60*1000);
+        dataBytes = dataMsg.toByteArray();
+
+        byte[] tdata = new byte[TunnelDataMessage.DATA_SIZE];
+        rand.nextBytes(tdata);
+        TunnelDataMessage tdm = new TunnelDataMessage(ctx);
+        tdm.setTunnelId(5678);
+        tdm.setData(tdata);
+        tdm.setUniqueId(1234);
+        tdmBytes = tdm.toByteArray();
+    }
+
+    @Benchmark
+    public I2NPMessage parseData() throws I2NPMessageException {
+        return handler.readMessage(dataBytes);
+    }
+
+    @Benchmark
+    public byte[] writeData() {
+        // not read from the wire, so the checksum is calculated every time
+        return dataMsg.toByteArray();
+    }
+
+    @Benchmark
+    public I2NPMessage parseTunnelData() throws I2NPMessageException {
+        TunnelDataMessage rv = (TunnelDataMessage) handler.readMessage(tdmBytes);
+        // back to the pool as the transit path does
+        rv.release();
+        return rv;
+    }
+}
@@ -0,0 +1,115 @@
+package net.i2p.kademlia;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KBucketSet adds and closest-k lookups, alone and with
+ * concurrent adders, as the netDb and the i2psnark DHT use it.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KBucketSetBenchmark {
+
+    /** K/B of the router netDb and of the i2psnark DHT */
+    @Param({"24/4", "8/1"})
+    public String kb;
+
+    private static final int ENTRIES = 4000;
+    private static final int KEYS = 1 << 12;
+
+    private KBucketSet<Hash> set;
+    private Hash[] keys;
+
+    @Setup
+    public void setup() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        Random rand = new Random(42);
+        String[] s = kb.split("/");
+        set = new KBucketSet<Hash>(ctx, random(rand), Integer.parseInt(s[0]), Integer.parseInt(s[1]));
+        for (int i = 0; i < ENTRIES; i++) {
+            set.add(random(rand));
+        }
+        keys = new Hash[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random(rand);
+        }
+    }
+
+    private static Hash random(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+
+    /** Per-thread position in the keys */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setup() {
+            next = (int) Thread.currentThread().getId() * 997;
+        }
+
+        Hash next(Hash[] keys) {
+            return keys[(next++) & (KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    public List<Hash> getClosest(Cursor c) {
+        return set.getClosest(c.next(keys), 8);
+    }
+
+    /** mostly re-adds once warmed up, as for netDb stores of known routers */
+    @Benchmark
+    public boolean add(Cursor c) {
+        return set.add(c.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public List<Hash> mixedGetClosest(Cursor c) {
+        return set.getClosest(c.next(keys), 8);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedAdd(Cursor c) {
+        return set.add(c.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedRemove(Cursor c) {
+        return set.remove(c.next(keys));
+    }
+}
@@ -0,0 +1,98 @@
+package net.i2p.router.transport;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FIFOBandwidthLimiter requests of 1 KB from concurrent
+ * inbound and outbound threads.
+ *
+ * With the high limit, nearly all requests take the lockless shortcut.
+ * With the low limit, most requests are queued and satisfied by the refiller,
+ * so the time includes waiting for the bandwidth.
+ * Outbound is capped at FIFOBandwidthRefiller.MAX_OUTBOUND_BANDWIDTH.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FIFOBandwidthLimiterBenchmark {
+
+    /** inbound and outbound limit and burst limit, KBps */
+    @Param({"1000000", "10000"})
+    public String kbps;
+
+    private static final int SIZE = 1024;
+
+    private FIFOBandwidthLimiter limiter;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        Properties props = new Properties();
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH, kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BURST_BANDWIDTH, kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, kbps);
+        I2PAppContext ctx = new I2PAppContext(props);
+        limiter = new FIFOBandwidthLimiter(ctx);
+        // let the refiller fill up
+        Thread.sleep(1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        limiter.shutdown();
+    }
+
+    private static int complete(FIFOBandwidthLimiter.Request req) {
+        while (req.getPendingRequested() > 0 && !req.getAborted()) {
+            req.waitForNextAllocation();
+        }
+        return req.getPendingRequested();
+    }
+
+    @Benchmark
+    public int inbound() {
+        return complete(limiter.requestInbound(SIZE, null));
+    }
+
+    @Benchmark
+    public int outbound() {
+        return complete(limiter.requestOutbound(SIZE, 0, null));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public int mixedInbound() {
+        return complete(limiter.requestInbound(SIZE, null));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public int mixedOutbound() {
+        return complete(limiter.requestOutbound(SIZE, 0, null));
+    }
+}
@@ -0,0 +1,105 @@
+package net.i2p.router.transport.udp;
+
+import java.net.DatagramPacket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.router.RouterContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the ACKs and fragments of a decrypted SSU data packet,
+ * as done by InboundMessageFragments for every received packet.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDPPacketReaderBenchmark {
+
+    /** fragments in the packet, with 1200 bytes of fragment data total */
+    @Param({"1", "4"})
+    public int fragments;
+
+    private static final int ACKS = 4;
+    private static final int DATA = 1200;
+
+    private UDPPacket packet;
+    private UDPPacketReader reader;
+    private final byte[] target = new byte[DATA];
+
+    @Setup
+    public void setup() {
+        RouterContext ctx = new RouterContext(null);
+        Random rand = new Random(42);
+        reader = new UDPPacketReader(ctx);
+        packet = UDPPacket.acquire(ctx, true);
+        DatagramPacket pkt = packet.getPacket();
+        byte[] buf = pkt.getData();
+        rand.nextBytes(buf);
+        int off = pkt.getOffset() + UDPPacket.MAC_SIZE + UDPPacket.IV_SIZE;
+        buf[off++] = (byte) (UDPPacket.PAYLOAD_TYPE_DATA << 4);
+        DataHelper.toLong(buf, off, 4, ctx.clock().now() / 1000);
+        off += 4;
+        buf[off++] = UDPPacket.DATA_FLAG_EXPLICIT_ACK;
+        buf[off++] = ACKS;
+        // ACK IDs are random
+        off += 4 * ACKS;
+        buf[off++] = (byte) fragments;
+        int size = DATA / fragments;
+        for (int i = 0; i < fragments; i++) {
+            // random message ID
+            off += 4;
+            buf[off++] = (byte) ((i << 1) | (i == fragments - 1 ? 1 : 0));
+            DataHelper.toLong(buf, off, 2, size);
+            off += 2;
+            // random fragment data
+            off += size;
+        }
+        pkt.setLength(off - pkt.getOffset());
+    }
+
+    /** @return sum of the fields, so nothing is optimized out */
+    @Benchmark
+    public long readData() throws DataFormatException {
+        reader.initialize(packet);
+        if (reader.readPayloadType() != UDPPacket.PAYLOAD_TYPE_DATA)
+            throw new IllegalStateException();
+        UDPPacketReader.DataReader dr = reader.getDataReader();
+        long rv = 0;
+        if (dr.readACKsIncluded()) {
+            int acks = dr.readACKCount();
+            for (int i = 0; i < acks; i++) {
+                rv += dr.readACK(i);
+            }
+        }
+        int count = dr.readFragmentCount();
+        for (int i = 0; i < count; i++) {
+            rv += dr.readMessageId(i);
+            rv += dr.readMessageFragmentNum(i);
+            if (dr.readMessageIsLast(i))
+                rv++;
+            int size = dr.readMessageFragmentSize(i);
+            dr.readMessageFragment(i, target, 0);
+            rv += size;
+        }
+        return rv;
+    }
+}
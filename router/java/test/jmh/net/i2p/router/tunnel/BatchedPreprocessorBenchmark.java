@@ -0,0 +1,109 @@
+package net.i2p.router.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.ByteArray;
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.DataMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.ByteCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Gateway fragmentation of a batch of I2NP messages into
+ * 1 KB tunnel messages, without the tunnel crypto.
+ * Includes serializing the I2NP messages, as TunnelGateway.add() does.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchedPreprocessorBenchmark {
+
+    /** I2NP message payload size */
+    @Param({"128", "1024", "8192"})
+    public int size;
+
+    /** messages queued per flush */
+    @Param({"1", "4"})
+    public int count;
+
+    private RouterContext ctx;
+    private DataMessage[] messages;
+    private BatchedPreprocessor pre;
+    private final List<PendingGatewayMessage> pending = new ArrayList<PendingGatewayMessage>();
+    private final CountingSender sender = new CountingSender();
+    private final TunnelGateway.Receiver receiver = new NullReceiver();
+
+    @Setup
+    public void setup() {
+        ctx = new RouterContext(null);
+        Random rand = new Random(42);
+        messages = new DataMessage[count];
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+            DataMessage m = new DataMessage(ctx);
+            m.setData(data);
+            m.setUniqueId(1000 + i);
+            m.setMessageExpiration(ctx.clock().now() + 60*60*1000);
+            messages[i] = m;
+        }
+        pre = new NoDelayPreprocessor(ctx);
+    }
+
+    /** @return tunnel messages sent */
+    @Benchmark
+    public int preprocess() {
+        for (int i = 0; i < count; i++) {
+            pending.add(new PendingGatewayMessage(messages[i], null, null));
+        }
+        sender.sent = 0;
+        // the second call flushes the partial last tunnel message
+        while (pre.preprocessQueue(pending, sender, receiver)) {}
+        return sender.sent;
+    }
+
+    /** flush partial messages on the next call instead of waiting */
+    static class NoDelayPreprocessor extends BatchedPreprocessor {
+        public NoDelayPreprocessor(RouterContext ctx) { super(ctx, "bench"); }
+
+        @Override
+        protected long getSendDelay() { return 0; }
+    }
+
+    /** returns the buffer to the cache, as the real sender eventually does */
+    static class CountingSender implements TunnelGateway.Sender {
+        private final ByteCache cache = ByteCache.getInstance(512, TrivialPreprocessor.PREPROCESSED_SIZE);
+        int sent;
+
+        public long sendPreprocessed(byte[] preprocessed, TunnelGateway.Receiver receiver) {
+            sent++;
+            cache.release(new ByteArray(preprocessed));
+            return 0;
+        }
+    }
+
+    static class NullReceiver implements TunnelGateway.Receiver {
+        public long receiveEncrypted(byte[] encrypted) { return 0; }
+        public Hash getSendTo() { return null; }
+    }
+}
@@ -0,0 +1,93 @@
+package net.i2p.router.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.data.TunnelId;
+import net.i2p.data.i2np.DataMessage;
+import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.ByteCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Endpoint reassembly of one I2NP message from its
+ * 1 KB tunnel messages, without the tunnel crypto.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentHandlerBenchmark {
+
+    /** I2NP message payload size */
+    @Param({"128", "1024", "8192"})
+    public int size;
+
+    private final ByteCache cache = ByteCache.getInstance(512, TrivialPreprocessor.PREPROCESSED_SIZE);
+    private final List<byte[]> fragments = new ArrayList<byte[]>();
+    private FragmentHandler handler;
+    private final CountingReceiver receiver = new CountingReceiver();
+
+    @Setup
+    public void setup() {
+        RouterContext ctx = new RouterContext(null);
+        Random rand = new Random(42);
+        byte[] data = new byte[size];
+        rand.nextBytes(data);
+        DataMessage m = new DataMessage(ctx);
+        m.setData(data);
+        m.setUniqueId(1234);
+        m.setMessageExpiration(ctx.clock().now() + 60*60*1000);
+        List<PendingGatewayMessage> pending = new ArrayList<PendingGatewayMessage>();
+        pending.add(new PendingGatewayMessage(m, null, null));
+        BatchedPreprocessor pre = new BatchedPreprocessorBenchmark.NoDelayPreprocessor(ctx);
+        TunnelGateway.Sender sender = new TunnelGateway.Sender() {
+            public long sendPreprocessed(byte[] preprocessed, TunnelGateway.Receiver rec) {
+                fragments.add(preprocessed.clone());
+                return 0;
+            }
+        };
+        while (pre.preprocessQueue(pending, sender, new BatchedPreprocessorBenchmark.NullReceiver())) {}
+        handler = new FragmentHandler(ctx, receiver);
+    }
+
+    /** @return messages completed, always 1 */
+    @Benchmark
+    public int reassemble() {
+        receiver.received = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            // the handler releases the buffer to the cache when done
+            byte[] buf = cache.acquire().getData();
+            System.arraycopy(fragments.get(i), 0, buf, 0, buf.length);
+            handler.receiveTunnelMessage(buf, 0, buf.length);
+        }
+        return receiver.received;
+    }
+
+    private static class CountingReceiver implements FragmentHandler.DefragmentedReceiver {
+        int received;
+
+        public void receiveComplete(I2NPMessage msg, Hash toRouter, TunnelId toTunnel) {
+            received++;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.i2p.router.tunnel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Hash;
+import net.i2p.data.SessionKey;
+import net.i2p.router.RouterContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tunnel layer crypto on one 1 KB tunnel message:
+ * a participant adding its layer, and an outbound gateway
+ * removing the layers of all hops.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HopProcessorBenchmark {
+
+    /** outbound tunnel length including us */
+    @Param({"2", "4"})
+    public int hops;
+
+    private byte[] message;
+    private HopProcessor hop;
+    private OutboundGatewayProcessor gateway;
+
+    @Setup
+    public void setup() {
+        RouterContext ctx = new RouterContext(null);
+        Random rand = new Random(42);
+        message = new byte[TrivialPreprocessor.PREPROCESSED_SIZE];
+        rand.nextBytes(message);
+        TunnelCreatorConfig cfg = new TunnelCreatorConfig(ctx, hops, false);
+        for (int i = 0; i < hops; i++) {
+            byte[] h = new byte[Hash.HASH_LENGTH];
+            rand.nextBytes(h);
+            cfg.setPeer(i, new Hash(h));
+            HopConfig hc = cfg.getConfig(i);
+            hc.setLayerKey(key(rand));
+            hc.setIVKey(key(rand));
+        }
+        // the IV validator is not what we are measuring, and would reject the repeated IVs
+        hop = new HopProcessor(ctx, cfg.getConfig(hops - 1), DummyValidator.getInstance());
+        gateway = new OutboundGatewayProcessor(ctx, cfg);
+    }
+
+    private static SessionKey key(Random rand) {
+        byte[] k = new byte[SessionKey.KEYSIZE_BYTES];
+        rand.nextBytes(k);
+        return new SessionKey(k);
+    }
+
+    /** in place, so each invocation processes the previous output */
+    @Benchmark
+    public boolean participant() {
+        return hop.process(message, 0, message.length, null);
+    }
+
+    @Benchmark
+    public byte[] outboundGateway() {
+        gateway.process(message, 0, message.length);
+        return message;
+    }
+}
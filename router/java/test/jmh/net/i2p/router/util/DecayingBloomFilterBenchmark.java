@@ -0,0 +1,60 @@
+package net.i2p.router.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Duplicate checking of 16 byte tunnel IVs,
+ * as done by BloomFilterIVValidator for every participating message.
+ *
+ * @since 0.9.28
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecayingBloomFilterBenchmark {
+
+    private static final int ENTRIES = 1 << 16;
+    private byte[] entries;
+    private int next;
+    private DecayingBloomFilter filter;
+
+    @Setup
+    public void setup() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        entries = new byte[ENTRIES * 16];
+        new Random(42).nextBytes(entries);
+        // long enough that it does not decay during an iteration
+        filter = new DecayingBloomFilter(ctx, 10*60*1000, 16, "Bench");
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.stopDecaying();
+    }
+
+    /** the first pass adds, later passes find duplicates, same work either way */
+    @Benchmark
+    public boolean add() {
+        int off = next;
+        next = (off + 16) & ((ENTRIES * 16) - 1);
+        return filter.add(entries, off, 16);
+    }
+}
@@ -0,0 +1,60 @@
+package net.i2p.data.i2np;
+
+import static org.junit.Assert.*;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class TunnelDataMessageTest {
+
+    private static byte[] body(long tunnelId) {
+        byte[] rv = new byte[4 + TunnelDataMessage.DATA_SIZE];
+        DataHelper.toLong(rv, 0, 4, tunnelId);
+        for (int i = 4; i < rv.length; i++) {
+            rv[i] = (byte) i;
+        }
+        return rv;
+    }
+
+    @Test
+    public void testReleaseReusesBuffer() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        byte[] body = body(1234);
+        TunnelDataMessage msg = new TunnelDataMessage(ctx);
+        msg.readMessage(body, 0, body.length, TunnelDataMessage.MESSAGE_TYPE);
+        byte[] data = msg.getData();
+        assertTrue(DataHelper.eq(body, 4, data, 0, TunnelDataMessage.DATA_SIZE));
+        msg.release();
+        // second release must not put the buffer in the cache twice
+        msg.release();
+        try {
+            msg.getData();
+            fail("use after release");
+        } catch (RuntimeException expected) {}
+
+        TunnelDataMessage msg2 = new TunnelDataMessage(ctx);
+        msg2.readMessage(body, 0, body.length, TunnelDataMessage.MESSAGE_TYPE);
+        TunnelDataMessage msg3 = new TunnelDataMessage(ctx);
+        msg3.readMessage(body, 0, body.length, TunnelDataMessage.MESSAGE_TYPE);
+        assertNotSame(msg2.getData(), msg3.getData());
+        assertTrue(msg2.getData() == data || msg3.getData() == data);
+        msg2.release();
+        msg3.release();
+    }
+
+    @Test
+    public void testReleaseNotCached() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        TunnelDataMessage msg = new TunnelDataMessage(ctx);
+        byte[] data = new byte[TunnelDataMessage.DATA_SIZE];
+        msg.setData(data);
+        // not from the cache, nothing to do
+        msg.release();
+        assertSame(data, msg.getData());
+    }
+}
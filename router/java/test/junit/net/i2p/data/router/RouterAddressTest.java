@@ -8,10 +8,12 @@ package net.i2p.data.router;
  *
  */
  
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.Properties;
 
 import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
 import net.i2p.data.DataStructure;
 import net.i2p.data.StructureTest;
 
@@ -107,4 +109,116 @@ public class RouterAddressTest extends StructureTest {
         //assertEquals("[RouterAddress: \n\tTransportStyle: Blah\n\tCost: 42\n\tExpiration: Fri Jan 02 00:00:00 UTC 1970\n\tOptions: #: 2\n\t\t[hostname] = [localhost]\n\t\t[portnum] = [1234]]", ret);
         assertEquals("[RouterAddress: \n\tType: Blah\n\tCost: 42\n\tOptions (2):\n\t\t[hostname] = [localhost]\n\t\t[portnum] = [1234]]", ret);
     }
+
+    /** @since 0.9.28 */
+    public void testLazyOptions() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        createDataStructure().writeBytes(baos);
+        byte[] data = baos.toByteArray();
+        RouterAddress addr = new RouterAddress();
+        addr.readBytes(new ByteArrayInputStream(data));
+        // written out as read, before and after parsing
+        baos.reset();
+        addr.writeBytes(baos);
+        assertTrue(DataHelper.eq(data, baos.toByteArray()));
+        assertEquals("localhost", addr.getOption("hostname"));
+        assertEquals(2, addr.getOptionsMap().size());
+        baos.reset();
+        addr.writeBytes(baos);
+        assertTrue(DataHelper.eq(data, baos.toByteArray()));
+    }
+
+    /** @since 0.9.28 */
+    public void testBadOptions() throws Exception {
+        assertBad("a=b;a=c;");
+        assertBad("a=b;c=d");
+        assertBad("a=b;c;");
+        assertBad("a=b;c=");
+    }
+
+    /**
+     *  @param opts written as is, with the lengths added
+     *  @since 0.9.28
+     */
+    private static void assertBad(String opts) throws Exception {
+        ByteArrayOutputStream mapping = new ByteArrayOutputStream();
+        int start = 0;
+        for (int i = 0; i <= opts.length(); i++) {
+            if (i == opts.length() || opts.charAt(i) == '=' || opts.charAt(i) == ';') {
+                if (i > start)
+                    DataHelper.writeString(mapping, opts.substring(start, i));
+                if (i < opts.length())
+                    mapping.write(opts.charAt(i));
+                start = i + 1;
+            }
+        }
+        assertBad(opts, mapping.toByteArray());
+    }
+
+    /**
+     *  @param mapping without the length
+     *  @since 0.9.28
+     */
+    private static void assertBad(String msg, byte[] mapping) throws Exception {
+        boolean error = false;
+        try {
+            read(mapping);
+        } catch (DataFormatException dfe) {
+            error = true;
+        }
+        assertTrue(msg, error);
+    }
+
+    /**
+     *  @param mapping without the length
+     *  @since 0.9.28
+     */
+    private static RouterAddress read(byte[] mapping) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(0);
+        DataHelper.writeLong(baos, 8, 0);
+        DataHelper.writeString(baos, "NTCP");
+        DataHelper.writeLong(baos, 2, mapping.length);
+        baos.write(mapping);
+        RouterAddress addr = new RouterAddress();
+        addr.readBytes(new ByteArrayInputStream(baos.toByteArray()));
+        return addr;
+    }
+
+    /**
+     *  0xff and 0xfe are different bytes but both decode to U+FFFD,
+     *  so they are the same key to DataHelper.readProperties().
+     *
+     *  @since 0.9.28
+     */
+    public void testInvalidUTF8Keys() throws Exception {
+        byte[] dup = new byte[] { 1, (byte) 0xff, '=', 1, 'b', ';',
+                                  1, (byte) 0xfe, '=', 1, 'c', ';' };
+        assertBad("invalid UTF-8 keys", dup);
+
+        // different valid non-ASCII keys are fine
+        byte[] e1 = DataHelper.getUTF8("\u00e9");
+        byte[] e2 = DataHelper.getUTF8("\u00e8");
+        ByteArrayOutputStream mapping = new ByteArrayOutputStream();
+        mapping.write(e1.length);
+        mapping.write(e1);
+        mapping.write('=');
+        DataHelper.writeString(mapping, "b");
+        mapping.write(';');
+        mapping.write(e2.length);
+        mapping.write(e2);
+        mapping.write('=');
+        DataHelper.writeString(mapping, "c");
+        mapping.write(';');
+        RouterAddress addr = read(mapping.toByteArray());
+        assertEquals("b", addr.getOption("\u00e9"));
+        assertEquals("c", addr.getOption("\u00e8"));
+
+        // a single invalid key is accepted as before, and parses
+        byte[] one = new byte[] { 1, (byte) 0xff, '=', 1, 'b', ';',
+                                  1, 'a', '=', 1, 'c', ';' };
+        addr = read(one);
+        assertEquals("b", addr.getOption("\ufffd"));
+        assertEquals("c", addr.getOption("a"));
+    }
 }
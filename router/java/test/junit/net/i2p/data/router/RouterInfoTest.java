@@ -8,12 +8,14 @@ package net.i2p.data.router;
  *
  */
 
+import java.io.ByteArrayInputStream;
 import java.util.HashSet;
 import java.util.Properties;
 
 import net.i2p.crypto.KeyGenerator;
 import net.i2p.data.Certificate;
 import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
 import net.i2p.data.DataStructure;
 import net.i2p.data.Hash;
 import net.i2p.data.HashTest;
@@ -80,4 +82,31 @@ public class RouterInfoTest extends StructureTest {
         return info;
     }
     public DataStructure createStructureToRead() { return new RouterInfo(); }
+
+    /** @since 0.9.28 */
+    public void testVerifyCache() throws Exception {
+        byte[] data = ((RouterInfo) createDataStructure()).toByteArray();
+        for (int i = 0; i < 2; i++) {
+            RouterInfo ri = new RouterInfo();
+            ri.readBytes(new ByteArrayInputStream(data), true);
+            assertTrue(ri.isValid());
+            ri = new RouterInfo();
+            ri.readBytes(new ByteArrayInputStream(data));
+            assertTrue(ri.isValid());
+            assertTrue(DataHelper.eq(data, ri.toByteArray()));
+        }
+        // a bad sig must not match the cached one
+        data[data.length - 1] ^= 0x01;
+        RouterInfo ri = new RouterInfo();
+        ri.readBytes(new ByteArrayInputStream(data));
+        assertFalse(ri.isValid());
+        boolean error = false;
+        try {
+            ri = new RouterInfo();
+            ri.readBytes(new ByteArrayInputStream(data), true);
+        } catch (DataFormatException dfe) {
+            error = true;
+        }
+        assertTrue(error);
+    }
 }
@@ -0,0 +1,105 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentTimedJobsTest {
+
+    private ConcurrentTimedJobs jobs;
+    private List<Job> ready;
+
+    @Before
+    public void setUp() {
+        jobs = new ConcurrentTimedJobs();
+        ready = new ArrayList<Job>();
+    }
+
+    @Test
+    public void testOrder() {
+        Job a = new TestJob(1);
+        Job b = new TestJob(2);
+        Job c = new TestJob(3);
+        jobs.add(c, 300);
+        jobs.add(a, 100);
+        jobs.add(b, 200);
+        assertEquals(3, jobs.size());
+
+        assertEquals(100, jobs.removeReady(0, ready));
+        assertTrue(ready.isEmpty());
+
+        assertEquals(100, jobs.removeReady(200, ready));
+        assertEquals(2, ready.size());
+        assertSame(a, ready.get(0));
+        assertSame(b, ready.get(1));
+        assertEquals(1, jobs.size());
+
+        ready.clear();
+        assertEquals(-1, jobs.removeReady(1000, ready));
+        assertSame(c, ready.get(0));
+        assertEquals(0, jobs.size());
+    }
+
+    @Test
+    public void testReschedule() {
+        Job a = new TestJob(1);
+        assertFalse(jobs.add(a, 100));
+        assertTrue(jobs.add(a, 500));
+        assertEquals(1, jobs.size());
+        assertEquals(1, jobs.getJobs().size());
+
+        assertEquals(400, jobs.removeReady(100, ready));
+        assertTrue(ready.isEmpty());
+        jobs.removeReady(500, ready);
+        assertEquals(1, ready.size());
+    }
+
+    @Test
+    public void testRemove() {
+        Job a = new TestJob(1);
+        Job b = new TestJob(2);
+        jobs.add(a, 100);
+        jobs.add(b, 100);
+        assertTrue(jobs.contains(a));
+        assertTrue(jobs.remove(a));
+        assertFalse(jobs.remove(a));
+        assertFalse(jobs.contains(a));
+
+        jobs.removeReady(100, ready);
+        assertEquals(1, ready.size());
+        assertSame(b, ready.get(0));
+    }
+
+    @Test
+    public void testCancel() {
+        Job a = new TestJob(1);
+        ConcurrentTimedJobs.Entry e = jobs.schedule(a, 100);
+        assertTrue(jobs.cancel(e));
+        assertFalse(jobs.contains(a));
+
+        // rescheduled since, the newer one stays
+        e = jobs.schedule(a, 100);
+        jobs.add(a, 200);
+        assertFalse(jobs.cancel(e));
+        assertTrue(jobs.contains(a));
+        jobs.removeReady(200, ready);
+        assertEquals(1, ready.size());
+        assertEquals(0, jobs.size());
+    }
+
+    private static class TestJob implements Job {
+        private final long _id;
+
+        public TestJob(long id) { _id = id; }
+        public String getName() { return "Test job " + _id; }
+        public long getJobId() { return _id; }
+        public JobTiming getTiming() { return null; }
+        public void runJob() {}
+        public Exception getAddedBy() { return null; }
+        public void dropped() {}
+    }
+}
@@ -0,0 +1,129 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  Races in the concurrent scheduler.
+ *  Each job must end up either ready or timed, never both.
+ *
+ *  @since 0.9.28
+ */
+public class JobQueueTest {
+
+    private static RouterContext _context;
+    private static final int JOBS = 10000;
+    private static final long FAR = 60*60*1000;
+
+    @BeforeClass
+    public static void setUp() {
+        Properties props = new Properties();
+        props.setProperty(JobQueue.PROP_CONCURRENT_SCHEDULER, "true");
+        _context = new RouterContext(null, props);
+    }
+
+    /**
+     *  One thread makes each job ready while another schedules it for later
+     */
+    @Test
+    public void testReadyVsTimed() throws Exception {
+        JobQueue jq = new JobQueue(_context);
+        jq.startup();
+        try {
+            TestJob[] jobs = new TestJob[JOBS];
+            for (int i = 0; i < JOBS; i++) {
+                jobs[i] = new TestJob(i);
+            }
+            race(jq, jobs, 0, FAR);
+            assertEquals(JOBS, jq.getReadyCount() + jq.getTimedCount());
+        } finally {
+            jq.shutdown();
+        }
+    }
+
+    /**
+     *  The pumper makes each job ready while another thread reschedules it for later
+     */
+    @Test
+    public void testPumperVsTimed() throws Exception {
+        JobQueue jq = new JobQueue(_context);
+        jq.startup();
+        try {
+            TestJob[] jobs = new TestJob[JOBS];
+            for (int i = 0; i < JOBS; i++) {
+                jobs[i] = new TestJob(i);
+                // due as the race starts
+                jobs[i].getTiming().setStartAfter(_context.clock().now() + (i % 50));
+                jq.addJob(jobs[i]);
+            }
+            race(jq, jobs, -1, FAR);
+            // let the pumper finish with anything still due
+            Thread.sleep(1000);
+            assertEquals(JOBS, jq.getReadyCount() + jq.getTimedCount());
+        } finally {
+            jq.shutdown();
+        }
+    }
+
+    /**
+     *  Two threads add each job at the same time, with different start times.
+     *
+     *  @param delay1 ms from now, or negative to not add from the first thread
+     */
+    private static void race(final JobQueue jq, final TestJob[] jobs, final long delay1, final long delay2)
+                            throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Exception[] failure = new Exception[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    adder(jq, jobs, delay1, barrier);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        t.start();
+        adder(jq, jobs, delay2, barrier);
+        t.join();
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    private static void adder(JobQueue jq, TestJob[] jobs, long delay, CyclicBarrier barrier) throws Exception {
+        for (TestJob job : jobs) {
+            barrier.await();
+            if (delay >= 0) {
+                job.getTiming().setStartAfter(_context.clock().now() + delay);
+                jq.addJob(job);
+            }
+        }
+    }
+
+    /**
+     *  The timing is per-thread, so that racing adders
+     *  each see the start time they set
+     */
+    private static class TestJob implements Job {
+        private final long _id;
+        private final ThreadLocal<JobTiming> _timing = new ThreadLocal<JobTiming>() {
+            @Override
+            protected JobTiming initialValue() {
+                return new JobTiming(_context);
+            }
+        };
+
+        public TestJob(long id) { _id = id; }
+        public String getName() { return "Test job"; }
+        public long getJobId() { return _id; }
+        public JobTiming getTiming() { return _timing.get(); }
+        public void runJob() {}
+        public Exception getAddedBy() { return null; }
+        public void dropped() {}
+    }
+}
@@ -0,0 +1,102 @@
+package net.i2p.router.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.data.i2cp.GetDateMessage;
+import net.i2p.data.i2cp.I2CPMessage;
+import net.i2p.internal.PoisonI2CPMessage;
+import net.i2p.router.RouterContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  Batching of the queued messages.
+ *  The writer is run in the test thread and returns at the poison message.
+ *
+ *  @since 0.9.28
+ */
+public class ClientWriterRunnerTest {
+
+    private static RouterContext _context;
+
+    @BeforeClass
+    public static void setUp() {
+        _context = new RouterContext(null);
+    }
+
+    /**
+     *  Records the batches instead of writing them
+     */
+    private static class TestRunner extends ClientConnectionRunner {
+        final List<List<I2CPMessage>> batches = new ArrayList<List<I2CPMessage>>();
+
+        public TestRunner() {
+            super(ClientWriterRunnerTest._context, null, null);
+        }
+
+        @Override
+        void writeMessages(List<I2CPMessage> msgs) {
+            assertFalse(msgs.isEmpty());
+            // the writer reuses the list
+            batches.add(new ArrayList<I2CPMessage>(msgs));
+        }
+    }
+
+    private static List<I2CPMessage> add(ClientWriterRunner writer, int count) throws Exception {
+        List<I2CPMessage> rv = new ArrayList<I2CPMessage>(count);
+        for (int i = 0; i < count; i++) {
+            I2CPMessage msg = new GetDateMessage("" + i);
+            writer.addMessage(msg);
+            rv.add(msg);
+        }
+        return rv;
+    }
+
+    /**
+     *  Everything before the poison is written, in order, in one batch,
+     *  and nothing after it
+     */
+    @Test
+    public void testPoisonInBatch() throws Exception {
+        TestRunner runner = new TestRunner();
+        ClientWriterRunner writer = new ClientWriterRunner(_context, runner);
+        List<I2CPMessage> expected = add(writer, 3);
+        writer.addMessage(new PoisonI2CPMessage());
+        add(writer, 2);
+        writer.run();
+        assertEquals(1, runner.batches.size());
+        assertEquals(expected, runner.batches.get(0));
+    }
+
+    /**
+     *  Poison alone, nothing written
+     */
+    @Test
+    public void testStopWriting() throws Exception {
+        TestRunner runner = new TestRunner();
+        ClientWriterRunner writer = new ClientWriterRunner(_context, runner);
+        add(writer, 3);
+        writer.stopWriting();
+        writer.run();
+        assertEquals(0, runner.batches.size());
+    }
+
+    /**
+     *  Split into batches of at most 64, poison in the last one
+     */
+    @Test
+    public void testMaxBatch() throws Exception {
+        TestRunner runner = new TestRunner();
+        ClientWriterRunner writer = new ClientWriterRunner(_context, runner);
+        List<I2CPMessage> expected = add(writer, 100);
+        writer.addMessage(new PoisonI2CPMessage());
+        writer.run();
+        assertEquals(2, runner.batches.size());
+        assertEquals(expected.subList(0, 64), runner.batches.get(0));
+        assertEquals(expected.subList(64, 100), runner.batches.get(1));
+    }
+}
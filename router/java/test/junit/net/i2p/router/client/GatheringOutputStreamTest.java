@@ -0,0 +1,112 @@
+package net.i2p.router.client;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class GatheringOutputStreamTest {
+
+    private static final int CHUNK = 16*1024;
+
+    /** concatenate the buffers, checking they are all full except the last */
+    private static byte[] gather(GatheringOutputStream gos) {
+        ByteBuffer[] bufs = gos.getBuffers();
+        byte[] rv = new byte[gos.size()];
+        int off = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            int len = bufs[i].remaining();
+            if (i < bufs.length - 1)
+                assertEquals(CHUNK, len);
+            bufs[i].get(rv, off, len);
+            off += len;
+        }
+        assertEquals(rv.length, off);
+        return rv;
+    }
+
+    @Test
+    public void testSpanningWrites() {
+        Random rand = new Random(42);
+        byte[] data = new byte[3 * CHUNK + 100];
+        rand.nextBytes(data);
+        GatheringOutputStream gos = new GatheringOutputStream();
+        try {
+            // up to one short of the boundary, one byte to fill it,
+            // then one write spanning the next two chunks, then the rest
+            int off = 0;
+            gos.write(data, off, CHUNK - 1);
+            off += CHUNK - 1;
+            gos.write(data[off++]);
+            assertEquals(1, gos.getBuffers().length);
+            gos.write(data, off, CHUNK + 10);
+            off += CHUNK + 10;
+            assertEquals(3, gos.getBuffers().length);
+            gos.write(data, off, data.length - off);
+            assertEquals(data.length, gos.size());
+            assertEquals(4, gos.getBuffers().length);
+            assertTrue(Arrays.equals(data, gather(gos)));
+        } finally {
+            gos.reset();
+        }
+    }
+
+    @Test
+    public void testOddSizes() {
+        Random rand = new Random(43);
+        byte[] data = new byte[100*1000];
+        rand.nextBytes(data);
+        GatheringOutputStream gos = new GatheringOutputStream();
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int len = Math.min(data.length - off, 1 + rand.nextInt(5000));
+                gos.write(data, off, len);
+                off += len;
+            }
+            assertEquals(data.length, gos.size());
+            assertEquals((data.length + CHUNK - 1) / CHUNK, gos.getBuffers().length);
+            assertTrue(Arrays.equals(data, gather(gos)));
+        } finally {
+            gos.reset();
+        }
+    }
+
+    /**
+     *  After reset(), the pooled chunks come back with old data in them,
+     *  only the new data may be visible
+     */
+    @Test
+    public void testReset() {
+        GatheringOutputStream gos = new GatheringOutputStream();
+        byte[] old = new byte[2 * CHUNK + 1];
+        Arrays.fill(old, (byte) 0x55);
+        gos.write(old, 0, old.length);
+        gos.reset();
+        assertEquals(0, gos.size());
+        assertEquals(0, gos.getBuffers().length);
+
+        byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+        gos.write(data, 0, data.length);
+        gos.write(6);
+        ByteBuffer[] bufs = gos.getBuffers();
+        assertEquals(1, bufs.length);
+        assertEquals(6, gos.size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, gather(gos)));
+        gos.reset();
+
+        // and again, through a boundary
+        byte[] big = new byte[CHUNK + 1];
+        new Random(44).nextBytes(big);
+        gos.write(big, 0, big.length);
+        assertEquals(2, gos.getBuffers().length);
+        assertTrue(Arrays.equals(big, gather(gos)));
+        gos.reset();
+    }
+}
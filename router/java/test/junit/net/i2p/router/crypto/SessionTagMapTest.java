@@ -0,0 +1,76 @@
+package net.i2p.router.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.data.SessionTag;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionTagMapTest {
+
+    private SessionTagMap<Integer> map;
+
+    @Before
+    public void setUp() {
+        map = new SessionTagMap<Integer>();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        SessionTag tag = new SessionTag(true);
+        assertNull(map.get(tag));
+        assertNull(map.putIfAbsent(tag, 1));
+        assertEquals(Integer.valueOf(1), map.putIfAbsent(tag, 2));
+        assertEquals(1, map.size());
+        // a different object with the same data
+        SessionTag copy = new SessionTag(tag.getData().clone());
+        assertEquals(Integer.valueOf(1), map.get(copy));
+        assertEquals(Integer.valueOf(1), map.remove(copy));
+        assertNull(map.remove(tag));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testRemoveByData() {
+        SessionTag tag = new SessionTag(true);
+        Integer value = Integer.valueOf(1000);
+        map.putIfAbsent(tag, value);
+        byte[] data = new byte[3 + SessionTag.BYTE_LENGTH];
+        System.arraycopy(tag.getData(), 0, data, 3, SessionTag.BYTE_LENGTH);
+        assertFalse(map.remove(data, 3, Integer.valueOf(1001)));
+        assertTrue(map.remove(data, 3, value));
+        assertFalse(map.remove(data, 3, value));
+        assertEquals(0, map.size());
+    }
+
+    /** enough to grow and shrink every segment, removing in a different order */
+    @Test
+    public void testMany() {
+        int count = 20000;
+        List<SessionTag> tags = new ArrayList<SessionTag>(count);
+        for (int i = 0; i < count; i++) {
+            SessionTag tag = new SessionTag(true);
+            tags.add(tag);
+            assertNull(map.putIfAbsent(tag, i));
+        }
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i += 2) {
+            assertEquals(Integer.valueOf(i), map.remove(tags.get(i)));
+        }
+        assertEquals(count / 2, map.size());
+        for (int i = 1; i < count; i += 2) {
+            assertEquals(Integer.valueOf(i), map.get(tags.get(i)));
+        }
+        for (int i = count - 1; i > 0; i -= 2) {
+            assertEquals(Integer.valueOf(i), map.remove(tags.get(i)));
+        }
+        assertEquals(0, map.size());
+        for (int i = 0; i < count; i++) {
+            assertNull(map.get(tags.get(i)));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.i2p.router.message;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.crypto.SessionKeyManager;
+import net.i2p.data.Certificate;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.i2np.DeliveryInstructions;
+import net.i2p.data.i2np.GarlicClove;
+import net.i2p.data.i2np.GarlicMessage;
+import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.router.RouterContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  The decryption is simulated: each message carries the tags
+ *  for the next message to the same SessionKeyManager,
+ *  so it only decrypts if the previous one already did.
+ *
+ *  @since 0.9.28
+ */
+public class GarlicDecryptPoolTest {
+
+    private static RouterContext _context;
+    private static final CloveSet SUCCESS = new CloveSet(new GarlicClove[0], Certificate.NULL_CERT, 0, 0);
+
+    @BeforeClass
+    public static void setUp() {
+        _context = new RouterContext(null);
+    }
+
+    /**
+     *  Message n for a SessionKeyManager decrypts only after message n - 1.
+     */
+    private static class TestPool extends GarlicDecryptPool {
+        /** unique ID to sequence number */
+        final Map<Long, Integer> seq = new ConcurrentHashMap<Long, Integer>();
+        /** next sequence number that will decrypt, per skm */
+        final Map<SessionKeyManager, Integer> next = new ConcurrentHashMap<SessionKeyManager, Integer>();
+        volatile CountDownLatch blocker;
+
+        public TestPool(int threads, int queueSize) {
+            super(_context, threads, queueSize);
+        }
+
+        @Override
+        CloveSet getCloves(GarlicMessage msg, PrivateKey key, SessionKeyManager skm) {
+            CountDownLatch b = blocker;
+            if (b != null) {
+                try {
+                    b.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {}
+            }
+            // give the other threads a chance to get ahead
+            Thread.yield();
+            int n = seq.get(Long.valueOf(msg.getUniqueId())).intValue();
+            Integer expected = next.get(skm);
+            if (expected == null || expected.intValue() != n)
+                return null;
+            next.put(skm, Integer.valueOf(n + 1));
+            return SUCCESS;
+        }
+    }
+
+    private static class TestReceiver extends GarlicMessageReceiver {
+        final List<GarlicMessage> ok = new ArrayList<GarlicMessage>();
+        final List<GarlicMessage> failed = new ArrayList<GarlicMessage>();
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        public TestReceiver() {
+            super(_context, new CloveReceiver() {
+                public void handleClove(DeliveryInstructions instructions, I2NPMessage data) {}
+            });
+        }
+
+        @Override
+        synchronized void received(GarlicMessage message, CloveSet set) {
+            if (set != null)
+                ok.add(message);
+            else
+                failed.add(message);
+            threads.add(Thread.currentThread());
+            notifyAll();
+        }
+
+        synchronized boolean waitFor(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10*1000;
+            while (ok.size() + failed.size() < count) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private static GarlicMessage message(TestPool pool, int n) {
+        GarlicMessage msg = new GarlicMessage(_context);
+        msg.setMessageExpiration(_context.clock().now() + 60*1000);
+        pool.seq.put(Long.valueOf(msg.getUniqueId()), Integer.valueOf(n));
+        return msg;
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        int numSKMs = 8;
+        int perSKM = 50;
+        TestPool pool = new TestPool(4, numSKMs * perSKM);
+        pool.startup();
+        try {
+            SessionKeyManager[] skms = new SessionKeyManager[numSKMs];
+            for (int i = 0; i < numSKMs; i++) {
+                skms[i] = new SessionKeyManager();
+                pool.next.put(skms[i], Integer.valueOf(0));
+            }
+            TestReceiver rcvr = new TestReceiver();
+            // interleaved
+            for (int n = 0; n < perSKM; n++) {
+                for (int i = 0; i < numSKMs; i++) {
+                    assertTrue(pool.add(rcvr, message(pool, n), null, skms[i]));
+                }
+            }
+            assertTrue(rcvr.waitFor(numSKMs * perSKM));
+            assertEquals(0, rcvr.failed.size());
+            assertEquals(numSKMs * perSKM, rcvr.ok.size());
+            for (int i = 0; i < numSKMs; i++) {
+                assertEquals(perSKM, pool.next.get(skms[i]).intValue());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSaturation() throws Exception {
+        int queueSize = 4;
+        TestPool pool = new TestPool(1, queueSize);
+        CountDownLatch latch = new CountDownLatch(1);
+        pool.blocker = latch;
+        pool.startup();
+        try {
+            SessionKeyManager skm = new SessionKeyManager();
+            pool.next.put(skm, Integer.valueOf(0));
+            TestReceiver rcvr = new TestReceiver();
+            // the thread takes the first one and blocks, the next queueSize are queued,
+            // allow a little time for the thread to take the first one
+            assertTrue(pool.add(rcvr, message(pool, 0), null, skm));
+            for (int i = 0; i < 50 && pool.getQueueSize() > 0; i++) {
+                Thread.sleep(10);
+            }
+            for (int n = 1; n <= queueSize; n++) {
+                assertTrue(pool.add(rcvr, message(pool, n), null, skm));
+            }
+            assertEquals(queueSize, pool.getQueueSize());
+            assertEquals(0, rcvr.ok.size() + rcvr.failed.size());
+
+            // full, decrypted inline on this thread, not dropped
+            pool.blocker = null;
+            SessionKeyManager skm2 = new SessionKeyManager();
+            pool.next.put(skm2, Integer.valueOf(0));
+            assertFalse(pool.add(rcvr, message(pool, 0), null, skm2));
+            assertEquals(1, rcvr.ok.size());
+            assertSame(Thread.currentThread(), rcvr.threads.get(0));
+            assertEquals(queueSize, pool.getQueueSize());
+
+            // the queued ones still decrypt, in order
+            latch.countDown();
+            assertTrue(rcvr.waitFor(queueSize + 2));
+            assertEquals(0, rcvr.failed.size());
+            assertEquals(queueSize + 1, pool.next.get(skm).intValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
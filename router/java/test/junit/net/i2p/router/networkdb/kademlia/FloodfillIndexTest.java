@@ -0,0 +1,78 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class FloodfillIndexTest {
+
+    private static Hash random(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+
+    private static List<Hash> walk(Hash[] sorted, Hash key) {
+        List<Hash> rv = new ArrayList<Hash>(sorted.length);
+        for (Iterator<Hash> iter = new FloodfillIndex.ClosestIterator(sorted, key); iter.hasNext(); ) {
+            rv.add(iter.next());
+        }
+        return rv;
+    }
+
+    @Test
+    public void testXOROrder() {
+        Random rand = new Random(42);
+        for (int size : new int[] { 1, 2, 3, 17, 1500 }) {
+            List<Hash> hashes = new ArrayList<Hash>(size);
+            for (int i = 0; i < size; i++) {
+                hashes.add(random(rand));
+            }
+            Hash[] sorted = FloodfillIndex.sort(hashes);
+            for (int j = 0; j < 20; j++) {
+                // also try a key that is in the set
+                Hash key = j == 0 ? hashes.get(0) : random(rand);
+                List<Hash> expected = new ArrayList<Hash>(hashes);
+                Collections.sort(expected, new XORComparator<Hash>(key));
+                assertEquals(expected, walk(sorted, key));
+            }
+        }
+    }
+
+    @Test
+    public void testCommonPrefix() {
+        // long shared prefixes, so ranges don't split for many bits
+        Random rand = new Random(43);
+        List<Hash> hashes = new ArrayList<Hash>();
+        for (int i = 0; i < 64; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            b[Hash.HASH_LENGTH - 1] = (byte) i;
+            hashes.add(new Hash(b));
+        }
+        Hash[] sorted = FloodfillIndex.sort(hashes);
+        for (int j = 0; j < 20; j++) {
+            Hash key = random(rand);
+            List<Hash> expected = new ArrayList<Hash>(hashes);
+            Collections.sort(expected, new XORComparator<Hash>(key));
+            assertEquals(expected, walk(sorted, key));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        Iterator<Hash> iter = new FloodfillIndex.ClosestIterator(new Hash[0], Hash.FAKE_HASH);
+        assertFalse(iter.hasNext());
+    }
+}
@@ -0,0 +1,137 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogDataStoreTest {
+
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        log = File.createTempFile("netDbTest", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        log.delete();
+    }
+
+    @Test
+    public void testLastRecordWins() throws IOException {
+        Hash a = hash(1);
+        Hash b = hash(2);
+        long end;
+        FileOutputStream out = new FileOutputStream(log);
+        try {
+            LogDataStore.writeHeader(out);
+            LogDataStore.writeRecord(out, 1, a, DataHelper.getASCII("a1"));
+            LogDataStore.writeRecord(out, 1, b, DataHelper.getASCII("b1"));
+            LogDataStore.writeRecord(out, 1, a, DataHelper.getASCII("a2"));
+            LogDataStore.writeRecord(out, 2, b, null);
+        } finally {
+            out.close();
+        }
+        Map<Hash, byte[]> entries = new LinkedHashMap<Hash, byte[]>();
+        end = LogDataStore.readLog(log, entries);
+        assertEquals(log.length(), end);
+        assertEquals(1, entries.size());
+        assertTrue(DataHelper.eq(DataHelper.getASCII("a2"), entries.get(a)));
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        Hash a = hash(1);
+        FileOutputStream out = new FileOutputStream(log);
+        try {
+            LogDataStore.writeHeader(out);
+            LogDataStore.writeRecord(out, 1, a, new byte[100]);
+            LogDataStore.writeRecord(out, 1, hash(2), new byte[100]);
+        } finally {
+            out.close();
+        }
+        long full = log.length();
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(full - 10);
+        } finally {
+            raf.close();
+        }
+        Map<Hash, byte[]> entries = new LinkedHashMap<Hash, byte[]>();
+        long end = LogDataStore.readLog(log, entries);
+        assertEquals(1, entries.size());
+        assertTrue(entries.containsKey(a));
+        assertEquals(full - (41 + 100), end);
+
+        // corrupt a byte in the data, the CRC should catch it
+        raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(end - 10);
+            raf.write(1);
+        } finally {
+            raf.close();
+        }
+        entries.clear();
+        assertEquals(9, LogDataStore.readLog(log, entries));
+        assertTrue(entries.isEmpty());
+    }
+
+    /**
+     *  The delete record must not be appended after the torn record
+     */
+    @Test
+    public void testDeleteAfterTornTail() throws IOException {
+        Hash a = hash(1);
+        FileOutputStream out = new FileOutputStream(log);
+        try {
+            LogDataStore.writeHeader(out);
+            LogDataStore.writeRecord(out, 1, a, new byte[100]);
+            LogDataStore.writeRecord(out, 1, hash(2), new byte[100]);
+        } finally {
+            out.close();
+        }
+        long full = log.length();
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(full - 10);
+        } finally {
+            raf.close();
+        }
+        LogDataStore.delete(log, a, I2PAppContext.getGlobalContext().logManager().getLog(LogDataStore.class));
+        Map<Hash, byte[]> entries = new LinkedHashMap<Hash, byte[]>();
+        long end = LogDataStore.readLog(log, entries);
+        assertEquals(log.length(), end);
+        assertTrue(entries.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadHeader() throws IOException {
+        FileOutputStream out = new FileOutputStream(log);
+        try {
+            out.write(new byte[20]);
+        } finally {
+            out.close();
+        }
+        LogDataStore.readLog(log, new LinkedHashMap<Hash, byte[]>());
+    }
+
+    private static Hash hash(int i) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        b[0] = (byte) i;
+        return new Hash(b);
+    }
+}
@@ -0,0 +1,107 @@
+package net.i2p.router.peermanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProfileSnapshotTest {
+
+    private static RouterContext ctx;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        if (ctx == null)
+            ctx = new RouterContext(null);
+        dir = File.createTempFile("profileTest", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.rmdir(dir, false);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ProfileSnapshot snap = new ProfileSnapshot(ctx, dir);
+        List<PeerProfile> profiles = new ArrayList<PeerProfile>();
+        for (int i = 0; i < 10; i++) {
+            PeerProfile p = new PeerProfile(ctx, hash(i));
+            p.setLastSendSuccessful(1000 + i);
+            p.setCapacityBonus(i);
+            p.getTunnelHistory().incrementAgreedTo();
+            if (i == 3) {
+                p.expandDBProfile();
+                p.getDBHistory().lookupSuccessful();
+            }
+            profiles.add(p);
+        }
+        assertEquals(10, snap.write(profiles));
+        for (PeerProfile p : profiles) {
+            assertFalse(p.isDirty());
+        }
+        // only dirty ones are appended
+        assertEquals(0, snap.write(profiles));
+        profiles.get(5).setCapacityBonus(55);
+        profiles.get(5).setDirty();
+        assertEquals(1, snap.write(profiles));
+
+        snap = new ProfileSnapshot(ctx, dir);
+        Map<Hash, ByteBuffer> records = snap.read();
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            PeerProfile p = snap.decode(hash(i), records.get(hash(i)));
+            assertNotNull(p);
+            assertEquals(1000 + i, p.getLastSendSuccessful());
+            assertEquals(i == 5 ? 55 : i, p.getCapacityBonus());
+            assertEquals(1, p.getTunnelHistory().getLifetimeAgreedTo());
+            assertEquals(i == 3, p.getIsExpandedDB());
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        ProfileSnapshot snap = new ProfileSnapshot(ctx, dir);
+        List<PeerProfile> profiles = new ArrayList<PeerProfile>();
+        profiles.add(new PeerProfile(ctx, hash(1)));
+        profiles.add(new PeerProfile(ctx, hash(2)));
+        snap.write(profiles);
+        File f = new File(dir, ProfileSnapshot.SNAPSHOT_FILE);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        snap = new ProfileSnapshot(ctx, dir);
+        Map<Hash, ByteBuffer> records = snap.read();
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey(hash(1)));
+        // the partial record is gone and appends go after the good one
+        profiles.get(1).setDirty();
+        assertEquals(1, snap.write(profiles));
+        assertEquals(2, new ProfileSnapshot(ctx, dir).read().size());
+    }
+
+    private static Hash hash(int i) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        b[0] = (byte) i;
+        return new Hash(b);
+    }
+}
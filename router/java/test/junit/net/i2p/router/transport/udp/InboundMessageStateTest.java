@@ -0,0 +1,137 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class InboundMessageStateTest {
+
+    private static RouterContext _context;
+    private static final long MSG_ID = 1234;
+    private static final int FRAG_SIZE = 1000;
+
+    @BeforeClass
+    public static void setUp() {
+        _context = new RouterContext(null);
+    }
+
+    /**
+     *  A data packet with one fragment of the message,
+     *  fragment n is filled with n + 1
+     */
+    private static UDPPacketReader.DataReader fragment(int num, boolean isLast, int size) {
+        UDPPacket packet = UDPPacket.acquire(_context, true);
+        DatagramPacket pkt = packet.getPacket();
+        byte[] buf = pkt.getData();
+        int off = pkt.getOffset() + UDPPacket.MAC_SIZE + UDPPacket.IV_SIZE;
+        buf[off++] = (byte) (UDPPacket.PAYLOAD_TYPE_DATA << 4);
+        DataHelper.toLong(buf, off, 4, _context.clock().now() / 1000);
+        off += 4;
+        buf[off++] = 0;
+        buf[off++] = 1;
+        DataHelper.toLong(buf, off, 4, MSG_ID);
+        off += 4;
+        buf[off++] = (byte) ((num << 1) | (isLast ? 1 : 0));
+        DataHelper.toLong(buf, off, 2, size);
+        off += 2;
+        for (int i = 0; i < size; i++) {
+            buf[off++] = (byte) (num + 1);
+        }
+        pkt.setLength(off - pkt.getOffset());
+        UDPPacketReader reader = new UDPPacketReader(_context);
+        reader.initialize(packet);
+        return reader.getDataReader();
+    }
+
+    private static void verify(byte[] data, int fragments, int lastSize) {
+        int off = 0;
+        for (int i = 0; i < fragments; i++) {
+            int sz = i < fragments - 1 ? FRAG_SIZE : lastSize;
+            for (int j = 0; j < sz; j++) {
+                assertEquals("fragment " + i, (byte) (i + 1), data[off++]);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleFragment() throws Exception {
+        InboundMessageState ims = new InboundMessageState(_context, MSG_ID, Hash.FAKE_HASH, fragment(0, true, 300), 0);
+        assertTrue(ims.isComplete());
+        assertEquals(300, ims.getCompleteSize());
+        assertEquals(1, ims.getFragmentCount());
+        byte[] scratch = new byte[300];
+        byte[] data = ims.getCompleteData(scratch);
+        assertNotSame(scratch, data);
+        verify(data, 1, 300);
+        ims.releaseResources();
+    }
+
+    @Test
+    public void testInOrder() throws Exception {
+        InboundMessageState ims = new InboundMessageState(_context, MSG_ID, Hash.FAKE_HASH, fragment(0, false, FRAG_SIZE), 0);
+        assertFalse(ims.isComplete());
+        assertTrue(ims.receiveFragment(fragment(1, false, FRAG_SIZE), 0));
+        ACKBitfield abf = ims.createACKBitfield();
+        assertEquals(2, abf.ackCount());
+        assertEquals(1, abf.highestReceived());
+        assertTrue(abf.received(1));
+        assertFalse(ims.isComplete());
+        // dup
+        assertTrue(ims.receiveFragment(fragment(1, false, FRAG_SIZE), 0));
+        assertTrue(ims.receiveFragment(fragment(2, true, 123), 0));
+        assertTrue(ims.isComplete());
+        assertEquals(2 * FRAG_SIZE + 123, ims.getCompleteSize());
+        byte[] scratch = new byte[ims.getCompleteSize()];
+        byte[] data = ims.getCompleteData(scratch);
+        // no copy
+        assertNotSame(scratch, data);
+        verify(data, 3, 123);
+        ims.releaseResources();
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        InboundMessageState ims = new InboundMessageState(_context, MSG_ID, Hash.FAKE_HASH, fragment(3, true, 55), 0);
+        assertFalse(ims.isComplete());
+        assertTrue(ims.receiveFragment(fragment(1, false, FRAG_SIZE), 0));
+        assertTrue(ims.receiveFragment(fragment(0, false, FRAG_SIZE), 0));
+        ACKBitfield abf = ims.createACKBitfield();
+        assertEquals(3, abf.ackCount());
+        assertFalse(abf.received(2));
+        assertFalse(abf.receivedComplete());
+        // past the last fragment
+        assertFalse(ims.receiveFragment(fragment(4, false, FRAG_SIZE), 0));
+        assertTrue(ims.receiveFragment(fragment(2, false, FRAG_SIZE), 0));
+        assertTrue(ims.isComplete());
+        assertEquals(3 * FRAG_SIZE + 55, ims.getCompleteSize());
+        byte[] scratch = new byte[ims.getCompleteSize()];
+        byte[] data = ims.getCompleteData(scratch);
+        assertSame(scratch, data);
+        verify(data, 4, 55);
+        ims.releaseResources();
+    }
+
+    @Test
+    public void testLarge() throws Exception {
+        // grows through all the buffer sizes
+        int num = 40;
+        InboundMessageState ims = new InboundMessageState(_context, MSG_ID, Hash.FAKE_HASH, fragment(0, false, FRAG_SIZE), 0);
+        for (int i = 1; i < num; i++) {
+            assertTrue(ims.receiveFragment(fragment(i, i == num - 1, FRAG_SIZE), 0));
+        }
+        assertTrue(ims.isComplete());
+        assertEquals(num * FRAG_SIZE, ims.getCompleteSize());
+        verify(ims.getCompleteData(null), num, FRAG_SIZE);
+        ims.releaseResources();
+    }
+}
@@ -0,0 +1,57 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import net.i2p.data.Hash;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class PacketHandlerTest {
+
+    private static RemoteHostId host(int i, int port) {
+        byte[] ip = new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+        return new RemoteHostId(ip, port);
+    }
+
+    /**
+     *  Packets from one host must go to one handler, so they are handled in order
+     */
+    @Test
+    public void testSameHostSameShard() {
+        for (int count = 1; count <= 8; count++) {
+            for (int i = 0; i < 1000; i++) {
+                int port = 1024 + i;
+                // equal, but different instances and different arrays
+                int shard = PacketHandler.getShard(host(i, port), count);
+                assertTrue(shard >= 0 && shard < count);
+                for (int j = 0; j < 3; j++) {
+                    assertEquals(shard, PacketHandler.getShard(host(i, port), count));
+                }
+            }
+            byte[] h = new byte[Hash.HASH_LENGTH];
+            h[0] = (byte) count;
+            int shard = PacketHandler.getShard(new RemoteHostId(new Hash(h)), count);
+            assertTrue(shard >= 0 && shard < count);
+            assertEquals(shard, PacketHandler.getShard(new RemoteHostId(new Hash(h.clone())), count));
+        }
+    }
+
+    /**
+     *  All handlers get used
+     */
+    @Test
+    public void testAllShardsUsed() {
+        for (int count = 2; count <= 8; count++) {
+            int[] hits = new int[count];
+            for (int i = 0; i < 1000; i++) {
+                hits[PacketHandler.getShard(host(i, 8887), count)]++;
+            }
+            for (int j = 0; j < count; j++) {
+                assertTrue("shard " + j + " of " + count, hits[j] > 0);
+            }
+        }
+    }
+}
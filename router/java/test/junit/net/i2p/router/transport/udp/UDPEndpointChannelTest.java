@@ -0,0 +1,95 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import net.i2p.router.Router;
+import net.i2p.router.RouterContext;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  Send and receive real datagrams over loopback in channel mode.
+ *
+ *  @since 0.9.28
+ */
+public class UDPEndpointChannelTest {
+
+    private static RouterContext _context;
+    private static UDPEndpoint _alice, _bob;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        System.setProperty(UDPEndpoint.PROP_CHANNELS, "1");
+        _context = new RouterContext(new Router());
+        _context.initAll();
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        _alice = new UDPEndpoint(_context, null, -1, localhost);
+        _alice.startup();
+        _bob = new UDPEndpoint(_context, null, -1, localhost);
+        _bob.startup();
+        assertTrue(_alice.getListenPort() > 0);
+        assertTrue(_bob.getListenPort() > 0);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (_alice != null)
+            _alice.shutdown();
+        if (_bob != null)
+            _bob.shutdown();
+    }
+
+    private static void send(UDPEndpoint from, UDPEndpoint to, byte[] data) {
+        UDPPacket packet = UDPPacket.acquire(_context, false);
+        DatagramPacket pkt = packet.getPacket();
+        System.arraycopy(data, 0, pkt.getData(), 0, data.length);
+        pkt.setLength(data.length);
+        pkt.setSocketAddress(new InetSocketAddress("127.0.0.1", to.getListenPort()));
+        from.send(packet);
+    }
+
+    private static void verify(UDPPacket packet, UDPEndpoint from, byte[] data) {
+        assertNotNull(packet);
+        DatagramPacket pkt = packet.getPacket();
+        assertEquals(data.length, pkt.getLength());
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], pkt.getData()[pkt.getOffset() + i]);
+        }
+        assertEquals(from.getListenPort(), pkt.getPort());
+        packet.release();
+    }
+
+    @Test
+    public void testSendReceive() {
+        byte[] data = new byte[1000];
+        _context.random().nextBytes(data);
+        send(_alice, _bob, data);
+        verify(_bob.receive(), _alice, data);
+
+        byte[] reply = new byte[100];
+        _context.random().nextBytes(reply);
+        send(_bob, _alice, reply);
+        verify(_alice.receive(), _bob, reply);
+    }
+
+    @Test
+    public void testSendReceiveMany() {
+        int count = 20;
+        byte[][] data = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            data[i] = new byte[100 + i];
+            _context.random().nextBytes(data[i]);
+            send(_alice, _bob, data[i]);
+        }
+        // loopback, one sender, in order
+        for (int i = 0; i < count; i++) {
+            verify(_bob.receive(), _alice, data[i]);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @since 0.9.28
+ */
+public class LongHashMapTest {
+
+    @Test
+    public void testBasic() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(-1, "b"));
+        assertNull(map.put(Long.MAX_VALUE, "c"));
+        assertEquals("a", map.put(1, "d"));
+        assertEquals(3, map.size());
+        assertEquals("d", map.get(1));
+        assertEquals("b", map.get(-1));
+        assertEquals("c", map.get(Long.MAX_VALUE));
+        assertNull(map.get(0));
+        assertTrue(map.containsKey(-1));
+        assertFalse(map.containsKey(2));
+        assertEquals("b", map.remove(-1));
+        assertNull(map.remove(-1));
+        assertFalse(map.containsKey(-1));
+        assertEquals(2, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+    }
+
+    @Test(expected=NullPointerException.class)
+    public void testNullValue() {
+        new LongHashMap<String>().put(1, null);
+    }
+
+    /** compare against a HashMap with lots of puts and removes, so the table fills with removed markers */
+    @Test
+    public void testRandom() {
+        Random rand = new Random(42);
+        LongHashMap<Long> map = new LongHashMap<Long>();
+        Map<Long, Long> ref = new HashMap<Long, Long>();
+        for (int i = 0; i < 100000; i++) {
+            // small key range so we hit existing keys
+            long key = rand.nextInt(500) * 4096L;
+            if (rand.nextInt(3) == 0) {
+                assertEquals(ref.remove(key), map.remove(key));
+            } else {
+                Long val = Long.valueOf(i);
+                assertEquals(ref.put(key, val), map.put(key, val));
+            }
+            assertEquals(ref.size(), map.size());
+        }
+        for (Map.Entry<Long, Long> e : ref.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey().longValue()));
+        }
+        long[] keys = map.keys();
+        assertEquals(ref.size(), keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            assertTrue(ref.containsKey(keys[i]));
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        LongHashMap<Long> map = new LongHashMap<Long>();
+        for (long i = 0; i < 100; i++) {
+            map.put(i, Long.valueOf(i));
+        }
+        int count = 0;
+        for (Iterator<Long> iter = map.valueIterator(); iter.hasNext(); ) {
+            long val = iter.next().longValue();
+            count++;
+            if ((val & 1) != 0)
+                iter.remove();
+        }
+        assertEquals(100, count);
+        assertEquals(50, map.size());
+        for (long i = 0; i < 100; i++) {
+            assertEquals((i & 1) == 0, map.containsKey(i));
+        }
+        for (Iterator<Long> iter = map.valueIterator(); iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+        assertTrue(map.isEmpty());
+        assertFalse(map.valueIterator().hasNext());
+        // still usable
+        map.put(7, Long.valueOf(7));
+        assertEquals(Long.valueOf(7), map.get(7));
+    }
+
+    @Test
+    public void testSet() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.add(6));
+        assertTrue(set.contains(5));
+        assertEquals(2, set.size());
+        long[] vals = set.toArray();
+        Arrays.sort(vals);
+        assertArrayEquals(new long[] { 5, 6 }, vals);
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertFalse(set.contains(5));
+        set.clear();
+        assertTrue(set.isEmpty());
+    }
+}